@@ -0,0 +1,211 @@
+/*
+ * Copyright 2015 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package com.example.clouddrivefiles.benchmark;
+
+import android.app.IntentService;
+import android.content.Context;
+import android.content.Intent;
+import android.content.SharedPreferences;
+import android.os.SystemClock;
+import android.util.Log;
+import com.amazon.clouddrive.AmazonCloudDriveClient;
+import com.amazon.clouddrive.auth.AuthenticatedURLConnectionFactory;
+import com.amazon.clouddrive.configuration.AccountConfiguration;
+import com.amazon.clouddrive.configuration.ClientConfiguration;
+import com.amazon.clouddrive.handlers.ProgressListener;
+import com.amazon.clouddrive.model.UploadFileRequest;
+import com.example.clouddrivefiles.client.SharedCloudDriveClient;
+import com.example.clouddrivefiles.client.TransferManager;
+import com.example.clouddrivefiles.provider.CloudDriveContract;
+import com.example.clouddrivefiles.sync.FolderSynchronizer;
+import com.example.clouddrivefiles.utils.Constants;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedList;
+import java.util.List;
+
+/**
+ * Debug-only service that measures sync and upload throughput against a
+ * {@link LocalCloudDriveServer}.
+ *
+ * The sync benchmark runs the same {@link FolderSynchronizer} that backs
+ * {@link com.example.clouddrivefiles.service.CloudDriveFolderListingService},
+ * so the numbers include JSON parsing, ContentProvider batches and SQLite writes.
+ *
+ * Run it with, for example:
+ * <pre>
+ * adb shell am startservice -n com.example.clouddrivefiles/.benchmark.BenchmarkService \
+ *     --ei depth 3 --ei folders_per_folder 4 --ei files_per_folder 50 \
+ *     --el latency_millis 50 --ef error_rate 0.01 --ei uploads 20 --ez streaming true
+ * </pre>
+ * and read the results from logcat under the BenchmarkService tag.
+ *
+ * Note: the benchmark replaces the contents of the local node cache.
+ */
+public class BenchmarkService extends IntentService {
+
+    private static final String TAG = BenchmarkService.class.getSimpleName();
+
+    public static final String EXTRA_DEPTH = "depth";
+    public static final String EXTRA_FOLDERS_PER_FOLDER = "folders_per_folder";
+    public static final String EXTRA_FILES_PER_FOLDER = "files_per_folder";
+    public static final String EXTRA_FILE_SIZE = "file_size";
+    public static final String EXTRA_LATENCY_MILLIS = "latency_millis";
+    public static final String EXTRA_ERROR_RATE = "error_rate";
+    public static final String EXTRA_UPLOADS = "uploads";
+    public static final String EXTRA_ITERATIONS = "iterations";
+    public static final String EXTRA_STREAMING = "streaming";
+
+    private static final String BENCHMARK_PREFERENCE_FILE = "benchmark_preferences";
+
+    private static final ProgressListener NO_PROGRESS = new ProgressListener() {
+        @Override
+        public void onProgress(long progress, long maxProgress) {
+        }
+    };
+
+    public BenchmarkService() {
+        super(BenchmarkService.class.getSimpleName());
+    }
+
+    @Override
+    protected void onHandleIntent(Intent intent) {
+        LocalCloudDriveServer.Configuration configuration = new LocalCloudDriveServer.Configuration();
+        configuration.depth = intent.getIntExtra(EXTRA_DEPTH, configuration.depth);
+        configuration.foldersPerFolder = intent.getIntExtra(EXTRA_FOLDERS_PER_FOLDER, configuration.foldersPerFolder);
+        configuration.filesPerFolder = intent.getIntExtra(EXTRA_FILES_PER_FOLDER, configuration.filesPerFolder);
+        configuration.fileSize = intent.getLongExtra(EXTRA_FILE_SIZE, configuration.fileSize);
+        configuration.latencyMillis = intent.getLongExtra(EXTRA_LATENCY_MILLIS, configuration.latencyMillis);
+        configuration.errorRate = intent.getFloatExtra(EXTRA_ERROR_RATE, (float) configuration.errorRate);
+        int uploads = intent.getIntExtra(EXTRA_UPLOADS, 10);
+        int iterations = intent.getIntExtra(EXTRA_ITERATIONS, 3);
+        boolean streaming = intent.getBooleanExtra(EXTRA_STREAMING, true);
+
+        LocalCloudDriveServer server = new LocalCloudDriveServer(configuration);
+        try {
+            server.start();
+            Log.i(TAG, "Synthetic tree: " + server.getNodeCount() + " nodes in " + server.getFolderCount() + " folders");
+
+            List<Long> syncMillis = new ArrayList<Long>();
+            List<Long> uploadMillis = new ArrayList<Long>();
+            for (int i = 0; i < iterations; i++) {
+                SharedCloudDriveClient client = createClient(server);
+                clearNodeCache();
+                syncMillis.add(runSync(client, streaming));
+                uploadMillis.add(runUploads(client, uploads, configuration.fileSize));
+            }
+
+            long syncMedian = median(syncMillis);
+            long uploadMedian = median(uploadMillis);
+            Log.i(TAG, (streaming ? "Sync (streaming)" : "Sync") + ": median " + syncMedian + " ms, " +
+                    ratePerSecond(server.getNodeCount(), syncMedian) + " nodes/s " + syncMillis);
+            Log.i(TAG, "Upload: median " + uploadMedian + " ms, " +
+                    ratePerSecond(uploads * configuration.fileSize, uploadMedian) + " bytes/s " + uploadMillis);
+            Log.i(TAG, "Requests served: " + server.getRequestCount());
+
+        } catch (Exception e) {
+            Log.e(TAG, "Benchmark failed", e);
+        } finally {
+            server.stop();
+            clearNodeCache();
+        }
+    }
+
+    /**
+     * Creates a client pointed at the stand-in server. A fresh client is used
+     * for each iteration so cached endpoints do not carry over.
+     */
+    private SharedCloudDriveClient createClient(LocalCloudDriveServer server) {
+        ClientConfiguration clientConfiguration = new ClientConfiguration(Constants.USER_AGENT);
+        clientConfiguration.setMasterEndpoint(server.getMasterEndpoint());
+
+        AuthenticatedURLConnectionFactory connectionFactory = new LoopbackConnectionFactory();
+        AmazonCloudDriveClient amazonCloudDriveClient = new AmazonCloudDriveClient(
+                new AccountConfiguration(connectionFactory),
+                clientConfiguration);
+
+        SharedPreferences sharedPreferences = getSharedPreferences(BENCHMARK_PREFERENCE_FILE, Context.MODE_PRIVATE);
+        sharedPreferences.edit().clear().commit();
+        return new SharedCloudDriveClient(
+                sharedPreferences, connectionFactory, amazonCloudDriveClient, new TransferManager(this));
+    }
+
+    /**
+     * Lists the whole synthetic tree, breadth first, in either streaming or
+     * regular mode.
+     * @return the elapsed time in milliseconds
+     */
+    private long runSync(SharedCloudDriveClient client, boolean streaming) throws Exception {
+        FolderSynchronizer folderSynchronizer = new FolderSynchronizer(getContentResolver(), client);
+        folderSynchronizer.setStreamingEnabled(streaming);
+
+        long start = SystemClock.elapsedRealtime();
+        LinkedList<String> pendingFolderIds = new LinkedList<String>(folderSynchronizer.syncRootFolder());
+        while (!pendingFolderIds.isEmpty()) {
+            pendingFolderIds.addAll(folderSynchronizer.syncFolder(pendingFolderIds.removeFirst()));
+        }
+        return SystemClock.elapsedRealtime() - start;
+    }
+
+    /**
+     * Uploads synthetic files into the root of the stand-in drive.
+     * @return the elapsed time in milliseconds
+     */
+    private long runUploads(SharedCloudDriveClient client, int uploads, long fileSize) throws Exception {
+        byte[] content = new byte[(int) fileSize];
+        List<String> parents = Collections.singletonList(client.getRootNodeId());
+
+        long start = SystemClock.elapsedRealtime();
+        for (int i = 0; i < uploads; i++) {
+            UploadFileRequest uploadFileRequest = new UploadFileRequest(
+                    "benchmark" + i + ".bin",
+                    new ByteArrayInputStream(content),
+                    content.length);
+            uploadFileRequest.setParents(parents);
+            client.uploadFile(uploadFileRequest, NO_PROGRESS);
+        }
+        return SystemClock.elapsedRealtime() - start;
+    }
+
+    private void clearNodeCache() {
+        getContentResolver().delete(CloudDriveContract.Nodes.CONTENT_URI, null, null);
+        getContentResolver().delete(CloudDriveContract.NodeParents.CONTENT_URI, null, null);
+    }
+
+    private static long median(List<Long> values) {
+        List<Long> sorted = new ArrayList<Long>(values);
+        Collections.sort(sorted);
+        return sorted.get(sorted.size() / 2);
+    }
+
+    private static long ratePerSecond(long count, long millis) {
+        return millis > 0 ? count * 1000 / millis : 0;
+    }
+
+    /**
+     * Opens plain connections. The stand-in server does not check authorization.
+     */
+    private static class LoopbackConnectionFactory implements AuthenticatedURLConnectionFactory {
+        @Override
+        public HttpURLConnection createHttpURLConnection(URL url) throws IOException {
+            return (HttpURLConnection) url.openConnection();
+        }
+    }
+}
@@ -0,0 +1,496 @@
+/*
+ * Copyright 2015 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package com.example.clouddrivefiles.benchmark;
+
+import android.util.Log;
+import com.amazon.clouddrive.model.NodeKind;
+import com.example.clouddrivefiles.utils.Closer;
+import org.codehaus.jackson.JsonEncoding;
+import org.codehaus.jackson.JsonFactory;
+import org.codehaus.jackson.JsonGenerator;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URLDecoder;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A local stand-in for the Amazon Cloud Drive service, used for benchmarking.
+ *
+ * Serves a synthetic node tree over plain HTTP on the loopback interface and
+ * implements just enough of the API for the application:
+ * <ul>
+ *     <li>GET  account/endpoint</li>
+ *     <li>GET  nodes?filters=isRoot:true</li>
+ *     <li>GET  nodes/{id}/children</li>
+ *     <li>POST nodes (upload)</li>
+ *     <li>GET  nodes/{id}/content (download, with single byte ranges)</li>
+ * </ul>
+ * Every request can be delayed by a fixed latency and fail at a configurable rate
+ * so that retry and throughput behavior can be measured reproducibly.
+ */
+public class LocalCloudDriveServer {
+
+    private static final String TAG = LocalCloudDriveServer.class.getSimpleName();
+
+    private static final String METADATA_PATH = "/drive/v1/";
+    private static final String CONTENT_PATH = "/cdproxy/";
+    private static final int DEFAULT_PAGE_SIZE = 200;
+    private static final String ROOT_NODE_ID = "root";
+
+    /**
+     * Shape of the synthetic tree and behavior of the server.
+     */
+    public static class Configuration {
+        public int depth = 3;
+        public int foldersPerFolder = 4;
+        public int filesPerFolder = 50;
+        public long fileSize = 64 * 1024;
+        public long latencyMillis = 50;
+        public double errorRate = 0.0;
+        public long seed = 42;
+    }
+
+    private static class SyntheticNode {
+        final String id;
+        final String parentId;
+        final String name;
+        final String kind;
+        final long size;
+        final List<SyntheticNode> children = new ArrayList<SyntheticNode>();
+
+        SyntheticNode(String id, String parentId, String name, String kind, long size) {
+            this.id = id;
+            this.parentId = parentId;
+            this.name = name;
+            this.kind = kind;
+            this.size = size;
+        }
+    }
+
+    private final Configuration mConfiguration;
+    private final Map<String, SyntheticNode> mNodes = new HashMap<String, SyntheticNode>();
+    private final JsonFactory mJsonFactory = new JsonFactory();
+    private final Random mRandom;
+    private final AtomicInteger mUploadCounter = new AtomicInteger();
+    private final AtomicInteger mRequestCount = new AtomicInteger();
+
+    private ServerSocket mServerSocket;
+    private ExecutorService mExecutorService;
+
+    public LocalCloudDriveServer(Configuration configuration) {
+        mConfiguration = configuration;
+        mRandom = new Random(configuration.seed);
+        SyntheticNode root = new SyntheticNode(ROOT_NODE_ID, null, "", NodeKind.FOLDER, 0);
+        mNodes.put(root.id, root);
+        populate(root, configuration.depth);
+    }
+
+    /**
+     * Starts listening on an ephemeral loopback port.
+     */
+    public synchronized void start() throws IOException {
+        mServerSocket = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+        mExecutorService = Executors.newCachedThreadPool();
+        mExecutorService.execute(new Runnable() {
+            @Override
+            public void run() {
+                while (!mServerSocket.isClosed()) {
+                    try {
+                        final Socket socket = mServerSocket.accept();
+                        mExecutorService.execute(new Runnable() {
+                            @Override
+                            public void run() {
+                                handleConnection(socket);
+                            }
+                        });
+                    } catch (IOException e) {
+                        // Socket was closed by stop().
+                    }
+                }
+            }
+        });
+    }
+
+    public synchronized void stop() {
+        Closer.closeQuietly(mServerSocket);
+        if (mExecutorService != null) {
+            mExecutorService.shutdownNow();
+        }
+    }
+
+    /**
+     * @return the endpoint to configure as the client's master endpoint.
+     */
+    public String getMasterEndpoint() {
+        return getBaseUrl() + METADATA_PATH;
+    }
+
+    /**
+     * @return the number of folders in the synthetic tree, including the root.
+     */
+    public int getFolderCount() {
+        int count = 0;
+        for (SyntheticNode node : mNodes.values()) {
+            if (NodeKind.FOLDER.equals(node.kind)) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * @return the number of nodes in the synthetic tree, including the root.
+     */
+    public int getNodeCount() {
+        return mNodes.size();
+    }
+
+    /**
+     * @return the number of HTTP requests served so far.
+     */
+    public int getRequestCount() {
+        return mRequestCount.get();
+    }
+
+    private String getBaseUrl() {
+        return "http://127.0.0.1:" + mServerSocket.getLocalPort();
+    }
+
+    private void populate(SyntheticNode folder, int remainingDepth) {
+        for (int i = 0; i < mConfiguration.filesPerFolder; i++) {
+            addChild(folder, folder.id + "-file" + i, "file" + i + ".jpg", NodeKind.FILE, mConfiguration.fileSize);
+        }
+        if (remainingDepth <= 0) {
+            return;
+        }
+        for (int i = 0; i < mConfiguration.foldersPerFolder; i++) {
+            SyntheticNode child = addChild(folder, folder.id + "-folder" + i, "folder" + i, NodeKind.FOLDER, 0);
+            populate(child, remainingDepth - 1);
+        }
+    }
+
+    private SyntheticNode addChild(SyntheticNode parent, String id, String name, String kind, long size) {
+        SyntheticNode child = new SyntheticNode(id, parent.id, name, kind, size);
+        parent.children.add(child);
+        mNodes.put(id, child);
+        return child;
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+    // HTTP handling
+    ///////////////////////////////////////////////////////////////////////////
+
+    private void handleConnection(Socket socket) {
+        InputStream in = null;
+        OutputStream out = null;
+        try {
+            in = new BufferedInputStream(socket.getInputStream());
+            out = socket.getOutputStream();
+
+            String requestLine = readLine(in);
+            if (requestLine == null) {
+                return;
+            }
+            Map<String, String> headers = new HashMap<String, String>();
+            String line;
+            while ((line = readLine(in)) != null && line.length() > 0) {
+                int colon = line.indexOf(':');
+                if (colon > 0) {
+                    headers.put(line.substring(0, colon).trim().toLowerCase(), line.substring(colon + 1).trim());
+                }
+            }
+            String[] parts = requestLine.split(" ");
+            String method = parts[0];
+            String target = parts[1];
+
+            long bodyLength = drainBody(in, headers);
+            mRequestCount.incrementAndGet();
+
+            if (mConfiguration.latencyMillis > 0) {
+                Thread.sleep(mConfiguration.latencyMillis);
+            }
+            if (mConfiguration.errorRate > 0 && nextDouble() < mConfiguration.errorRate) {
+                writeResponse(out, 500, "application/json", "{\"message\":\"injected failure\"}".getBytes("UTF-8"));
+                return;
+            }
+
+            route(method, target, headers, bodyLength, out);
+        } catch (InterruptedException e) {
+            // Server is shutting down.
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to handle request", e);
+        } finally {
+            Closer.closeQuietly(in);
+            Closer.closeQuietly(out);
+            Closer.closeQuietly(socket);
+        }
+    }
+
+    private void route(String method, String target, Map<String, String> headers, long bodyLength, OutputStream out)
+            throws IOException {
+        String path = target;
+        Map<String, String> query = new HashMap<String, String>();
+        int queryStart = target.indexOf('?');
+        if (queryStart >= 0) {
+            path = target.substring(0, queryStart);
+            for (String pair : target.substring(queryStart + 1).split("&")) {
+                int equals = pair.indexOf('=');
+                if (equals > 0) {
+                    query.put(pair.substring(0, equals), URLDecoder.decode(pair.substring(equals + 1), "UTF-8"));
+                }
+            }
+        }
+
+        if (path.equals(METADATA_PATH + "account/endpoint")) {
+            writeEndpoints(out);
+        } else if ("GET".equals(method) && path.equals(METADATA_PATH + "nodes")) {
+            writeRootListing(out);
+        } else if ("GET".equals(method) && path.startsWith(METADATA_PATH + "nodes/") && path.endsWith("/children")) {
+            String id = path.substring((METADATA_PATH + "nodes/").length(), path.length() - "/children".length());
+            writeChildren(out, id, query.get("startToken"), query.get("limit"));
+        } else if ("POST".equals(method) && path.equals(CONTENT_PATH + "nodes")) {
+            writeUploadedNode(out, bodyLength);
+        } else if ("GET".equals(method) && path.startsWith(CONTENT_PATH + "nodes/") && path.endsWith("/content")) {
+            String id = path.substring((CONTENT_PATH + "nodes/").length(), path.length() - "/content".length());
+            writeContent(out, id, headers.get("range"));
+        } else {
+            writeResponse(out, 404, "application/json", "{\"message\":\"not found\"}".getBytes("UTF-8"));
+        }
+    }
+
+    private void writeEndpoints(OutputStream out) throws IOException {
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        JsonGenerator generator = mJsonFactory.createJsonGenerator(body, JsonEncoding.UTF8);
+        generator.writeStartObject();
+        generator.writeBooleanField("customerExists", true);
+        generator.writeStringField("contentUrl", getBaseUrl() + CONTENT_PATH);
+        generator.writeStringField("metadataUrl", getBaseUrl() + METADATA_PATH);
+        generator.writeEndObject();
+        generator.close();
+        writeResponse(out, 200, "application/json", body.toByteArray());
+    }
+
+    private void writeRootListing(OutputStream out) throws IOException {
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        JsonGenerator generator = mJsonFactory.createJsonGenerator(body, JsonEncoding.UTF8);
+        generator.writeStartObject();
+        generator.writeNumberField("count", 1);
+        generator.writeArrayFieldStart("data");
+        writeNode(generator, mNodes.get(ROOT_NODE_ID));
+        generator.writeEndArray();
+        generator.writeEndObject();
+        generator.close();
+        writeResponse(out, 200, "application/json", body.toByteArray());
+    }
+
+    private void writeChildren(OutputStream out, String id, String startToken, String limit) throws IOException {
+        SyntheticNode folder = mNodes.get(id);
+        if (folder == null) {
+            writeResponse(out, 404, "application/json", "{\"message\":\"not found\"}".getBytes("UTF-8"));
+            return;
+        }
+
+        int offset = startToken != null ? Integer.parseInt(startToken) : 0;
+        int pageSize = limit != null ? Integer.parseInt(limit) : DEFAULT_PAGE_SIZE;
+        int end = Math.min(folder.children.size(), offset + pageSize);
+
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        JsonGenerator generator = mJsonFactory.createJsonGenerator(body, JsonEncoding.UTF8);
+        generator.writeStartObject();
+        generator.writeNumberField("count", folder.children.size());
+        if (end < folder.children.size()) {
+            generator.writeStringField("nextToken", Integer.toString(end));
+        }
+        generator.writeArrayFieldStart("data");
+        for (int i = offset; i < end; i++) {
+            writeNode(generator, folder.children.get(i));
+        }
+        generator.writeEndArray();
+        generator.writeEndObject();
+        generator.close();
+        writeResponse(out, 200, "application/json", body.toByteArray());
+    }
+
+    private void writeUploadedNode(OutputStream out, long bodyLength) throws IOException {
+        SyntheticNode node = new SyntheticNode(
+                "upload" + mUploadCounter.incrementAndGet(),
+                ROOT_NODE_ID,
+                "upload",
+                NodeKind.FILE,
+                bodyLength);
+
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        JsonGenerator generator = mJsonFactory.createJsonGenerator(body, JsonEncoding.UTF8);
+        writeNode(generator, node);
+        generator.close();
+        writeResponse(out, 201, "application/json", body.toByteArray());
+    }
+
+    private void writeContent(OutputStream out, String id, String range) throws IOException {
+        SyntheticNode node = mNodes.get(id);
+        if (node == null || !NodeKind.FILE.equals(node.kind)) {
+            writeResponse(out, 404, "application/json", "{\"message\":\"not found\"}".getBytes("UTF-8"));
+            return;
+        }
+
+        // Only single "bytes=start-[end]" ranges are supported, which is all the application sends.
+        long start = 0;
+        long end = node.size - 1;
+        if (range != null && range.startsWith("bytes=")) {
+            String[] bounds = range.substring("bytes=".length()).split("-", -1);
+            start = Long.parseLong(bounds[0]);
+            if (bounds.length > 1 && bounds[1].length() > 0) {
+                end = Math.min(end, Long.parseLong(bounds[1]));
+            }
+            if (start > end) {
+                writeResponse(out, 416, "application/json", "{\"message\":\"range not satisfiable\"}".getBytes("UTF-8"));
+                return;
+            }
+            writeHeaders(out, 206, "application/octet-stream", end - start + 1,
+                    "Content-Range: bytes " + start + "-" + end + "/" + node.size + "\r\n");
+        } else {
+            writeHeaders(out, 200, "application/octet-stream", node.size, "");
+        }
+
+        byte[] buf = new byte[4096];
+        long remaining = end - start + 1;
+        while (remaining > 0) {
+            int len = (int) Math.min(buf.length, remaining);
+            out.write(buf, 0, len);
+            remaining -= len;
+        }
+        out.flush();
+    }
+
+    private void writeNode(JsonGenerator generator, SyntheticNode node) throws IOException {
+        generator.writeStartObject();
+        generator.writeStringField("id", node.id);
+        generator.writeStringField("name", node.name);
+        generator.writeStringField("kind", node.kind);
+        generator.writeStringField("status", "AVAILABLE");
+        generator.writeNumberField("version", 1);
+        generator.writeStringField("createdBy", "LocalCloudDriveServer");
+        generator.writeStringField("createdDate", "2015-01-01T00:00:00.000Z");
+        generator.writeStringField("modifiedDate", "2015-01-01T00:00:00.000Z");
+        generator.writeBooleanField("isRoot", node.parentId == null);
+        generator.writeBooleanField("isShared", false);
+        generator.writeBooleanField("exclusivelyTrashed", false);
+        generator.writeBooleanField("recursivelyTrashed", false);
+        generator.writeArrayFieldStart("parents");
+        if (node.parentId != null) {
+            generator.writeString(node.parentId);
+        }
+        generator.writeEndArray();
+        if (NodeKind.FILE.equals(node.kind)) {
+            generator.writeObjectFieldStart("contentProperties");
+            generator.writeNumberField("size", node.size);
+            generator.writeStringField("contentType", "image/jpeg");
+            generator.writeEndObject();
+        }
+        generator.writeEndObject();
+    }
+
+    private static void writeResponse(OutputStream out, int status, String contentType, byte[] body) throws IOException {
+        writeHeaders(out, status, contentType, body.length, "");
+        out.write(body);
+        out.flush();
+    }
+
+    private static void writeHeaders(OutputStream out, int status, String contentType, long contentLength,
+                                     String extraHeaders) throws IOException {
+        String headers = "HTTP/1.1 " + status + " " + (status < 400 ? "OK" : "Error") + "\r\n" +
+                "Content-Type: " + contentType + "\r\n" +
+                "Content-Length: " + contentLength + "\r\n" +
+                extraHeaders +
+                "Connection: close\r\n" +
+                "\r\n";
+        out.write(headers.getBytes("US-ASCII"));
+    }
+
+    /**
+     * Reads and discards the request body.
+     * @return the number of body bytes read
+     */
+    private static long drainBody(InputStream in, Map<String, String> headers) throws IOException {
+        byte[] buf = new byte[8192];
+        long total = 0;
+        if ("chunked".equalsIgnoreCase(headers.get("transfer-encoding"))) {
+            String sizeLine;
+            while ((sizeLine = readLine(in)) != null) {
+                int semicolon = sizeLine.indexOf(';');
+                int chunkSize = Integer.parseInt(
+                        (semicolon >= 0 ? sizeLine.substring(0, semicolon) : sizeLine).trim(), 16);
+                if (chunkSize == 0) {
+                    readLine(in);
+                    break;
+                }
+                total += skipFully(in, buf, chunkSize);
+                readLine(in);
+            }
+        } else if (headers.containsKey("content-length")) {
+            total = skipFully(in, buf, Long.parseLong(headers.get("content-length")));
+        }
+        return total;
+    }
+
+    private static long skipFully(InputStream in, byte[] buf, long count) throws IOException {
+        long remaining = count;
+        while (remaining > 0) {
+            int len = in.read(buf, 0, (int) Math.min(buf.length, remaining));
+            if (len < 0) {
+                break;
+            }
+            remaining -= len;
+        }
+        return count - remaining;
+    }
+
+    private static String readLine(InputStream in) throws IOException {
+        StringBuilder line = new StringBuilder();
+        int c;
+        while ((c = in.read()) != -1) {
+            if (c == '\n') {
+                break;
+            }
+            if (c != '\r') {
+                line.append((char) c);
+            }
+        }
+        if (c == -1 && line.length() == 0) {
+            return null;
+        }
+        return line.toString();
+    }
+
+    private double nextDouble() {
+        synchronized (mRandom) {
+            return mRandom.nextDouble();
+        }
+    }
+}
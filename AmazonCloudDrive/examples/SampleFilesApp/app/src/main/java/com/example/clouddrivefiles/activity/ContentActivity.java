@@ -14,14 +14,17 @@
  */
 package com.example.clouddrivefiles.activity;
 
+import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
+import android.content.IntentFilter;
 import android.content.SharedPreferences;
 import android.os.Bundle;
 import android.support.v4.app.Fragment;
 import android.support.v4.app.FragmentActivity;
 import android.support.v4.app.FragmentManager;
 import android.support.v4.app.FragmentTransaction;
+import android.support.v4.content.LocalBroadcastManager;
 import android.view.Menu;
 import android.view.MenuInflater;
 import android.view.MenuItem;
@@ -31,7 +34,7 @@ import com.amazon.identity.auth.device.shared.APIListener;
 import com.example.clouddrivefiles.global.UserState;
 import com.example.clouddrivefiles.R;
 import com.example.clouddrivefiles.fragment.NodeListingFragment;
-import com.example.clouddrivefiles.provider.CloudDriveContract;
+import com.example.clouddrivefiles.service.CloudDriveFolderListingService;
 import com.example.clouddrivefiles.utils.Constants;
 
 /**
@@ -41,6 +44,17 @@ public class ContentActivity extends FragmentActivity {
 
     private FragmentManager mFragmentManager;
 
+    // Sends the user back to the Launcher once the service cleared the cache
+    private final BroadcastReceiver mLoggedOutReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            LocalBroadcastManager.getInstance(ContentActivity.this).unregisterReceiver(this);
+            UserState.reset();
+            startActivity(new Intent(ContentActivity.this, LauncherActivity.class));
+            finish();
+        }
+    };
+
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
@@ -57,6 +71,12 @@ public class ContentActivity extends FragmentActivity {
         }
     }
 
+    @Override
+    protected void onDestroy() {
+        LocalBroadcastManager.getInstance(this).unregisterReceiver(mLoggedOutReceiver);
+        super.onDestroy();
+    }
+
     @Override
     public boolean onCreateOptionsMenu(Menu menu) {
         MenuInflater inflater = getMenuInflater();
@@ -106,14 +126,17 @@ public class ContentActivity extends FragmentActivity {
                 SharedPreferences sharedPrefs = getSharedPreferences(
                         Constants.SHARED_PREFERENCE_FILE,
                         Context.MODE_PRIVATE);
-                sharedPrefs.edit().putBoolean(Constants.KEY_AUTHENTICATED, false).commit();
-
-                getContentResolver().delete(CloudDriveContract.Nodes.CONTENT_URI, null, null);
-                getContentResolver().delete(CloudDriveContract.NodeParents.CONTENT_URI, null, null);
-
-                UserState.reset();
-                startActivity(new Intent(ContentActivity.this, LauncherActivity.class));
-                finish();
+                sharedPrefs.edit()
+                        .putBoolean(Constants.KEY_AUTHENTICATED, false)
+                        .remove(Constants.KEY_ROOT_NODE_ID)
+                        .commit();
+
+                // The service stops its listings, waits for them, and only then
+                // saves and clears the cache. The receiver finishes the logout.
+                LocalBroadcastManager.getInstance(ContentActivity.this).registerReceiver(
+                        mLoggedOutReceiver,
+                        new IntentFilter(CloudDriveFolderListingService.ACTION_LOGGED_OUT));
+                startService(CloudDriveFolderListingService.newLogoutIntent(ContentActivity.this));
             }
 
             @Override
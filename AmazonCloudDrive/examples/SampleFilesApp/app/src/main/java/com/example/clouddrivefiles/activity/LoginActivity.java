@@ -28,6 +28,7 @@ import android.view.View.OnClickListener;
 import android.widget.ImageButton;
 import android.widget.Toast;
 import com.example.clouddrivefiles.R;
+import com.example.clouddrivefiles.service.CloudDriveFolderListingService;
 import com.example.clouddrivefiles.utils.Constants;
 import com.amazon.identity.auth.device.AuthError;
 import com.amazon.identity.auth.device.authorization.api.AmazonAuthorizationManager;
@@ -92,6 +93,8 @@ public class LoginActivity extends Activity {
                     Context.MODE_PRIVATE);
             sharedPrefs.edit().putBoolean(Constants.KEY_AUTHENTICATED, true).commit();
 
+            // Fill the cache with the first folder levels while the user looks at the root.
+            startService(CloudDriveFolderListingService.newWarmCacheIntent(LoginActivity.this));
             startActivity(new Intent(LoginActivity.this, ContentActivity.class));
             finish();
         }
@@ -15,20 +15,29 @@
 package com.example.clouddrivefiles.activity;
 
 import android.app.Activity;
-import android.content.ContentValues;
 import android.content.Intent;
 import android.net.Uri;
 import android.os.Bundle;
+import android.os.Parcelable;
 import android.widget.Toast;
 import com.example.clouddrivefiles.R;
-import com.example.clouddrivefiles.provider.CloudDriveContract;
 import com.example.clouddrivefiles.service.CloudDriveUploadService;
+import com.example.clouddrivefiles.service.UploadQueue;
+
+import java.util.ArrayList;
+import java.util.List;
 
 /**
- * Activity that forwards to the UploadService
+ * Activity that forwards shared content, one item or many, to the UploadService
  */
 public class UploadActivity extends Activity {
 
+    /**
+     * Optional folder to upload into, as names separated by slashes relative
+     * to the root, for example "Uploads/2015-06". Missing folders are created.
+     */
+    public static final String EXTRA_DESTINATION_PATH = "com.example.clouddrivefiles.extra.DESTINATION_PATH";
+
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
@@ -37,7 +46,7 @@ public class UploadActivity extends Activity {
         String action = intent.getAction();
         String type = intent.getType();
 
-        if (!Intent.ACTION_SEND.equals(action) || type == null) {
+        if (type == null || !(Intent.ACTION_SEND.equals(action) || Intent.ACTION_SEND_MULTIPLE.equals(action))) {
             finish();
             return;
         }
@@ -48,16 +57,33 @@ public class UploadActivity extends Activity {
             return;
         }
 
-        Toast.makeText(this, getString(R.string.upload_toast_uploading_to_clouddrive), Toast.LENGTH_SHORT).show();
+        List<Uri> uris = new ArrayList<Uri>();
+        if (Intent.ACTION_SEND.equals(action)) {
+            Parcelable uri = intent.getParcelableExtra(Intent.EXTRA_STREAM);
+            if (uri instanceof Uri) {
+                uris.add((Uri) uri);
+            }
+        } else {
+            // Some senders put other Parcelables in the list, so do not cast it as a whole.
+            ArrayList<Parcelable> streams = intent.getParcelableArrayListExtra(Intent.EXTRA_STREAM);
+            if (streams != null) {
+                for (Parcelable stream : streams) {
+                    if (stream instanceof Uri) {
+                        uris.add((Uri) stream);
+                    }
+                }
+            }
+        }
 
-        // Enqueue new upload
-        Uri uri = intent.getParcelableExtra(Intent.EXTRA_STREAM);
-        ContentValues contentValues = new ContentValues();
-        contentValues.put(CloudDriveContract.UploadQueueItems.SOURCE_URI, uri.toString());
-        getContentResolver().insert(CloudDriveContract.UploadQueueItems.CONTENT_URI, contentValues);
+        if (!uris.isEmpty()) {
+            Toast.makeText(this, getString(R.string.upload_toast_uploading_to_clouddrive), Toast.LENGTH_SHORT).show();
 
-        // Start UploadService to work through queue.
-        startService(new Intent(this, CloudDriveUploadService.class));
+            // Enqueue the new uploads in one transaction, skipping the ones already queued
+            UploadQueue.enqueue(getContentResolver(), uris, intent.getStringExtra(EXTRA_DESTINATION_PATH));
+
+            // Start UploadService once to work through the whole queue.
+            startService(new Intent(this, CloudDriveUploadService.class));
+        }
 
         finish();
     }
@@ -0,0 +1,526 @@
+/*
+ * Copyright 2015 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package com.example.clouddrivefiles.client;
+
+import android.content.SharedPreferences;
+import com.amazon.clouddrive.AmazonCloudDriveClient;
+import com.amazon.clouddrive.auth.AuthenticatedURLConnectionFactory;
+import com.amazon.clouddrive.exceptions.CloudDriveException;
+import com.amazon.clouddrive.handlers.ProgressListener;
+import com.amazon.clouddrive.model.CreateNodeRequest;
+import com.amazon.clouddrive.model.CreateNodeResponse;
+import com.amazon.clouddrive.model.GetAccountEndpointRequest;
+import com.amazon.clouddrive.model.GetAccountEndpointResponse;
+import com.amazon.clouddrive.model.GetNodeRequest;
+import com.amazon.clouddrive.model.GetNodeResponse;
+import com.amazon.clouddrive.model.ListChildrenRequest;
+import com.amazon.clouddrive.model.ListChildrenResponse;
+import com.amazon.clouddrive.model.ListNodesRequest;
+import com.amazon.clouddrive.model.ListNodesResponse;
+import com.amazon.clouddrive.model.Node;
+import com.amazon.clouddrive.model.UploadFileRequest;
+import com.amazon.clouddrive.model.UploadFileResponse;
+import com.example.clouddrivefiles.utils.Closer;
+import com.example.clouddrivefiles.utils.Constants;
+
+import java.io.EOFException;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.HttpURLConnection;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Facade over the {@link AmazonCloudDriveClient} that is shared by all of the
+ * services and fragments of the application.
+ *
+ * This class is an example of:
+ * <ul>
+ *     <li>coalescing identical in-flight metadata requests into one network call</li>
+ *     <li>persisting the root node ID so it only has to be looked up once per login</li>
+ *     <li>bounding the number of concurrent metadata requests with a fair queue</li>
+ *     <li>routing content transfers through a {@link TransferManager}, which admits
+ *     and shapes them by priority and connection type</li>
+ *     <li>handing raw metadata responses to a streaming parser, for callers that
+ *     do not need the SDK model objects</li>
+ * </ul>
+ */
+public class SharedCloudDriveClient {
+
+    // Metadata calls are small and benefit from some parallelism. Content
+    // transfers are bandwidth bound and are admitted by the TransferManager.
+    private static final int MAX_CONCURRENT_METADATA_REQUESTS = 4;
+
+    private static final String ROOT_NODE_FILTER = "isRoot:true";
+
+    private final AmazonCloudDriveClient mAmazonCloudDriveClient;
+    private final AuthenticatedURLConnectionFactory mConnectionFactory;
+    private final SharedPreferences mSharedPreferences;
+    private final TransferManager mTransferManager;
+
+    // Fair, so metadata requests are served in the order they were issued.
+    // Content transfers queue in the TransferManager instead.
+    private final Semaphore mMetadataPermits = new Semaphore(MAX_CONCURRENT_METADATA_REQUESTS, true);
+
+    // In-flight metadata requests keyed by the request. The SDK request
+    // objects implement equals/hashCode, so identical requests share a task.
+    private final Map<Object, FutureTask<?>> mInFlightRequests = new HashMap<Object, FutureTask<?>>();
+
+    private volatile String mRootNodeId;
+    private volatile GetAccountEndpointResponse mAccountEndpoint;
+
+    /**
+     * Reads the body of a metadata or content response as it arrives from the network.
+     */
+    public interface ResponseHandler<T> {
+        T handleResponse(InputStream inputStream) throws IOException;
+    }
+
+    /**
+     * @param sharedPreferences where the root node ID is persisted
+     * @param connectionFactory the factory the client was configured with, used for raw metadata requests
+     * @param amazonCloudDriveClient the client that requests are issued on
+     * @param transferManager admits and shapes content transfers
+     */
+    public SharedCloudDriveClient(
+            SharedPreferences sharedPreferences,
+            AuthenticatedURLConnectionFactory connectionFactory,
+            AmazonCloudDriveClient amazonCloudDriveClient,
+            TransferManager transferManager) {
+        mAmazonCloudDriveClient = amazonCloudDriveClient;
+        mConnectionFactory = connectionFactory;
+        mSharedPreferences = sharedPreferences;
+        mTransferManager = transferManager;
+    }
+
+    /**
+     * @return the wrapped client, for calls that are not routed through the facade.
+     */
+    public AmazonCloudDriveClient getAmazonCloudDriveClient() {
+        return mAmazonCloudDriveClient;
+    }
+
+    /**
+     * Lists the root node. Concurrent callers share a single request.
+     * @return the root node, or null if the drive has no root.
+     * @throws InterruptedException
+     * @throws CloudDriveException
+     */
+    public Node getRootNode() throws InterruptedException, CloudDriveException {
+
+        // To list the root node, we filter to only show the nodes that
+        // have the property isRoot set to true. To learn more about
+        // filtering, see https://developer.amazon.com/public/apis/experience/cloud-drive/content/nodes#Filtering
+        ListNodesRequest listNodesRequest = new ListNodesRequest();
+        listNodesRequest.setFilters(ROOT_NODE_FILTER);
+
+        List<Node> nodes = listNodes(listNodesRequest).getData();
+        if (nodes.isEmpty()) {
+            return null;
+        }
+
+        // There is only one root node, so we will just get the first item.
+        Node rootNode = nodes.get(0);
+        setRootNodeId(rootNode.getId());
+        return rootNode;
+    }
+
+    /**
+     * Returns the root node ID, using the persisted value when available.
+     * @return the root node ID, or null if the drive has no root.
+     * @throws InterruptedException
+     * @throws CloudDriveException
+     */
+    public String getRootNodeId() throws InterruptedException, CloudDriveException {
+        String rootNodeId = getCachedRootNodeId();
+        if (rootNodeId != null) {
+            return rootNodeId;
+        }
+
+        Node rootNode = getRootNode();
+        return rootNode != null ? rootNode.getId() : null;
+    }
+
+    /**
+     * @return the root node ID if it has been resolved before, null otherwise.
+     */
+    public String getCachedRootNodeId() {
+        if (mRootNodeId == null) {
+            mRootNodeId = mSharedPreferences.getString(Constants.KEY_ROOT_NODE_ID, null);
+        }
+        return mRootNodeId;
+    }
+
+    /**
+     * Returns the metadata endpoint for the account. The endpoint is looked up
+     * once and kept for the lifetime of this instance.
+     * @return the metadata URL, ending with a slash
+     * @throws InterruptedException
+     * @throws CloudDriveException
+     */
+    public String getMetadataUrl() throws InterruptedException, CloudDriveException {
+        return getAccountEndpoint().getMetadataUrl();
+    }
+
+    /**
+     * Returns the content endpoint for the account. The endpoint is looked up
+     * once and kept for the lifetime of this instance.
+     * @return the content URL, ending with a slash
+     * @throws InterruptedException
+     * @throws CloudDriveException
+     */
+    public String getContentUrl() throws InterruptedException, CloudDriveException {
+        return getAccountEndpoint().getContentUrl();
+    }
+
+    /**
+     * Issues a GET against the metadata endpoint and passes the response body
+     * to the handler without building any SDK model objects. The request takes
+     * a metadata permit for as long as the handler is reading.
+     * @param relativeUrl the path and query, relative to the metadata URL
+     * @param handler reads the response body
+     * @return the value returned by the handler
+     * @throws InterruptedException
+     * @throws CloudDriveException if the request fails or the response cannot be read
+     */
+    public <T> T getMetadata(String relativeUrl, ResponseHandler<T> handler)
+            throws InterruptedException, CloudDriveException {
+        return get(getMetadataUrl(), relativeUrl, 0, -1, mMetadataPermits, handler);
+    }
+
+    /**
+     * Downloads a byte range of a file's content and passes it to the handler
+     * as it arrives. The request holds a transfer slot for as long as the
+     * handler is reading, so handlers should not block on slow consumers.
+     *
+     * If the server ignores the range and returns the whole file, the bytes
+     * before {@code start} are skipped so the handler always sees the
+     * requested range first.
+     * @param nodeId the file to download
+     * @param start the offset of the first byte to read
+     * @param end the offset of the last byte to read, inclusive, or -1 to read to the end
+     * @param priority {@link TransferManager#PRIORITY_FOREGROUND} if the user is waiting
+     *                 on the content, otherwise {@link TransferManager#PRIORITY_BACKGROUND}
+     * @param handler reads the content
+     * @return the value returned by the handler
+     * @throws InterruptedException
+     * @throws CloudDriveException if the request fails or the content cannot be read
+     */
+    public <T> T getContent(String nodeId, long start, long end, int priority, final ResponseHandler<T> handler)
+            throws InterruptedException, CloudDriveException {
+        String relativeUrl;
+        try {
+            relativeUrl = "nodes/" + URLEncoder.encode(nodeId, "UTF-8") + "/content";
+        } catch (UnsupportedEncodingException e) {
+            throw new CloudDriveException("Invalid node ID", e);
+        }
+        String contentUrl = getContentUrl();
+
+        final TransferManager.Transfer transfer = mTransferManager.begin(TransferManager.DIRECTION_DOWNLOAD, priority);
+        try {
+            return get(contentUrl, relativeUrl, start, end, null, new ResponseHandler<T>() {
+                @Override
+                public T handleResponse(InputStream inputStream) throws IOException {
+                    return handler.handleResponse(transfer.wrap(inputStream));
+                }
+            });
+        } finally {
+            transfer.finish();
+        }
+    }
+
+    /**
+     * Downloads a preview of an image, scaled by the service to fit in a
+     * square. The preview is read from the node's temporary link as a
+     * background transfer, so prefetching previews never holds up content
+     * the user is waiting on.
+     * @param nodeId the image to preview
+     * @param size the side of the square in pixels
+     * @param handler reads the preview
+     * @return the value returned by the handler
+     * @throws InterruptedException
+     * @throws CloudDriveException if the node has no temporary link, or the request fails
+     */
+    public <T> T getThumbnail(String nodeId, int size, final ResponseHandler<T> handler)
+            throws InterruptedException, CloudDriveException {
+        GetNodeRequest getNodeRequest = new GetNodeRequest(nodeId);
+        getNodeRequest.setTempLink(true);
+        String tempLink = getNode(getNodeRequest).getTempLink();
+        if (tempLink == null) {
+            throw new CloudDriveException("No preview for " + nodeId);
+        }
+
+        final TransferManager.Transfer transfer = mTransferManager.begin(
+                TransferManager.DIRECTION_DOWNLOAD, TransferManager.PRIORITY_BACKGROUND);
+        try {
+            return get(tempLink, "?viewBox=" + size, 0, -1, null, new ResponseHandler<T>() {
+                @Override
+                public T handleResponse(InputStream inputStream) throws IOException {
+                    return handler.handleResponse(transfer.wrap(inputStream));
+                }
+            });
+        } finally {
+            transfer.finish();
+        }
+    }
+
+    public ListNodesResponse listNodes(final ListNodesRequest request)
+            throws InterruptedException, CloudDriveException {
+        return coalesce(request, new Callable<ListNodesResponse>() {
+            @Override
+            public ListNodesResponse call() throws Exception {
+                return mAmazonCloudDriveClient.listNodes(request);
+            }
+        });
+    }
+
+    public ListChildrenResponse listChildren(final ListChildrenRequest request)
+            throws InterruptedException, CloudDriveException {
+        return coalesce(request, new Callable<ListChildrenResponse>() {
+            @Override
+            public ListChildrenResponse call() throws Exception {
+                return mAmazonCloudDriveClient.listChildren(request);
+            }
+        });
+    }
+
+    public GetNodeResponse getNode(final GetNodeRequest request)
+            throws InterruptedException, CloudDriveException {
+        return coalesce(request, new Callable<GetNodeResponse>() {
+            @Override
+            public GetNodeResponse call() throws Exception {
+                return mAmazonCloudDriveClient.getNode(request);
+            }
+        });
+    }
+
+    /**
+     * Creates a node. Creating is not idempotent, so calls are never coalesced.
+     */
+    public CreateNodeResponse createNode(CreateNodeRequest request)
+            throws InterruptedException, CloudDriveException {
+        mMetadataPermits.acquire();
+        try {
+            return mAmazonCloudDriveClient.createNode(request);
+        } finally {
+            mMetadataPermits.release();
+        }
+    }
+
+    /**
+     * Uploads a file. Uploads carry a stream so they are never coalesced. They
+     * run as background transfers, behind downloads the user is waiting on.
+     */
+    public UploadFileResponse uploadFile(UploadFileRequest request, ProgressListener progressListener)
+            throws InterruptedException, CloudDriveException {
+        TransferManager.Transfer transfer = mTransferManager.begin(
+                TransferManager.DIRECTION_UPLOAD, TransferManager.PRIORITY_BACKGROUND);
+        try {
+            return mAmazonCloudDriveClient.uploadFile(request, transfer.wrap(progressListener));
+        } finally {
+            transfer.finish();
+        }
+    }
+
+    private void setRootNodeId(String rootNodeId) {
+        if (rootNodeId != null && !rootNodeId.equals(mRootNodeId)) {
+            mRootNodeId = rootNodeId;
+            mSharedPreferences.edit().putString(Constants.KEY_ROOT_NODE_ID, rootNodeId).commit();
+        }
+    }
+
+    private GetAccountEndpointResponse getAccountEndpoint() throws InterruptedException, CloudDriveException {
+        if (mAccountEndpoint == null) {
+            final GetAccountEndpointRequest request = new GetAccountEndpointRequest();
+            mAccountEndpoint = coalesce(request, new Callable<GetAccountEndpointResponse>() {
+                @Override
+                public GetAccountEndpointResponse call() throws Exception {
+                    return mAmazonCloudDriveClient.getAccountEndpoint(request);
+                }
+            });
+        }
+        return mAccountEndpoint;
+    }
+
+    /**
+     * Issues a GET, optionally for a byte range, while holding one of the given
+     * permits if there are any.
+     */
+    private <T> T get(String baseUrl, String relativeUrl, long start, long end, Semaphore permits,
+                      ResponseHandler<T> handler) throws InterruptedException, CloudDriveException {
+        URL url;
+        try {
+            url = new URL(baseUrl + relativeUrl);
+        } catch (MalformedURLException e) {
+            throw new CloudDriveException("Invalid URL for " + relativeUrl, e);
+        }
+        boolean isRangeRequest = start > 0 || end >= 0;
+
+        if (permits != null) {
+            permits.acquire();
+        }
+        HttpURLConnection connection = null;
+        InputStream inputStream = null;
+        try {
+            connection = mConnectionFactory.createHttpURLConnection(url);
+            if (isRangeRequest) {
+                connection.setRequestProperty("Range", "bytes=" + start + "-" + (end >= 0 ? String.valueOf(end) : ""));
+            }
+            int responseCode = connection.getResponseCode();
+            if (responseCode == HttpURLConnection.HTTP_OK) {
+                inputStream = connection.getInputStream();
+                if (isRangeRequest) {
+                    // The server sent the whole file, so drop what precedes the range.
+                    skipFully(inputStream, start);
+                    if (end >= 0) {
+                        inputStream = new BoundedInputStream(inputStream, end - start + 1);
+                    }
+                }
+            } else if (responseCode == HttpURLConnection.HTTP_PARTIAL && isRangeRequest) {
+                inputStream = connection.getInputStream();
+            } else {
+                throw new CloudDriveException("Request for " + relativeUrl + " failed with " + responseCode);
+            }
+            return handler.handleResponse(inputStream);
+        } catch (IOException e) {
+            throw new CloudDriveException("Request for " + relativeUrl + " failed", e);
+        } finally {
+            Closer.closeQuietly(inputStream);
+            if (connection != null) {
+                connection.disconnect();
+            }
+            if (permits != null) {
+                permits.release();
+            }
+        }
+    }
+
+    private static void skipFully(InputStream inputStream, long count) throws IOException {
+        while (count > 0) {
+            long skipped = inputStream.skip(count);
+            if (skipped <= 0) {
+                if (inputStream.read() == -1) {
+                    throw new EOFException("Content ended before the requested range");
+                }
+                skipped = 1;
+            }
+            count -= skipped;
+        }
+    }
+
+    /**
+     * Stops reading after a fixed number of bytes.
+     */
+    private static class BoundedInputStream extends FilterInputStream {
+
+        private long mRemaining;
+
+        BoundedInputStream(InputStream inputStream, long length) {
+            super(inputStream);
+            mRemaining = length;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (mRemaining <= 0) {
+                return -1;
+            }
+            int b = super.read();
+            if (b != -1) {
+                mRemaining--;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int count) throws IOException {
+            if (mRemaining <= 0) {
+                return -1;
+            }
+            int read = super.read(buffer, offset, (int) Math.min(count, mRemaining));
+            if (read > 0) {
+                mRemaining -= read;
+            }
+            return read;
+        }
+    }
+
+    /**
+     * Runs the call unless an identical call is already in flight, in which
+     * case the result of that call is returned instead.
+     */
+    @SuppressWarnings("unchecked")
+    private <T> T coalesce(Object key, final Callable<T> call) throws InterruptedException, CloudDriveException {
+        FutureTask<T> task;
+        boolean isOwner = false;
+        synchronized (mInFlightRequests) {
+            task = (FutureTask<T>) mInFlightRequests.get(key);
+            if (task == null) {
+                task = new FutureTask<T>(new Callable<T>() {
+                    @Override
+                    public T call() throws Exception {
+                        mMetadataPermits.acquire();
+                        try {
+                            return call.call();
+                        } finally {
+                            mMetadataPermits.release();
+                        }
+                    }
+                });
+                mInFlightRequests.put(key, task);
+                isOwner = true;
+            }
+        }
+
+        if (isOwner) {
+            try {
+                task.run();
+            } finally {
+                synchronized (mInFlightRequests) {
+                    mInFlightRequests.remove(key);
+                }
+            }
+        }
+
+        try {
+            return task.get();
+        } catch (CancellationException e) {
+            throw new InterruptedException();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof CloudDriveException) {
+                throw (CloudDriveException) cause;
+            } else if (cause instanceof InterruptedException) {
+                throw (InterruptedException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new RuntimeException(cause);
+        }
+    }
+}
@@ -0,0 +1,96 @@
+/*
+ * Copyright 2015 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package com.example.clouddrivefiles.client;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.support.v4.util.LruCache;
+import com.amazon.clouddrive.exceptions.CloudDriveException;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Holds image previews in memory, bounded by their size in bytes, so rows can
+ * show them as soon as they are bound. Previews are fetched through the
+ * shared client on the calling thread, so load from a worker thread.
+ *
+ * One preview size is kept per node; callers are expected to use the same
+ * size throughout.
+ */
+public class ThumbnailCache {
+
+    private final SharedCloudDriveClient mSharedCloudDriveClient;
+    private final LruCache<String, Bitmap> mThumbnails;
+
+    /**
+     * @param sharedCloudDriveClient the client to fetch previews through
+     * @param maxBytes the most memory to hold in previews
+     */
+    public ThumbnailCache(SharedCloudDriveClient sharedCloudDriveClient, int maxBytes) {
+        mSharedCloudDriveClient = sharedCloudDriveClient;
+        mThumbnails = new LruCache<String, Bitmap>(maxBytes) {
+            @Override
+            protected int sizeOf(String nodeId, Bitmap thumbnail) {
+                return thumbnail.getRowBytes() * thumbnail.getHeight();
+            }
+        };
+    }
+
+    /**
+     * @param nodeId the image's node ID
+     * @return the cached preview, or null if it has not been loaded or has been evicted
+     */
+    public Bitmap get(String nodeId) {
+        return mThumbnails.get(nodeId);
+    }
+
+    /**
+     * Returns the cached preview, fetching and caching it first if needed.
+     * Blocks while fetching.
+     * @param nodeId the image's node ID
+     * @param size the side of the square the preview is scaled to fit, in pixels
+     * @return the preview
+     * @throws InterruptedException
+     * @throws CloudDriveException if the preview cannot be fetched or decoded
+     */
+    public Bitmap load(final String nodeId, int size) throws InterruptedException, CloudDriveException {
+        Bitmap thumbnail = mThumbnails.get(nodeId);
+        if (thumbnail != null) {
+            return thumbnail;
+        }
+
+        thumbnail = mSharedCloudDriveClient.getThumbnail(nodeId, size,
+                new SharedCloudDriveClient.ResponseHandler<Bitmap>() {
+                    @Override
+                    public Bitmap handleResponse(InputStream inputStream) throws IOException {
+                        return BitmapFactory.decodeStream(inputStream);
+                    }
+                });
+        if (thumbnail == null) {
+            throw new CloudDriveException("Unable to decode the preview of " + nodeId);
+        }
+
+        mThumbnails.put(nodeId, thumbnail);
+        return thumbnail;
+    }
+
+    /**
+     * Drops all of the cached previews.
+     */
+    public void clear() {
+        mThumbnails.evictAll();
+    }
+}
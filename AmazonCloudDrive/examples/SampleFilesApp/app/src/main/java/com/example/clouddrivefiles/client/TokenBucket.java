@@ -0,0 +1,72 @@
+/*
+ * Copyright 2015 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package com.example.clouddrivefiles.client;
+
+import android.os.SystemClock;
+
+/**
+ * Limits a byte rate. Callers take tokens for the bytes they are about to
+ * transfer and are put to sleep when the bucket runs dry.
+ *
+ * A take larger than what is in the bucket puts it into debt rather than
+ * waiting for the bucket to fill, so transfers with large buffers are shaped
+ * the same as those with small ones.
+ */
+class TokenBucket {
+
+    // 0 means unlimited
+    private long mBytesPerSecond;
+    private double mTokens;
+    private long mLastRefillMillis = SystemClock.elapsedRealtime();
+
+    /**
+     * @param bytesPerSecond the rate, or 0 for no limit
+     */
+    TokenBucket(long bytesPerSecond) {
+        mBytesPerSecond = bytesPerSecond;
+    }
+
+    synchronized void setRate(long bytesPerSecond) {
+        refill();
+        mBytesPerSecond = bytesPerSecond;
+    }
+
+    /**
+     * Takes tokens for the bytes, sleeping until the bucket can cover them.
+     * @param bytes the number of bytes about to be transferred
+     * @throws InterruptedException
+     */
+    void take(long bytes) throws InterruptedException {
+        long sleepMillis;
+        synchronized (this) {
+            if (mBytesPerSecond <= 0) {
+                return;
+            }
+            refill();
+            mTokens -= bytes;
+            sleepMillis = mTokens < 0 ? (long) Math.ceil(-mTokens * 1000 / mBytesPerSecond) : 0;
+        }
+        if (sleepMillis > 0) {
+            Thread.sleep(sleepMillis);
+        }
+    }
+
+    private void refill() {
+        long now = SystemClock.elapsedRealtime();
+        // Allow at most one second of burst.
+        mTokens = Math.min(mBytesPerSecond, mTokens + (now - mLastRefillMillis) * mBytesPerSecond / 1000.0);
+        mLastRefillMillis = now;
+    }
+}
@@ -0,0 +1,246 @@
+/*
+ * Copyright 2015 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package com.example.clouddrivefiles.client;
+
+import android.content.Context;
+import android.net.ConnectivityManager;
+import android.support.v4.net.ConnectivityManagerCompat;
+import com.amazon.clouddrive.handlers.ProgressListener;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+
+/**
+ * Admits and shapes every content transfer, so that bulk uploads running in the
+ * background do not make downloads the user is waiting on unpredictable.
+ *
+ * <ul>
+ *     <li>Each direction is limited by its own {@link TokenBucket}.</li>
+ *     <li>The number of concurrent transfers is capped, more tightly on metered
+ *     connections. Limits are chosen from a {@link Policy} for the kind of
+ *     connection that is active when a transfer begins.</li>
+ *     <li>Foreground transfers are admitted ahead of background ones and are not
+ *     held back by background transfers that already hold a slot. Instead,
+ *     background transfers slow down to a trickle while any foreground transfer
+ *     is running or waiting.</li>
+ * </ul>
+ */
+public class TransferManager {
+
+    public static final int DIRECTION_UPLOAD = 0;
+    public static final int DIRECTION_DOWNLOAD = 1;
+
+    // A transfer the user is waiting on
+    public static final int PRIORITY_FOREGROUND = 0;
+    // A transfer nobody is waiting on, such as queued uploads
+    public static final int PRIORITY_BACKGROUND = 1;
+
+    // The rate background transfers are slowed to while a foreground transfer is active
+    private static final long BACKGROUND_BYTES_PER_SECOND_WHILE_FOREGROUND = 32 * 1024;
+
+    /**
+     * The limits that apply on one kind of connection. Rates of 0 are unlimited.
+     */
+    public static class Policy {
+        public final long uploadBytesPerSecond;
+        public final long downloadBytesPerSecond;
+        public final int maxConcurrentTransfers;
+
+        public Policy(long uploadBytesPerSecond, long downloadBytesPerSecond, int maxConcurrentTransfers) {
+            this.uploadBytesPerSecond = uploadBytesPerSecond;
+            this.downloadBytesPerSecond = downloadBytesPerSecond;
+            this.maxConcurrentTransfers = maxConcurrentTransfers;
+        }
+    }
+
+    public static final Policy DEFAULT_UNMETERED_POLICY = new Policy(0, 0, 2);
+    public static final Policy DEFAULT_METERED_POLICY = new Policy(64 * 1024, 0, 1);
+
+    private final ConnectivityManager mConnectivityManager;
+
+    private final TokenBucket mUploadBucket = new TokenBucket(0);
+    private final TokenBucket mDownloadBucket = new TokenBucket(0);
+    private final TokenBucket mBackgroundBucket = new TokenBucket(BACKGROUND_BYTES_PER_SECOND_WHILE_FOREGROUND);
+
+    private final Policy mUnmeteredPolicy = DEFAULT_UNMETERED_POLICY;
+    private final Policy mMeteredPolicy = DEFAULT_METERED_POLICY;
+
+    // Guarded by this
+    private int mActiveForegroundCount;
+    private int mActiveBackgroundCount;
+    private int mWaitingForegroundCount;
+
+    public TransferManager(Context context) {
+        mConnectivityManager = (ConnectivityManager) context.getSystemService(Context.CONNECTIVITY_SERVICE);
+    }
+
+    /**
+     * Waits for a slot and begins a transfer. The transfer must be finished by
+     * the caller, usually in a finally block.
+     * @param direction {@link #DIRECTION_UPLOAD} or {@link #DIRECTION_DOWNLOAD}
+     * @param priority {@link #PRIORITY_FOREGROUND} or {@link #PRIORITY_BACKGROUND}
+     * @return the transfer, which shapes the bytes reported to it
+     * @throws InterruptedException
+     */
+    public Transfer begin(int direction, int priority) throws InterruptedException {
+        synchronized (this) {
+            if (priority == PRIORITY_FOREGROUND) {
+                mWaitingForegroundCount++;
+                try {
+                    while (mActiveForegroundCount >= applyPolicy().maxConcurrentTransfers) {
+                        wait();
+                    }
+                } finally {
+                    mWaitingForegroundCount--;
+                }
+                mActiveForegroundCount++;
+            } else {
+                while (mWaitingForegroundCount > 0
+                        || mActiveForegroundCount + mActiveBackgroundCount >= applyPolicy().maxConcurrentTransfers) {
+                    wait();
+                }
+                mActiveBackgroundCount++;
+            }
+        }
+        return new Transfer(direction, priority);
+    }
+
+    private synchronized void finish(Transfer transfer) {
+        if (transfer.mPriority == PRIORITY_FOREGROUND) {
+            mActiveForegroundCount--;
+        } else {
+            mActiveBackgroundCount--;
+        }
+        notifyAll();
+    }
+
+    private synchronized boolean isForegroundActive() {
+        return mActiveForegroundCount > 0 || mWaitingForegroundCount > 0;
+    }
+
+    /**
+     * Picks the policy for the active connection and applies its rates.
+     * @return the policy
+     */
+    private Policy applyPolicy() {
+        Policy policy = mConnectivityManager != null && ConnectivityManagerCompat.isActiveNetworkMetered(mConnectivityManager)
+                ? mMeteredPolicy
+                : mUnmeteredPolicy;
+        mUploadBucket.setRate(policy.uploadBytesPerSecond);
+        mDownloadBucket.setRate(policy.downloadBytesPerSecond);
+        return policy;
+    }
+
+    /**
+     * A transfer that holds a slot. Bytes are reported to it as they are
+     * transferred, and the reporting thread is slowed to the allowed rate.
+     */
+    public final class Transfer {
+
+        private final int mDirection;
+        private final int mPriority;
+        private boolean mIsFinished;
+
+        private Transfer(int direction, int priority) {
+            mDirection = direction;
+            mPriority = priority;
+        }
+
+        /**
+         * Takes the bytes from the rate limits, sleeping as needed.
+         * @param bytes the number of bytes transferred
+         * @throws InterruptedException
+         */
+        public void onBytesTransferred(long bytes) throws InterruptedException {
+            (mDirection == DIRECTION_UPLOAD ? mUploadBucket : mDownloadBucket).take(bytes);
+            if (mPriority == PRIORITY_BACKGROUND && isForegroundActive()) {
+                mBackgroundBucket.take(bytes);
+            }
+        }
+
+        /**
+         * @return a stream that shapes the bytes read from the input stream
+         */
+        public InputStream wrap(InputStream inputStream) {
+            return new FilterInputStream(inputStream) {
+                @Override
+                public int read() throws IOException {
+                    int b = super.read();
+                    if (b != -1) {
+                        onBytesRead(1);
+                    }
+                    return b;
+                }
+
+                @Override
+                public int read(byte[] buffer, int offset, int count) throws IOException {
+                    int read = super.read(buffer, offset, count);
+                    if (read > 0) {
+                        onBytesRead(read);
+                    }
+                    return read;
+                }
+
+                private void onBytesRead(int count) throws InterruptedIOException {
+                    try {
+                        onBytesTransferred(count);
+                    } catch (InterruptedException e) {
+                        throw new InterruptedIOException("Transfer interrupted");
+                    }
+                }
+            };
+        }
+
+        /**
+         * Shapes a transfer run by the client, which reports its progress but
+         * does not expose its streams. The client's copy loop is slowed by
+         * blocking in the progress callback.
+         * @param progressListener receives the progress after it has been shaped
+         * @return a listener to pass to the client
+         */
+        public ProgressListener wrap(final ProgressListener progressListener) {
+            return new ProgressListener() {
+                private long mLastProgress;
+
+                @Override
+                public void onProgress(long progress, long maxProgress) {
+                    try {
+                        onBytesTransferred(Math.max(0, progress - mLastProgress));
+                    } catch (InterruptedException e) {
+                        // The client checks for interruption, so leave it set.
+                        Thread.currentThread().interrupt();
+                    }
+                    mLastProgress = progress;
+                    progressListener.onProgress(progress, maxProgress);
+                }
+            };
+        }
+
+        /**
+         * Releases the transfer's slot. Calling this more than once has no effect.
+         */
+        public void finish() {
+            synchronized (this) {
+                if (mIsFinished) {
+                    return;
+                }
+                mIsFinished = true;
+            }
+            TransferManager.this.finish(this);
+        }
+    }
+}
@@ -17,17 +17,39 @@ package com.example.clouddrivefiles.database;
 import android.content.Context;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
+import com.amazon.clouddrive.model.NodeKind;
+import com.amazon.clouddrive.model.NodeStatus;
 import com.example.clouddrivefiles.provider.CloudDriveContract;
 
 /**
- * Creates database tables, views, and indices
+ * Creates database tables, views, indices and triggers
  */
 public class CloudDriveNodesDatabaseHelper extends SQLiteOpenHelper {
 
     /**
      * Current db version
      */
-    private static final int DB_VERSION = 1;
+    private static final int DB_VERSION = 11;
+
+    // The child node's columns in node_children, after its _id
+    private static final String[] NODE_CHILD_COLUMNS = {
+            CloudDriveContract.NodeChildren.NODE_ID,
+            CloudDriveContract.NodeChildren.CREATED_BY,
+            CloudDriveContract.NodeChildren.CREATED_DATE,
+            CloudDriveContract.NodeChildren.DESCRIPTION,
+            CloudDriveContract.NodeChildren.EXCLUSIVELY_TRASHED,
+            CloudDriveContract.NodeChildren.IS_ROOT,
+            CloudDriveContract.NodeChildren.IS_SHARED,
+            CloudDriveContract.NodeChildren.KIND,
+            CloudDriveContract.NodeChildren.MODIFIED_DATE,
+            CloudDriveContract.NodeChildren.NAME,
+            CloudDriveContract.NodeChildren.RECURSIVELY_TRASHED,
+            CloudDriveContract.NodeChildren.STATUS,
+            CloudDriveContract.NodeChildren.VERSION,
+            CloudDriveContract.NodeChildren.CONTENT_SIZE,
+            CloudDriveContract.NodeChildren.TOTAL_SIZE,
+            CloudDriveContract.NodeChildren.FILE_COUNT };
 
     private static final String DB_NAME = "com.example.clouddrivefiles.db";
 
@@ -35,8 +57,176 @@ public class CloudDriveNodesDatabaseHelper extends SQLiteOpenHelper {
         super(context, DB_NAME, null, DB_VERSION);
     }
 
+    @Override
+    public void onOpen(SQLiteDatabase db) {
+        super.onOpen(db);
+        enableRecursiveTriggers(db);
+    }
+
+    /**
+     * The folder statistics triggers update ancestors by updating a row of
+     * the same table, which only cascades with recursive triggers on. This
+     * also makes INSERT OR REPLACE fire the delete trigger for the row it
+     * replaces. onOpen runs after onCreate and onUpgrade, whose statements
+     * rely on it too, so they turn it on first as well.
+     */
+    private static void enableRecursiveTriggers(SQLiteDatabase db) {
+        db.execSQL("PRAGMA recursive_triggers = ON");
+    }
+
     @Override
     public void onCreate(SQLiteDatabase db) {
+        enableRecursiveTriggers(db);
+        createNodeTables(db);
+
+        ///////////////////////////////////////////////////////////////////////
+        // node_contents
+        ///////////////////////////////////////////////////////////////////////
+
+        db.execSQL(
+                "CREATE TABLE " + CloudDriveContract.NodeContents.TABLE_NAME + "(" +
+                        CloudDriveContract.NodeContents._ID + " INTEGER PRIMARY KEY, " +
+                        CloudDriveContract.NodeContents.DATA + " TEXT, " +
+                        CloudDriveContract.NodeContents.DISPLAY_NAME + " TEXT, " +
+                        CloudDriveContract.NodeContents.SIZE + " INTEGER, " +
+                        CloudDriveContract.NodeContents.SEGMENTS + " BLOB" +
+                        ")");
+
+        ///////////////////////////////////////////////////////////////////////
+        // upload_queue_entries
+        ///////////////////////////////////////////////////////////////////////
+
+        db.execSQL(
+                "CREATE TABLE " + CloudDriveContract.UploadQueueItems.TABLE_NAME + "(" +
+                        CloudDriveContract.UploadQueueItems._ID + " INTEGER PRIMARY KEY AUTOINCREMENT, " +
+                        CloudDriveContract.UploadQueueItems.SOURCE_URI + " TEXT NOT NULL, " +
+                        CloudDriveContract.UploadQueueItems.STATUS + " TEXT, " +
+                        CloudDriveContract.UploadQueueItems.CONTENT_HASH + " TEXT, " +
+                        CloudDriveContract.UploadQueueItems.COMPLETED_TIME + " INTEGER, " +
+                        CloudDriveContract.UploadQueueItems.DESTINATION_PATH + " TEXT" +
+                        ")");
+        createUploadQueueIndices(db);
+    }
+
+    @Override
+    public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+        enableRecursiveTriggers(db);
+        if (oldVersion < 2) {
+            // Version 2 adds the folder statistics. The node cache is rebuilt by
+            // the next listing, so recreate it rather than backfill the totals.
+            // Contents are keyed by node row ID, which starts over, so their
+            // rows go too. The upload queue is kept.
+            db.execSQL("DROP VIEW IF EXISTS " + CloudDriveContract.NodeChildren.TABLE_NAME);
+            db.execSQL("DROP TABLE IF EXISTS " + CloudDriveContract.NodeChildren.MATERIALIZED_TABLE_NAME);
+            db.execSQL("DROP TABLE IF EXISTS " + CloudDriveContract.NodeParents.TABLE_NAME);
+            db.execSQL("DROP TABLE IF EXISTS " + CloudDriveContract.Nodes.TABLE_NAME);
+            db.execSQL("DELETE FROM " + CloudDriveContract.NodeContents.TABLE_NAME);
+            createNodeTables(db);
+        }
+        if (oldVersion < 3) {
+            // Version 3 tracks partially downloaded contents. Existing rows are complete.
+            db.execSQL("ALTER TABLE " + CloudDriveContract.NodeContents.TABLE_NAME +
+                    " ADD COLUMN " + CloudDriveContract.NodeContents.SEGMENTS + " BLOB");
+        }
+        if (oldVersion < 4) {
+            // Version 4 keeps completed uploads for a while to recognize them
+            // when they are shared again. Existing rows are pending.
+            db.execSQL("ALTER TABLE " + CloudDriveContract.UploadQueueItems.TABLE_NAME +
+                    " ADD COLUMN " + CloudDriveContract.UploadQueueItems.CONTENT_HASH + " TEXT");
+            db.execSQL("ALTER TABLE " + CloudDriveContract.UploadQueueItems.TABLE_NAME +
+                    " ADD COLUMN " + CloudDriveContract.UploadQueueItems.COMPLETED_TIME + " INTEGER");
+            createUploadQueueIndices(db);
+        }
+        if (oldVersion < 5) {
+            // Version 5 lets uploads go to a folder other than the root. Existing rows go to the root.
+            db.execSQL("ALTER TABLE " + CloudDriveContract.UploadQueueItems.TABLE_NAME +
+                    " ADD COLUMN " + CloudDriveContract.UploadQueueItems.DESTINATION_PATH + " TEXT");
+        }
+        if (oldVersion < 7) {
+            // Version 7 keeps node_children as a table. Node tables created by
+            // the version 2 step above already have it, empty, as their nodes
+            // were dropped. Otherwise it is filled from the view.
+            dropNodeChildrenTable(db);
+            createNodeChildrenTable(db);
+            db.execSQL(
+                    "INSERT OR IGNORE INTO " + CloudDriveContract.NodeChildren.MATERIALIZED_TABLE_NAME + " " +
+                        "SELECT * FROM " + CloudDriveContract.NodeChildren.TABLE_NAME);
+        }
+        if (oldVersion < 8) {
+            // Version 8 skips the node_children update when a save leaves the node unchanged.
+            db.execSQL("DROP TRIGGER IF EXISTS node_children_nodes_update");
+            createNodeChildrenNodesUpdateTrigger(db);
+        }
+        if (oldVersion < 9) {
+            // Version 9 keeps a single row per edge in node_parents. An edge
+            // saved twice was added to its parent's totals twice, but later
+            // changes only reached the parent once, so the totals above it may
+            // be off. The edges are removed, the totals reset, and each edge
+            // added back once, which sums the totals again through the triggers.
+            db.execSQL(
+                    "CREATE TEMP TABLE node_parents_distinct AS " +
+                        "SELECT DISTINCT " + CloudDriveContract.NodeParents.NODE_ID + ", " + CloudDriveContract.NodeParents.PARENT_NODE_ID + " " +
+                        "FROM " + CloudDriveContract.NodeParents.TABLE_NAME);
+            db.execSQL("DELETE FROM " + CloudDriveContract.NodeParents.TABLE_NAME);
+            db.execSQL(
+                    "UPDATE " + CloudDriveContract.Nodes.TABLE_NAME + " SET " +
+                        CloudDriveContract.Nodes.TOTAL_SIZE + " = " +
+                            "CASE " + CloudDriveContract.Nodes.KIND + " " +
+                                "WHEN '" + NodeKind.FILE + "' THEN IFNULL(" + CloudDriveContract.Nodes.CONTENT_SIZE + ", 0) " +
+                                "ELSE 0 END, " +
+                        CloudDriveContract.Nodes.FILE_COUNT + " = " +
+                            "CASE " + CloudDriveContract.Nodes.KIND + " " +
+                                "WHEN '" + NodeKind.FILE + "' THEN 1 " +
+                                "ELSE 0 END");
+
+            // Node tables created by the version 2 step above already have the index.
+            db.execSQL("DROP INDEX IF EXISTS idx_node_parents_nid");
+            db.execSQL("DROP INDEX IF EXISTS idx_node_parents_nid_pnid");
+            createNodeParentsUniqueIndex(db);
+
+            db.execSQL(
+                    "INSERT INTO " + CloudDriveContract.NodeParents.TABLE_NAME + " (" +
+                        CloudDriveContract.NodeParents.NODE_ID + ", " + CloudDriveContract.NodeParents.PARENT_NODE_ID + ") " +
+                        "SELECT " + CloudDriveContract.NodeParents.NODE_ID + ", " + CloudDriveContract.NodeParents.PARENT_NODE_ID + " " +
+                        "FROM node_parents_distinct");
+            db.execSQL("DROP TABLE node_parents_distinct");
+        }
+        if (oldVersion < 10) {
+            // Version 10 moves the parent_is_root update out of the node_children
+            // update trigger, so it only runs when is_root changes.
+            db.execSQL("DROP TRIGGER IF EXISTS node_children_nodes_update");
+            db.execSQL("DROP TRIGGER IF EXISTS node_children_nodes_update_is_root");
+            createNodeChildrenNodesUpdateTrigger(db);
+            createNodeChildrenNodesUpdateIsRootTrigger(db);
+        }
+        if (oldVersion < 11) {
+            // Version 11 drops the narrow node_children view that version 6
+            // added. Child IDs are read from the node_children table instead.
+            db.execSQL("DROP VIEW IF EXISTS node_children_narrow");
+        }
+    }
+
+    /**
+     * Creates the indices used to find duplicate uploads.
+     */
+    private void createUploadQueueIndices(SQLiteDatabase db) {
+        db.execSQL(
+                "CREATE INDEX idx_upload_queue_entries_su " +
+                        "ON " + CloudDriveContract.UploadQueueItems.TABLE_NAME + " (" +
+                        CloudDriveContract.UploadQueueItems.SOURCE_URI +
+                        ")");
+        db.execSQL(
+                "CREATE INDEX idx_upload_queue_entries_ch " +
+                        "ON " + CloudDriveContract.UploadQueueItems.TABLE_NAME + " (" +
+                        CloudDriveContract.UploadQueueItems.CONTENT_HASH +
+                        ")");
+    }
+
+    /**
+     * Creates the node cache: nodes, node_parents, the node_children view
+     * and table, and the folder statistics triggers.
+     */
+    private void createNodeTables(SQLiteDatabase db) {
 
         ///////////////////////////////////////////////////////////////////////
         // nodes
@@ -58,6 +248,9 @@ public class CloudDriveNodesDatabaseHelper extends SQLiteOpenHelper {
                         CloudDriveContract.Nodes.RECURSIVELY_TRASHED + " INTEGER, " +
                         CloudDriveContract.Nodes.STATUS + " TEXT, " +
                         CloudDriveContract.Nodes.VERSION + " INTEGER, " +
+                        CloudDriveContract.Nodes.CONTENT_SIZE + " INTEGER, " +
+                        CloudDriveContract.Nodes.TOTAL_SIZE + " INTEGER NOT NULL DEFAULT 0, " +
+                        CloudDriveContract.Nodes.FILE_COUNT + " INTEGER NOT NULL DEFAULT 0, " +
                         CloudDriveContract.Nodes.IS_DIRTY + " INTEGER" +
                         ")");
 
@@ -84,6 +277,13 @@ public class CloudDriveNodesDatabaseHelper extends SQLiteOpenHelper {
                         CloudDriveContract.NodeParents.PARENT_NODE_ID + " TEXT NOT NULL " +
                         ")");
 
+        createNodeParentsUniqueIndex(db);
+        db.execSQL(
+                "CREATE INDEX idx_node_parents_pnid " +
+                        "ON " + CloudDriveContract.NodeParents.TABLE_NAME + " (" +
+                        CloudDriveContract.NodeParents.PARENT_NODE_ID +
+                        ")");
+
 
         ///////////////////////////////////////////////////////////////////////
         // node_children
@@ -95,19 +295,7 @@ public class CloudDriveNodesDatabaseHelper extends SQLiteOpenHelper {
                         "n." + CloudDriveContract.Nodes._ID + " AS " + CloudDriveContract.NodeChildren._ID + ", " +
                         "np." + CloudDriveContract.NodeParents.PARENT_NODE_ID + " AS " + CloudDriveContract.NodeChildren.PARENT_NODE_ID + ", " +
                         "npn." + CloudDriveContract.Nodes.IS_ROOT + " AS " + CloudDriveContract.NodeChildren.PARENT_IS_ROOT + ", " +
-                        "n." + CloudDriveContract.Nodes.NODE_ID + " AS " + CloudDriveContract.NodeChildren.NODE_ID + ", " +
-                        "n." + CloudDriveContract.Nodes.CREATED_BY + " AS " + CloudDriveContract.NodeChildren.CREATED_BY + ", " +
-                        "n." + CloudDriveContract.Nodes.CREATED_DATE + " AS " + CloudDriveContract.NodeChildren.CREATED_DATE + ", " +
-                        "n." + CloudDriveContract.Nodes.DESCRIPTION + " AS " + CloudDriveContract.NodeChildren.DESCRIPTION + ", " +
-                        "n." + CloudDriveContract.Nodes.EXCLUSIVELY_TRASHED + " AS " + CloudDriveContract.NodeChildren.EXCLUSIVELY_TRASHED + ", " +
-                        "n." + CloudDriveContract.Nodes.IS_ROOT + " AS " + CloudDriveContract.NodeChildren.IS_ROOT + ", " +
-                        "n." + CloudDriveContract.Nodes.IS_SHARED + " AS " + CloudDriveContract.NodeChildren.IS_SHARED + ", " +
-                        "n." + CloudDriveContract.Nodes.KIND + " AS " + CloudDriveContract.NodeChildren.KIND + ", " +
-                        "n." + CloudDriveContract.Nodes.MODIFIED_DATE+ " AS " + CloudDriveContract.NodeChildren.MODIFIED_DATE + ", " +
-                        "n." + CloudDriveContract.Nodes.NAME + " AS " + CloudDriveContract.NodeChildren.NAME + ", " +
-                        "n." + CloudDriveContract.Nodes.RECURSIVELY_TRASHED + " AS " + CloudDriveContract.NodeChildren.RECURSIVELY_TRASHED + ", " +
-                        "n." + CloudDriveContract.Nodes.STATUS + " AS " + CloudDriveContract.NodeChildren.STATUS + ", " +
-                        "n." + CloudDriveContract.Nodes.VERSION + " AS " + CloudDriveContract.NodeChildren.VERSION + " " +
+                        getNodeChildColumns() +
                     "FROM " +
                         CloudDriveContract.NodeParents.TABLE_NAME + " np, " +
                         CloudDriveContract.Nodes.TABLE_NAME + " n, " +
@@ -115,32 +303,491 @@ public class CloudDriveNodesDatabaseHelper extends SQLiteOpenHelper {
                     "WHERE " +
                         "np." + CloudDriveContract.NodeParents.NODE_ID + " = n." + CloudDriveContract.Nodes.NODE_ID +
                         " AND np." + CloudDriveContract.NodeParents.PARENT_NODE_ID + " = npn." + CloudDriveContract.Nodes.NODE_ID + " " );
+        createNodeChildrenTable(db);
 
         ///////////////////////////////////////////////////////////////////////
-        // node_contents
+        // folder statistics
         ///////////////////////////////////////////////////////////////////////
 
+        createFolderStatisticsTriggers(db);
+    }
+
+    /**
+     * Creates the index that finds a node's parents and keeps one row per
+     * edge. The folder statistics and node_children triggers count rows, so
+     * an edge saved twice would be counted twice.
+     */
+    private void createNodeParentsUniqueIndex(SQLiteDatabase db) {
         db.execSQL(
-                "CREATE TABLE " + CloudDriveContract.NodeContents.TABLE_NAME + "(" +
-                        CloudDriveContract.NodeContents._ID + " INTEGER PRIMARY KEY, " +
-                        CloudDriveContract.NodeContents.DATA + " TEXT, " +
-                        CloudDriveContract.NodeContents.DISPLAY_NAME + " TEXT, " +
-                        CloudDriveContract.NodeContents.SIZE + " INTEGER" +
+                "CREATE UNIQUE INDEX idx_node_parents_nid_pnid " +
+                        "ON " + CloudDriveContract.NodeParents.TABLE_NAME + " (" +
+                        CloudDriveContract.NodeParents.NODE_ID + ", " +
+                        CloudDriveContract.NodeParents.PARENT_NODE_ID +
                         ")");
+    }
 
-        ///////////////////////////////////////////////////////////////////////
-        // upload_queue_entries
-        ///////////////////////////////////////////////////////////////////////
+    /**
+     * @return the select list of the child node's columns after its _id, used by the node_children view
+     */
+    private static String getNodeChildColumns() {
+        StringBuilder columns = new StringBuilder();
+        for (String column : NODE_CHILD_COLUMNS) {
+            if (columns.length() > 0) {
+                columns.append(", ");
+            }
+            // The node_children columns have the same names as the nodes columns
+            columns.append("n.").append(column).append(" AS ").append(column);
+        }
+        return columns.append(" ").toString();
+    }
+
+    /**
+     * Creates node_children as a table, one row per parent and child, that
+     * triggers keep in step with nodes and node_parents. Listing a folder is
+     * then a range scan of one index rather than a join per child. The rows
+     * are the same as those of the view.
+     */
+    private void createNodeChildrenTable(SQLiteDatabase db) {
+        String table = CloudDriveContract.NodeChildren.MATERIALIZED_TABLE_NAME;
 
         db.execSQL(
-                "CREATE TABLE " + CloudDriveContract.UploadQueueItems.TABLE_NAME + "(" +
-                        CloudDriveContract.UploadQueueItems._ID + " INTEGER PRIMARY KEY AUTOINCREMENT, " +
-                        CloudDriveContract.UploadQueueItems.SOURCE_URI + " TEXT NOT NULL, " +
-                        CloudDriveContract.UploadQueueItems.STATUS + " TEXT " +
+                "CREATE TABLE " + table + "(" +
+                        CloudDriveContract.NodeChildren._ID + " INTEGER NOT NULL, " +
+                        CloudDriveContract.NodeChildren.PARENT_NODE_ID + " TEXT NOT NULL, " +
+                        CloudDriveContract.NodeChildren.PARENT_IS_ROOT + " INTEGER, " +
+                        CloudDriveContract.NodeChildren.NODE_ID + " TEXT NOT NULL, " +
+                        CloudDriveContract.NodeChildren.CREATED_BY + " TEXT, " +
+                        CloudDriveContract.NodeChildren.CREATED_DATE + " TEXT, " +
+                        CloudDriveContract.NodeChildren.DESCRIPTION + " TEXT, " +
+                        CloudDriveContract.NodeChildren.EXCLUSIVELY_TRASHED + " INTEGER, " +
+                        CloudDriveContract.NodeChildren.IS_ROOT + " INTEGER, " +
+                        CloudDriveContract.NodeChildren.IS_SHARED + " INTEGER, " +
+                        CloudDriveContract.NodeChildren.KIND + " TEXT, " +
+                        CloudDriveContract.NodeChildren.MODIFIED_DATE + " TEXT, " +
+                        CloudDriveContract.NodeChildren.NAME + " TEXT, " +
+                        CloudDriveContract.NodeChildren.RECURSIVELY_TRASHED + " INTEGER, " +
+                        CloudDriveContract.NodeChildren.STATUS + " TEXT, " +
+                        CloudDriveContract.NodeChildren.VERSION + " INTEGER, " +
+                        CloudDriveContract.NodeChildren.CONTENT_SIZE + " INTEGER, " +
+                        CloudDriveContract.NodeChildren.TOTAL_SIZE + " INTEGER, " +
+                        CloudDriveContract.NodeChildren.FILE_COUNT + " INTEGER" +
+                        ")");
+
+        // Finds the rows of a child when it changes, and keeps one row per edge
+        db.execSQL(
+                "CREATE UNIQUE INDEX idx_node_children_nid_pnid " +
+                        "ON " + table + " (" +
+                        CloudDriveContract.NodeChildren.NODE_ID + ", " +
+                        CloudDriveContract.NodeChildren.PARENT_NODE_ID +
+                        ")");
+        // Lists a folder in the order NodeListingFragment shows it
+        db.execSQL(
+                "CREATE INDEX idx_node_children_pnid_k_n " +
+                        "ON " + table + " (" +
+                        CloudDriveContract.NodeChildren.PARENT_NODE_ID + ", " +
+                        CloudDriveContract.NodeChildren.KIND + " DESC, " +
+                        CloudDriveContract.NodeChildren.NAME +
                         ")");
+
+        createNodeChildrenTriggers(db);
     }
 
-    @Override
-    public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+    /**
+     * Creates the triggers that keep node_children in step with nodes and node_parents.
+     */
+    private static void createNodeChildrenTriggers(SQLiteDatabase db) {
+        String table = CloudDriveContract.NodeChildren.MATERIALIZED_TABLE_NAME;
+
+        // Add the row for an edge once both of its nodes are saved
+        db.execSQL(
+                "CREATE TRIGGER node_children_parents_insert AFTER INSERT ON " + CloudDriveContract.NodeParents.TABLE_NAME + " " +
+                    "BEGIN " +
+                        insertEdgeRow("NEW") + "; " +
+                    "END");
+        db.execSQL(
+                "CREATE TRIGGER node_children_parents_update AFTER UPDATE ON " + CloudDriveContract.NodeParents.TABLE_NAME + " " +
+                    "BEGIN " +
+                        deleteEdgeRow("OLD") + "; " +
+                        insertEdgeRow("NEW") + "; " +
+                    "END");
+        db.execSQL(
+                "CREATE TRIGGER node_children_parents_delete AFTER DELETE ON " + CloudDriveContract.NodeParents.TABLE_NAME + " " +
+                    "BEGIN " +
+                        deleteEdgeRow("OLD") + "; " +
+                    "END");
+
+        // Add the rows of a new node, as a child and as a parent. The node is
+        // read back rather than taken from NEW, as the folder statistics
+        // triggers may already have updated its totals.
+        db.execSQL(
+                "CREATE TRIGGER node_children_nodes_insert AFTER INSERT ON " + CloudDriveContract.Nodes.TABLE_NAME + " " +
+                    "BEGIN " +
+                        insertChildRows("INSERT OR IGNORE", "NEW") + "; " +
+                        "INSERT OR IGNORE INTO " + table + " " +
+                            "SELECT " + getEdgeRowColumns("np." + CloudDriveContract.NodeParents.PARENT_NODE_ID) +
+                            "FROM " +
+                                CloudDriveContract.NodeParents.TABLE_NAME + " np, " +
+                                CloudDriveContract.Nodes.TABLE_NAME + " n, " +
+                                CloudDriveContract.Nodes.TABLE_NAME + " npn " +
+                            "WHERE npn." + CloudDriveContract.Nodes._ID + " = NEW." + CloudDriveContract.Nodes._ID +
+                                " AND np." + CloudDriveContract.NodeParents.PARENT_NODE_ID + " = npn." + CloudDriveContract.Nodes.NODE_ID +
+                                " AND n." + CloudDriveContract.Nodes.NODE_ID + " = np." + CloudDriveContract.NodeParents.NODE_ID + "; " +
+                    "END");
+
+        createNodeChildrenNodesUpdateTrigger(db);
+        createNodeChildrenNodesUpdateIsRootTrigger(db);
+
+        // Remove a deleted node's rows. INSERT OR REPLACE on nodes runs this
+        // before adding them back, as recursive triggers are on.
+        db.execSQL(
+                "CREATE TRIGGER node_children_nodes_delete AFTER DELETE ON " + CloudDriveContract.Nodes.TABLE_NAME + " " +
+                    "BEGIN " +
+                        "DELETE FROM " + table + " " +
+                        "WHERE " + CloudDriveContract.NodeChildren.NODE_ID + " = OLD." + CloudDriveContract.Nodes.NODE_ID + "; " +
+                        "DELETE FROM " + table + " " +
+                        "WHERE " + CloudDriveContract.NodeChildren.PARENT_NODE_ID + " = OLD." + CloudDriveContract.Nodes.NODE_ID + "; " +
+                    "END");
+    }
+
+    /**
+     * Creates the trigger that copies a node's changes to its rows as a child.
+     * The node is read back rather than taken from NEW: an update made by a
+     * trigger of this update runs first, and NEW would then be out of date.
+     * Only the columns in the table count, so marking nodes dirty does not
+     * fire it, and neither does saving a node that did not change.
+     */
+    private static void createNodeChildrenNodesUpdateTrigger(SQLiteDatabase db) {
+        StringBuilder childColumns = new StringBuilder();
+        StringBuilder isChanged = new StringBuilder();
+        for (String column : NODE_CHILD_COLUMNS) {
+            if (childColumns.length() > 0) {
+                childColumns.append(", ");
+                isChanged.append(" OR ");
+            }
+            childColumns.append(column);
+            isChanged.append("OLD.").append(column).append(" IS NOT NEW.").append(column);
+        }
+        db.execSQL(
+                "CREATE TRIGGER node_children_nodes_update AFTER UPDATE OF " + childColumns + " " +
+                        "ON " + CloudDriveContract.Nodes.TABLE_NAME + " " +
+                    "WHEN " + isChanged + " " +
+                    "BEGIN " +
+                        insertChildRows("INSERT OR REPLACE", "NEW") + "; " +
+                    "END");
+    }
+
+    /**
+     * Creates the trigger that copies a node's is_root to its rows as a
+     * parent. It is apart from the update trigger above, as a folder has a
+     * row per child and its is_root hardly ever changes.
+     */
+    private static void createNodeChildrenNodesUpdateIsRootTrigger(SQLiteDatabase db) {
+        db.execSQL(
+                "CREATE TRIGGER node_children_nodes_update_is_root AFTER UPDATE OF " + CloudDriveContract.Nodes.IS_ROOT + " " +
+                        "ON " + CloudDriveContract.Nodes.TABLE_NAME + " " +
+                    "WHEN OLD." + CloudDriveContract.Nodes.IS_ROOT + " IS NOT NEW." + CloudDriveContract.Nodes.IS_ROOT + " " +
+                    "BEGIN " +
+                        "UPDATE " + CloudDriveContract.NodeChildren.MATERIALIZED_TABLE_NAME + " SET " +
+                            CloudDriveContract.NodeChildren.PARENT_IS_ROOT + " = NEW." + CloudDriveContract.Nodes.IS_ROOT + " " +
+                        "WHERE " + CloudDriveContract.NodeChildren.PARENT_NODE_ID + " = NEW." + CloudDriveContract.Nodes.NODE_ID + "; " +
+                    "END");
+    }
+
+    /**
+     * Drops the node_children table and its triggers, if they exist.
+     */
+    private void dropNodeChildrenTable(SQLiteDatabase db) {
+        dropNodeChildrenTriggers(db);
+        db.execSQL("DROP TABLE IF EXISTS " + CloudDriveContract.NodeChildren.MATERIALIZED_TABLE_NAME);
+    }
+
+    /**
+     * Drops the node_children triggers, if they exist.
+     */
+    private static void dropNodeChildrenTriggers(SQLiteDatabase db) {
+        db.execSQL("DROP TRIGGER IF EXISTS node_children_parents_insert");
+        db.execSQL("DROP TRIGGER IF EXISTS node_children_parents_update");
+        db.execSQL("DROP TRIGGER IF EXISTS node_children_parents_delete");
+        db.execSQL("DROP TRIGGER IF EXISTS node_children_nodes_insert");
+        db.execSQL("DROP TRIGGER IF EXISTS node_children_nodes_update");
+        db.execSQL("DROP TRIGGER IF EXISTS node_children_nodes_update_is_root");
+        db.execSQL("DROP TRIGGER IF EXISTS node_children_nodes_delete");
+    }
+
+    /**
+     * @param parentNodeId the expression for the parent's node ID
+     * @return the select list of a node_children row, from the child n and the parent npn
+     */
+    private static String getEdgeRowColumns(String parentNodeId) {
+        return "n." + CloudDriveContract.Nodes._ID + ", " +
+                parentNodeId + ", " +
+                "npn." + CloudDriveContract.Nodes.IS_ROOT + ", " +
+                getNodeChildColumns();
+    }
+
+    /**
+     * @return a statement adding the node_children rows of a nodes row as a child, for each of its saved parents
+     */
+    private static String insertChildRows(String insert, String row) {
+        return insert + " INTO " + CloudDriveContract.NodeChildren.MATERIALIZED_TABLE_NAME + " " +
+                "SELECT " + getEdgeRowColumns("np." + CloudDriveContract.NodeParents.PARENT_NODE_ID) +
+                "FROM " +
+                    CloudDriveContract.NodeParents.TABLE_NAME + " np, " +
+                    CloudDriveContract.Nodes.TABLE_NAME + " n, " +
+                    CloudDriveContract.Nodes.TABLE_NAME + " npn " +
+                "WHERE n." + CloudDriveContract.Nodes._ID + " = " + row + "." + CloudDriveContract.Nodes._ID +
+                    " AND np." + CloudDriveContract.NodeParents.NODE_ID + " = n." + CloudDriveContract.Nodes.NODE_ID +
+                    " AND npn." + CloudDriveContract.Nodes.NODE_ID + " = np." + CloudDriveContract.NodeParents.PARENT_NODE_ID;
+    }
+
+    /**
+     * @return a statement adding the node_children row of a node_parents row, if both of its nodes are saved
+     */
+    private static String insertEdgeRow(String row) {
+        return "INSERT OR IGNORE INTO " + CloudDriveContract.NodeChildren.MATERIALIZED_TABLE_NAME + " " +
+                "SELECT " + getEdgeRowColumns(row + "." + CloudDriveContract.NodeParents.PARENT_NODE_ID) +
+                "FROM " +
+                    CloudDriveContract.Nodes.TABLE_NAME + " n, " +
+                    CloudDriveContract.Nodes.TABLE_NAME + " npn " +
+                "WHERE n." + CloudDriveContract.Nodes.NODE_ID + " = " + row + "." + CloudDriveContract.NodeParents.NODE_ID +
+                    " AND npn." + CloudDriveContract.Nodes.NODE_ID + " = " + row + "." + CloudDriveContract.NodeParents.PARENT_NODE_ID;
+    }
+
+    /**
+     * @return a statement removing the node_children row of a removed node_parents row
+     */
+    private static String deleteEdgeRow(String row) {
+        return "DELETE FROM " + CloudDriveContract.NodeChildren.MATERIALIZED_TABLE_NAME + " " +
+                "WHERE " + CloudDriveContract.NodeChildren.NODE_ID + " = " + row + "." + CloudDriveContract.NodeParents.NODE_ID +
+                    " AND " + CloudDriveContract.NodeChildren.PARENT_NODE_ID + " = " + row + "." + CloudDriveContract.NodeParents.PARENT_NODE_ID;
+    }
+
+    /**
+     * Creates the triggers that keep {@link CloudDriveContract.Nodes#TOTAL_SIZE}
+     * and {@link CloudDriveContract.Nodes#FILE_COUNT} up to date.
+     *
+     * Each node contributes its totals to every parent while it is available.
+     * A node with several parents is counted in each of them, and so more than
+     * once in an ancestor they have in common.
+     * Whenever a contribution changes, the difference is added to the parents,
+     * whose own update then cascades up the ancestor chain. A folder that is
+     * inserted after some of its children starts from the sum of the children
+     * already saved, so listing order does not matter.
+     */
+    private static void createFolderStatisticsTriggers(SQLiteDatabase db) {
+
+        // Compute the totals of a new row
+        db.execSQL(
+                "CREATE TRIGGER nodes_stats_insert AFTER INSERT ON " + CloudDriveContract.Nodes.TABLE_NAME + " " +
+                    "BEGIN " +
+                        "UPDATE " + CloudDriveContract.Nodes.TABLE_NAME + " SET " +
+                            CloudDriveContract.Nodes.TOTAL_SIZE + " = " +
+                                "CASE NEW." + CloudDriveContract.Nodes.KIND + " " +
+                                    "WHEN '" + NodeKind.FOLDER + "' THEN " + sumOfChildren("NEW", CloudDriveContract.Nodes.TOTAL_SIZE) + " " +
+                                    "WHEN '" + NodeKind.FILE + "' THEN IFNULL(NEW." + CloudDriveContract.Nodes.CONTENT_SIZE + ", 0) " +
+                                    "ELSE 0 END, " +
+                            CloudDriveContract.Nodes.FILE_COUNT + " = " +
+                                "CASE NEW." + CloudDriveContract.Nodes.KIND + " " +
+                                    "WHEN '" + NodeKind.FOLDER + "' THEN " + sumOfChildren("NEW", CloudDriveContract.Nodes.FILE_COUNT) + " " +
+                                    "WHEN '" + NodeKind.FILE + "' THEN 1 " +
+                                    "ELSE 0 END " +
+                        "WHERE " + CloudDriveContract.Nodes._ID + " = NEW." + CloudDriveContract.Nodes._ID + "; " +
+                    "END");
+
+        // Keep a file's total in step with its content size when it is updated in place
+        db.execSQL(
+                "CREATE TRIGGER nodes_stats_content_size AFTER UPDATE OF " + CloudDriveContract.Nodes.CONTENT_SIZE + " " +
+                        "ON " + CloudDriveContract.Nodes.TABLE_NAME + " " +
+                    "WHEN NEW." + CloudDriveContract.Nodes.KIND + " = '" + NodeKind.FILE + "' " +
+                        "AND IFNULL(NEW." + CloudDriveContract.Nodes.CONTENT_SIZE + ", 0) != NEW." + CloudDriveContract.Nodes.TOTAL_SIZE + " " +
+                    "BEGIN " +
+                        "UPDATE " + CloudDriveContract.Nodes.TABLE_NAME + " SET " +
+                            CloudDriveContract.Nodes.TOTAL_SIZE + " = IFNULL(NEW." + CloudDriveContract.Nodes.CONTENT_SIZE + ", 0) " +
+                        "WHERE " + CloudDriveContract.Nodes._ID + " = NEW." + CloudDriveContract.Nodes._ID + "; " +
+                    "END");
+
+        // Pass changed contributions on to the parents
+        db.execSQL(
+                "CREATE TRIGGER nodes_stats_update AFTER UPDATE OF " +
+                        CloudDriveContract.Nodes.TOTAL_SIZE + ", " +
+                        CloudDriveContract.Nodes.FILE_COUNT + ", " +
+                        CloudDriveContract.Nodes.STATUS + " " +
+                        "ON " + CloudDriveContract.Nodes.TABLE_NAME + " " +
+                    "WHEN " +
+                        contribution("NEW", CloudDriveContract.Nodes.TOTAL_SIZE) + " != " + contribution("OLD", CloudDriveContract.Nodes.TOTAL_SIZE) + " OR " +
+                        contribution("NEW", CloudDriveContract.Nodes.FILE_COUNT) + " != " + contribution("OLD", CloudDriveContract.Nodes.FILE_COUNT) + " " +
+                    "BEGIN " +
+                        "UPDATE " + CloudDriveContract.Nodes.TABLE_NAME + " SET " +
+                            CloudDriveContract.Nodes.TOTAL_SIZE + " = " + CloudDriveContract.Nodes.TOTAL_SIZE + " + " +
+                                "(" + contribution("NEW", CloudDriveContract.Nodes.TOTAL_SIZE) + ") - (" + contribution("OLD", CloudDriveContract.Nodes.TOTAL_SIZE) + "), " +
+                            CloudDriveContract.Nodes.FILE_COUNT + " = " + CloudDriveContract.Nodes.FILE_COUNT + " + " +
+                                "(" + contribution("NEW", CloudDriveContract.Nodes.FILE_COUNT) + ") - (" + contribution("OLD", CloudDriveContract.Nodes.FILE_COUNT) + ") " +
+                        "WHERE " + parentsOf("NEW") + "; " +
+                    "END");
+
+        // Remove a deleted node's contribution from its parents
+        db.execSQL(
+                "CREATE TRIGGER nodes_stats_delete AFTER DELETE ON " + CloudDriveContract.Nodes.TABLE_NAME + " " +
+                    "WHEN " +
+                        contribution("OLD", CloudDriveContract.Nodes.TOTAL_SIZE) + " != 0 OR " +
+                        contribution("OLD", CloudDriveContract.Nodes.FILE_COUNT) + " != 0 " +
+                    "BEGIN " +
+                        "UPDATE " + CloudDriveContract.Nodes.TABLE_NAME + " SET " +
+                            CloudDriveContract.Nodes.TOTAL_SIZE + " = " + CloudDriveContract.Nodes.TOTAL_SIZE + " - (" + contribution("OLD", CloudDriveContract.Nodes.TOTAL_SIZE) + "), " +
+                            CloudDriveContract.Nodes.FILE_COUNT + " = " + CloudDriveContract.Nodes.FILE_COUNT + " - (" + contribution("OLD", CloudDriveContract.Nodes.FILE_COUNT) + ") " +
+                        "WHERE " + parentsOf("OLD") + "; " +
+                    "END");
+
+        // Add or remove a child's contribution when it is linked to or unlinked from a parent
+        db.execSQL(
+                "CREATE TRIGGER node_parents_stats_insert AFTER INSERT ON " + CloudDriveContract.NodeParents.TABLE_NAME + " " +
+                    "BEGIN " +
+                        "UPDATE " + CloudDriveContract.Nodes.TABLE_NAME + " SET " +
+                            CloudDriveContract.Nodes.TOTAL_SIZE + " = " + CloudDriveContract.Nodes.TOTAL_SIZE + " + " + childContribution("NEW", CloudDriveContract.Nodes.TOTAL_SIZE) + ", " +
+                            CloudDriveContract.Nodes.FILE_COUNT + " = " + CloudDriveContract.Nodes.FILE_COUNT + " + " + childContribution("NEW", CloudDriveContract.Nodes.FILE_COUNT) + " " +
+                        "WHERE " + CloudDriveContract.Nodes.NODE_ID + " = NEW." + CloudDriveContract.NodeParents.PARENT_NODE_ID + "; " +
+                    "END");
+        db.execSQL(
+                "CREATE TRIGGER node_parents_stats_delete AFTER DELETE ON " + CloudDriveContract.NodeParents.TABLE_NAME + " " +
+                    "BEGIN " +
+                        "UPDATE " + CloudDriveContract.Nodes.TABLE_NAME + " SET " +
+                            CloudDriveContract.Nodes.TOTAL_SIZE + " = " + CloudDriveContract.Nodes.TOTAL_SIZE + " - " + childContribution("OLD", CloudDriveContract.Nodes.TOTAL_SIZE) + ", " +
+                            CloudDriveContract.Nodes.FILE_COUNT + " = " + CloudDriveContract.Nodes.FILE_COUNT + " - " + childContribution("OLD", CloudDriveContract.Nodes.FILE_COUNT) + " " +
+                        "WHERE " + CloudDriveContract.Nodes.NODE_ID + " = OLD." + CloudDriveContract.NodeParents.PARENT_NODE_ID + "; " +
+                    "END");
+    }
+
+    /**
+     * Drops the folder statistics triggers.
+     */
+    private static void dropFolderStatisticsTriggers(SQLiteDatabase db) {
+        db.execSQL("DROP TRIGGER IF EXISTS nodes_stats_insert");
+        db.execSQL("DROP TRIGGER IF EXISTS nodes_stats_content_size");
+        db.execSQL("DROP TRIGGER IF EXISTS nodes_stats_update");
+        db.execSQL("DROP TRIGGER IF EXISTS nodes_stats_delete");
+        db.execSQL("DROP TRIGGER IF EXISTS node_parents_stats_insert");
+        db.execSQL("DROP TRIGGER IF EXISTS node_parents_stats_delete");
+    }
+
+    /**
+     * Drops the triggers on nodes and node_parents, so that a bulk insert does
+     * not update the folder statistics and node_children a row at a time.
+     * {@link #rebuildNodeTables} brings them back, and both must be called in
+     * the same transaction.
+     */
+    public static void dropNodeTriggers(SQLiteDatabase db) {
+        dropNodeChildrenTriggers(db);
+        dropFolderStatisticsTriggers(db);
+    }
+
+    /**
+     * Computes the folder statistics and node_children again from nodes and
+     * node_parents, then creates the triggers dropped by {@link #dropNodeTriggers}.
+     */
+    public static void rebuildNodeTables(SQLiteDatabase db) {
+        rebuildFolderStatistics(db);
+
+        db.execSQL("DELETE FROM " + CloudDriveContract.NodeChildren.MATERIALIZED_TABLE_NAME);
+        db.execSQL(
+                "INSERT INTO " + CloudDriveContract.NodeChildren.MATERIALIZED_TABLE_NAME + " " +
+                    "SELECT * FROM " + CloudDriveContract.NodeChildren.TABLE_NAME);
+
+        createNodeChildrenTriggers(db);
+        createFolderStatisticsTriggers(db);
+    }
+
+    /**
+     * Sets the totals of every node to those the triggers would have summed.
+     * Nodes without saved children get height 0, then nodes whose children
+     * all have a height get the next one, and so on. The totals of each
+     * height are the sums of those below it, so this takes a statement per
+     * level of the tree rather than a recursive query, which SQLite only has
+     * from Android 5.0 on. Nodes in a cycle never get a height and keep their
+     * totals.
+     */
+    private static void rebuildFolderStatistics(SQLiteDatabase db) {
+        db.execSQL("CREATE TEMP TABLE node_heights (node_id TEXT PRIMARY KEY, height INTEGER NOT NULL)");
+        SQLiteStatement insertHeights = db.compileStatement(
+                "INSERT INTO node_heights " +
+                    "SELECT n." + CloudDriveContract.Nodes.NODE_ID + ", ?1 " +
+                    "FROM " + CloudDriveContract.Nodes.TABLE_NAME + " n " +
+                    "WHERE NOT EXISTS (" +
+                        "SELECT 1 FROM node_heights h WHERE h.node_id = n." + CloudDriveContract.Nodes.NODE_ID +
+                    ") AND NOT EXISTS (" +
+                        "SELECT 1 FROM " + CloudDriveContract.NodeParents.TABLE_NAME + " np, " + CloudDriveContract.Nodes.TABLE_NAME + " c " +
+                        "WHERE np." + CloudDriveContract.NodeParents.PARENT_NODE_ID + " = n." + CloudDriveContract.Nodes.NODE_ID + " " +
+                        "AND c." + CloudDriveContract.Nodes.NODE_ID + " = np." + CloudDriveContract.NodeParents.NODE_ID + " " +
+                        "AND NOT EXISTS (SELECT 1 FROM node_heights h WHERE h.node_id = c." + CloudDriveContract.Nodes.NODE_ID + ")" +
+                    ")");
+        SQLiteStatement countChanges = db.compileStatement("SELECT changes()");
+        SQLiteStatement updateTotals = db.compileStatement(
+                "UPDATE " + CloudDriveContract.Nodes.TABLE_NAME + " SET " +
+                    CloudDriveContract.Nodes.TOTAL_SIZE + " = " +
+                        "CASE " + CloudDriveContract.Nodes.KIND + " " +
+                            "WHEN '" + NodeKind.FILE + "' THEN IFNULL(" + CloudDriveContract.Nodes.CONTENT_SIZE + ", 0) " +
+                            "ELSE 0 END + " + sumOfChildren(CloudDriveContract.Nodes.TABLE_NAME, CloudDriveContract.Nodes.TOTAL_SIZE) + ", " +
+                    CloudDriveContract.Nodes.FILE_COUNT + " = " +
+                        "CASE " + CloudDriveContract.Nodes.KIND + " " +
+                            "WHEN '" + NodeKind.FILE + "' THEN 1 " +
+                            "ELSE 0 END + " + sumOfChildren(CloudDriveContract.Nodes.TABLE_NAME, CloudDriveContract.Nodes.FILE_COUNT) + " " +
+                "WHERE " + CloudDriveContract.Nodes.NODE_ID + " IN (SELECT node_id FROM node_heights WHERE height = ?1)");
+        try {
+            for (int height = 0; ; height++) {
+                insertHeights.bindLong(1, height);
+                insertHeights.execute();
+                if (countChanges.simpleQueryForLong() == 0) {
+                    break;
+                }
+                updateTotals.bindLong(1, height);
+                updateTotals.execute();
+            }
+        } finally {
+            updateTotals.close();
+            countChanges.close();
+            insertHeights.close();
+            db.execSQL("DROP TABLE IF EXISTS temp.node_heights");
+        }
+    }
+
+    /**
+     * @return the amount a node row contributes to its parents' column. Only available nodes count.
+     */
+    private static String contribution(String row, String column) {
+        return "CASE WHEN " + row + "." + CloudDriveContract.Nodes.STATUS + " = '" + NodeStatus.AVAILABLE + "' " +
+                "THEN " + row + "." + column + " ELSE 0 END";
+    }
+
+    /**
+     * @return the contribution of the child in a node_parents row, or 0 if the child is not saved
+     */
+    private static String childContribution(String row, String column) {
+        return "IFNULL((" +
+                "SELECT " + contribution("c", column) + " " +
+                "FROM " + CloudDriveContract.Nodes.TABLE_NAME + " c " +
+                "WHERE c." + CloudDriveContract.Nodes.NODE_ID + " = " + row + "." + CloudDriveContract.NodeParents.NODE_ID +
+                "), 0)";
+    }
+
+    /**
+     * @return the sum of the contributions of the saved children of a nodes row
+     */
+    private static String sumOfChildren(String row, String column) {
+        return "(" +
+                "SELECT IFNULL(SUM(" + contribution("c", column) + "), 0) " +
+                "FROM " + CloudDriveContract.NodeParents.TABLE_NAME + " np, " + CloudDriveContract.Nodes.TABLE_NAME + " c " +
+                "WHERE np." + CloudDriveContract.NodeParents.PARENT_NODE_ID + " = " + row + "." + CloudDriveContract.Nodes.NODE_ID + " " +
+                "AND c." + CloudDriveContract.Nodes.NODE_ID + " = np." + CloudDriveContract.NodeParents.NODE_ID +
+                ")";
+    }
+
+    /**
+     * @return a where clause matching the parents of a node row
+     */
+    private static String parentsOf(String row) {
+        return CloudDriveContract.Nodes.NODE_ID + " IN (" +
+                "SELECT " + CloudDriveContract.NodeParents.PARENT_NODE_ID + " " +
+                "FROM " + CloudDriveContract.NodeParents.TABLE_NAME + " " +
+                "WHERE " + CloudDriveContract.NodeParents.NODE_ID + " = " + row + "." + CloudDriveContract.Nodes.NODE_ID +
+                ")";
     }
 }
\ No newline at end of file
@@ -16,11 +16,14 @@ package com.example.clouddrivefiles.fragment;
 
 import android.app.Activity;
 import android.content.ActivityNotFoundException;
-import android.content.ContentValues;
+import android.content.ContentResolver;
 import android.content.Intent;
+import android.database.Cursor;
 import android.net.Uri;
 import android.os.AsyncTask;
 import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
 import android.support.v4.app.DialogFragment;
 import android.util.Log;
 import android.view.LayoutInflater;
@@ -28,19 +31,17 @@ import android.view.View;
 import android.view.ViewGroup;
 import android.widget.ProgressBar;
 import android.widget.Toast;
-import com.amazon.clouddrive.AmazonCloudDriveClient;
-import com.amazon.clouddrive.exceptions.CloudDriveException;
-import com.amazon.clouddrive.handlers.ProgressListener;
-import com.amazon.clouddrive.model.DownloadFileRequest;
 import com.example.clouddrivefiles.R;
-import com.example.clouddrivefiles.global.UserState;
+import com.example.clouddrivefiles.progress.ProgressReporter;
+import com.example.clouddrivefiles.progress.ThroughputLogSink;
 import com.example.clouddrivefiles.provider.CloudDriveContract;
+import com.example.clouddrivefiles.utils.Closer;
+import com.example.clouddrivefiles.utils.InsufficientStorageException;
 
-import java.io.File;
 import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.OutputStream;
+import java.io.InputStream;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
  * Dialog that downloads a file from Amazon Cloud Drive and attempts to
@@ -48,10 +49,12 @@ import java.io.OutputStream;
  *
  * This class is an example of:
  * <ul>
- *     <li>downloading a file from the cloud</li>
- *     <li>using {@link ProgressListener} and {@link com.amazon.clouddrive.handlers.AsyncHandler} callbacks</li>
+ *     <li>downloading a file from the cloud through the ContentProvider's block cache</li>
  *     <li>protecting customer's content by using a ContentProvider to vend the content</li>
  * </ul>
+ *
+ * Audio and video are downloaded in full too. The provider streams partly
+ * downloaded files through a pipe, which players cannot seek in.
  */
 public class DownloadDialog extends DialogFragment {
 
@@ -64,14 +67,19 @@ public class DownloadDialog extends DialogFragment {
     // AsyncTask that is used to download the file, add metadata
     // to the ContentProvider, and send off an Intent to open
     // the file.
-    private AsyncTask<Void, Integer, Uri> mDownloadFileTask;
+    private AsyncTask<Void, Void, Uri> mDownloadFileTask;
 
-    // Global client instance
-    private AmazonCloudDriveClient mAmazonCloudDriveClient;
+    // Set when the download did not start for lack of storage
+    private volatile boolean mIsOutOfSpace;
 
     // ProgressBar that shows the download progress in the Fragment
     private ProgressBar mProgressBar;
 
+    // Rate-limits progress from the download to what the ProgressBar needs
+    private final ProgressReporter mProgressReporter = new ProgressReporter(
+            new ProgressBarSink(),
+            new ThroughputLogSink(TAG, "Download"));
+
     /**
      * Create a new instance of the DownloadDialog
      * @param id The _ID of the node row
@@ -113,85 +121,64 @@ public class DownloadDialog extends DialogFragment {
 
         super.onCreate(savedInstanceState);
 
-        mAmazonCloudDriveClient = UserState.getAmazonCloudDriveClientInstance(getActivity());
-
         final Integer id = getArguments().getInt(ARG_ID);
-        final String nodeId = getArguments().getString(ARG_NODE_ID);
-        final String fileName = getArguments().getString(ARG_FILE_NAME);
 
-        mDownloadFileTask = new AsyncTask<Void, Integer, Uri>() {
+        mDownloadFileTask = new AsyncTask<Void, Void, Uri>() {
 
             @Override
             protected Uri doInBackground(Void... voids) {
 
+                Activity activity = getActivity();
+                if (activity == null) {
+                    return null;
+                }
+                ContentResolver contentResolver = activity.getContentResolver();
+                Uri uri = CloudDriveContract.NodeContents.getContentUri(id);
+                if (isDownloaded(contentResolver, uri)) {
+                    return uri;
+                }
+
+                // Read the content through the provider, which downloads the blocks that
+                // are missing and keeps them. Blocks fetched by an earlier stream of the
+                // same file are not downloaded again.
+                InputStream inputStream = null;
                 try {
-                    // Create file
-                    File directory = new File(getActivity().getFilesDir(), "/nodes/" + id + "/content/");
-                    directory.mkdirs();
-                    File file = new File(directory, fileName);
-                    OutputStream outputStream = new FileOutputStream(file);
-
-                    // Setup a ProgressListener that will report progress to the AsyncTask
-                    ProgressListener progressListener = new ProgressListener() {
-                        @Override
-                        public void onProgress(final long progress, final long maxProgress) {
-                            //
-                            // This callback happens on the background thread. We will
-                            // post to the main thread by using publishProgress() so
-                            // the ProgressBar can be updated.
-                            //
-                            // The progress from the client is a long, but Android progress
-                            // bars require an int. This is usually not an issue, but can
-                            // be a problem for very large files. The progress is rebased
-                            // to Integer.MAX_VALUE to avoid this issue.
-                            //
-                            publishProgress(
-                                    (int)(Integer.MAX_VALUE * (progress / (double) maxProgress)),
-                                    Integer.MAX_VALUE);
+                    long maxProgress = getContentSize(contentResolver, id);
+
+                    // The provider reserves space for the blocks that are missing, evicting
+                    // other cached files if needed, before any of them is downloaded.
+                    inputStream = contentResolver.openInputStream(uri);
+
+                    byte[] buffer = new byte[64 * 1024];
+                    long progress = 0;
+                    int read;
+                    while ((read = inputStream.read(buffer)) != -1) {
+                        if (isCancelled()) {
+                            return null;
                         }
-                    };
-
-                    // Download the File
-                    DownloadFileRequest downloadFileRequest = new DownloadFileRequest(nodeId, outputStream);
-                    mAmazonCloudDriveClient.downloadFile(downloadFileRequest, progressListener);
-
-                    // Write the file metadata to the provider so other apps can read it.
-                    Activity activity = getActivity();
-                    if (activity != null) {
-                        Uri uri = CloudDriveContract.NodeContents.getContentUri(id);
-
-                        // Write the node contents row
-                        ContentValues contentValues = new ContentValues();
-                        contentValues.put(CloudDriveContract.NodeContents._ID, id);
-                        contentValues.put(CloudDriveContract.NodeContents.DATA, file.toString());
-                        contentValues.put(CloudDriveContract.NodeContents.DISPLAY_NAME, fileName);
-                        contentValues.put(CloudDriveContract.NodeContents.SIZE, file.length());
-                        activity.getContentResolver().insert(uri, contentValues);
+                        progress += read;
+                        mProgressReporter.onProgress(progress, maxProgress);
+                    }
 
+                    // The stream is cut short if a block cannot be downloaded.
+                    if (isDownloaded(contentResolver, uri)) {
                         return uri;
                     }
+                    Log.e(TAG, "Could not download file");
 
-                } catch (InterruptedException e) {
-                    // There is nothing wrong with being interrupted.
                 } catch (FileNotFoundException e) {
-                    Log.e(TAG, "Could not download file");
+                    // The provider is in this process, so the cause is passed through
+                    Log.e(TAG, "Could not download file: " + e.getMessage());
+                    mIsOutOfSpace = e.getCause() instanceof InsufficientStorageException;
                 } catch (IOException e) {
                     Log.e(TAG, "Could not download file");
-                } catch (CloudDriveException e) {
-                    Log.e(TAG, "Could not download file");
+                } finally {
+                    Closer.closeQuietly(inputStream);
                 }
 
                 return null;
             }
 
-            @Override
-            protected void onProgressUpdate(Integer... values) {
-                // Update the progress bar with the current download progress.
-                mProgressBar.setIndeterminate(false);
-                mProgressBar.setProgress(values[0]);
-                mProgressBar.setMax(values[1]);
-            }
-
             @Override
             protected void onPostExecute(Uri uri) {
                 if (uri != null) {
@@ -211,6 +198,8 @@ public class DownloadDialog extends DialogFragment {
                             Toast.makeText(activity, R.string.no_application_found, Toast.LENGTH_LONG).show();
                         }
                     }
+                } else if (mIsOutOfSpace && getActivity() != null) {
+                    Toast.makeText(getActivity(), R.string.download_no_space, Toast.LENGTH_LONG).show();
                 }
 
                 // Close the dialog
@@ -227,6 +216,74 @@ public class DownloadDialog extends DialogFragment {
         }.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
     }
 
+    /**
+     * Shows progress in the ProgressBar. Updates are posted to the main thread
+     * with a single reused Runnable, and at most one is pending at a time.
+     */
+    private class ProgressBarSink implements ProgressReporter.Sink, Runnable {
+
+        private final Handler mHandler = new Handler(Looper.getMainLooper());
+
+        private volatile long mProgress;
+        private volatile long mMaxProgress;
+        private final AtomicBoolean mIsPosted = new AtomicBoolean();
+
+        @Override
+        public void onProgress(long progress, long maxProgress) {
+            mProgress = progress;
+            mMaxProgress = maxProgress;
+            if (mIsPosted.compareAndSet(false, true)) {
+                mHandler.post(this);
+            }
+        }
+
+        @Override
+        public void run() {
+            mIsPosted.set(false);
+            long maxProgress = mMaxProgress;
+            if (mProgressBar != null && maxProgress > 0) {
+                // Update the progress bar with the current download progress.
+                mProgressBar.setIndeterminate(false);
+                mProgressBar.setMax(Integer.MAX_VALUE);
+                mProgressBar.setProgress(ProgressReporter.toIntProgress(mProgress, maxProgress));
+            }
+        }
+    }
+
+    /**
+     * @return whether the content has been completely downloaded
+     */
+    private static boolean isDownloaded(ContentResolver contentResolver, Uri uri) {
+        Cursor cursor = contentResolver.query(
+                uri,
+                new String[] { CloudDriveContract.NodeContents.SEGMENTS },
+                null,
+                null,
+                null);
+        try {
+            return cursor != null && cursor.moveToFirst() && cursor.isNull(0);
+        } finally {
+            Closer.closeQuietly(cursor);
+        }
+    }
+
+    /**
+     * @return the size of the node's content, or -1 if it is not known
+     */
+    private static long getContentSize(ContentResolver contentResolver, int id) {
+        Cursor cursor = contentResolver.query(
+                CloudDriveContract.Nodes.CONTENT_URI,
+                new String[] { CloudDriveContract.Nodes.CONTENT_SIZE },
+                CloudDriveContract.Nodes._ID + " = ?",
+                new String[] { String.valueOf(id) },
+                null);
+        try {
+            return cursor != null && cursor.moveToFirst() && !cursor.isNull(0) ? cursor.getLong(0) : -1;
+        } finally {
+            Closer.closeQuietly(cursor);
+        }
+    }
+
     @Override
     public void onDestroy() {
         super.onDestroy();
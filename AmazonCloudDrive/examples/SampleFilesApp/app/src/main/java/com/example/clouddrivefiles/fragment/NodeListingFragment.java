@@ -17,6 +17,7 @@ package com.example.clouddrivefiles.fragment;
 import android.content.Context;
 import android.content.Intent;
 import android.database.Cursor;
+import android.graphics.Bitmap;
 import android.os.Bundle;
 import android.support.v4.app.Fragment;
 import android.support.v4.app.FragmentManager;
@@ -35,7 +36,10 @@ import android.widget.TextView;
 import com.amazon.clouddrive.model.NodeKind;
 import com.example.clouddrivefiles.R;
 import com.example.clouddrivefiles.activity.ContentActivity;
+import com.example.clouddrivefiles.client.ThumbnailCache;
+import com.example.clouddrivefiles.global.UserState;
 import com.example.clouddrivefiles.provider.CloudDriveContract;
+import com.example.clouddrivefiles.provider.NodeChildRow;
 import com.example.clouddrivefiles.service.CloudDriveFolderListingService;
 
 public class NodeListingFragment extends Fragment {
@@ -47,6 +51,8 @@ public class NodeListingFragment extends Fragment {
     private ListView mNodeListing;
     private NodesAdapter mNodesAdapter;
     private String mParentNodeId;
+    private ThumbnailCache mThumbnailCache;
+    private NodePrefetcher mNodePrefetcher;
 
     private final LoaderCallbacks<Cursor> mLoaderCallbacks = new LoaderCallbacks<Cursor>() {
         @Override
@@ -71,6 +77,7 @@ public class NodeListingFragment extends Fragment {
         @Override
         public void onLoadFinished(final Loader<Cursor> cursorLoader, final Cursor cursor) {
             mNodesAdapter.changeCursor(cursor);
+            mNodePrefetcher.update();
         }
 
         @Override
@@ -106,6 +113,7 @@ public class NodeListingFragment extends Fragment {
         @Override
         public void onLoadFinished(final Loader<Cursor> cursorLoader, final Cursor cursor) {
             mNodesAdapter.changeCursor(cursor);
+            mNodePrefetcher.update();
         }
 
         @Override
@@ -122,6 +130,27 @@ public class NodeListingFragment extends Fragment {
         mNodeListing = (ListView) view.findViewById(R.id.nodes_list_view);
         mNodesAdapter = new NodesAdapter(null);
         mNodeListing.setAdapter(mNodesAdapter);
+
+        // Warm the rows about to scroll into view
+        mThumbnailCache = UserState.getThumbnailCacheInstance(getActivity());
+        mNodePrefetcher = new NodePrefetcher(
+                getActivity(),
+                mNodeListing,
+                new NodePrefetcher.Rows() {
+                    @Override
+                    public NodeChildRow getRow(int position) {
+                        return mNodesAdapter.getRow(position);
+                    }
+                },
+                mThumbnailCache,
+                getResources().getDimensionPixelSize(R.dimen.icon_width),
+                new NodePrefetcher.Listener() {
+                    @Override
+                    public void onThumbnailLoaded(String nodeId, Bitmap thumbnail) {
+                        showThumbnail(nodeId, thumbnail);
+                    }
+                });
+        mNodeListing.setOnScrollListener(mNodePrefetcher);
         mNodeListing.setOnItemClickListener(new AdapterView.OnItemClickListener() {
             @Override
             public void onItemClick(AdapterView<?> adapterView, View view, int i, long l) {
@@ -179,12 +208,78 @@ public class NodeListingFragment extends Fragment {
     @Override
     public void onPause() {
         super.onPause();
+
+        // The user is navigating away, so this folder's listing is superseded.
+        // It is requested again if the folder comes back into view.
+        Intent cancelIntent = mParentNodeId == null
+                ? CloudDriveFolderListingService.newCancelListRootFolderIntent(getActivity())
+                : CloudDriveFolderListingService.newCancelListFolderIntent(getActivity(), mParentNodeId);
+        getActivity().startService(cancelIntent);
+        mNodePrefetcher.cancelAll();
+    }
+
+    @Override
+    public void onDestroyView() {
+        super.onDestroyView();
+        mNodePrefetcher.shutdown();
+    }
+
+    /**
+     * @param name a file name
+     * @return true if the name's extension is that of an image
+     */
+    static boolean isImage(String name) {
+        String mimeType = getMimeType(name);
+        return mimeType != null && mimeType.startsWith("image");
+    }
+
+    private static String getMimeType(String name) {
+        if (name == null) {
+            return null;
+        }
+        String extension = name.substring(name.lastIndexOf('.') + 1);
+        return MimeTypeMap.getSingleton().getMimeTypeFromExtension(extension.toLowerCase());
+    }
+
+    /**
+     * Shows a newly loaded preview on the rows that are showing its node.
+     */
+    private void showThumbnail(String nodeId, Bitmap thumbnail) {
+        for (int i = 0; i < mNodeListing.getChildCount(); i++) {
+            Tag tag = (Tag) mNodeListing.getChildAt(i).getTag();
+            if (tag != null && nodeId.equals(tag.nodeId)) {
+                tag.iconImageView.setImageBitmap(thumbnail);
+            }
+        }
     }
 
     private class NodesAdapter extends CursorAdapter {
 
+        // Typed view of the cursor, so the columns are looked up once per cursor
+        private NodeChildRow mRow;
+
         private NodesAdapter(final Cursor cursor) {
             super(getActivity(), cursor, CursorAdapter.FLAG_REGISTER_CONTENT_OBSERVER);
+            mRow = cursor != null ? new NodeChildRow(cursor) : null;
+        }
+
+        @Override
+        public Cursor swapCursor(final Cursor newCursor) {
+            mRow = newCursor != null ? new NodeChildRow(newCursor) : null;
+            return super.swapCursor(newCursor);
+        }
+
+        /**
+         * Moves the cursor to a position.
+         * @param position the adapter position
+         * @return the row at the position, or null if there is none
+         */
+        private NodeChildRow getRow(final int position) {
+            Cursor cursor = getCursor();
+            if (cursor == null || !cursor.moveToPosition(position)) {
+                return null;
+            }
+            return mRow;
         }
 
         @Override
@@ -198,40 +293,35 @@ public class NodeListingFragment extends Fragment {
             if (tag == null) {
                 tag = new Tag();
 
-                // Hold the views and the columns so they do not need to
+                // Hold the views so they do not need to be found again
                 tag.nodeNameTextView = (TextView) view.findViewById(R.id.node_name);
                 tag.iconImageView = (ImageView) view.findViewById(R.id.icon);
-                tag.idColumnIndex = cursor.getColumnIndex(CloudDriveContract.NodeChildren._ID);
-                tag.nodeIdColumnIndex = cursor.getColumnIndex(CloudDriveContract.NodeChildren.NODE_ID);
-                tag.nameColumnIndex = cursor.getColumnIndex(CloudDriveContract.NodeChildren.NAME);
-                tag.dateColumnIndex = cursor.getColumnIndex(CloudDriveContract.NodeChildren.MODIFIED_DATE);
-                tag.kindColumnIndex = cursor.getColumnIndex(CloudDriveContract.NodeChildren.KIND);
             }
 
-            tag.id = cursor.getInt(tag.idColumnIndex);
-            tag.nodeId = cursor.getString(tag.nodeIdColumnIndex);
-            tag.kind = cursor.getString(tag.kindColumnIndex);
-            tag.name = cursor.getString(tag.nameColumnIndex);
+            // The adapter has moved the cursor, and so the row, to this position
+            NodeChildRow row = mRow;
+            tag.id = (int) row.getId();
+            tag.nodeId = row.getNodeId();
+            tag.kind = row.getKind();
+            tag.name = row.getName();
 
             TextView nodeNameTextView = tag.nodeNameTextView;
             nodeNameTextView.setText(tag.name);
 
-            String mimeType = null;
-            if (tag.name != null) {
-                String[] parts = tag.name.split("[.]");
-                if (parts.length > 0) {
-                    mimeType = MimeTypeMap.getSingleton().getMimeTypeFromExtension(
-                            parts[parts.length - 1].toLowerCase());
-                }
-            }
+            String mimeType = getMimeType(tag.name);
 
-            final String kind = cursor.getString(tag.kindColumnIndex);
+            final String kind = tag.kind;
             ImageView iconImageView = tag.iconImageView;
             if (NodeKind.FOLDER.equals(kind)) {
                 iconImageView.setImageResource(R.drawable.ic_folder);
             } else if (mimeType != null) {
                 if (mimeType.startsWith("image")) {
-                    iconImageView.setImageResource(R.drawable.ic_photo);
+                    Bitmap thumbnail = mThumbnailCache.get(tag.nodeId);
+                    if (thumbnail != null) {
+                        iconImageView.setImageBitmap(thumbnail);
+                    } else {
+                        iconImageView.setImageResource(R.drawable.ic_photo);
+                    }
                 } else if (mimeType.startsWith("video")) {
                     iconImageView.setImageResource(R.drawable.ic_video);
                 } else if (mimeType.startsWith("audio")) {
@@ -263,12 +353,6 @@ public class NodeListingFragment extends Fragment {
         String kind;
         String name;
 
-        int idColumnIndex;
-        int nodeIdColumnIndex;
-        int nameColumnIndex;
-        int dateColumnIndex;
-        int kindColumnIndex;
-
         TextView nodeNameTextView;
         ImageView iconImageView;
     }
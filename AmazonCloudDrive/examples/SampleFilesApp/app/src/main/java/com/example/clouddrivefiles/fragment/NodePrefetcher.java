@@ -0,0 +1,317 @@
+/*
+ * Copyright 2015 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package com.example.clouddrivefiles.fragment;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.util.Log;
+import android.widget.AbsListView;
+import com.amazon.clouddrive.exceptions.CloudDriveException;
+import com.amazon.clouddrive.model.NodeKind;
+import com.example.clouddrivefiles.client.ThumbnailCache;
+import com.example.clouddrivefiles.provider.NodeChildRow;
+import com.example.clouddrivefiles.service.CloudDriveFolderListingService;
+import com.example.clouddrivefiles.sync.FolderSyncCoordinator;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Warms the rows about to scroll into view of a folder listing. Their child
+ * folders are listed ahead of other prefetches, and their image previews are
+ * loaded into the {@link ThumbnailCache}, so opening a subfolder or reaching
+ * an image finds its data already there.
+ *
+ * The rows looked ahead scale with how fast the list is moving, in the
+ * direction it is moving. Work for rows that leave the window is cancelled,
+ * and nothing is warmed during a fast fling, as those rows would be gone
+ * before their work finished.
+ *
+ * Must be used from the main thread.
+ */
+class NodePrefetcher implements AbsListView.OnScrollListener {
+
+    private static final String TAG = NodePrefetcher.class.getSimpleName();
+
+    // Rows looked ahead when the list is still, and the most at any speed
+    private static final int MIN_LOOKAHEAD_ROWS = 4;
+    private static final int MAX_LOOKAHEAD_ROWS = 30;
+
+    // How far ahead in time the window reaches at the current speed
+    private static final long LOOKAHEAD_MILLIS = 1000;
+
+    // Flings faster than this, in rows per second, are not warmed
+    private static final float MAX_PREFETCH_ROWS_PER_SECOND = 60;
+
+    // Weight of the newest sample in the smoothed speed
+    private static final float VELOCITY_SMOOTHING = 0.5f;
+
+    private static final int THUMBNAIL_THREADS = 2;
+
+    /**
+     * The listing's rows, by adapter position.
+     */
+    interface Rows {
+        /**
+         * @param position the adapter position
+         * @return the row at the position, or null if there is none
+         */
+        NodeChildRow getRow(int position);
+    }
+
+    /**
+     * Called on the main thread when a preview has been loaded.
+     */
+    interface Listener {
+        void onThumbnailLoaded(String nodeId, Bitmap thumbnail);
+    }
+
+    private final Context mContext;
+    private final AbsListView mListView;
+    private final Rows mRows;
+    private final ThumbnailCache mThumbnailCache;
+    private final int mThumbnailSize;
+    private final Listener mListener;
+
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private final ExecutorService mThumbnailExecutor = Executors.newFixedThreadPool(THUMBNAIL_THREADS);
+
+    // Work in flight for the current window, by node ID
+    private final Map<String, LoadThumbnailRunnable> mThumbnailLoads = new HashMap<String, LoadThumbnailRunnable>();
+    private final Set<String> mNearbyFolders = new HashSet<String>();
+
+    // Previews that could not be loaded, so scrolling back does not retry them
+    private final Set<String> mFailedThumbnails = new HashSet<String>();
+
+    private int mScrollState = SCROLL_STATE_IDLE;
+    private int mLastFirstVisible = -1;
+    private long mLastScrollTime;
+    private float mRowsPerSecond;
+    private boolean mIsShutdown;
+
+    /**
+     * @param context a Context to start the listing service with
+     * @param listView the list to follow
+     * @param rows the list's rows
+     * @param thumbnailCache the cache to warm
+     * @param thumbnailSize the side of the previews in pixels
+     * @param listener notified of loaded previews
+     */
+    NodePrefetcher(Context context, AbsListView listView, Rows rows, ThumbnailCache thumbnailCache,
+                   int thumbnailSize, Listener listener) {
+        mContext = context.getApplicationContext();
+        mListView = listView;
+        mRows = rows;
+        mThumbnailCache = thumbnailCache;
+        mThumbnailSize = thumbnailSize;
+        mListener = listener;
+    }
+
+    @Override
+    public void onScrollStateChanged(AbsListView view, int scrollState) {
+        mScrollState = scrollState;
+        if (scrollState == SCROLL_STATE_IDLE) {
+            mRowsPerSecond = 0;
+            update();
+        }
+    }
+
+    @Override
+    public void onScroll(AbsListView view, int firstVisibleItem, int visibleItemCount, int totalItemCount) {
+        if (firstVisibleItem == mLastFirstVisible) {
+            return;
+        }
+
+        long now = SystemClock.uptimeMillis();
+        if (mLastFirstVisible >= 0 && mScrollState != SCROLL_STATE_IDLE && now > mLastScrollTime) {
+            float rowsPerSecond = (firstVisibleItem - mLastFirstVisible) * 1000f / (now - mLastScrollTime);
+            mRowsPerSecond = VELOCITY_SMOOTHING * rowsPerSecond + (1 - VELOCITY_SMOOTHING) * mRowsPerSecond;
+        }
+        mLastFirstVisible = firstVisibleItem;
+        mLastScrollTime = now;
+
+        update();
+    }
+
+    /**
+     * Recomputes the window, for example after the list's rows have changed.
+     */
+    void update() {
+        if (mIsShutdown) {
+            return;
+        }
+
+        if (mScrollState == SCROLL_STATE_FLING && Math.abs(mRowsPerSecond) > MAX_PREFETCH_ROWS_PER_SECOND) {
+            cancelAll();
+            return;
+        }
+
+        int first = mListView.getFirstVisiblePosition();
+        int count = mListView.getCount();
+        if (count == 0) {
+            cancelAll();
+            return;
+        }
+        int last = Math.min(first + mListView.getChildCount(), count) - 1;
+
+        int lookahead = Math.round(Math.abs(mRowsPerSecond) * LOOKAHEAD_MILLIS / 1000);
+        lookahead = Math.max(MIN_LOOKAHEAD_ROWS, Math.min(MAX_LOOKAHEAD_ROWS, lookahead));
+        int start;
+        int end;
+        if (mRowsPerSecond < 0) {
+            start = Math.max(0, first - lookahead);
+            end = last;
+        } else if (mRowsPerSecond > 0) {
+            start = first;
+            end = Math.min(count - 1, last + lookahead);
+        } else {
+            start = Math.max(0, first - MIN_LOOKAHEAD_ROWS / 2);
+            end = Math.min(count - 1, last + MIN_LOOKAHEAD_ROWS);
+        }
+
+        // The visible rows first, then outwards in the direction of travel
+        Set<String> wanted = new HashSet<String>();
+        for (int position = first; position <= last; position++) {
+            warm(position, wanted);
+        }
+        if (mRowsPerSecond < 0) {
+            for (int position = first - 1; position >= start; position--) {
+                warm(position, wanted);
+            }
+        } else {
+            for (int position = last + 1; position <= end; position++) {
+                warm(position, wanted);
+            }
+            for (int position = first - 1; position >= start; position--) {
+                warm(position, wanted);
+            }
+        }
+
+        retainOnly(wanted);
+    }
+
+    /**
+     * Cancels all of the work for the current window.
+     */
+    void cancelAll() {
+        retainOnly(new HashSet<String>());
+    }
+
+    /**
+     * Cancels all of the work and stops the worker threads.
+     */
+    void shutdown() {
+        cancelAll();
+        mIsShutdown = true;
+        mThumbnailExecutor.shutdownNow();
+    }
+
+    private void warm(int position, Set<String> wanted) {
+        NodeChildRow row = mRows.getRow(position);
+        if (row == null) {
+            return;
+        }
+
+        String nodeId = row.getNodeId();
+        if (NodeKind.FOLDER.equals(row.getKind())) {
+            wanted.add(nodeId);
+            if (mNearbyFolders.add(nodeId)) {
+                mContext.startService(CloudDriveFolderListingService.newListFolderIntent(
+                        mContext, nodeId, FolderSyncCoordinator.PRIORITY_NEARBY));
+            }
+        } else if (NodeListingFragment.isImage(row.getName())
+                && !mFailedThumbnails.contains(nodeId)
+                && mThumbnailCache.get(nodeId) == null) {
+            wanted.add(nodeId);
+            if (!mThumbnailLoads.containsKey(nodeId)) {
+                LoadThumbnailRunnable load = new LoadThumbnailRunnable(nodeId);
+                load.mFuture = mThumbnailExecutor.submit(load);
+                mThumbnailLoads.put(nodeId, load);
+            }
+        }
+    }
+
+    private void retainOnly(Set<String> wanted) {
+        for (Iterator<Map.Entry<String, LoadThumbnailRunnable>> it = mThumbnailLoads.entrySet().iterator();
+             it.hasNext(); ) {
+            Map.Entry<String, LoadThumbnailRunnable> entry = it.next();
+            if (!wanted.contains(entry.getKey())) {
+                entry.getValue().mFuture.cancel(true);
+                it.remove();
+            }
+        }
+
+        for (Iterator<String> it = mNearbyFolders.iterator(); it.hasNext(); ) {
+            String nodeId = it.next();
+            if (!wanted.contains(nodeId)) {
+                mContext.startService(CloudDriveFolderListingService.newCancelNearbyFolderIntent(mContext, nodeId));
+                it.remove();
+            }
+        }
+    }
+
+    private class LoadThumbnailRunnable implements Runnable {
+
+        private final String mNodeId;
+        private Future<?> mFuture;
+
+        private LoadThumbnailRunnable(String nodeId) {
+            mNodeId = nodeId;
+        }
+
+        @Override
+        public void run() {
+            Bitmap thumbnail = null;
+            try {
+                thumbnail = mThumbnailCache.load(mNodeId, mThumbnailSize);
+            } catch (InterruptedException e) {
+                // The row scrolled away
+                return;
+            } catch (CloudDriveException e) {
+                if (Thread.currentThread().isInterrupted()) {
+                    // The row scrolled away while the preview was being read
+                    return;
+                }
+                Log.w(TAG, "Unable to load the preview of " + mNodeId, e);
+            }
+
+            final Bitmap loaded = thumbnail;
+            mHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    if (mIsShutdown || mThumbnailLoads.get(mNodeId) != LoadThumbnailRunnable.this) {
+                        // Cancelled, and possibly requested again since
+                        return;
+                    }
+                    mThumbnailLoads.remove(mNodeId);
+                    if (loaded == null) {
+                        mFailedThumbnails.add(mNodeId);
+                    } else {
+                        mListener.onThumbnailLoaded(mNodeId, loaded);
+                    }
+                }
+            });
+        }
+    }
+}
@@ -21,6 +21,9 @@ import com.amazon.clouddrive.auth.AmazonAuthorizationConnectionFactory;
 import com.amazon.clouddrive.configuration.AccountConfiguration;
 import com.amazon.clouddrive.configuration.ClientConfiguration;
 import com.amazon.identity.auth.device.authorization.api.AmazonAuthorizationManager;
+import com.example.clouddrivefiles.client.SharedCloudDriveClient;
+import com.example.clouddrivefiles.client.ThumbnailCache;
+import com.example.clouddrivefiles.client.TransferManager;
 import com.example.clouddrivefiles.utils.Constants;
 
 /**
@@ -28,7 +31,10 @@ import com.example.clouddrivefiles.utils.Constants;
  */
 public class UserState {
 
-    // The LWA authorization manager
+    private static final int THUMBNAIL_CACHE_HEAP_FRACTION = 16;
+
+    // The LWA authorization manager. It caches the access token, so requests
+    // made through the client do not each wait on LWA for it.
     private static AmazonAuthorizationManager sAmazonAuthorizationManager;
 
     // The Amazon Cloud Drive client. We prefer to use the same instance for
@@ -36,6 +42,19 @@ public class UserState {
     // Creating a new instance causes the cache to be cleared.
     private static AmazonCloudDriveClient sAmazonCloudDriveClient;
 
+    // The account configuration shared by the client and the facade, so raw
+    // metadata requests are authorized the same way as SDK requests.
+    private static AccountConfiguration sAccountConfiguration;
+
+    // The facade over the client that coalesces requests and bounds concurrency
+    // for all of the services in the application.
+    private static SharedCloudDriveClient sSharedCloudDriveClient;
+
+    // Image previews shared by every listing, so a folder opened after its
+    // rows were prefetched shows them straight away. Bounded to a fraction
+    // of the heap.
+    private static ThumbnailCache sThumbnailCache;
+
     /**
      * Get the global instance of the AmazonAuthorizationManager.
      * @param context an application Context
@@ -43,7 +62,7 @@ public class UserState {
      */
     public static synchronized AmazonAuthorizationManager getAmazonAuthorizationManagerInstance(Context context) {
         if (sAmazonAuthorizationManager == null) {
-            sAmazonAuthorizationManager = new AmazonAuthorizationManager(context.getApplicationContext(), Bundle.EMPTY);
+            sAmazonAuthorizationManager = new CachingAuthorizationManager(context.getApplicationContext(), Bundle.EMPTY);
         }
 
         return sAmazonAuthorizationManager;
@@ -57,21 +76,69 @@ public class UserState {
     public static synchronized AmazonCloudDriveClient getAmazonCloudDriveClientInstance(Context context) {
         if (sAmazonCloudDriveClient == null) {
             sAmazonCloudDriveClient = new AmazonCloudDriveClient(
-                new AccountConfiguration(
-                        new AmazonAuthorizationConnectionFactory(
-                                getAmazonAuthorizationManagerInstance(context),
-                                Constants.APP_AUTHORIZATION_SCOPES)),
+                getAccountConfiguration(context),
                 new ClientConfiguration(Constants.USER_AGENT));
         }
 
         return sAmazonCloudDriveClient;
     }
 
+    /**
+     * Gets the global instance of the SharedCloudDriveClient
+     * @param context an application Context
+     * @return the shared client
+     */
+    public static synchronized SharedCloudDriveClient getSharedCloudDriveClientInstance(Context context) {
+        if (sSharedCloudDriveClient == null) {
+            sSharedCloudDriveClient = new SharedCloudDriveClient(
+                    context.getApplicationContext().getSharedPreferences(
+                            Constants.SHARED_PREFERENCE_FILE,
+                            Context.MODE_PRIVATE),
+                    getAccountConfiguration(context).getAuthenticatedURLConnectionFactory(),
+                    getAmazonCloudDriveClientInstance(context),
+                    new TransferManager(context.getApplicationContext()));
+        }
+
+        return sSharedCloudDriveClient;
+    }
+
+    /**
+     * Gets the global instance of the ThumbnailCache
+     * @param context an application Context
+     * @return the thumbnail cache
+     */
+    public static synchronized ThumbnailCache getThumbnailCacheInstance(Context context) {
+        if (sThumbnailCache == null) {
+            sThumbnailCache = new ThumbnailCache(
+                    getSharedCloudDriveClientInstance(context),
+                    (int) (Runtime.getRuntime().maxMemory() / THUMBNAIL_CACHE_HEAP_FRACTION));
+        }
+
+        return sThumbnailCache;
+    }
+
+    private static synchronized AccountConfiguration getAccountConfiguration(Context context) {
+        if (sAccountConfiguration == null) {
+            sAccountConfiguration = new AccountConfiguration(
+                    new AmazonAuthorizationConnectionFactory(
+                            getAmazonAuthorizationManagerInstance(context),
+                            Constants.APP_AUTHORIZATION_SCOPES));
+        }
+
+        return sAccountConfiguration;
+    }
+
     /**
      * Clears the global user state.
      */
     public static synchronized void reset() {
         sAmazonAuthorizationManager = null;
+        sAccountConfiguration = null;
         sAmazonCloudDriveClient = null;
+        sSharedCloudDriveClient = null;
+        if (sThumbnailCache != null) {
+            sThumbnailCache.clear();
+            sThumbnailCache = null;
+        }
     }
 }
@@ -0,0 +1,51 @@
+/*
+ * Copyright 2015 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package com.example.clouddrivefiles.progress;
+
+import android.app.NotificationManager;
+import android.support.v4.app.NotificationCompat;
+
+/**
+ * Shows progress in a notification. The builder is shared with the caller, which
+ * sets the title and text, so only the progress is changed here.
+ */
+public class NotificationProgressSink implements ProgressReporter.Sink {
+
+    private final NotificationManager mNotificationManager;
+    private final NotificationCompat.Builder mNotificationBuilder;
+    private final int mNotificationId;
+
+    public NotificationProgressSink(
+            NotificationManager notificationManager,
+            NotificationCompat.Builder notificationBuilder,
+            int notificationId) {
+        mNotificationManager = notificationManager;
+        mNotificationBuilder = notificationBuilder;
+        mNotificationId = notificationId;
+    }
+
+    @Override
+    public void onProgress(long progress, long maxProgress) {
+        // Notifications can be updated from the background thread so there is
+        // no need to post a message to the main thread.
+        if (maxProgress > 0) {
+            mNotificationBuilder.setProgress(
+                    Integer.MAX_VALUE, ProgressReporter.toIntProgress(progress, maxProgress), false);
+        } else {
+            mNotificationBuilder.setProgress(0, 0, true);
+        }
+        mNotificationManager.notify(mNotificationId, mNotificationBuilder.build());
+    }
+}
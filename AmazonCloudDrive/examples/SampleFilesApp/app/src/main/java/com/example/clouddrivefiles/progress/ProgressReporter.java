@@ -0,0 +1,130 @@
+/*
+ * Copyright 2015 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package com.example.clouddrivefiles.progress;
+
+import android.os.SystemClock;
+import com.amazon.clouddrive.handlers.ProgressListener;
+
+/**
+ * Rate-limits progress callbacks and fans them out to a fixed set of sinks.
+ *
+ * The client reports progress for every buffer it transfers, which is far more
+ * often than a notification or progress bar can usefully change. Each update
+ * to a notification is a binder call, so forwarding all of them slows the
+ * transfer itself. An update is forwarded only when both the minimum interval
+ * has passed and progress has advanced by the minimum step. The first update
+ * and completion are always forwarded.
+ *
+ * Reporting does not allocate, so it is safe to call from tight copy loops.
+ * A reporter can be reused for consecutive transfers by calling {@link #reset()}.
+ */
+public class ProgressReporter implements ProgressListener {
+
+    public static final long DEFAULT_MIN_INTERVAL_MILLIS = 500;
+
+    // In thousandths of the total
+    public static final int DEFAULT_MIN_STEP = 10;
+
+    /**
+     * Receives the updates that make it through the rate limit. Sinks are called
+     * on the thread reporting progress.
+     */
+    public interface Sink {
+        /**
+         * @param progress bytes transferred so far
+         * @param maxProgress total bytes, or a non-positive value if not known
+         */
+        void onProgress(long progress, long maxProgress);
+    }
+
+    private final long mMinIntervalMillis;
+    private final int mMinStep;
+    private final Sink[] mSinks;
+
+    private long mLastReportMillis;
+    private long mLastReportedProgress;
+    private boolean mHasReported;
+    private boolean mIsComplete;
+
+    /**
+     * Creates a reporter with the default rate limits.
+     */
+    public ProgressReporter(Sink... sinks) {
+        this(DEFAULT_MIN_INTERVAL_MILLIS, DEFAULT_MIN_STEP, sinks);
+    }
+
+    /**
+     * @param minIntervalMillis the minimum time between forwarded updates
+     * @param minStep the minimum advance between forwarded updates, in thousandths of the total
+     * @param sinks receive the forwarded updates, in order
+     */
+    public ProgressReporter(long minIntervalMillis, int minStep, Sink... sinks) {
+        mMinIntervalMillis = minIntervalMillis;
+        mMinStep = minStep;
+        mSinks = sinks.clone();
+    }
+
+    /**
+     * Prepares the reporter for the next transfer.
+     */
+    public synchronized void reset() {
+        mLastReportMillis = 0;
+        mLastReportedProgress = 0;
+        mHasReported = false;
+        mIsComplete = false;
+    }
+
+    @Override
+    public void onProgress(long progress, long maxProgress) {
+        synchronized (this) {
+            if (mIsComplete) {
+                return;
+            }
+
+            long now = SystemClock.elapsedRealtime();
+            boolean isComplete = maxProgress > 0 && progress >= maxProgress;
+            if (mHasReported && !isComplete) {
+                if (now - mLastReportMillis < mMinIntervalMillis) {
+                    return;
+                }
+                // Without a total, only the interval applies.
+                if (maxProgress > 0 && (progress - mLastReportedProgress) * 1000 < mMinStep * maxProgress) {
+                    return;
+                }
+            }
+
+            mHasReported = true;
+            mIsComplete = isComplete;
+            mLastReportMillis = now;
+            mLastReportedProgress = progress;
+        }
+
+        for (int i = 0; i < mSinks.length; i++) {
+            mSinks[i].onProgress(progress, maxProgress);
+        }
+    }
+
+    /**
+     * Scales progress to an int, as Android progress bars require one. This is
+     * usually not an issue, but can be a problem for very large files.
+     * @return the progress rebased to Integer.MAX_VALUE
+     */
+    public static int toIntProgress(long progress, long maxProgress) {
+        if (maxProgress <= 0) {
+            return 0;
+        }
+        return (int) (Integer.MAX_VALUE * (Math.min(progress, maxProgress) / (double) maxProgress));
+    }
+}
@@ -0,0 +1,56 @@
+/*
+ * Copyright 2015 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package com.example.clouddrivefiles.progress;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+/**
+ * Logs the throughput of each transfer once it completes.
+ */
+public class ThroughputLogSink implements ProgressReporter.Sink {
+
+    private final String mTag;
+    private final String mLabel;
+
+    private long mStartMillis = -1;
+    private long mLastProgress;
+
+    /**
+     * @param tag the log tag
+     * @param label describes the transfer in the log message, e.g. "Upload"
+     */
+    public ThroughputLogSink(String tag, String label) {
+        mTag = tag;
+        mLabel = label;
+    }
+
+    @Override
+    public void onProgress(long progress, long maxProgress) {
+        long now = SystemClock.elapsedRealtime();
+        // Progress going backwards means an abandoned transfer was followed by a new one.
+        if (mStartMillis < 0 || progress < mLastProgress) {
+            mStartMillis = now;
+        }
+        mLastProgress = progress;
+        if (maxProgress > 0 && progress >= maxProgress) {
+            long elapsedMillis = Math.max(1, now - mStartMillis);
+            Log.i(mTag, mLabel + ": " + progress + " bytes in " + elapsedMillis + " ms, " +
+                    (progress * 1000 / elapsedMillis) + " bytes/s");
+            mStartMillis = -1;
+            mLastProgress = 0;
+        }
+    }
+}
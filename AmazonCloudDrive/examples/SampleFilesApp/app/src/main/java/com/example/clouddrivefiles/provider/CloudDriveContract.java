@@ -37,7 +37,8 @@ import android.provider.OpenableColumns;
  * {@link CloudDriveContract.NodeParents}: Table that contains the parents for a node
  * </li>
  * <li>
- * {@link CloudDriveContract.NodeChildren}: View that contains the children for a node
+ * {@link CloudDriveContract.NodeChildren}: View that contains the children for a node,
+ * optionally also kept as a table
  * </li>
  * </ul>
  */
@@ -137,6 +138,31 @@ public class CloudDriveContract {
          */
         public static final String VERSION = "version";
 
+        /**
+         * Size of the file contents in bytes. Null for folders.
+         *
+         * <P>Type: INTEGER</P>
+         */
+        public static final String CONTENT_SIZE = "content_size";
+
+        /**
+         * Total size in bytes. For a file this is its content size. For a
+         * folder it is the sum over all of the available files below it that
+         * have been listed. Maintained by the database as children change.
+         *
+         * <P>Type: INTEGER</P>
+         */
+        public static final String TOTAL_SIZE = "total_size";
+
+        /**
+         * Number of files. 1 for a file. For a folder it is the number of
+         * available files below it that have been listed. Maintained by the
+         * database as children change.
+         *
+         * <P>Type: INTEGER</P>
+         */
+        public static final String FILE_COUNT = "file_count";
+
         /**
          * Flag indicating whether this row needs to be updated
          * from the service.
@@ -180,8 +206,21 @@ public class CloudDriveContract {
     public static final class NodeChildren {
         public static final String TABLE_NAME = "node_children";
 
+        /**
+         * The table kept in step with {@link #TABLE_NAME} by triggers, which
+         * CloudDriveProvider queries instead of the view. It has one row per
+         * parent and child.
+         */
+        public static final String MATERIALIZED_TABLE_NAME = "node_children_materialized";
+
         public static Uri CONTENT_URI = Uri.parse(CONTENT_RESOURCE + AUTHORITY + "/" + TABLE_NAME);
 
+        /**
+         * Children with only the {@link #ID_COLUMNS}, for bulk operations
+         * that need nothing else. Accepts the same selections.
+         */
+        public static Uri IDS_CONTENT_URI = Uri.withAppendedPath(CONTENT_URI, "ids");
+
         /**
          * The MIME-type of content providing a directory of nodes
          */
@@ -276,6 +315,30 @@ public class CloudDriveContract {
          * <P>Type: INTEGER</P>
          */
         public static final String VERSION = "version";
+
+        /**
+         * <P>Type: INTEGER</P>
+         */
+        public static final String CONTENT_SIZE = "content_size";
+
+        /**
+         * See {@link Nodes#TOTAL_SIZE}
+         *
+         * <P>Type: INTEGER</P>
+         */
+        public static final String TOTAL_SIZE = "total_size";
+
+        /**
+         * See {@link Nodes#FILE_COUNT}
+         *
+         * <P>Type: INTEGER</P>
+         */
+        public static final String FILE_COUNT = "file_count";
+
+        /**
+         * The columns returned by {@link #IDS_CONTENT_URI}.
+         */
+        public static final String[] ID_COLUMNS = { _ID, NODE_ID, PARENT_NODE_ID };
     }
 
     /**
@@ -302,6 +365,13 @@ public class CloudDriveContract {
          * <P>Type: TEXT</P>
          */
         public static final String DATA = "_data";
+
+        /**
+         * Which blocks of a partially downloaded file are present, one bit per
+         * block. Null once the whole file has been downloaded.
+         * <P>Type: BLOB</P>
+         */
+        public static final String SEGMENTS = "segments";
     }
 
     /**
@@ -328,8 +398,32 @@ public class CloudDriveContract {
         public static final String SOURCE_URI = "source_uri";
 
         /**
+         * {@link #STATUS_PENDING} (or null for entries queued before statuses
+         * were tracked) or {@link #STATUS_COMPLETED}
          * <P>Type: TEXT</P>
          */
         public static final String STATUS = "status";
+
+        /**
+         * Hex MD5 of the uploaded content, set once it has been staged
+         * <P>Type: TEXT</P>
+         */
+        public static final String CONTENT_HASH = "content_hash";
+
+        /**
+         * When the upload completed, in milliseconds since the epoch
+         * <P>Type: INTEGER</P>
+         */
+        public static final String COMPLETED_TIME = "completed_time";
+
+        /**
+         * Folder to upload into, as names separated by slashes relative to
+         * the root. Missing folders are created. Null uploads to the root.
+         * <P>Type: TEXT</P>
+         */
+        public static final String DESTINATION_PATH = "destination_path";
+
+        public static final String STATUS_PENDING = "pending";
+        public static final String STATUS_COMPLETED = "completed";
     }
 }
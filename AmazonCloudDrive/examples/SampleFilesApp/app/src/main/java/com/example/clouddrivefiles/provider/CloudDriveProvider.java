@@ -17,6 +17,7 @@ package com.example.clouddrivefiles.provider;
 import android.content.ContentProvider;
 import android.content.ContentProviderOperation;
 import android.content.ContentProviderResult;
+import android.content.ContentResolver;
 import android.content.ContentValues;
 import android.content.Context;
 import android.content.OperationApplicationException;
@@ -32,11 +33,20 @@ import android.os.ParcelFileDescriptor;
 import com.example.clouddrivefiles.database.CloudDriveNodesDatabaseHelper;
 import com.example.clouddrivefiles.provider.CloudDriveContract.Nodes;
 import com.example.clouddrivefiles.utils.Closer;
+import com.example.clouddrivefiles.utils.StorageBudget;
 
+import java.io.File;
 import java.io.FileNotFoundException;
+import java.io.IOException;
 import java.net.URLConnection;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 /**
@@ -54,6 +64,8 @@ public class CloudDriveProvider extends ContentProvider {
 
     private CloudDriveNodesDatabaseHelper mDatabaseHelper;
 
+    private NodeContentStreamer mNodeContentStreamer;
+
     ///////////////////////////////////////////////////////////////////////////
     // Lifecycle methods
     ///////////////////////////////////////////////////////////////////////////
@@ -68,6 +80,12 @@ public class CloudDriveProvider extends ContentProvider {
     @Override
     public boolean onCreate() {
         mDatabaseHelper = new CloudDriveNodesDatabaseHelper(getContext());
+        StorageBudget.getInstance(getContext()).setEvictor(new StorageBudget.Evictor() {
+            @Override
+            public long evict(long bytes) {
+                return evictNodeContents(bytes);
+            }
+        });
         return true;
     }
 
@@ -83,6 +101,7 @@ public class CloudDriveProvider extends ContentProvider {
         if (tableName == null) {
             throw new UnknownUriException(uri);
         }
+        checkWritable(uri, uriMatch);
 
         SQLiteDatabase database = mDatabaseHelper.getWritableDatabase();
 
@@ -103,6 +122,44 @@ public class CloudDriveProvider extends ContentProvider {
         }
     }
 
+    /**
+     * Inserts every row in one transaction and notifies observers once,
+     * rather than once per row as the default implementation does.
+     */
+    @Override
+    public int bulkInsert(Uri uri, ContentValues[] values) {
+
+        int uriMatch = mUriMatcher.match(uri);
+        String tableName = uriMatchToTableName(uriMatch);
+        if (tableName == null) {
+            throw new UnknownUriException(uri);
+        }
+        checkWritable(uri, uriMatch);
+
+        SQLiteDatabase database = mDatabaseHelper.getWritableDatabase();
+
+        database.beginTransaction();
+        try {
+            for (ContentValues rowValues : values) {
+                if (database.replace(tableName, null, rowValues) < 0) {
+                    throw new SQLException("Failed to insert row into " + uri);
+                }
+            }
+            database.setTransactionSuccessful();
+        } catch (SQLiteConstraintException e) {
+            throw new IllegalArgumentException(e.getMessage());
+        } finally {
+            database.endTransaction();
+        }
+
+        if (values.length > 0) {
+            getContext().getContentResolver().notifyChange(uri, null);
+            // Children are potentially impacted
+            getContext().getContentResolver().notifyChange(CloudDriveContract.NodeChildren.CONTENT_URI, null);
+        }
+        return values.length;
+    }
+
     @Override
     public Cursor query(
             Uri uri,
@@ -117,12 +174,16 @@ public class CloudDriveProvider extends ContentProvider {
             throw new UnknownUriException(uri);
         }
 
+        if (uriMatch == UriMatcherConstants.NODE_CHILD_IDS) {
+            projection = getNodeChildIdsProjection(projection);
+        }
+
         SQLiteDatabase database = mDatabaseHelper.getReadableDatabase();
 
         Cursor cursor;
 
         String type = getType(uri);
-        if (type.startsWith(CloudDriveContract.MIME_TYPE_DIR)) {
+        if (type != null && type.startsWith(CloudDriveContract.MIME_TYPE_DIR)) {
             // No special restrictions
             SQLiteQueryBuilder qb = new SQLiteQueryBuilder();
             qb.setTables(tableName);
@@ -139,6 +200,22 @@ public class CloudDriveProvider extends ContentProvider {
         return cursor;
     }
 
+    /**
+     * @param projection the requested projection, or null for all of the id columns
+     * @return the projection for a node child ids query
+     */
+    private static String[] getNodeChildIdsProjection(String[] projection) {
+        if (projection == null) {
+            return CloudDriveContract.NodeChildren.ID_COLUMNS;
+        }
+        for (String column : projection) {
+            if (!Arrays.asList(CloudDriveContract.NodeChildren.ID_COLUMNS).contains(column)) {
+                throw new IllegalArgumentException("Column " + column + " is not available from node child ids");
+            }
+        }
+        return projection;
+    }
+
     @Override
     public int update(
             Uri uri,
@@ -151,12 +228,13 @@ public class CloudDriveProvider extends ContentProvider {
         if (tableName == null) {
             throw new UnknownUriException(uri);
         }
+        checkWritable(uri, uriMatch);
 
         SQLiteDatabase database = mDatabaseHelper.getWritableDatabase();
 
         int count;
         String type = getType(uri);
-        if (type.startsWith(CloudDriveContract.MIME_TYPE_DIR)) {
+        if (type != null && type.startsWith(CloudDriveContract.MIME_TYPE_DIR)) {
             // No special restrictions
             count = database.update(tableName, values, selection, selectionArgs);
         } else {
@@ -176,12 +254,13 @@ public class CloudDriveProvider extends ContentProvider {
         if (tableName == null) {
             throw new UnknownUriException(uri);
         }
+        checkWritable(uri, uriMatch);
 
         SQLiteDatabase database = mDatabaseHelper.getWritableDatabase();
 
         int count;
         String type = getType(uri);
-        if (type.startsWith(CloudDriveContract.MIME_TYPE_DIR)) {
+        if (type != null && type.startsWith(CloudDriveContract.MIME_TYPE_DIR)) {
             // No special restrictions
             count = database.delete(tableName, selection, selectionArgs);
         } else {
@@ -207,6 +286,7 @@ public class CloudDriveProvider extends ContentProvider {
             case UriMatcherConstants.NODE_PARENTS:
                 return CloudDriveContract.NodeParents.CONTENT_MIME_TYPE;
             case UriMatcherConstants.NODE_CHILDREN:
+            case UriMatcherConstants.NODE_CHILD_IDS:
                 return CloudDriveContract.NodeChildren.CONTENT_MIME_TYPE;
             case UriMatcherConstants.UPLOAD_QUEUE_ENTRIES:
                 return CloudDriveContract.UploadQueueItems.CONTENT_MIME_TYPE;
@@ -216,30 +296,59 @@ public class CloudDriveProvider extends ContentProvider {
     }
 
     /**
-     * Returns the mime type for the node content
+     * Returns the mime type for the node content. Content that has not been
+     * downloaded yet is typed by the node's name, so it can be streamed.
      * @param uri URI of the node content
      * @return the mime type for the node content
      */
     private String getMimeTypeForNodeContent(Uri uri) {
+        String fileName = getDownloadedContentPath(uri);
+        if (fileName == null) {
+            String[] node = getNodeIdAndName(uri);
+            fileName = node != null ? node[1] : null;
+        }
+        return fileName != null ? URLConnection.guessContentTypeFromName(fileName) : null;
+    }
+
+    /**
+     * @param uri URI of the node content
+     * @return the path the node content was downloaded to, or null if it has not been downloaded
+     */
+    private String getDownloadedContentPath(Uri uri) {
         SQLiteDatabase database = mDatabaseHelper.getReadableDatabase();
         Cursor cursor = null;
         try {
             cursor = database.query(
                     CloudDriveContract.NodeContents.TABLE_NAME,
-                    null,
+                    new String[] { CloudDriveContract.NodeContents.DATA },
                     getTableIdWhereClause(uri),
                     null,
                     null,
                     null,
                     null);
-            cursor.moveToFirst();
-            if (cursor.isAfterLast()) {
-                return null;
-            }
-
-            String fileName = cursor.getString(cursor.getColumnIndex(CloudDriveContract.NodeContents.DATA));
-            return URLConnection.guessContentTypeFromName(fileName);
+            return cursor.moveToFirst() ? cursor.getString(0) : null;
+        } finally {
+            Closer.closeQuietly(cursor);
+        }
+    }
 
+    /**
+     * @param uri URI of the node content
+     * @return the node ID and name of the node the content belongs to, or null if there is no such node
+     */
+    private String[] getNodeIdAndName(Uri uri) {
+        SQLiteDatabase database = mDatabaseHelper.getReadableDatabase();
+        Cursor cursor = null;
+        try {
+            cursor = database.query(
+                    Nodes.TABLE_NAME,
+                    new String[] { Nodes.NODE_ID, Nodes.NAME },
+                    getTableIdWhereClause(uri),
+                    null,
+                    null,
+                    null,
+                    null);
+            return cursor.moveToFirst() ? new String[] { cursor.getString(0), cursor.getString(1) } : null;
         } finally {
             Closer.closeQuietly(cursor);
         }
@@ -282,7 +391,53 @@ public class CloudDriveProvider extends ContentProvider {
     }
 
     /**
-     * Opens a node file's contents. This file must have been successfully downloaded in order to open it.
+     * Returns a writer that saves listed nodes with precompiled statements.
+     * Only callers in the same process can reach the provider instance, see
+     * {@link android.content.ContentProviderClient#getLocalContentProvider()}.
+     * @return a new writer, which must be closed by the caller
+     */
+    public NodeWriter newNodeWriter() {
+        return new NodeWriter(mDatabaseHelper.getWritableDatabase(), getContext().getContentResolver());
+    }
+
+    /**
+     * Saves the cached nodes to a snapshot file that {@link #restoreSnapshot(File, String)}
+     * can read back, for example before the cache is cleared at logout. Only
+     * callers in the same process can reach the provider instance.
+     * @param file the snapshot file, replaced once the snapshot is complete
+     * @return the number of nodes saved, or -1 if the root has not been listed yet
+     * @throws IOException
+     */
+    public int saveSnapshot(File file) throws IOException {
+        return NodeSnapshot.write(mDatabaseHelper.getReadableDatabase(), file);
+    }
+
+    /**
+     * Adds the nodes saved by {@link #saveSnapshot(File)} to the cache. Nodes
+     * that are already cached are kept as they are.
+     * @param file the snapshot file
+     * @param rootNodeId the signed in account's root node ID, snapshots of
+     *                   other accounts are ignored
+     * @return the number of nodes in the snapshot, or -1 if there is no snapshot for this account
+     * @throws IOException if the snapshot is corrupt
+     */
+    public int restoreSnapshot(File file, String rootNodeId) throws IOException {
+        int nodeCount = NodeSnapshot.read(mDatabaseHelper.getWritableDatabase(), file, rootNodeId);
+        if (nodeCount > 0) {
+            ContentResolver contentResolver = getContext().getContentResolver();
+            contentResolver.notifyChange(CloudDriveContract.Nodes.CONTENT_URI, null);
+            contentResolver.notifyChange(CloudDriveContract.NodeParents.CONTENT_URI, null);
+            contentResolver.notifyChange(CloudDriveContract.NodeChildren.CONTENT_URI, null);
+        }
+        return nodeCount;
+    }
+
+    /**
+     * Opens a node file's contents. Downloaded files are opened directly. Files that
+     * have not been downloaded, or only partly, are streamed through a pipe as their
+     * blocks arrive, and the blocks are kept so that reopening does not fetch them
+     * again. Pipes cannot seek, so readers that need to seek should open the content
+     * again once it has been downloaded.
      * @param uri The URI to open.
      * @param mode The file mode.
      * @return the ParcelFileDescriptor that can be used to read the file across processes
@@ -293,9 +448,162 @@ public class CloudDriveProvider extends ContentProvider {
         if (mUriMatcher.match(uri) != UriMatcherConstants.NODE_CONTENT) {
             throw new IllegalArgumentException("Unable to open this type of file.");
         }
+        if (!"r".equals(mode)) {
+            return openFileHelper(uri, mode);
+        }
+
+        int id;
+        try {
+            id = Integer.parseInt(uri.getPathSegments().get(1));
+        } catch (NumberFormatException e) {
+            throw new FileNotFoundException("Invalid node content URI " + uri);
+        }
+
+        SQLiteDatabase database = mDatabaseHelper.getReadableDatabase();
+        byte[] segments = null;
+        Cursor cursor = null;
+        try {
+            cursor = database.query(
+                    CloudDriveContract.NodeContents.TABLE_NAME,
+                    new String[] { CloudDriveContract.NodeContents.DATA, CloudDriveContract.NodeContents.SEGMENTS },
+                    getTableIdWhereClause(uri),
+                    null,
+                    null,
+                    null,
+                    null);
+            if (cursor.moveToFirst()) {
+                segments = cursor.getBlob(1);
+                if (segments == null && new File(cursor.getString(0)).exists()) {
+                    // open the file in the _data column
+                    return openFileHelper(uri, mode);
+                }
+            }
+        } finally {
+            Closer.closeQuietly(cursor);
+        }
+
+        String nodeId;
+        String name;
+        long contentSize;
+        try {
+            cursor = database.query(
+                    Nodes.TABLE_NAME,
+                    new String[] { Nodes.NODE_ID, Nodes.NAME, Nodes.CONTENT_SIZE },
+                    getTableIdWhereClause(uri),
+                    null,
+                    null,
+                    null,
+                    null);
+            if (!cursor.moveToFirst() || cursor.isNull(2)) {
+                throw new FileNotFoundException("No file for " + uri);
+            }
+            nodeId = cursor.getString(0);
+            name = cursor.getString(1);
+            contentSize = cursor.getLong(2);
+        } finally {
+            Closer.closeQuietly(cursor);
+        }
+
+        return getNodeContentStreamer().open(id, nodeId, name, contentSize, segments);
+    }
+
+    private synchronized NodeContentStreamer getNodeContentStreamer() {
+        if (mNodeContentStreamer == null) {
+            mNodeContentStreamer = new NodeContentStreamer(
+                    getContext(),
+                    new File(getContext().getFilesDir(), "nodes"),
+                    StorageBudget.getInstance(getContext()),
+                    new NodeContentStreamer.Callback() {
+                        @Override
+                        public void onSegmentsChanged(int id, File file, String displayName, long length, byte[] segments) {
+                            saveNodeContent(id, file, displayName, length, segments);
+                        }
+                    });
+        }
+        return mNodeContentStreamer;
+    }
+
+    /**
+     * Records a streamed file in node_contents. Unlike insert, this only notifies
+     * observers of the content, as the node listings are not affected.
+     */
+    private void saveNodeContent(int id, File file, String displayName, long length, byte[] segments) {
+        ContentValues contentValues = new ContentValues();
+        contentValues.put(CloudDriveContract.NodeContents._ID, id);
+        contentValues.put(CloudDriveContract.NodeContents.DATA, file.toString());
+        contentValues.put(CloudDriveContract.NodeContents.DISPLAY_NAME, displayName);
+        contentValues.put(CloudDriveContract.NodeContents.SIZE, length);
+        contentValues.put(CloudDriveContract.NodeContents.SEGMENTS, segments);
 
-        // open the file in the _data column
-        return openFileHelper(uri, mode);
+        SQLiteDatabase database = mDatabaseHelper.getWritableDatabase();
+        if (database.replace(CloudDriveContract.NodeContents.TABLE_NAME, null, contentValues) >= 0) {
+            getContext().getContentResolver().notifyChange(CloudDriveContract.NodeContents.getContentUri(id), null);
+        }
+    }
+
+    /**
+     * Deletes downloaded and partly streamed files, least recently written
+     * first, until enough space has been freed. Files that are being streamed
+     * are kept. They can be downloaded again when they are next opened.
+     * @param bytes how much should be freed
+     * @return how much was freed
+     */
+    private long evictNodeContents(long bytes) {
+        SQLiteDatabase database = mDatabaseHelper.getWritableDatabase();
+        Map<File, Integer> ids = new HashMap<File, Integer>();
+        Cursor cursor = null;
+        try {
+            cursor = database.query(
+                    CloudDriveContract.NodeContents.TABLE_NAME,
+                    new String[] { CloudDriveContract.NodeContents._ID, CloudDriveContract.NodeContents.DATA },
+                    null,
+                    null,
+                    null,
+                    null,
+                    null);
+            while (cursor.moveToNext()) {
+                ids.put(new File(cursor.getString(1)), cursor.getInt(0));
+            }
+        } finally {
+            Closer.closeQuietly(cursor);
+        }
+
+        List<File> files = new ArrayList<File>(ids.keySet());
+        Collections.sort(files, new Comparator<File>() {
+            @Override
+            public int compare(File lhs, File rhs) {
+                long lhsModified = lhs.lastModified();
+                long rhsModified = rhs.lastModified();
+                return lhsModified < rhsModified ? -1 : (lhsModified == rhsModified ? 0 : 1);
+            }
+        });
+
+        long freedBytes = 0;
+        for (File file : files) {
+            if (freedBytes >= bytes) {
+                break;
+            }
+            int id = ids.get(file);
+            NodeContentStreamer nodeContentStreamer = getNodeContentStreamer();
+            if (!nodeContentStreamer.beginEviction(id)) {
+                continue;
+            }
+            try {
+                long length = file.length();
+                if (file.exists() && !file.delete()) {
+                    continue;
+                }
+                database.delete(
+                        CloudDriveContract.NodeContents.TABLE_NAME,
+                        CloudDriveContract.NodeContents._ID + " = ?",
+                        new String[] { String.valueOf(id) });
+                freedBytes += length;
+            } finally {
+                nodeContentStreamer.endEviction(id);
+            }
+            getContext().getContentResolver().notifyChange(CloudDriveContract.NodeContents.getContentUri(id), null);
+        }
+        return freedBytes;
     }
 
     ///////////////////////////////////////////////////////////////////////////
@@ -312,6 +620,7 @@ public class CloudDriveProvider extends ContentProvider {
         private static final int NODE_PARENTS = 4;         // all parents.
         private static final int NODE_CHILDREN = 5;        // all children.
         private static final int UPLOAD_QUEUE_ENTRIES = 6; // all queue entries.
+        private static final int NODE_CHILD_IDS = 7;       // ids of all children.
     }
 
     /**
@@ -330,10 +639,21 @@ public class CloudDriveProvider extends ContentProvider {
         mUriMatcher.addURI(mAuthority, Nodes.TABLE_NAME + "/*/content", UriMatcherConstants.NODE_CONTENT);
         mUriMatcher.addURI(mAuthority, CloudDriveContract.NodeParents.TABLE_NAME, UriMatcherConstants.NODE_PARENTS);
         mUriMatcher.addURI(mAuthority, CloudDriveContract.NodeChildren.TABLE_NAME, UriMatcherConstants.NODE_CHILDREN);
+        mUriMatcher.addURI(mAuthority, CloudDriveContract.NodeChildren.TABLE_NAME + "/ids", UriMatcherConstants.NODE_CHILD_IDS);
         mUriMatcher.addURI(mAuthority, CloudDriveContract.UploadQueueItems.TABLE_NAME, UriMatcherConstants.UPLOAD_QUEUE_ENTRIES);
 
     }
 
+    /**
+     * Rejects writes to node_children, which is derived from nodes and node_parents.
+     * Its view cannot be written to, and writing to its table would leave it out of step.
+     */
+    private static void checkWritable(Uri uri, int uriMatch) {
+        if (uriMatch == UriMatcherConstants.NODE_CHILDREN || uriMatch == UriMatcherConstants.NODE_CHILD_IDS) {
+            throw new IllegalArgumentException("Unable to write to " + uri + ", write to nodes and node_parents instead");
+        }
+    }
+
     /**
      * Returns the table for the content or content item
      * @param uriMatch the match ID produced by UriMatcher
@@ -352,7 +672,9 @@ public class CloudDriveProvider extends ContentProvider {
             case UriMatcherConstants.NODE_PARENTS:
                 return CloudDriveContract.NodeParents.TABLE_NAME;
             case UriMatcherConstants.NODE_CHILDREN:
-                return CloudDriveContract.NodeChildren.TABLE_NAME;
+                return CloudDriveContract.NodeChildren.MATERIALIZED_TABLE_NAME;
+            case UriMatcherConstants.NODE_CHILD_IDS:
+                return CloudDriveContract.NodeChildren.MATERIALIZED_TABLE_NAME;
             case UriMatcherConstants.UPLOAD_QUEUE_ENTRIES:
                 return CloudDriveContract.UploadQueueItems.TABLE_NAME;
             default:
@@ -0,0 +1,102 @@
+/*
+ * Copyright 2015 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package com.example.clouddrivefiles.provider;
+
+import android.database.Cursor;
+
+/**
+ * A typed view of the current row of a cursor.
+ *
+ * Column indexes are looked up once, when the row is created, and the getters
+ * read from wherever the cursor is positioned. One row object serves every
+ * position, so walking a cursor does not allocate per row:
+ * <pre>
+ * NodeChildRow row = new NodeChildRow(cursor);
+ * while (row.moveToNext()) {
+ *     ... row.getNodeId() ...
+ * }
+ * </pre>
+ * Columns missing from the projection have an index of -1; reading one
+ * throws {@link IllegalStateException}.
+ */
+public abstract class CursorRow {
+
+    protected final Cursor mCursor;
+
+    protected CursorRow(Cursor cursor) {
+        mCursor = cursor;
+    }
+
+    public Cursor getCursor() {
+        return mCursor;
+    }
+
+    public boolean moveToFirst() {
+        return mCursor.moveToFirst();
+    }
+
+    public boolean moveToNext() {
+        return mCursor.moveToNext();
+    }
+
+    public boolean moveToPosition(int position) {
+        return mCursor.moveToPosition(position);
+    }
+
+    public int getCount() {
+        return mCursor.getCount();
+    }
+
+    /**
+     * @return whether the projection has the column
+     */
+    public boolean hasColumn(int columnIndex) {
+        return columnIndex >= 0;
+    }
+
+    protected String getString(int columnIndex) {
+        return mCursor.getString(checkColumn(columnIndex));
+    }
+
+    protected long getLong(int columnIndex) {
+        return mCursor.getLong(checkColumn(columnIndex));
+    }
+
+    /**
+     * @return the value, or the default if it is null
+     */
+    protected long getLong(int columnIndex, long defaultValue) {
+        return mCursor.isNull(checkColumn(columnIndex)) ? defaultValue : mCursor.getLong(columnIndex);
+    }
+
+    protected boolean getBoolean(int columnIndex) {
+        return mCursor.getInt(checkColumn(columnIndex)) != 0;
+    }
+
+    protected byte[] getBlob(int columnIndex) {
+        return mCursor.getBlob(checkColumn(columnIndex));
+    }
+
+    protected boolean isNull(int columnIndex) {
+        return mCursor.isNull(checkColumn(columnIndex));
+    }
+
+    private static int checkColumn(int columnIndex) {
+        if (columnIndex < 0) {
+            throw new IllegalStateException("The column is not in the projection");
+        }
+        return columnIndex;
+    }
+}
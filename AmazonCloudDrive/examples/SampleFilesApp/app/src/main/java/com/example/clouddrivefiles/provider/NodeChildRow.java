@@ -0,0 +1,41 @@
+/*
+ * Copyright 2015 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package com.example.clouddrivefiles.provider;
+
+import android.database.Cursor;
+
+/**
+ * A {@link CursorRow} over {@link CloudDriveContract.NodeChildren}, including
+ * {@link CloudDriveContract.NodeChildren#IDS_CONTENT_URI}.
+ */
+public class NodeChildRow extends NodeRow {
+
+    private final int mParentNodeIdIndex;
+    private final int mParentIsRootIndex;
+
+    public NodeChildRow(Cursor cursor) {
+        super(cursor);
+        mParentNodeIdIndex = cursor.getColumnIndex(CloudDriveContract.NodeChildren.PARENT_NODE_ID);
+        mParentIsRootIndex = cursor.getColumnIndex(CloudDriveContract.NodeChildren.PARENT_IS_ROOT);
+    }
+
+    public String getParentNodeId() {
+        return getString(mParentNodeIdIndex);
+    }
+
+    public boolean isParentRoot() {
+        return getBoolean(mParentIsRootIndex);
+    }
+}
@@ -0,0 +1,71 @@
+/*
+ * Copyright 2015 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package com.example.clouddrivefiles.provider;
+
+import android.database.Cursor;
+
+/**
+ * A {@link CursorRow} over {@link CloudDriveContract.NodeContents}.
+ */
+public class NodeContentRow extends CursorRow {
+
+    private final int mIdIndex;
+    private final int mDataIndex;
+    private final int mDisplayNameIndex;
+    private final int mSizeIndex;
+    private final int mSegmentsIndex;
+
+    public NodeContentRow(Cursor cursor) {
+        super(cursor);
+        mIdIndex = cursor.getColumnIndex(CloudDriveContract.NodeContents._ID);
+        mDataIndex = cursor.getColumnIndex(CloudDriveContract.NodeContents.DATA);
+        mDisplayNameIndex = cursor.getColumnIndex(CloudDriveContract.NodeContents.DISPLAY_NAME);
+        mSizeIndex = cursor.getColumnIndex(CloudDriveContract.NodeContents.SIZE);
+        mSegmentsIndex = cursor.getColumnIndex(CloudDriveContract.NodeContents.SEGMENTS);
+    }
+
+    /**
+     * @return the row ID, which is the node's row ID
+     */
+    public long getId() {
+        return getLong(mIdIndex);
+    }
+
+    /**
+     * @return the path of the local file
+     */
+    public String getData() {
+        return getString(mDataIndex);
+    }
+
+    public String getDisplayName() {
+        return getString(mDisplayNameIndex);
+    }
+
+    public long getSize() {
+        return getLong(mSizeIndex);
+    }
+
+    /**
+     * @return the downloaded segments, or null once the content is complete
+     */
+    public byte[] getSegments() {
+        return getBlob(mSegmentsIndex);
+    }
+
+    public boolean isDownloaded() {
+        return isNull(mSegmentsIndex);
+    }
+}
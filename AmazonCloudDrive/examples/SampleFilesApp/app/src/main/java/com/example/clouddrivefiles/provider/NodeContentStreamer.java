@@ -0,0 +1,656 @@
+/*
+ * Copyright 2015 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package com.example.clouddrivefiles.provider;
+
+import android.content.Context;
+import android.os.ParcelFileDescriptor;
+import android.os.SystemClock;
+import android.util.Log;
+import com.amazon.clouddrive.exceptions.CloudDriveException;
+import com.example.clouddrivefiles.client.SharedCloudDriveClient;
+import com.example.clouddrivefiles.client.TransferManager;
+import com.example.clouddrivefiles.global.UserState;
+import com.example.clouddrivefiles.utils.Closer;
+import com.example.clouddrivefiles.utils.StorageBudget;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Serves a file's contents through a pipe while it is still downloading, so a
+ * viewer in another process can start reading before the download is complete.
+ *
+ * Content is fetched in blocks of {@link SegmentMap#BLOCK_SIZE} with range
+ * requests and written in place into a sparse file in the node's content
+ * directory. Which blocks are present is tracked by a {@link SegmentMap} and
+ * saved through {@link Callback}, so blocks survive the stream and are not
+ * fetched again when the content is reopened.
+ *
+ * Each open stream has a reader thread that copies blocks into the pipe in
+ * order. A block the reader is waiting for is fetched on demand. The blocks
+ * after it are prefetched, covering {@link #READ_AHEAD_MILLIS} at the rate the
+ * reader has been consuming. Demand fetches run before any queued prefetch,
+ * and a queued prefetch is promoted when the reader catches up with it.
+ * When the last reader of a file closes its pipe, queued fetches are dropped
+ * and running ones stop at the next block.
+ *
+ * Pipes are not seekable. Readers that need to seek should wait for the
+ * download to complete and open the content again.
+ *
+ * The space for the blocks that are missing is reserved from the
+ * {@link StorageBudget} before a file is opened, so a stream that cannot be
+ * cached fails when it is opened rather than part way through. The budget is
+ * never locked while this holds its own locks, as its evictor asks which
+ * files are open.
+ */
+class NodeContentStreamer {
+
+    private static final String TAG = NodeContentStreamer.class.getSimpleName();
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private static final int MAX_CONCURRENT_FETCHES = 2;
+
+    // Fetches are split into runs of at most this many blocks, so that
+    // demand fetches can overtake prefetches between runs.
+    private static final int MAX_RUN_BLOCKS = 8;
+
+    // The read-ahead window covers this much of the reader's consumption
+    private static final long READ_AHEAD_MILLIS = 10 * 1000;
+    private static final int MIN_READ_AHEAD_BLOCKS = 2;
+    private static final int MAX_READ_AHEAD_BLOCKS = 32;
+
+    // Weight given to the latest sample of the reader's consumption rate
+    private static final double RATE_SMOOTHING = 0.3;
+
+    private static final int MAX_FETCH_ATTEMPTS = 3;
+
+    private static final int PRIORITY_DEMAND = 0;
+    private static final int PRIORITY_PREFETCH = 1;
+
+    /**
+     * Notified off the main thread when the blocks present for a file change.
+     */
+    interface Callback {
+        /**
+         * @param id the _ID of the node row
+         * @param file where the content is stored
+         * @param displayName the file name the content is saved as
+         * @param length the length of the file in bytes
+         * @param segments the blocks that are present, or null once the file is complete
+         */
+        void onSegmentsChanged(int id, File file, String displayName, long length, byte[] segments);
+    }
+
+    private final Context mContext;
+    private final File mNodesDirectory;
+    private final StorageBudget mStorageBudget;
+    private final Callback mCallback;
+
+    private final ExecutorService mReaderExecutor = Executors.newCachedThreadPool();
+    private final ThreadPoolExecutor mFetchExecutor;
+    private final AtomicLong mFetchSequence = new AtomicLong();
+
+    // Files with open streams or running fetches, by node row ID
+    private final Map<Integer, CachedContent> mCachedContents = new HashMap<Integer, CachedContent>();
+    // Files being deleted by the evictor, which are not opened until it is done. Guarded by mCachedContents.
+    private final Set<Integer> mEvictingIds = new HashSet<Integer>();
+    // Files whose space is being reserved, which are not evicted. Guarded by mCachedContents.
+    private final Set<Integer> mOpeningIds = new HashSet<Integer>();
+
+    /**
+     * @param context a Context. Content is downloaded with the shared client
+     *                of the account signed in when each fetch runs, as the
+     *                client is replaced on logout.
+     * @param nodesDirectory the directory node content is stored under
+     * @param storageBudget the budget that space for missing blocks is reserved from
+     * @param callback notified when the blocks present for a file change
+     */
+    NodeContentStreamer(Context context, File nodesDirectory, StorageBudget storageBudget, Callback callback) {
+        mContext = context.getApplicationContext();
+        mNodesDirectory = nodesDirectory;
+        mStorageBudget = storageBudget;
+        mCallback = callback;
+
+        mFetchExecutor = new ThreadPoolExecutor(
+                MAX_CONCURRENT_FETCHES,
+                MAX_CONCURRENT_FETCHES,
+                30,
+                TimeUnit.SECONDS,
+                new PriorityBlockingQueue<Runnable>());
+        mFetchExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Returns the read end of a pipe that the content is written to, in order,
+     * as its blocks become available.
+     * @param id the _ID of the node row
+     * @param nodeId the node ID from the service
+     * @param displayName the file name the content is saved as
+     * @param length the length of the file in bytes
+     * @param segments the blocks saved by an earlier stream, or null if there are none
+     * @return a pipe the content can be read from
+     * @throws FileNotFoundException if the pipe or the cache file cannot be created,
+     * or there is not enough storage for the blocks that are missing
+     */
+    ParcelFileDescriptor open(int id, String nodeId, String displayName, long length, byte[] segments)
+            throws FileNotFoundException {
+        CachedContent content = acquire(id, nodeId, displayName, length, segments);
+
+        RandomAccessFile file = null;
+        ParcelFileDescriptor[] pipe;
+        try {
+            file = new RandomAccessFile(content.file, "r");
+            pipe = ParcelFileDescriptor.createPipe();
+        } catch (IOException e) {
+            Closer.closeQuietly(file);
+            release(content);
+            throw new FileNotFoundException("Unable to stream " + nodeId + ": " + e.getMessage());
+        }
+
+        mReaderExecutor.execute(new ReaderRunnable(content, file, pipe[1]));
+        return pipe[0];
+    }
+
+    /**
+     * Returns the cached content for a file with a reader added, opening it if necessary.
+     */
+    private CachedContent acquire(int id, String nodeId, String displayName, long length, byte[] segments)
+            throws FileNotFoundException {
+        synchronized (mCachedContents) {
+            // Wait for the evictor, or for another stream that is opening the file
+            while (mEvictingIds.contains(id) || mOpeningIds.contains(id)) {
+                try {
+                    mCachedContents.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new FileNotFoundException("Interrupted while opening " + nodeId);
+                }
+            }
+
+            CachedContent content = mCachedContents.get(id);
+            if (content != null) {
+                synchronized (content) {
+                    content.mReaderCount++;
+                }
+                return content;
+            }
+            mOpeningIds.add(id);
+        }
+
+        try {
+            // The file is not evicted while it is opening, so its saved blocks
+            // stay valid and only the missing ones need space. Reserve without
+            // the lock, as the budget's evictor checks which files are open.
+            File directory = new File(mNodesDirectory, id + "/content/");
+            File file = new File(directory, displayName);
+
+            // Saved blocks are only valid if the file they were written to is still there.
+            byte[] savedSegments = file.exists() ? segments : null;
+            StorageBudget.Reservation reservation;
+            try {
+                reservation = mStorageBudget.reserve(getMissingBytes(length, savedSegments), "streaming " + displayName);
+            } catch (IOException e) {
+                FileNotFoundException exception = new FileNotFoundException("Unable to cache " + nodeId + ": " + e.getMessage());
+                exception.initCause(e);
+                throw exception;
+            }
+
+            directory.mkdirs();
+            RandomAccessFile randomAccessFile = null;
+            try {
+                randomAccessFile = new RandomAccessFile(file, "rw");
+                randomAccessFile.setLength(length);
+            } catch (IOException e) {
+                Closer.closeQuietly(randomAccessFile);
+                reservation.release();
+                throw new FileNotFoundException("Unable to cache " + nodeId + ": " + e.getMessage());
+            }
+
+            CachedContent content = new CachedContent(id, nodeId, displayName, file, randomAccessFile,
+                    SegmentMap.fromByteArray(length, savedSegments), reservation);
+            synchronized (mCachedContents) {
+                mCachedContents.put(id, content);
+                synchronized (content) {
+                    content.mReaderCount++;
+                }
+            }
+            return content;
+        } finally {
+            synchronized (mCachedContents) {
+                mOpeningIds.remove(id);
+                mCachedContents.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * @return the bytes still to be written for the file, given its saved blocks
+     */
+    private static long getMissingBytes(long length, byte[] segments) {
+        SegmentMap segmentMap = SegmentMap.fromByteArray(length, segments);
+        long missingBytes = 0;
+        for (int block = 0; block < segmentMap.getBlockCount(); block++) {
+            if (!segmentMap.isCached(block)) {
+                missingBytes += segmentMap.getBlockEnd(block) - SegmentMap.getBlockStart(block);
+            }
+        }
+        return missingBytes;
+    }
+
+    /**
+     * Marks a file as being evicted, unless it is being opened, streamed or fetched.
+     * Streams of the file wait until {@link #endEviction(int)}, so the file
+     * and its row can be deleted without a stream starting from them.
+     * @param id the _ID of the node row
+     * @return false if the file is open and must not be evicted
+     */
+    boolean beginEviction(int id) {
+        synchronized (mCachedContents) {
+            if (mCachedContents.containsKey(id) || mOpeningIds.contains(id)) {
+                return false;
+            }
+            mEvictingIds.add(id);
+            return true;
+        }
+    }
+
+    /**
+     * Lets streams of a file marked by {@link #beginEviction(int)} open it again.
+     * @param id the _ID of the node row
+     */
+    void endEviction(int id) {
+        synchronized (mCachedContents) {
+            mEvictingIds.remove(id);
+            mCachedContents.notifyAll();
+        }
+    }
+
+    /**
+     * Removes a reader from the cached content, dropping its queued fetches if it was the last one.
+     */
+    private void release(CachedContent content) {
+        synchronized (content) {
+            content.mReaderCount--;
+            if (content.mReaderCount == 0) {
+                for (BlockFetch fetch : new ArrayList<BlockFetch>(content.mFetches)) {
+                    if (!fetch.mIsRunning && mFetchExecutor.remove(fetch)) {
+                        content.onFetchFinished(fetch, false);
+                    }
+                }
+            }
+        }
+        save(content);
+        closeIfIdle(content);
+    }
+
+    /**
+     * Closes the cached content once it has no readers and no fetches. Blocks
+     * must have been saved first, so that the next stream starts from them.
+     */
+    private void closeIfIdle(CachedContent content) {
+        boolean isClosed = false;
+        synchronized (mCachedContents) {
+            synchronized (content) {
+                if (content.mReaderCount == 0 && content.mFetches.isEmpty() && !content.mIsClosed) {
+                    content.mIsClosed = true;
+                    mCachedContents.remove(content.id);
+                    Closer.closeQuietly(content.mFile);
+                    isClosed = true;
+                }
+            }
+        }
+        if (isClosed) {
+            content.mReservation.release();
+        }
+    }
+
+    /**
+     * Reports the blocks present for the content, if they have changed since they were last reported.
+     */
+    private void save(CachedContent content) {
+        synchronized (content.mSaveLock) {
+            byte[] segments;
+            synchronized (content) {
+                int cachedBlockCount = content.mSegmentMap.getCachedBlockCount();
+                if (cachedBlockCount == content.mSavedBlockCount) {
+                    return;
+                }
+                content.mSavedBlockCount = cachedBlockCount;
+                segments = content.mSegmentMap.isComplete() ? null : content.mSegmentMap.toByteArray();
+            }
+            mCallback.onSegmentsChanged(
+                    content.id, content.file, content.displayName, content.mSegmentMap.getLength(), segments);
+        }
+    }
+
+    /**
+     * A file being streamed, shared by every open stream of the file and by its fetches.
+     */
+    private class CachedContent {
+
+        final int id;
+        final String nodeId;
+        final String displayName;
+        final File file;
+
+        private final RandomAccessFile mFile;
+        private final SegmentMap mSegmentMap;
+        private final boolean[] mIsPending;
+        private final List<BlockFetch> mFetches = new ArrayList<BlockFetch>();
+        private final Object mSaveLock = new Object();
+        private final StorageBudget.Reservation mReservation;
+
+        private int mReaderCount;
+        private int mFailureCount;
+        private boolean mIsClosed;
+        private int mSavedBlockCount = -1;
+
+        CachedContent(int id, String nodeId, String displayName, File file, RandomAccessFile randomAccessFile,
+                      SegmentMap segmentMap, StorageBudget.Reservation reservation) {
+            this.id = id;
+            this.nodeId = nodeId;
+            this.displayName = displayName;
+            this.file = file;
+            mFile = randomAccessFile;
+            mSegmentMap = segmentMap;
+            mIsPending = new boolean[segmentMap.getBlockCount()];
+            mReservation = reservation;
+        }
+
+        long getLength() {
+            return mSegmentMap.getLength();
+        }
+
+        synchronized long getBlockEnd(int block) {
+            return mSegmentMap.getBlockEnd(block);
+        }
+
+        synchronized boolean hasReaders() {
+            return mReaderCount > 0;
+        }
+
+        /**
+         * Blocks until the block is present, fetching it on demand if needed,
+         * and keeps the blocks after it prefetched.
+         * @param block the block the reader needs next
+         * @param readAheadBlocks how many blocks after it should be prefetched
+         * @throws IOException if the block could not be downloaded
+         */
+        synchronized void awaitBlock(int block, int readAheadBlocks) throws IOException, InterruptedException {
+            while (!mSegmentMap.isCached(block)) {
+                if (mIsPending[block]) {
+                    promote(block);
+                } else if (mFailureCount >= MAX_FETCH_ATTEMPTS) {
+                    throw new IOException("Unable to download " + nodeId);
+                } else {
+                    schedule(block, Math.min(readAheadBlocks, MAX_RUN_BLOCKS), PRIORITY_DEMAND);
+                }
+                wait();
+            }
+
+            int end = Math.min(mSegmentMap.getBlockCount(), block + 1 + readAheadBlocks);
+            for (int next = block + 1; next < end; next++) {
+                if (!mSegmentMap.isCached(next) && !mIsPending[next]) {
+                    next += schedule(next, end - next, PRIORITY_PREFETCH) - 1;
+                }
+            }
+        }
+
+        /**
+         * Queues a fetch for the run of missing blocks starting at the block.
+         * @return the number of blocks in the run
+         */
+        private int schedule(int firstBlock, int maxBlockCount, int priority) {
+            int blockCount = 0;
+            while (blockCount < maxBlockCount && blockCount < MAX_RUN_BLOCKS
+                    && firstBlock + blockCount < mSegmentMap.getBlockCount()
+                    && !mSegmentMap.isCached(firstBlock + blockCount)
+                    && !mIsPending[firstBlock + blockCount]) {
+                mIsPending[firstBlock + blockCount] = true;
+                blockCount++;
+            }
+
+            BlockFetch fetch = new BlockFetch(this, firstBlock, blockCount, priority);
+            mFetches.add(fetch);
+            mFetchExecutor.execute(fetch);
+            return blockCount;
+        }
+
+        /**
+         * Moves a queued prefetch that covers the block ahead of other prefetches.
+         */
+        private void promote(int block) {
+            for (BlockFetch fetch : mFetches) {
+                if (fetch.contains(block)) {
+                    if (!fetch.mIsRunning && fetch.mPriority != PRIORITY_DEMAND && mFetchExecutor.remove(fetch)) {
+                        fetch.mPriority = PRIORITY_DEMAND;
+                        mFetchExecutor.execute(fetch);
+                    }
+                    return;
+                }
+            }
+        }
+
+        void write(int block, byte[] buffer, int count) throws IOException {
+            boolean wasCached;
+            synchronized (this) {
+                wasCached = mSegmentMap.isCached(block);
+                mFile.seek(SegmentMap.getBlockStart(block));
+                mFile.write(buffer, 0, count);
+                mSegmentMap.setCached(block);
+                mIsPending[block] = false;
+                mFailureCount = 0;
+                notifyAll();
+            }
+            // Outside the lock, see the class comment.
+            if (!wasCached) {
+                mReservation.onWritten(count);
+            }
+        }
+
+        /**
+         * Clears the pending flags left by a fetch that has finished or was dropped.
+         */
+        void onFetchFinished(BlockFetch fetch, boolean isFailed) {
+            for (int block = fetch.firstBlock; block < fetch.firstBlock + fetch.blockCount; block++) {
+                mIsPending[block] = false;
+            }
+            if (isFailed) {
+                mFailureCount++;
+            }
+            mFetches.remove(fetch);
+            notifyAll();
+        }
+    }
+
+    /**
+     * Downloads a run of blocks with a single range request.
+     */
+    private class BlockFetch implements Runnable, Comparable<BlockFetch> {
+
+        final CachedContent content;
+        final int firstBlock;
+        final int blockCount;
+        private final long mSequence = mFetchSequence.incrementAndGet();
+
+        // Guarded by the content
+        private int mPriority;
+        private boolean mIsRunning;
+
+        BlockFetch(CachedContent content, int firstBlock, int blockCount, int priority) {
+            this.content = content;
+            this.firstBlock = firstBlock;
+            this.blockCount = blockCount;
+            mPriority = priority;
+        }
+
+        boolean contains(int block) {
+            return block >= firstBlock && block < firstBlock + blockCount;
+        }
+
+        @Override
+        public int compareTo(BlockFetch another) {
+            if (mPriority != another.mPriority) {
+                return mPriority < another.mPriority ? -1 : 1;
+            }
+            return mSequence < another.mSequence ? -1 : (mSequence == another.mSequence ? 0 : 1);
+        }
+
+        @Override
+        public void run() {
+            // Prefetches are background transfers, so they make way for
+            // blocks a reader is waiting on, here or in another stream.
+            int transferPriority;
+            synchronized (content) {
+                mIsRunning = true;
+                transferPriority = mPriority == PRIORITY_DEMAND
+                        ? TransferManager.PRIORITY_FOREGROUND
+                        : TransferManager.PRIORITY_BACKGROUND;
+            }
+
+            boolean isFailed = false;
+            try {
+                if (content.hasReaders()) {
+                    long start = SegmentMap.getBlockStart(firstBlock);
+                    long end = content.getBlockEnd(firstBlock + blockCount - 1) - 1;
+                    SharedCloudDriveClient cloudDriveClient = UserState.getSharedCloudDriveClientInstance(mContext);
+                    cloudDriveClient.getContent(content.nodeId, start, end, transferPriority, new SharedCloudDriveClient.ResponseHandler<Void>() {
+                        @Override
+                        public Void handleResponse(InputStream inputStream) throws IOException {
+                            byte[] buffer = new byte[SegmentMap.BLOCK_SIZE];
+                            for (int block = firstBlock; block < firstBlock + blockCount; block++) {
+                                int count = (int) (content.getBlockEnd(block) - SegmentMap.getBlockStart(block));
+                                readFully(inputStream, buffer, count);
+                                content.write(block, buffer, count);
+
+                                // Stop spending bandwidth on a stream nobody is reading.
+                                if (!content.hasReaders()) {
+                                    throw new InterruptedIOException("Stream closed by the reader");
+                                }
+                            }
+                            return null;
+                        }
+                    });
+                }
+            } catch (InterruptedException e) {
+                // The provider is shutting down.
+            } catch (CloudDriveException e) {
+                if (content.hasReaders()) {
+                    Log.w(TAG, "Unable to fetch blocks of " + content.nodeId, e);
+                    isFailed = true;
+                }
+            } finally {
+                synchronized (content) {
+                    content.onFetchFinished(this, isFailed);
+                }
+                save(content);
+                closeIfIdle(content);
+            }
+        }
+    }
+
+    /**
+     * Copies the content into the pipe in order, as its blocks become available.
+     */
+    private class ReaderRunnable implements Runnable {
+
+        private final CachedContent mContent;
+        private final RandomAccessFile mFile;
+        private final ParcelFileDescriptor mPipe;
+
+        ReaderRunnable(CachedContent content, RandomAccessFile file, ParcelFileDescriptor pipe) {
+            mContent = content;
+            mFile = file;
+            mPipe = pipe;
+        }
+
+        @Override
+        public void run() {
+            OutputStream outputStream = new ParcelFileDescriptor.AutoCloseOutputStream(mPipe);
+            try {
+                byte[] buffer = new byte[BUFFER_SIZE];
+                long length = mContent.getLength();
+                long position = 0;
+                int readAheadBlocks = MIN_READ_AHEAD_BLOCKS;
+                double bytesPerMilli = 0;
+                long sampleStart = SystemClock.elapsedRealtime();
+
+                while (position < length) {
+                    int block = SegmentMap.getBlock(position);
+                    mContent.awaitBlock(block, readAheadBlocks);
+
+                    long blockEnd = mContent.getBlockEnd(block);
+                    long blockStart = position;
+                    mFile.seek(position);
+                    while (position < blockEnd) {
+                        int count = (int) Math.min(buffer.length, blockEnd - position);
+                        mFile.readFully(buffer, 0, count);
+                        outputStream.write(buffer, 0, count);
+                        position += count;
+                    }
+
+                    // Size the read-ahead to the rate at which the reader is taking blocks,
+                    // which is the slower of the reader and the network.
+                    long now = SystemClock.elapsedRealtime();
+                    double sample = (position - blockStart) / (double) Math.max(1, now - sampleStart);
+                    bytesPerMilli = bytesPerMilli == 0 ? sample : bytesPerMilli + RATE_SMOOTHING * (sample - bytesPerMilli);
+                    sampleStart = now;
+                    readAheadBlocks = (int) Math.max(MIN_READ_AHEAD_BLOCKS, Math.min(MAX_READ_AHEAD_BLOCKS,
+                            Math.ceil(bytesPerMilli * READ_AHEAD_MILLIS / SegmentMap.BLOCK_SIZE)));
+                }
+            } catch (InterruptedException e) {
+                // The provider is shutting down.
+            } catch (IOException e) {
+                // The reader closed its end of the pipe, or the content could not be downloaded.
+                // Readers see a short file, as there is no way to report an error through a pipe.
+                Log.d(TAG, "Stream for " + mContent.nodeId + " ended: " + e.getMessage());
+            } finally {
+                Closer.closeQuietly(mFile);
+                Closer.closeQuietly(outputStream);
+                release(mContent);
+            }
+        }
+    }
+
+    private static void readFully(InputStream inputStream, byte[] buffer, int count) throws IOException {
+        int offset = 0;
+        while (offset < count) {
+            int read = inputStream.read(buffer, offset, count - offset);
+            if (read == -1) {
+                throw new EOFException("Content ended before the requested range");
+            }
+            offset += read;
+        }
+    }
+}
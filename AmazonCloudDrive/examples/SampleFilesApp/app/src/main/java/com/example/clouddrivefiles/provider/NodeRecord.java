@@ -0,0 +1,72 @@
+/*
+ * Copyright 2015 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package com.example.clouddrivefiles.provider;
+
+import java.util.ArrayList;
+
+/**
+ * A mutable row for the nodes table and the node's parents.
+ *
+ * Records are reused from one node to the next so that listing a folder does
+ * not allocate a Node, a ContentValues and boxed values for every child.
+ * The fields hold the raw values from the metadata response.
+ */
+public final class NodeRecord {
+
+    public String nodeId;
+    public String createdBy;
+    public String createdDate;
+    public String description;
+    public boolean exclusivelyTrashed;
+    public boolean isRoot;
+    public boolean isShared;
+    public String kind;
+    public String modifiedDate;
+    public String name;
+    public boolean recursivelyTrashed;
+    public String status;
+    public long version;
+
+    // Size of the file contents, or -1 if the node has none
+    public long contentSize;
+
+    // The IDs of every parent of the node
+    public final ArrayList<String> parentIds = new ArrayList<String>();
+
+    public NodeRecord() {
+        clear();
+    }
+
+    /**
+     * Resets all fields so the record can hold the next node.
+     */
+    public void clear() {
+        nodeId = null;
+        createdBy = null;
+        createdDate = null;
+        description = null;
+        exclusivelyTrashed = false;
+        isRoot = false;
+        isShared = false;
+        kind = null;
+        modifiedDate = null;
+        name = null;
+        recursivelyTrashed = false;
+        status = null;
+        version = 0;
+        contentSize = -1;
+        parentIds.clear();
+    }
+}
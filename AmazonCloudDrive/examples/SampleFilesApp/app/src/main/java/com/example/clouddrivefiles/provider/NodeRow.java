@@ -0,0 +1,143 @@
+/*
+ * Copyright 2015 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package com.example.clouddrivefiles.provider;
+
+import android.database.Cursor;
+
+/**
+ * A {@link CursorRow} over {@link CloudDriveContract.Nodes}.
+ */
+public class NodeRow extends CursorRow {
+
+    private final int mIdIndex;
+    private final int mNodeIdIndex;
+    private final int mCreatedByIndex;
+    private final int mCreatedDateIndex;
+    private final int mDescriptionIndex;
+    private final int mExclusivelyTrashedIndex;
+    private final int mIsRootIndex;
+    private final int mIsSharedIndex;
+    private final int mKindIndex;
+    private final int mModifiedDateIndex;
+    private final int mNameIndex;
+    private final int mRecursivelyTrashedIndex;
+    private final int mStatusIndex;
+    private final int mVersionIndex;
+    private final int mContentSizeIndex;
+    private final int mTotalSizeIndex;
+    private final int mFileCountIndex;
+    private final int mIsDirtyIndex;
+
+    public NodeRow(Cursor cursor) {
+        super(cursor);
+        // NodeChildren shares these column names.
+        mIdIndex = cursor.getColumnIndex(CloudDriveContract.Nodes._ID);
+        mNodeIdIndex = cursor.getColumnIndex(CloudDriveContract.Nodes.NODE_ID);
+        mCreatedByIndex = cursor.getColumnIndex(CloudDriveContract.Nodes.CREATED_BY);
+        mCreatedDateIndex = cursor.getColumnIndex(CloudDriveContract.Nodes.CREATED_DATE);
+        mDescriptionIndex = cursor.getColumnIndex(CloudDriveContract.Nodes.DESCRIPTION);
+        mExclusivelyTrashedIndex = cursor.getColumnIndex(CloudDriveContract.Nodes.EXCLUSIVELY_TRASHED);
+        mIsRootIndex = cursor.getColumnIndex(CloudDriveContract.Nodes.IS_ROOT);
+        mIsSharedIndex = cursor.getColumnIndex(CloudDriveContract.Nodes.IS_SHARED);
+        mKindIndex = cursor.getColumnIndex(CloudDriveContract.Nodes.KIND);
+        mModifiedDateIndex = cursor.getColumnIndex(CloudDriveContract.Nodes.MODIFIED_DATE);
+        mNameIndex = cursor.getColumnIndex(CloudDriveContract.Nodes.NAME);
+        mRecursivelyTrashedIndex = cursor.getColumnIndex(CloudDriveContract.Nodes.RECURSIVELY_TRASHED);
+        mStatusIndex = cursor.getColumnIndex(CloudDriveContract.Nodes.STATUS);
+        mVersionIndex = cursor.getColumnIndex(CloudDriveContract.Nodes.VERSION);
+        mContentSizeIndex = cursor.getColumnIndex(CloudDriveContract.Nodes.CONTENT_SIZE);
+        mTotalSizeIndex = cursor.getColumnIndex(CloudDriveContract.Nodes.TOTAL_SIZE);
+        mFileCountIndex = cursor.getColumnIndex(CloudDriveContract.Nodes.FILE_COUNT);
+        mIsDirtyIndex = cursor.getColumnIndex(CloudDriveContract.Nodes.IS_DIRTY);
+    }
+
+    /**
+     * @return the row ID
+     */
+    public long getId() {
+        return getLong(mIdIndex);
+    }
+
+    public String getNodeId() {
+        return getString(mNodeIdIndex);
+    }
+
+    public String getCreatedBy() {
+        return getString(mCreatedByIndex);
+    }
+
+    public String getCreatedDate() {
+        return getString(mCreatedDateIndex);
+    }
+
+    public String getDescription() {
+        return getString(mDescriptionIndex);
+    }
+
+    public boolean isExclusivelyTrashed() {
+        return getBoolean(mExclusivelyTrashedIndex);
+    }
+
+    public boolean isRoot() {
+        return getBoolean(mIsRootIndex);
+    }
+
+    public boolean isShared() {
+        return getBoolean(mIsSharedIndex);
+    }
+
+    public String getKind() {
+        return getString(mKindIndex);
+    }
+
+    public String getModifiedDate() {
+        return getString(mModifiedDateIndex);
+    }
+
+    public String getName() {
+        return getString(mNameIndex);
+    }
+
+    public boolean isRecursivelyTrashed() {
+        return getBoolean(mRecursivelyTrashedIndex);
+    }
+
+    public String getStatus() {
+        return getString(mStatusIndex);
+    }
+
+    public long getVersion() {
+        return getLong(mVersionIndex);
+    }
+
+    /**
+     * @return the size of the file contents, or -1 if the node has none
+     */
+    public long getContentSize() {
+        return getLong(mContentSizeIndex, -1);
+    }
+
+    public long getTotalSize() {
+        return getLong(mTotalSizeIndex);
+    }
+
+    public long getFileCount() {
+        return getLong(mFileCountIndex);
+    }
+
+    public boolean isDirty() {
+        return getBoolean(mIsDirtyIndex);
+    }
+}
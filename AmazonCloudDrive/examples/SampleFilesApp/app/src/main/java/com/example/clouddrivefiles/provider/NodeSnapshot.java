@@ -0,0 +1,404 @@
+/*
+ * Copyright 2015 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package com.example.clouddrivefiles.provider;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.os.Build;
+import com.example.clouddrivefiles.database.CloudDriveNodesDatabaseHelper;
+import com.example.clouddrivefiles.utils.Closer;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * Saves the nodes and node_parents tables to a compact binary file, and
+ * restores them from it without listing anything.
+ *
+ * The file is laid out as follows, with integers in big endian order:
+ * <pre>
+ * int      magic, "CDNS"
+ * int      format version
+ * string   root node ID
+ * varint   node count
+ * node...  each node's columns, then its parent count and parent IDs
+ * int      CRC32 of everything above
+ * </pre>
+ * Strings are a varint of the UTF-8 length plus one, 0 meaning null, followed
+ * by the bytes.
+ *
+ * Restoring maps the file into memory and checks the checksum before writing
+ * anything. Nodes that are already cached are left alone, as they are at least
+ * as fresh as the snapshot. The triggers on the node tables are dropped while
+ * the rows are inserted, and the folder statistics and node_children are then
+ * computed once for the whole cache, which is much faster than a trigger per row.
+ */
+class NodeSnapshot {
+
+    private static final int MAGIC = 0x43444E53;
+    private static final int FORMAT_VERSION = 1;
+
+    private static final int FLAG_EXCLUSIVELY_TRASHED = 1;
+    private static final int FLAG_IS_ROOT = 1 << 1;
+    private static final int FLAG_IS_SHARED = 1 << 2;
+    private static final int FLAG_RECURSIVELY_TRASHED = 1 << 3;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static final int CHECKSUM_CHUNK_SIZE = 64 * 1024;
+
+    private static final String[] NODE_PROJECTION = {
+            CloudDriveContract.Nodes.NODE_ID,
+            CloudDriveContract.Nodes.CREATED_BY,
+            CloudDriveContract.Nodes.CREATED_DATE,
+            CloudDriveContract.Nodes.DESCRIPTION,
+            CloudDriveContract.Nodes.EXCLUSIVELY_TRASHED,
+            CloudDriveContract.Nodes.IS_ROOT,
+            CloudDriveContract.Nodes.IS_SHARED,
+            CloudDriveContract.Nodes.KIND,
+            CloudDriveContract.Nodes.MODIFIED_DATE,
+            CloudDriveContract.Nodes.NAME,
+            CloudDriveContract.Nodes.RECURSIVELY_TRASHED,
+            CloudDriveContract.Nodes.STATUS,
+            CloudDriveContract.Nodes.VERSION,
+            CloudDriveContract.Nodes.CONTENT_SIZE
+    };
+
+    private static final String[] NODE_PARENT_PROJECTION = {
+            CloudDriveContract.NodeParents.NODE_ID,
+            CloudDriveContract.NodeParents.PARENT_NODE_ID
+    };
+
+    private static final String INSERT_NODE_IF_ABSENT_SQL =
+            "INSERT OR IGNORE INTO " + CloudDriveContract.Nodes.TABLE_NAME + " (" +
+                    CloudDriveContract.Nodes.NODE_ID + ", " +
+                    CloudDriveContract.Nodes.CREATED_BY + ", " +
+                    CloudDriveContract.Nodes.CREATED_DATE + ", " +
+                    CloudDriveContract.Nodes.DESCRIPTION + ", " +
+                    CloudDriveContract.Nodes.EXCLUSIVELY_TRASHED + ", " +
+                    CloudDriveContract.Nodes.IS_ROOT + ", " +
+                    CloudDriveContract.Nodes.IS_SHARED + ", " +
+                    CloudDriveContract.Nodes.KIND + ", " +
+                    CloudDriveContract.Nodes.MODIFIED_DATE + ", " +
+                    CloudDriveContract.Nodes.NAME + ", " +
+                    CloudDriveContract.Nodes.RECURSIVELY_TRASHED + ", " +
+                    CloudDriveContract.Nodes.STATUS + ", " +
+                    CloudDriveContract.Nodes.VERSION + ", " +
+                    CloudDriveContract.Nodes.CONTENT_SIZE + ", " +
+                    CloudDriveContract.Nodes.IS_DIRTY +
+                    ") VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, 0)";
+
+    private static final String INSERT_NODE_PARENT_IF_ABSENT_SQL =
+            "INSERT OR IGNORE INTO " + CloudDriveContract.NodeParents.TABLE_NAME + " (" +
+                    CloudDriveContract.NodeParents.NODE_ID + ", " +
+                    CloudDriveContract.NodeParents.PARENT_NODE_ID +
+                    ") VALUES (?, ?)";
+
+    private NodeSnapshot() {
+    }
+
+    /**
+     * Writes every cached node to a snapshot file. The file is replaced only
+     * once the snapshot is complete.
+     * @return the number of nodes written, or -1 if the root has not been listed
+     * @throws IOException
+     */
+    static int write(SQLiteDatabase database, File file) throws IOException {
+        String rootNodeId = queryRootNodeId(database);
+        if (rootNodeId == null) {
+            return -1;
+        }
+
+        File partialFile = new File(file.getPath() + ".partial");
+        File directory = file.getParentFile();
+        if (directory != null && !directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Unable to create " + directory);
+        }
+
+        // Both tables are read in one transaction, so the parents match the
+        // nodes even if a listing saves nodes meanwhile. Cursors fill their
+        // windows as they are read, so it lasts until the file is written.
+        // Snapshots are taken once the listings have stopped, so hardly any
+        // write waits on it.
+        int nodeCount;
+        Cursor nodes = null;
+        Cursor nodeParents = null;
+        CheckedOutputStream checkedOutputStream = null;
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB) {
+            database.beginTransactionNonExclusive();
+        } else {
+            database.beginTransaction();
+        }
+        try {
+            nodes = database.query(CloudDriveContract.Nodes.TABLE_NAME, NODE_PROJECTION,
+                    null, null, null, null, CloudDriveContract.Nodes.NODE_ID);
+            nodeParents = database.query(CloudDriveContract.NodeParents.TABLE_NAME, NODE_PARENT_PROJECTION,
+                    null, null, null, null, CloudDriveContract.NodeParents.NODE_ID);
+
+            checkedOutputStream = new CheckedOutputStream(new FileOutputStream(partialFile), new CRC32());
+            DataOutputStream output = new DataOutputStream(new BufferedOutputStream(checkedOutputStream));
+            output.writeInt(MAGIC);
+            output.writeInt(FORMAT_VERSION);
+            writeString(output, rootNodeId);
+            nodeCount = nodes.getCount();
+            writeVarInt(output, nodeCount);
+
+            // Both cursors are sorted by node ID, so each node's parents are
+            // found by walking them side by side.
+            boolean hasNodeParent = nodeParents.moveToFirst();
+            List<String> parentIds = new ArrayList<String>();
+            while (nodes.moveToNext()) {
+                String nodeId = nodes.getString(0);
+                writeString(output, nodeId);
+                writeString(output, nodes.getString(1));
+                writeString(output, nodes.getString(2));
+                writeString(output, nodes.getString(3));
+                int flags = (nodes.getInt(4) != 0 ? FLAG_EXCLUSIVELY_TRASHED : 0) |
+                        (nodes.getInt(5) != 0 ? FLAG_IS_ROOT : 0) |
+                        (nodes.getInt(6) != 0 ? FLAG_IS_SHARED : 0) |
+                        (nodes.getInt(10) != 0 ? FLAG_RECURSIVELY_TRASHED : 0);
+                output.writeByte(flags);
+                writeString(output, nodes.getString(7));
+                writeString(output, nodes.getString(8));
+                writeString(output, nodes.getString(9));
+                writeString(output, nodes.getString(11));
+                output.writeLong(nodes.getLong(12));
+                output.writeLong(nodes.isNull(13) ? -1 : nodes.getLong(13));
+
+                // Skip parent rows of nodes that are no longer cached
+                while (hasNodeParent && nodeParents.getString(0).compareTo(nodeId) < 0) {
+                    hasNodeParent = nodeParents.moveToNext();
+                }
+                parentIds.clear();
+                while (hasNodeParent && nodeParents.getString(0).equals(nodeId)) {
+                    parentIds.add(nodeParents.getString(1));
+                    hasNodeParent = nodeParents.moveToNext();
+                }
+                writeVarInt(output, parentIds.size());
+                for (int i = 0; i < parentIds.size(); i++) {
+                    writeString(output, parentIds.get(i));
+                }
+            }
+
+            output.flush();
+            output.writeInt((int) checkedOutputStream.getChecksum().getValue());
+            output.flush();
+            checkedOutputStream.close();
+            checkedOutputStream = null;
+        } finally {
+            Closer.closeQuietly(checkedOutputStream);
+            if (nodeParents != null) {
+                nodeParents.close();
+            }
+            if (nodes != null) {
+                nodes.close();
+            }
+            database.endTransaction();
+        }
+
+        if (!partialFile.renameTo(file)) {
+            partialFile.delete();
+            throw new IOException("Unable to replace " + file);
+        }
+        return nodeCount;
+    }
+
+    /**
+     * Adds the nodes of a snapshot to the cache, in one transaction.
+     * @param rootNodeId the current account's root node ID. Snapshots of other
+     *                   accounts are not restored.
+     * @return the number of nodes read from the snapshot, or -1 if there is no
+     * snapshot for this account
+     * @throws IOException if the snapshot cannot be read or is corrupt
+     */
+    static int read(SQLiteDatabase database, File file, String rootNodeId) throws IOException {
+        if (!file.isFile()) {
+            return -1;
+        }
+
+        FileInputStream inputStream = new FileInputStream(file);
+        try {
+            FileChannel channel = inputStream.getChannel();
+            ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            try {
+                verifyChecksum(buffer);
+                if (buffer.getInt() != MAGIC || buffer.getInt() != FORMAT_VERSION) {
+                    return -1;
+                }
+
+                byte[] scratch = new byte[256];
+                if (!rootNodeId.equals(readString(buffer, scratch))) {
+                    return -1;
+                }
+
+                return readNodes(database, buffer, scratch);
+            } catch (BufferUnderflowException e) {
+                throw new IOException("Truncated snapshot " + file);
+            }
+        } finally {
+            Closer.closeQuietly(inputStream);
+        }
+    }
+
+    private static int readNodes(SQLiteDatabase database, ByteBuffer buffer, byte[] scratch) {
+        SQLiteStatement insertNode = database.compileStatement(INSERT_NODE_IF_ABSENT_SQL);
+        SQLiteStatement insertNodeParent = database.compileStatement(INSERT_NODE_PARENT_IF_ABSENT_SQL);
+        database.beginTransaction();
+        try {
+            CloudDriveNodesDatabaseHelper.dropNodeTriggers(database);
+            int nodeCount = readVarInt(buffer);
+            for (int i = 0; i < nodeCount; i++) {
+                String nodeId = readString(buffer, scratch);
+                insertNode.bindString(1, nodeId);
+                bindStringOrNull(insertNode, 2, readString(buffer, scratch));
+                bindStringOrNull(insertNode, 3, readString(buffer, scratch));
+                bindStringOrNull(insertNode, 4, readString(buffer, scratch));
+                int flags = buffer.get();
+                insertNode.bindLong(5, (flags & FLAG_EXCLUSIVELY_TRASHED) != 0 ? 1 : 0);
+                insertNode.bindLong(6, (flags & FLAG_IS_ROOT) != 0 ? 1 : 0);
+                insertNode.bindLong(7, (flags & FLAG_IS_SHARED) != 0 ? 1 : 0);
+                insertNode.bindLong(11, (flags & FLAG_RECURSIVELY_TRASHED) != 0 ? 1 : 0);
+                bindStringOrNull(insertNode, 8, readString(buffer, scratch));
+                bindStringOrNull(insertNode, 9, readString(buffer, scratch));
+                bindStringOrNull(insertNode, 10, readString(buffer, scratch));
+                bindStringOrNull(insertNode, 12, readString(buffer, scratch));
+                insertNode.bindLong(13, buffer.getLong());
+                long contentSize = buffer.getLong();
+                if (contentSize < 0) {
+                    insertNode.bindNull(14);
+                } else {
+                    insertNode.bindLong(14, contentSize);
+                }
+                insertNode.executeInsert();
+
+                int parentCount = readVarInt(buffer);
+                for (int j = 0; j < parentCount; j++) {
+                    insertNodeParent.bindString(1, nodeId);
+                    insertNodeParent.bindString(2, readString(buffer, scratch));
+                    insertNodeParent.executeInsert();
+                }
+            }
+            CloudDriveNodesDatabaseHelper.rebuildNodeTables(database);
+            database.setTransactionSuccessful();
+            return nodeCount;
+        } finally {
+            database.endTransaction();
+            insertNodeParent.close();
+            insertNode.close();
+        }
+    }
+
+    /**
+     * Checks the trailing CRC32 and leaves the buffer positioned at the start
+     * and limited to the snapshot body.
+     */
+    private static void verifyChecksum(ByteBuffer buffer) throws IOException {
+        int bodyLength = buffer.limit() - 4;
+        if (bodyLength < 0) {
+            throw new IOException("Truncated snapshot");
+        }
+
+        CRC32 crc32 = new CRC32();
+        byte[] chunk = new byte[CHECKSUM_CHUNK_SIZE];
+        buffer.limit(bodyLength);
+        while (buffer.hasRemaining()) {
+            int length = Math.min(chunk.length, buffer.remaining());
+            buffer.get(chunk, 0, length);
+            crc32.update(chunk, 0, length);
+        }
+
+        buffer.limit(bodyLength + 4);
+        if (buffer.getInt(bodyLength) != (int) crc32.getValue()) {
+            throw new IOException("Snapshot checksum mismatch");
+        }
+        buffer.position(0);
+        buffer.limit(bodyLength);
+    }
+
+    private static String queryRootNodeId(SQLiteDatabase database) {
+        Cursor cursor = database.query(CloudDriveContract.Nodes.TABLE_NAME,
+                new String[] { CloudDriveContract.Nodes.NODE_ID },
+                CloudDriveContract.Nodes.IS_ROOT + " = 1", null, null, null, null);
+        try {
+            return cursor.moveToFirst() ? cursor.getString(0) : null;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private static void writeString(DataOutputStream output, String value) throws IOException {
+        if (value == null) {
+            writeVarInt(output, 0);
+            return;
+        }
+        byte[] bytes = value.getBytes(UTF_8);
+        writeVarInt(output, bytes.length + 1);
+        output.write(bytes);
+    }
+
+    /**
+     * Reads a string, decoding it from scratch when it fits to avoid a copy per string.
+     */
+    private static String readString(ByteBuffer buffer, byte[] scratch) {
+        int length = readVarInt(buffer) - 1;
+        if (length < 0) {
+            return null;
+        }
+        byte[] bytes = length <= scratch.length ? scratch : new byte[length];
+        buffer.get(bytes, 0, length);
+        return new String(bytes, 0, length, UTF_8);
+    }
+
+    private static void writeVarInt(DataOutputStream output, int value) throws IOException {
+        while ((value & ~0x7F) != 0) {
+            output.writeByte((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        output.writeByte(value);
+    }
+
+    private static int readVarInt(ByteBuffer buffer) {
+        int value = 0;
+        for (int shift = 0; shift < 32; shift += 7) {
+            int b = buffer.get();
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new BufferUnderflowException();
+    }
+
+    private static void bindStringOrNull(SQLiteStatement statement, int index, String value) {
+        if (value == null) {
+            statement.bindNull(index);
+        } else {
+            statement.bindString(index, value);
+        }
+    }
+}
@@ -0,0 +1,285 @@
+/*
+ * Copyright 2015 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package com.example.clouddrivefiles.provider;
+
+import android.content.ContentResolver;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+
+import java.util.List;
+
+/**
+ * Writes {@link NodeRecord}s straight into the nodes and node_parents tables
+ * with precompiled statements.
+ *
+ * This is the write side of the streaming listing path. It skips
+ * ContentProviderOperation and ContentValues, so it is only available to
+ * callers running in the same process as {@link CloudDriveProvider}. Obtain
+ * one with {@link CloudDriveProvider#newNodeWriter()}, use it from a single
+ * thread and close it when done.
+ */
+public class NodeWriter {
+
+    // New nodes are inserted first and then updated like existing ones.
+    // Updating in place, rather than INSERT OR REPLACE, keeps the row ID and
+    // only fires the folder statistics triggers for values that changed.
+    private static final String INSERT_NODE_IF_ABSENT_SQL =
+            "INSERT OR IGNORE INTO " + CloudDriveContract.Nodes.TABLE_NAME + " (" +
+                    CloudDriveContract.Nodes.NODE_ID + ", " +
+                    CloudDriveContract.Nodes.KIND + ", " +
+                    CloudDriveContract.Nodes.STATUS + ", " +
+                    CloudDriveContract.Nodes.CONTENT_SIZE +
+                    ") VALUES (?, ?, ?, ?)";
+
+    private static final String UPDATE_NODE_SQL =
+            "UPDATE " + CloudDriveContract.Nodes.TABLE_NAME + " SET " +
+                    CloudDriveContract.Nodes.CREATED_BY + " = ?, " +
+                    CloudDriveContract.Nodes.CREATED_DATE + " = ?, " +
+                    CloudDriveContract.Nodes.DESCRIPTION + " = ?, " +
+                    CloudDriveContract.Nodes.EXCLUSIVELY_TRASHED + " = ?, " +
+                    CloudDriveContract.Nodes.IS_ROOT + " = ?, " +
+                    CloudDriveContract.Nodes.IS_SHARED + " = ?, " +
+                    CloudDriveContract.Nodes.KIND + " = ?, " +
+                    CloudDriveContract.Nodes.MODIFIED_DATE + " = ?, " +
+                    CloudDriveContract.Nodes.NAME + " = ?, " +
+                    CloudDriveContract.Nodes.RECURSIVELY_TRASHED + " = ?, " +
+                    CloudDriveContract.Nodes.STATUS + " = ?, " +
+                    CloudDriveContract.Nodes.VERSION + " = ?, " +
+                    CloudDriveContract.Nodes.CONTENT_SIZE + " = ?, " +
+                    CloudDriveContract.Nodes.IS_DIRTY + " = 0 " +
+                    "WHERE " + CloudDriveContract.Nodes.NODE_ID + " = ?";
+
+    private static final String DELETE_NODE_PARENTS_SQL =
+            "DELETE FROM " + CloudDriveContract.NodeParents.TABLE_NAME +
+                    " WHERE " + CloudDriveContract.NodeParents.NODE_ID + " = ?";
+
+    // Most nodes have a single parent that does not change between listings.
+    // This and the insert below leave such a node's parent row alone.
+    private static final String DELETE_OTHER_NODE_PARENTS_SQL =
+            "DELETE FROM " + CloudDriveContract.NodeParents.TABLE_NAME +
+                    " WHERE " + CloudDriveContract.NodeParents.NODE_ID + " = ?" +
+                    " AND " + CloudDriveContract.NodeParents.PARENT_NODE_ID + " != ?";
+
+    // Also skips a parent listed twice. Not INSERT OR IGNORE, as a conflict
+    // clause would apply to the statements of the node_children triggers too.
+    private static final String INSERT_NODE_PARENT_IF_ABSENT_SQL =
+            "INSERT INTO " + CloudDriveContract.NodeParents.TABLE_NAME + " (" +
+                    CloudDriveContract.NodeParents.NODE_ID + ", " +
+                    CloudDriveContract.NodeParents.PARENT_NODE_ID +
+                    ") SELECT ?1, ?2 WHERE NOT EXISTS (" +
+                    "SELECT 1 FROM " + CloudDriveContract.NodeParents.TABLE_NAME +
+                    " WHERE " + CloudDriveContract.NodeParents.NODE_ID + " = ?1" +
+                    " AND " + CloudDriveContract.NodeParents.PARENT_NODE_ID + " = ?2)";
+
+    private static final String MARK_CHILDREN_DIRTY_SQL =
+            "UPDATE " + CloudDriveContract.Nodes.TABLE_NAME +
+                    " SET " + CloudDriveContract.Nodes.IS_DIRTY + " = 1" +
+                    " WHERE " + CloudDriveContract.Nodes.NODE_ID + " IN (" +
+                    "SELECT " + CloudDriveContract.NodeParents.NODE_ID +
+                    " FROM " + CloudDriveContract.NodeParents.TABLE_NAME +
+                    " WHERE " + CloudDriveContract.NodeParents.PARENT_NODE_ID + " = ?)";
+
+    private final SQLiteDatabase mDatabase;
+    private final ContentResolver mContentResolver;
+
+    private final SQLiteStatement mInsertNodeIfAbsent;
+    private final SQLiteStatement mUpdateNode;
+    private final SQLiteStatement mDeleteNodeParents;
+    private final SQLiteStatement mDeleteOtherNodeParents;
+    private final SQLiteStatement mInsertNodeParentIfAbsent;
+
+    private boolean mIsBatching;
+    private boolean mHasBatchedChanges;
+
+    NodeWriter(SQLiteDatabase database, ContentResolver contentResolver) {
+        mDatabase = database;
+        mContentResolver = contentResolver;
+        mInsertNodeIfAbsent = database.compileStatement(INSERT_NODE_IF_ABSENT_SQL);
+        mUpdateNode = database.compileStatement(UPDATE_NODE_SQL);
+        mDeleteNodeParents = database.compileStatement(DELETE_NODE_PARENTS_SQL);
+        mDeleteOtherNodeParents = database.compileStatement(DELETE_OTHER_NODE_PARENTS_SQL);
+        mInsertNodeParentIfAbsent = database.compileStatement(INSERT_NODE_PARENT_IF_ABSENT_SQL);
+    }
+
+    /**
+     * Starts a transaction that spans the calls that follow, for example the
+     * pages of many folders, until {@link #endBatch(boolean)}. Observers are
+     * notified once, when the batch ends.
+     */
+    public void beginBatch() {
+        mDatabase.beginTransaction();
+        mIsBatching = true;
+    }
+
+    /**
+     * Ends the transaction started by {@link #beginBatch()}.
+     * @param isSuccessful true to commit the batch, false to roll it back
+     */
+    public void endBatch(boolean isSuccessful) {
+        try {
+            if (isSuccessful) {
+                mDatabase.setTransactionSuccessful();
+            }
+        } finally {
+            mDatabase.endTransaction();
+            mIsBatching = false;
+        }
+
+        if (mHasBatchedChanges) {
+            mHasBatchedChanges = false;
+            notifyChange();
+        }
+    }
+
+    /**
+     * Marks every child of a folder as dirty, in one statement.
+     * @param parentNodeId the folder's node ID
+     */
+    public void markChildrenDirty(String parentNodeId) {
+        mDatabase.execSQL(MARK_CHILDREN_DIRTY_SQL, new Object[]{parentNodeId});
+    }
+
+    /**
+     * Saves the first count records and their parents in one transaction.
+     * The written nodes are no longer dirty.
+     * @param records the records to write
+     * @param count how many of the records are in use
+     */
+    public void writeNodes(List<NodeRecord> records, int count) {
+        if (count == 0) {
+            return;
+        }
+
+        mDatabase.beginTransaction();
+        try {
+            for (int i = 0; i < count; i++) {
+                writeNode(records.get(i));
+            }
+            mDatabase.setTransactionSuccessful();
+        } finally {
+            mDatabase.endTransaction();
+        }
+
+        notifyChange();
+    }
+
+    /**
+     * Deletes the children of a folder that are still dirty. These are the
+     * ones that no longer exist. Other folders' children are left alone, as
+     * they may be in the middle of their own listing.
+     * @param parentNodeId the folder's node ID
+     * @return the number of deleted nodes
+     */
+    public int deleteDirtyChildren(String parentNodeId) {
+        int count = mDatabase.delete(
+                CloudDriveContract.Nodes.TABLE_NAME,
+                CloudDriveContract.Nodes.IS_DIRTY + " = 1 AND " +
+                        CloudDriveContract.Nodes.NODE_ID + " IN (" +
+                        "SELECT " + CloudDriveContract.NodeParents.NODE_ID +
+                        " FROM " + CloudDriveContract.NodeParents.TABLE_NAME +
+                        " WHERE " + CloudDriveContract.NodeParents.PARENT_NODE_ID + " = ?)",
+                new String[]{parentNodeId});
+
+        if (count > 0) {
+            notifyChange();
+        }
+        return count;
+    }
+
+    /**
+     * Releases the compiled statements.
+     */
+    public void close() {
+        mInsertNodeIfAbsent.close();
+        mUpdateNode.close();
+        mDeleteNodeParents.close();
+        mDeleteOtherNodeParents.close();
+        mInsertNodeParentIfAbsent.close();
+    }
+
+    private void writeNode(NodeRecord record) {
+        mInsertNodeIfAbsent.bindString(1, record.nodeId);
+        bindStringOrNull(mInsertNodeIfAbsent, 2, record.kind);
+        bindStringOrNull(mInsertNodeIfAbsent, 3, record.status);
+        bindSizeOrNull(mInsertNodeIfAbsent, 4, record.contentSize);
+        mInsertNodeIfAbsent.executeInsert();
+
+        bindStringOrNull(mUpdateNode, 1, record.createdBy);
+        bindStringOrNull(mUpdateNode, 2, record.createdDate);
+        bindStringOrNull(mUpdateNode, 3, record.description);
+        mUpdateNode.bindLong(4, record.exclusivelyTrashed ? 1 : 0);
+        mUpdateNode.bindLong(5, record.isRoot ? 1 : 0);
+        mUpdateNode.bindLong(6, record.isShared ? 1 : 0);
+        bindStringOrNull(mUpdateNode, 7, record.kind);
+        bindStringOrNull(mUpdateNode, 8, record.modifiedDate);
+        bindStringOrNull(mUpdateNode, 9, record.name);
+        mUpdateNode.bindLong(10, record.recursivelyTrashed ? 1 : 0);
+        bindStringOrNull(mUpdateNode, 11, record.status);
+        mUpdateNode.bindLong(12, record.version);
+        bindSizeOrNull(mUpdateNode, 13, record.contentSize);
+        mUpdateNode.bindString(14, record.nodeId);
+        mUpdateNode.execute();
+
+        List<String> parentIds = record.parentIds;
+        if (parentIds.size() == 1) {
+            String parentId = parentIds.get(0);
+            mDeleteOtherNodeParents.bindString(1, record.nodeId);
+            mDeleteOtherNodeParents.bindString(2, parentId);
+            mDeleteOtherNodeParents.execute();
+
+            mInsertNodeParentIfAbsent.bindString(1, record.nodeId);
+            mInsertNodeParentIfAbsent.bindString(2, parentId);
+            mInsertNodeParentIfAbsent.executeInsert();
+            return;
+        }
+
+        // Replace all of the parents. There could be multiple parents for each node.
+        mDeleteNodeParents.bindString(1, record.nodeId);
+        mDeleteNodeParents.execute();
+
+        for (int i = 0, size = parentIds.size(); i < size; i++) {
+            mInsertNodeParentIfAbsent.bindString(1, record.nodeId);
+            mInsertNodeParentIfAbsent.bindString(2, parentIds.get(i));
+            mInsertNodeParentIfAbsent.executeInsert();
+        }
+    }
+
+    private void notifyChange() {
+        if (mIsBatching) {
+            mHasBatchedChanges = true;
+            return;
+        }
+        mContentResolver.notifyChange(CloudDriveContract.Nodes.CONTENT_URI, null);
+        mContentResolver.notifyChange(CloudDriveContract.NodeParents.CONTENT_URI, null);
+        // Children are potentially impacted
+        mContentResolver.notifyChange(CloudDriveContract.NodeChildren.CONTENT_URI, null);
+    }
+
+    private static void bindSizeOrNull(SQLiteStatement statement, int index, long size) {
+        if (size < 0) {
+            statement.bindNull(index);
+        } else {
+            statement.bindLong(index, size);
+        }
+    }
+
+    private static void bindStringOrNull(SQLiteStatement statement, int index, String value) {
+        if (value == null) {
+            statement.bindNull(index);
+        } else {
+            statement.bindString(index, value);
+        }
+    }
+}
@@ -0,0 +1,108 @@
+/*
+ * Copyright 2015 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package com.example.clouddrivefiles.provider;
+
+/**
+ * Tracks which fixed-size blocks of a file are present in the local cache.
+ *
+ * The map is stored in node_contents as one bit per block, see
+ * {@link CloudDriveContract.NodeContents#SEGMENTS}.
+ */
+final class SegmentMap {
+
+    static final int BLOCK_SIZE = 256 * 1024;
+
+    private final long mLength;
+    private final int mBlockCount;
+    private final byte[] mBits;
+    private int mCachedBlockCount;
+
+    /**
+     * Creates an empty map.
+     * @param length the length of the file in bytes
+     */
+    SegmentMap(long length) {
+        mLength = length;
+        mBlockCount = (int) ((length + BLOCK_SIZE - 1) / BLOCK_SIZE);
+        mBits = new byte[(mBlockCount + 7) / 8];
+    }
+
+    /**
+     * Restores a map saved with {@link #toByteArray()}. Bits that do not fit the
+     * length are ignored, so a map saved for a different length is safe to load.
+     * @param length the length of the file in bytes
+     * @param bits the saved map, or null for an empty map
+     */
+    static SegmentMap fromByteArray(long length, byte[] bits) {
+        SegmentMap segmentMap = new SegmentMap(length);
+        if (bits != null) {
+            for (int block = 0; block < segmentMap.mBlockCount && (block >> 3) < bits.length; block++) {
+                if ((bits[block >> 3] & (1 << (block & 7))) != 0) {
+                    segmentMap.setCached(block);
+                }
+            }
+        }
+        return segmentMap;
+    }
+
+    byte[] toByteArray() {
+        return mBits.clone();
+    }
+
+    long getLength() {
+        return mLength;
+    }
+
+    int getBlockCount() {
+        return mBlockCount;
+    }
+
+    /**
+     * @return the block that contains the byte at the position
+     */
+    static int getBlock(long position) {
+        return (int) (position / BLOCK_SIZE);
+    }
+
+    static long getBlockStart(int block) {
+        return (long) block * BLOCK_SIZE;
+    }
+
+    /**
+     * @return the offset just past the last byte of the block
+     */
+    long getBlockEnd(int block) {
+        return Math.min(mLength, getBlockStart(block + 1));
+    }
+
+    boolean isCached(int block) {
+        return (mBits[block >> 3] & (1 << (block & 7))) != 0;
+    }
+
+    void setCached(int block) {
+        if (!isCached(block)) {
+            mBits[block >> 3] |= 1 << (block & 7);
+            mCachedBlockCount++;
+        }
+    }
+
+    int getCachedBlockCount() {
+        return mCachedBlockCount;
+    }
+
+    boolean isComplete() {
+        return mCachedBlockCount == mBlockCount;
+    }
+}
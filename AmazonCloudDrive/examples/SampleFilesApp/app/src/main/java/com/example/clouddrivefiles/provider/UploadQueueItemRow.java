@@ -0,0 +1,73 @@
+/*
+ * Copyright 2015 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package com.example.clouddrivefiles.provider;
+
+import android.database.Cursor;
+
+/**
+ * A {@link CursorRow} over {@link CloudDriveContract.UploadQueueItems}.
+ */
+public class UploadQueueItemRow extends CursorRow {
+
+    private final int mIdIndex;
+    private final int mSourceUriIndex;
+    private final int mStatusIndex;
+    private final int mContentHashIndex;
+    private final int mCompletedTimeIndex;
+    private final int mDestinationPathIndex;
+
+    public UploadQueueItemRow(Cursor cursor) {
+        super(cursor);
+        mIdIndex = cursor.getColumnIndex(CloudDriveContract.UploadQueueItems._ID);
+        mSourceUriIndex = cursor.getColumnIndex(CloudDriveContract.UploadQueueItems.SOURCE_URI);
+        mStatusIndex = cursor.getColumnIndex(CloudDriveContract.UploadQueueItems.STATUS);
+        mContentHashIndex = cursor.getColumnIndex(CloudDriveContract.UploadQueueItems.CONTENT_HASH);
+        mCompletedTimeIndex = cursor.getColumnIndex(CloudDriveContract.UploadQueueItems.COMPLETED_TIME);
+        mDestinationPathIndex = cursor.getColumnIndex(CloudDriveContract.UploadQueueItems.DESTINATION_PATH);
+    }
+
+    public long getId() {
+        return getLong(mIdIndex);
+    }
+
+    public String getSourceUri() {
+        return getString(mSourceUriIndex);
+    }
+
+    public String getStatus() {
+        return getString(mStatusIndex);
+    }
+
+    /**
+     * @return the hex MD5 of the content, or null until it has been uploaded
+     */
+    public String getContentHash() {
+        return getString(mContentHashIndex);
+    }
+
+    /**
+     * @return when the upload completed, in milliseconds since the epoch, or 0 if it has not
+     */
+    public long getCompletedTime() {
+        return getLong(mCompletedTimeIndex, 0);
+    }
+
+    /**
+     * @return the destination folder path, or null for the root
+     */
+    public String getDestinationPath() {
+        return getString(mDestinationPathIndex);
+    }
+}
@@ -14,42 +14,69 @@
  */
 package com.example.clouddrivefiles.service;
 
-import android.app.IntentService;
-import android.content.ContentProviderOperation;
+import android.app.Service;
+import android.content.ContentResolver;
 import android.content.Context;
 import android.content.Intent;
-import android.content.OperationApplicationException;
-import android.database.Cursor;
-import android.os.RemoteException;
+import android.os.Handler;
+import android.os.IBinder;
+import android.support.v4.content.LocalBroadcastManager;
 import android.util.Log;
-import com.amazon.clouddrive.AmazonCloudDriveClient;
 import com.amazon.clouddrive.exceptions.CloudDriveException;
-import com.amazon.clouddrive.model.ListChildrenRequest;
-import com.amazon.clouddrive.model.ListChildrenResponse;
-import com.amazon.clouddrive.model.ListNodesRequest;
-import com.amazon.clouddrive.model.ListNodesResponse;
-import com.amazon.clouddrive.model.Node;
 import com.example.clouddrivefiles.global.UserState;
 import com.example.clouddrivefiles.provider.CloudDriveContract;
-import com.example.clouddrivefiles.utils.Closer;
+import com.example.clouddrivefiles.sync.CacheWarmer;
+import com.example.clouddrivefiles.sync.FolderSyncCoordinator;
+import com.example.clouddrivefiles.sync.FolderSynchronizer;
 
-import java.util.ArrayList;
-import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 
 /**
- * A simple service that lists nodes and saves them in {@link com.example.clouddrivefiles.provider.CloudDriveProvider}.
+ * A service that lists nodes and saves them in {@link com.example.clouddrivefiles.provider.CloudDriveProvider}.
+ *
+ * Requests are handed to a {@link FolderSyncCoordinator}, which deduplicates
+ * them, lists the visible folder before any prefetching, and lists several
+ * folders at once. The service stays alive while there is work and stops
+ * itself once the coordinator is idle.
+ *
+ * It can also warm the cache with the first levels of folders, for example
+ * right after login. Progress is reported with a local broadcast of
+ * {@link #ACTION_WARM_CACHE_PROGRESS}.
+ *
+ * At logout it stops every listing, waits for them to finish writing, and
+ * only then saves and clears the node cache, so that nothing of the old
+ * account is written back after the cache was cleared.
  */
-public class CloudDriveFolderListingService extends IntentService {
+public class CloudDriveFolderListingService extends Service implements FolderSyncCoordinator.Listener {
 
     private static String TAG = CloudDriveFolderListingService.class.getSimpleName();
 
     public static String ACTION_LIST_FOLDER = "list_folder";
     public static String ACTION_LIST_ROOT_FOLDER = "list_root_folder";
+    public static String ACTION_CANCEL_LIST_FOLDER = "cancel_list_folder";
+    public static String ACTION_CANCEL_LIST_ROOT_FOLDER = "cancel_list_root_folder";
+    public static String ACTION_CANCEL_NEARBY_FOLDER = "cancel_nearby_folder";
     public static String EXTRA_NODE_ID = "node_id";
+    public static String EXTRA_PRIORITY = "priority";
 
-    public CloudDriveFolderListingService() {
-        super(CloudDriveFolderListingService.class.getSimpleName());
-    }
+    public static String ACTION_WARM_CACHE = "warm_cache";
+    public static String EXTRA_LEVELS = "levels";
+
+    // Local broadcast sent as folders are warmed
+    public static String ACTION_WARM_CACHE_PROGRESS = "warm_cache_progress";
+    public static String EXTRA_LISTED_FOLDER_COUNT = "listed_folder_count";
+    public static String EXTRA_FOUND_FOLDER_COUNT = "found_folder_count";
+    public static String EXTRA_IS_FINISHED = "is_finished";
+
+    public static String ACTION_LOGOUT = "logout";
+
+    // Local broadcast sent once the cache of the logged out account is cleared
+    public static String ACTION_LOGGED_OUT = "logged_out";
+
+    // How long logout waits for running listings to notice they were cancelled
+    private static final long LOGOUT_TIMEOUT_SECONDS = 10;
 
     /**
      * Creates an Intent that will list the children of a specific node
@@ -59,9 +86,22 @@ public class CloudDriveFolderListingService extends IntentService {
      * @return the new Intent
      */
     public static Intent newListFolderIntent(Context context, String nodeId) {
+        return newListFolderIntent(context, nodeId, FolderSyncCoordinator.PRIORITY_VISIBLE);
+    }
+
+    /**
+     * Creates an Intent that will list the children of a specific node
+     * and save it in {@link com.example.clouddrivefiles.provider.CloudDriveProvider}
+     * @param context a Context
+     * @param nodeId The node ID to list.
+     * @param priority one of the FolderSyncCoordinator priorities
+     * @return the new Intent
+     */
+    public static Intent newListFolderIntent(Context context, String nodeId, int priority) {
         Intent intent = new Intent(context, CloudDriveFolderListingService.class);
         intent.setAction(ACTION_LIST_FOLDER);
         intent.putExtra(EXTRA_NODE_ID, nodeId);
+        intent.putExtra(EXTRA_PRIORITY, priority);
         return intent;
     }
 
@@ -77,199 +117,273 @@ public class CloudDriveFolderListingService extends IntentService {
         return intent;
     }
 
-    private AmazonCloudDriveClient mAmazonCloudDriveClient;
+    /**
+     * Creates an Intent that cancels a pending or running listing of a node,
+     * for example when the user navigates away from it.
+     * @param context a Context
+     * @param nodeId The node ID that no longer needs to be listed.
+     * @return the new Intent
+     */
+    public static Intent newCancelListFolderIntent(Context context, String nodeId) {
+        Intent intent = new Intent(context, CloudDriveFolderListingService.class);
+        intent.setAction(ACTION_CANCEL_LIST_FOLDER);
+        intent.putExtra(EXTRA_NODE_ID, nodeId);
+        return intent;
+    }
 
-    @Override
-    protected void onHandleIntent(Intent intent) {
-        mAmazonCloudDriveClient = UserState.getAmazonCloudDriveClientInstance(this);
+    /**
+     * Creates an Intent that drops a queued listing requested at
+     * {@link FolderSyncCoordinator#PRIORITY_NEARBY}, for example when its row
+     * scrolls away before the listing started.
+     * @param context a Context
+     * @param nodeId The node ID that no longer needs to be listed.
+     * @return the new Intent
+     */
+    public static Intent newCancelNearbyFolderIntent(Context context, String nodeId) {
+        Intent intent = new Intent(context, CloudDriveFolderListingService.class);
+        intent.setAction(ACTION_CANCEL_NEARBY_FOLDER);
+        intent.putExtra(EXTRA_NODE_ID, nodeId);
+        return intent;
+    }
 
-        String action = intent.getAction();
-        if (ACTION_LIST_FOLDER.equals(action)) {
-            String nodeId = intent.getStringExtra(EXTRA_NODE_ID);
-            listFolder(nodeId);
-        } else if (ACTION_LIST_ROOT_FOLDER.equals(action)) {
-            listRootFolder();
-        }
+    /**
+     * Creates an Intent that cancels a pending or running listing of the root node.
+     * @param context a Context
+     * @return the new Intent
+     */
+    public static Intent newCancelListRootFolderIntent(Context context) {
+        Intent intent = new Intent(context, CloudDriveFolderListingService.class);
+        intent.setAction(ACTION_CANCEL_LIST_ROOT_FOLDER);
+        return intent;
     }
 
     /**
-     * List the root folder and save both the root node and
-     * root's child nodes to the ContentProvider
+     * Creates an Intent that lists the root and the first levels of folders
+     * below it and saves them in {@link com.example.clouddrivefiles.provider.CloudDriveProvider}.
+     * Does nothing if warming is already running.
+     * @param context a Context
+     * @return the new Intent
      */
-    private void listRootFolder() {
-        try {
-            // To list the root node, we filter to only show the nodes that
-            // have the property isRoot set to true. To learn more about
-            // filtering, see https://developer.amazon.com/public/apis/experience/cloud-drive/content/nodes#Filtering
-            ListNodesRequest listNodesRequest = new ListNodesRequest();
-            String filters = "isRoot:true";
-            listNodesRequest.setFilters(filters);
-
-            // Make a synchronous (blocking) call to Amazon Cloud Drive that lists
-            // the root node.
-            ListNodesResponse listNodesResponse = mAmazonCloudDriveClient.listNodes(listNodesRequest);
-            List<Node> nodes = listNodesResponse.getData();
-
-            if (nodes.isEmpty()) {
-                return;
-            }
+    public static Intent newWarmCacheIntent(Context context) {
+        Intent intent = new Intent(context, CloudDriveFolderListingService.class);
+        intent.setAction(ACTION_WARM_CACHE);
+        intent.putExtra(EXTRA_LEVELS, CacheWarmer.DEFAULT_LEVELS);
+        return intent;
+    }
 
-            // There is only one root node, so we will just get the first item.
-            Node rootNode = nodes.get(0);
+    /**
+     * Creates an Intent that stops all listings and warming, then saves a
+     * snapshot of the node cache and clears it. {@link #ACTION_LOGGED_OUT} is
+     * broadcast locally when done, and the service stops. Requests received
+     * in the meantime are ignored.
+     * @param context a Context
+     * @return the new Intent
+     */
+    public static Intent newLogoutIntent(Context context) {
+        Intent intent = new Intent(context, CloudDriveFolderListingService.class);
+        intent.setAction(ACTION_LOGOUT);
+        return intent;
+    }
 
-            // Save the root node information through the ContentProvider
-            ArrayList<ContentProviderOperation> contentProviderOperations = new ArrayList<ContentProviderOperation>();
-            contentProviderOperations.add(createInsertNodeContentProviderOperation(rootNode));
-            if (!contentProviderOperations.isEmpty()) {
-                getContentResolver().applyBatch(
-                        CloudDriveContract.AUTHORITY,
-                        contentProviderOperations);
+    private FolderSyncCoordinator mFolderSyncCoordinator;
+    private CacheWarmer mCacheWarmer;
+    // Warming runs apart from the coordinator, so it never delays a visible folder.
+    private ExecutorService mWarmExecutor;
+    private volatile boolean mIsWarming;
+    private boolean mIsLoggingOut;
+    private Handler mHandler;
+    private int mLastStartId;
+
+    // Stops the service if nothing was requested since the coordinator went idle
+    private final Runnable mStopIfIdleRunnable = new Runnable() {
+        @Override
+        public void run() {
+            if (mFolderSyncCoordinator.isIdle() && !mIsWarming && !mIsLoggingOut) {
+                stopSelf(mLastStartId);
             }
+        }
+    };
+
+    ///////////////////////////////////////////////////////////////////////////
+    // Lifecycle methods
+    ///////////////////////////////////////////////////////////////////////////
+
+    @Override
+    public void onCreate() {
+        super.onCreate();
+        mHandler = new Handler();
 
-            // List and save the children of the root.
-            listFolder(rootNode.getId());
-
-        } catch (InterruptedException e) {
-            Log.d(TAG, "Interrupted while getting root node.");
-        } catch (CloudDriveException e) {
-            Log.e(TAG, "Caught exception while getting root node.", e);
-        } catch (RemoteException e) {
-            Log.e(TAG, "Caught exception while getting root node.", e);
-        } catch (OperationApplicationException e) {
-            Log.e(TAG, "Caught exception while getting root node.", e);
+        FolderSynchronizer folderSynchronizer = new FolderSynchronizer(
+                getContentResolver(),
+                UserState.getSharedCloudDriveClientInstance(this));
+
+        // The provider runs in this process, so children can be streamed
+        // straight into the database.
+        folderSynchronizer.setStreamingEnabled(true);
+
+        mFolderSyncCoordinator = new FolderSyncCoordinator(folderSynchronizer, this);
+
+        mCacheWarmer = new CacheWarmer(
+                getContentResolver(),
+                UserState.getSharedCloudDriveClientInstance(this),
+                CacheWarmer.getSnapshotFile(this));
+        mWarmExecutor = Executors.newSingleThreadExecutor();
+    }
+
+    @Override
+    public int onStartCommand(Intent intent, int flags, int startId) {
+        mLastStartId = startId;
+
+        String action = intent != null ? intent.getAction() : null;
+        if (mIsLoggingOut) {
+            // The account is going away; the service stops once its cache is cleared.
+            return START_NOT_STICKY;
+        }
+
+        if (ACTION_LOGOUT.equals(action)) {
+            mIsLoggingOut = true;
+            mFolderSyncCoordinator.shutdown();
+            mWarmExecutor.shutdownNow();
+            new Thread(new LogoutRunnable(), "logout").start();
+            return START_NOT_STICKY;
+        } else if (ACTION_LIST_FOLDER.equals(action)) {
+            mFolderSyncCoordinator.requestFolder(
+                    intent.getStringExtra(EXTRA_NODE_ID),
+                    intent.getIntExtra(EXTRA_PRIORITY, FolderSyncCoordinator.PRIORITY_VISIBLE));
+        } else if (ACTION_LIST_ROOT_FOLDER.equals(action)) {
+            mFolderSyncCoordinator.requestRootFolder(FolderSyncCoordinator.PRIORITY_VISIBLE);
+        } else if (ACTION_CANCEL_LIST_FOLDER.equals(action)) {
+            mFolderSyncCoordinator.cancelFolder(intent.getStringExtra(EXTRA_NODE_ID));
+        } else if (ACTION_CANCEL_LIST_ROOT_FOLDER.equals(action)) {
+            mFolderSyncCoordinator.cancelRootFolder();
+        } else if (ACTION_CANCEL_NEARBY_FOLDER.equals(action)) {
+            mFolderSyncCoordinator.cancelNearbyFolder(intent.getStringExtra(EXTRA_NODE_ID));
+        } else if (ACTION_WARM_CACHE.equals(action)) {
+            if (!mIsWarming) {
+                mIsWarming = true;
+                mWarmExecutor.execute(
+                        new WarmCacheRunnable(intent.getIntExtra(EXTRA_LEVELS, CacheWarmer.DEFAULT_LEVELS)));
+            }
         }
+
+        // Nothing may have been queued, for example after a cancel.
+        mHandler.post(mStopIfIdleRunnable);
+        return START_NOT_STICKY;
     }
 
+    @Override
+    public void onDestroy() {
+        mHandler.removeCallbacks(mStopIfIdleRunnable);
+        mFolderSyncCoordinator.shutdown();
+        mWarmExecutor.shutdownNow();
+        super.onDestroy();
+    }
+
+    @Override
+    public IBinder onBind(Intent intent) {
+        return null;
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+    // FolderSyncCoordinator.Listener
+    ///////////////////////////////////////////////////////////////////////////
+
+    @Override
+    public void onIdle() {
+        // Called on a worker thread
+        mHandler.post(mStopIfIdleRunnable);
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+    // Logout
+    ///////////////////////////////////////////////////////////////////////////
+
     /**
-     * List a folder and save the child nodes to the ContentProvider
-     * @param id the node ID to list
+     * Waits for the listings to stop, then saves and clears the node cache.
+     * Runs on its own thread, as both the wait and the snapshot can be slow.
      */
-    private void listFolder(String id) {
-        try {
-
-            // Mark all existing rows for this folder as 'dirty' so we will
-            // know which ones need to be deleted at the end.
-
-            ArrayList<ContentProviderOperation> updateAllChildrenToDirtyOperations =
-                    createUpdateAllChildrenToDirtyOperations(id);
-            if (!updateAllChildrenToDirtyOperations.isEmpty()) {
-                getContentResolver().applyBatch(
-                        CloudDriveContract.AUTHORITY,
-                        updateAllChildrenToDirtyOperations);
+    private class LogoutRunnable implements Runnable {
+
+        @Override
+        public void run() {
+            try {
+                // Cancelled listings may still be writing a page; clearing
+                // the cache under them would leave the old account's nodes behind.
+                if (!mFolderSyncCoordinator.awaitTermination(LOGOUT_TIMEOUT_SECONDS, TimeUnit.SECONDS)
+                        || !mWarmExecutor.awaitTermination(LOGOUT_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+                    Log.w(TAG, "Listings did not stop in time, clearing the cache anyway");
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
             }
 
-            // ListChildren is an example of a paged request. We may not get all
-            // of the nodes back in one request, so we will need to keep looping
-            // until we get all of the a null next token as a response.
-            String nextToken = null;
-            do {
-                // Make a synchronous (blocking) call to Amazon Cloud Drive that lists
-                // all of the children for the node.
-                ListChildrenRequest listChildrenRequest = new ListChildrenRequest(id);
-                listChildrenRequest.setStartToken(nextToken);
-                ListChildrenResponse response = mAmazonCloudDriveClient.listChildren(listChildrenRequest);
-                nextToken = response.getNextToken();
-                List<Node> nodes = response.getData();
-
-                // Save all of the node children through the ContentProvider
-                ArrayList<ContentProviderOperation> contentProviderOperations = new ArrayList<ContentProviderOperation>();
-                for (Node node : nodes) {
-                    contentProviderOperations.add(createInsertNodeContentProviderOperation(node));
-                    contentProviderOperations.addAll(createReplaceNodeParentContentProviderOperations(node));
+            // Keep the cache on disk, so logging in again does not list everything again
+            ContentResolver contentResolver = getContentResolver();
+            CacheWarmer.saveSnapshot(contentResolver, CacheWarmer.getSnapshotFile(CloudDriveFolderListingService.this));
+            contentResolver.delete(CloudDriveContract.Nodes.CONTENT_URI, null, null);
+            contentResolver.delete(CloudDriveContract.NodeParents.CONTENT_URI, null, null);
+
+            mHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    // Stopped before the broadcast, so a login that follows
+                    // starts a new service with the new account's client.
+                    stopSelf();
+                    LocalBroadcastManager.getInstance(CloudDriveFolderListingService.this)
+                            .sendBroadcast(new Intent(ACTION_LOGGED_OUT));
                 }
-                if (!contentProviderOperations.isEmpty()) {
-                    getContentResolver().applyBatch(
-                            CloudDriveContract.AUTHORITY,
-                            contentProviderOperations);
-                }
-            }
-            while (nextToken != null);
+            });
+        }
+    }
 
-            // Remove all rows that are still considered 'dirty' these are ones
-            // that no longer exist.
+    ///////////////////////////////////////////////////////////////////////////
+    // Cache warming
+    ///////////////////////////////////////////////////////////////////////////
 
-            getContentResolver().delete(
-                    CloudDriveContract.Nodes.CONTENT_URI,
-                    CloudDriveContract.Nodes.IS_DIRTY + " = ?",
-                    new String[]{Integer.toString(1)});
+    private class WarmCacheRunnable implements Runnable, CacheWarmer.Listener {
 
+        private final int mLevels;
+        private int mListedFolderCount;
+        private int mFoundFolderCount;
 
-        } catch (InterruptedException e) {
-            Log.d(TAG, "Interrupted while listing node contents.");
-        } catch (CloudDriveException e) {
-            Log.e(TAG, "Caught exception listing node contents.", e);
-        } catch (RemoteException e) {
-            Log.e(TAG, "Caught exception listing node contents.", e);
-        } catch (OperationApplicationException e) {
-            Log.e(TAG, "Caught exception listing node contents.", e);
+        WarmCacheRunnable(int levels) {
+            mLevels = levels;
         }
-    }
 
-    private ContentProviderOperation createInsertNodeContentProviderOperation(final Node node) {
-
-        // Save some of the fields on the node. The node contains many more fields that may
-        // be of use to us. For this application, we are choosing a few.
-        // The dirty flag is updated in this operation to let us know that this row has been updated.
-        ContentProviderOperation.Builder builder = ContentProviderOperation.newInsert(CloudDriveContract.Nodes.CONTENT_URI)
-                .withValue(CloudDriveContract.Nodes.NODE_ID, node.getId())
-                .withValue(CloudDriveContract.Nodes.CREATED_BY, node.getCreatedBy())
-                .withValue(CloudDriveContract.Nodes.CREATED_DATE, node.getCreatedDate())
-                .withValue(CloudDriveContract.Nodes.DESCRIPTION, node.getDescription())
-                .withValue(CloudDriveContract.Nodes.EXCLUSIVELY_TRASHED, node.isExclusivelyTrashed())
-                .withValue(CloudDriveContract.Nodes.IS_ROOT, node.isRoot())
-                .withValue(CloudDriveContract.Nodes.IS_SHARED, node.isShared())
-                .withValue(CloudDriveContract.Nodes.KIND, node.getKind())
-                .withValue(CloudDriveContract.Nodes.MODIFIED_DATE, node.getModifiedDate())
-                .withValue(CloudDriveContract.Nodes.NAME, node.getName())
-                .withValue(CloudDriveContract.Nodes.RECURSIVELY_TRASHED, node.isRecursivelyTrashed())
-                .withValue(CloudDriveContract.Nodes.STATUS, node.getStatus())
-                .withValue(CloudDriveContract.Nodes.VERSION, node.getVersion())
-                .withValue(CloudDriveContract.Nodes.IS_DIRTY, Integer.toString(0));
-
-        return builder.build();
-    }
+        @Override
+        public void run() {
+            try {
+                mCacheWarmer.warm(mLevels, this);
+                Log.i(TAG, "Warmed " + mListedFolderCount + " folders");
+            } catch (CloudDriveException e) {
+                Log.e(TAG, "Unable to warm the cache", e);
+            } catch (RuntimeException e) {
+                // Warming is only an optimization; the service must still stop when idle.
+                Log.e(TAG, "Unable to warm the cache", e);
+            } catch (InterruptedException e) {
+                // The service is being destroyed.
+                return;
+            } finally {
+                mIsWarming = false;
+            }
 
-    private List<ContentProviderOperation> createReplaceNodeParentContentProviderOperations(final Node node) {
-
-        // Delete all existing node_parent rows for the node
-        List<ContentProviderOperation> replaceNodeParentOperations = new ArrayList<ContentProviderOperation>();
-        replaceNodeParentOperations.add(
-                ContentProviderOperation.newDelete(CloudDriveContract.NodeParents.CONTENT_URI)
-                        .withSelection(CloudDriveContract.NodeParents.NODE_ID + " = ?", new String[]{node.getId()}).build());
-
-        // Insert all parents for the node. There could be multiple parents for each node.
-        List<String> nodeParentIds = node.getParents();
-        for (String nodeParentId : nodeParentIds) {
-            replaceNodeParentOperations.add(
-                    ContentProviderOperation.newInsert(CloudDriveContract.NodeParents.CONTENT_URI)
-                            .withValue(CloudDriveContract.NodeParents.NODE_ID, node.getId())
-                            .withValue(CloudDriveContract.NodeParents.PARENT_NODE_ID, nodeParentId).build());
+            sendProgress(true);
+            mHandler.post(mStopIfIdleRunnable);
         }
 
-        return replaceNodeParentOperations;
-    }
-
-    private ArrayList<ContentProviderOperation> createUpdateAllChildrenToDirtyOperations(String parentNodeId) {
-        Cursor parentCursor = null;
-        try {
-            parentCursor = getContentResolver().query(
-                    CloudDriveContract.NodeChildren.CONTENT_URI,
-                    new String[]{CloudDriveContract.NodeChildren._ID},
-                    CloudDriveContract.NodeChildren.PARENT_NODE_ID + " = ?",
-                    new String[]{parentNodeId},
-                    null);
-            int idIndex = parentCursor.getColumnIndex(CloudDriveContract.NodeChildren._ID);
-            ArrayList<ContentProviderOperation> updateToDirtyOperations = new ArrayList<ContentProviderOperation>();
-            for (parentCursor.moveToFirst(); !parentCursor.isAfterLast(); parentCursor.moveToNext()) {
-                int id = parentCursor.getInt(idIndex);
-                updateToDirtyOperations.add(ContentProviderOperation.newUpdate(
-                        CloudDriveContract.Nodes.CONTENT_URI.buildUpon().appendPath(Integer.toString(id)).build())
-                        .withValue(CloudDriveContract.Nodes.IS_DIRTY, 1).build());
+        @Override
+        public void onProgress(int listedFolderCount, int foundFolderCount) {
+            mListedFolderCount = listedFolderCount;
+            mFoundFolderCount = foundFolderCount;
+            sendProgress(false);
+        }
 
-            }
-            return updateToDirtyOperations;
-        } finally {
-            Closer.closeQuietly(parentCursor);
+        private void sendProgress(boolean isFinished) {
+            Intent intent = new Intent(ACTION_WARM_CACHE_PROGRESS);
+            intent.putExtra(EXTRA_LISTED_FOLDER_COUNT, mListedFolderCount);
+            intent.putExtra(EXTRA_FOUND_FOLDER_COUNT, mFoundFolderCount);
+            intent.putExtra(EXTRA_IS_FINISHED, isFinished);
+            LocalBroadcastManager.getInstance(CloudDriveFolderListingService.this).sendBroadcast(intent);
         }
     }
 }
@@ -16,6 +16,7 @@ package com.example.clouddrivefiles.service;
 
 import android.app.IntentService;
 import android.app.NotificationManager;
+import android.content.ContentValues;
 import android.content.Context;
 import android.content.Intent;
 import android.database.Cursor;
@@ -23,20 +24,26 @@ import android.net.Uri;
 import android.provider.OpenableColumns;
 import android.support.v4.app.NotificationCompat;
 import android.util.Log;
-import com.amazon.clouddrive.AmazonCloudDriveClient;
 import com.amazon.clouddrive.exceptions.CloudDriveException;
 import com.amazon.clouddrive.exceptions.ConflictError;
+import com.amazon.clouddrive.exceptions.InvalidParameter;
+import com.amazon.clouddrive.exceptions.ResourceNotFound;
 import com.amazon.clouddrive.handlers.ProgressListener;
-import com.amazon.clouddrive.model.ListNodesRequest;
-import com.amazon.clouddrive.model.ListNodesResponse;
-import com.amazon.clouddrive.model.Node;
 import com.amazon.clouddrive.model.NodeKind;
 import com.amazon.clouddrive.model.Suppress;
 import com.amazon.clouddrive.model.UploadFileRequest;
 import com.example.clouddrivefiles.R;
+import com.example.clouddrivefiles.client.SharedCloudDriveClient;
 import com.example.clouddrivefiles.global.UserState;
+import com.example.clouddrivefiles.progress.NotificationProgressSink;
+import com.example.clouddrivefiles.progress.ProgressReporter;
+import com.example.clouddrivefiles.progress.ThroughputLogSink;
 import com.example.clouddrivefiles.provider.CloudDriveContract;
+import com.example.clouddrivefiles.provider.UploadQueueItemRow;
+import com.example.clouddrivefiles.sync.FolderResolver;
 import com.example.clouddrivefiles.utils.Closer;
+import com.example.clouddrivefiles.utils.InsufficientStorageException;
+import com.example.clouddrivefiles.utils.StorageBudget;
 
 import java.io.File;
 import java.io.FileInputStream;
@@ -45,21 +52,27 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
 import java.util.List;
 
 /**
- * Simple service that uploads items in the upload queue to the root of the drive.
+ * Simple service that uploads items in the upload queue to the root of the drive,
+ * or to the folder named by their destination path.
  *
- * To add an item to the queue, insert the {@link com.example.clouddrivefiles.provider.CloudDriveContract.UploadQueueItems}
- * into the {@link com.example.clouddrivefiles.provider.CloudDriveProvider} instance.
+ * To add items to the queue, use {@link UploadQueue#enqueue}, which skips
+ * items that are already queued. Completed items are kept for a day, along
+ * with a hash of their content, so that content shared again under another
+ * URI is not uploaded twice.
  *
  * To trigger an upload of an item that has been queued, send an intent to the service.
  *
  * This class is an example of:
  * <ul>
  *     <li>uploading a file to the cloud</li>
- *     <li>using {@link ProgressListener} and {@link com.amazon.clouddrive.handlers.AsyncHandler} callbacks</li>
+ *     <li>using a {@link ProgressListener} that rate-limits notification updates</li>
  *     <li>protecting customer's content by using a ContentProvider to vend the content</li>
  * </ul>
  */
@@ -67,10 +80,18 @@ public class CloudDriveUploadService extends IntentService {
 
     private static final String TAG = CloudDriveUploadService.class.getSimpleName();
 
-    private AmazonCloudDriveClient mAmazonCloudDriveClient;
-    private String mRootNodeId;
+    // The queue columns read for each upload
+    private static final String[] QUEUE_PROJECTION = {
+            CloudDriveContract.UploadQueueItems._ID,
+            CloudDriveContract.UploadQueueItems.SOURCE_URI,
+            CloudDriveContract.UploadQueueItems.DESTINATION_PATH };
+
+    private SharedCloudDriveClient mCloudDriveClient;
     private NotificationManager mNotificationManager;
     private NotificationCompat.Builder mNotificationBuilder;
+    private ProgressReporter mProgressReporter;
+    private FolderResolver mFolderResolver;
+    private StorageBudget mStorageBudget;
 
     public CloudDriveUploadService() {
         super(CloudDriveUploadService.class.getSimpleName());
@@ -80,41 +101,61 @@ public class CloudDriveUploadService extends IntentService {
     protected void onHandleIntent(Intent intent) {
 
         // Get the global client instance
-        mAmazonCloudDriveClient = UserState.getAmazonCloudDriveClientInstance(this);
+        mCloudDriveClient = UserState.getSharedCloudDriveClientInstance(this);
+        mFolderResolver = new FolderResolver(getContentResolver(), mCloudDriveClient);
+        mStorageBudget = StorageBudget.getInstance(this);
+
+        // Staged files left behind by a process that was killed mid-upload
+        deleteStagedFiles();
 
         // Notification manager and builder for creating the upload notifications
         mNotificationManager = (NotificationManager) getSystemService(Context.NOTIFICATION_SERVICE);
         mNotificationBuilder = new NotificationCompat.Builder(this);
 
+        // Reports upload progress to the notification at a rate it can keep up with
+        mProgressReporter = new ProgressReporter(
+                new NotificationProgressSink(mNotificationManager, mNotificationBuilder, R.id.upload_notification),
+                new ThroughputLogSink(TAG, "Upload"));
+
+        // Forget uploads that are too old to be shared again by accident
+        getContentResolver().delete(
+                CloudDriveContract.UploadQueueItems.CONTENT_URI,
+                CloudDriveContract.UploadQueueItems.STATUS + " = ? AND " +
+                        CloudDriveContract.UploadQueueItems.COMPLETED_TIME + " <= ?",
+                new String[] { CloudDriveContract.UploadQueueItems.STATUS_COMPLETED, UploadQueue.getRecentSelectionArg() });
+
+        boolean isOutOfSpace = false;
         Cursor queueCursor = null;
         try {
 
-            // Query for all upload queue items ordered by _ID (this orders the
+            // Query for all pending upload queue items ordered by _ID (this orders the
             // entries by when they were inserted into the database).
+            // Only the columns needed here are read.
             queueCursor = getContentResolver().query(
                     CloudDriveContract.UploadQueueItems.CONTENT_URI,
-                    null,
-                    null,
+                    QUEUE_PROJECTION,
+                    UploadQueue.getPendingSelection(),
                     null,
                     CloudDriveContract.UploadQueueItems._ID + " ASC");
 
             // For each queue item, upload it.
-            for (queueCursor.moveToFirst(); !queueCursor.isAfterLast(); queueCursor.moveToNext()) {
-                long id = queueCursor.getLong(queueCursor.getColumnIndex(CloudDriveContract.UploadQueueItems._ID));
-                String sourceUri = queueCursor.getString(queueCursor.getColumnIndex(CloudDriveContract.UploadQueueItems.SOURCE_URI));
+            UploadQueueItemRow queueItem = new UploadQueueItemRow(queueCursor);
+            while (queueItem.moveToNext()) {
+                long id = queueItem.getId();
+                String sourceUri = queueItem.getSourceUri();
+                String destinationPath = queueItem.getDestinationPath();
                 try {
 
-                    // Do the upload
-                    uploadItem(Uri.parse(sourceUri));
-
-                    // Upload was successful, remove entry from upload queue
-                    deleteItemFromUploadQueue(id);
+                    // Do the upload. The entry is marked as completed once done.
+                    uploadItem(id, Uri.parse(sourceUri), destinationPath);
 
-                } catch (ConflictError e) {
-                    // Already uploaded. Delete the queue entry.
-                    deleteItemFromUploadQueue(id);
                 } catch (CloudDriveException e) {
                     Log.e(TAG, "Could not upload " + sourceUri, e);
+                } catch (InsufficientStorageException e) {
+                    // Leave the entry queued for when there is space, and go on
+                    // with the rest, which may be smaller.
+                    Log.w(TAG, "Could not upload " + sourceUri + ": " + e.getMessage());
+                    isOutOfSpace = true;
                 } catch (FileNotFoundException e) {
                     Log.e(TAG, "Could not upload " + sourceUri, e);
                 } catch (IOException e) {
@@ -127,29 +168,59 @@ public class CloudDriveUploadService extends IntentService {
             Closer.closeQuietly(queueCursor);
         }
 
-        // Notify that all of the work is done.
-        mNotificationBuilder.setContentText(getString(R.string.upload_notification_complete))
+        // Notify that all of the work is done, or that some of it has to wait for space.
+        mNotificationBuilder.setContentText(getString(isOutOfSpace
+                                    ? R.string.upload_notification_no_space
+                                    : R.string.upload_notification_complete))
                             .setProgress(0, 0, false);
 
         mNotificationManager.notify(R.id.upload_notification, mNotificationBuilder.build());
     }
 
     /**
-     * Removes an item from the upload queue by the item's id.
-     * @param id ID of the item to remove
+     * Marks an item of the upload queue as completed, so that it is remembered
+     * for a while rather than uploaded again.
+     * @param id ID of the item
+     * @param contentHash the hex MD5 of its content
      */
-    private void deleteItemFromUploadQueue(long id) {
-        getContentResolver().delete(
+    private void markItemCompleted(long id, String contentHash) {
+        ContentValues contentValues = new ContentValues(3);
+        contentValues.put(CloudDriveContract.UploadQueueItems.STATUS, CloudDriveContract.UploadQueueItems.STATUS_COMPLETED);
+        contentValues.put(CloudDriveContract.UploadQueueItems.CONTENT_HASH, contentHash);
+        contentValues.put(CloudDriveContract.UploadQueueItems.COMPLETED_TIME, System.currentTimeMillis());
+        getContentResolver().update(
                 CloudDriveContract.UploadQueueItems.CONTENT_URI,
+                contentValues,
                 CloudDriveContract.UploadQueueItems._ID + " = ?",
                 new String[]{String.valueOf(id)});
     }
 
+    /**
+     * Checks whether the same content was uploaded recently from another queue entry.
+     * @param contentHash the hex MD5 of the content
+     */
+    private boolean isRecentlyUploaded(String contentHash) {
+        Cursor cursor = getContentResolver().query(
+                CloudDriveContract.UploadQueueItems.CONTENT_URI,
+                new String[]{CloudDriveContract.UploadQueueItems._ID},
+                CloudDriveContract.UploadQueueItems.CONTENT_HASH + " = ? AND " + UploadQueue.getRecentlyCompletedSelection(),
+                new String[]{contentHash, UploadQueue.getRecentSelectionArg()},
+                null);
+        try {
+            return cursor != null && cursor.moveToFirst();
+        } finally {
+            Closer.closeQuietly(cursor);
+        }
+    }
+
     /**
      * Upload the content with sourceUri to Amazon Cloud Drive
+     * @param id ID of the upload queue item
      * @param sourceUri the content URI to upload
+     * @param destinationPath the folder to upload into, null for the root
      */
-    private void uploadItem(Uri sourceUri) throws IOException, InterruptedException, CloudDriveException {
+    private void uploadItem(long id, Uri sourceUri, String destinationPath)
+            throws IOException, InterruptedException, CloudDriveException {
         File stagedUploadFile = null;
         try {
             String displayName = getDisplayName(sourceUri);
@@ -162,34 +233,36 @@ public class CloudDriveUploadService extends IntentService {
                                 .setProgress(0, 0, true);
             mNotificationManager.notify(R.id.upload_notification, mNotificationBuilder.build());
 
-            // Create a staged file that we will upload from.
-            stagedUploadFile = copyContentStreamToStagingFile(sourceUri, displayName);
+            // Create a staged file that we will upload from, hashing it on the way.
+            // Space for it is reserved first when the source reports its size, so that
+            // a file that will not fit fails now rather than once most of it is copied.
+            MessageDigest digest = newMd5Digest();
+            StorageBudget.Reservation reservation =
+                    mStorageBudget.reserve(getContentSize(sourceUri), "staging " + displayName);
+            try {
+                stagedUploadFile = copyContentStreamToStagingFile(sourceUri, displayName, digest);
+            } finally {
+                reservation.release();
+            }
+            String contentHash = toHex(digest.digest());
+            if (isRecentlyUploaded(contentHash)) {
+                Log.i(TAG, "Skipping " + sourceUri + ", the same content was just uploaded");
+                markItemCompleted(id, contentHash);
+                return;
+            }
 
-            // Upload the file with the root as its parent.
-            List<String> parents = new ArrayList<String>();
-            parents.add(getRootNodeId());
-            UploadFileRequest uploadFileRequest = new UploadFileRequest(
-                    stagedUploadFile.getName(),
-                    new FileInputStream(stagedUploadFile),
-                    stagedUploadFile.length());
-            uploadFileRequest.setParents(parents);
-            uploadFileRequest.setSuppress(Suppress.Deduplication);
-            mAmazonCloudDriveClient.uploadFile(uploadFileRequest, new ProgressListener() {
-                @Override
-                public void onProgress(long progress, long maxProgress) {
-                    // Progress is reported on the background thread. Notifications can be updated
-                    // from the background thread so there is no need to post a message to the
-                    // main thread.
-
-                    // Rebase progress to be in Integer.MAX_VALUE scale so that we can pass it to
-                    // Android's progress bar.
-                    int rebasedProgress = (int)(Integer.MAX_VALUE * (progress / (double) maxProgress));
-                    mNotificationBuilder.setProgress(rebasedProgress, Integer.MAX_VALUE, false);
-
-                    // Report progress to notification
-                    mNotificationManager.notify(R.id.upload_notification, mNotificationBuilder.build());
-                }
-            });
+            // Upload the file into its destination folder. Known folders are
+            // resolved from the node cache without a request.
+            try {
+                uploadStagedFile(stagedUploadFile, mFolderResolver.resolve(destinationPath));
+            } catch (ResourceNotFound e) {
+                // A cached folder may have been deleted since. Look the path up again, once.
+                retryUploadStagedFile(stagedUploadFile, destinationPath, e);
+            } catch (InvalidParameter e) {
+                // Also returned for a parent that is in the trash
+                retryUploadStagedFile(stagedUploadFile, destinationPath, e);
+            }
+            markItemCompleted(id, contentHash);
 
         } finally {
             // Clean up staged file.
@@ -199,6 +272,41 @@ public class CloudDriveUploadService extends IntentService {
         }
     }
 
+    private void retryUploadStagedFile(File stagedUploadFile, String destinationPath, CloudDriveException e)
+            throws IOException, InterruptedException, CloudDriveException {
+        if (destinationPath == null) {
+            throw e;
+        }
+        mFolderResolver.invalidate(destinationPath);
+        uploadStagedFile(stagedUploadFile, mFolderResolver.resolve(destinationPath));
+    }
+
+    /**
+     * Uploads a staged file into a folder.
+     * @param stagedUploadFile the file to upload
+     * @param parentId the folder's node ID
+     */
+    private void uploadStagedFile(File stagedUploadFile, String parentId)
+            throws IOException, InterruptedException, CloudDriveException {
+        List<String> parents = new ArrayList<String>();
+        parents.add(parentId);
+        FileInputStream inputStream = new FileInputStream(stagedUploadFile);
+        try {
+            UploadFileRequest uploadFileRequest = new UploadFileRequest(
+                    stagedUploadFile.getName(),
+                    inputStream,
+                    stagedUploadFile.length());
+            uploadFileRequest.setParents(parents);
+            uploadFileRequest.setSuppress(Suppress.Deduplication);
+            mProgressReporter.reset();
+            mCloudDriveClient.uploadFile(uploadFileRequest, mProgressReporter);
+        } catch (ConflictError e) {
+            // Already uploaded.
+        } finally {
+            Closer.closeQuietly(inputStream);
+        }
+    }
+
     /**
      * Get the display name from the URI's provider.
      * @param uri the URI that will be resolved and opened
@@ -233,24 +341,67 @@ public class CloudDriveUploadService extends IntentService {
         }
     }
 
+    /**
+     * Get the content size from the URI's provider.
+     * @param uri the URI that will be resolved and opened
+     * @return the size in bytes if known, 0 otherwise.
+     */
+    private long getContentSize(Uri uri) {
+        Cursor contentCursor = null;
+        try {
+            contentCursor = getContentResolver().query(
+                    uri,
+                    new String[]{OpenableColumns.SIZE},
+                    null,
+                    null,
+                    null);
+            if (contentCursor == null || !contentCursor.moveToFirst()) {
+                return 0;
+            }
+
+            int sizeIndex = contentCursor.getColumnIndex(OpenableColumns.SIZE);
+            if (sizeIndex == -1 || contentCursor.isNull(sizeIndex)) {
+                return 0;
+            }
+            return contentCursor.getLong(sizeIndex);
+        } finally {
+            Closer.closeQuietly(contentCursor);
+        }
+    }
+
+    private File getStagingDirectory() {
+        return new File(getCacheDir() + "/staged/");
+    }
+
+    private void deleteStagedFiles() {
+        File[] stagedFiles = getStagingDirectory().listFiles();
+        if (stagedFiles != null) {
+            for (File stagedFile : stagedFiles) {
+                stagedFile.delete();
+            }
+        }
+    }
+
     /**
      * Copy stream from ContentProvider to a staged file.
      * @param uri the URI that will be resolved and opened
+     * @param digest updated with every byte copied
      * @return the staged file that was created.
      * @throws IOException
      * @throws InterruptedException
      */
-    private File copyContentStreamToStagingFile(Uri uri, String displayName) throws IOException, InterruptedException {
+    private File copyContentStreamToStagingFile(Uri uri, String displayName, MessageDigest digest)
+            throws IOException, InterruptedException {
         // Copy stream from content provider into a staged file.
         InputStream inputStream = null;
         FileOutputStream fos = null;
         try {
             inputStream = getContentResolver().openInputStream(uri);
-            File stagingDirectory = new File(getCacheDir() + "/staged/");
+            File stagingDirectory = getStagingDirectory();
             stagingDirectory.mkdirs();
             File stagedUploadFile = new File(stagingDirectory, displayName);
             fos = new FileOutputStream(stagedUploadFile);
-            copyInputStreamToOutputStream(inputStream, fos);
+            copyInputStreamToOutputStream(inputStream, new DigestOutputStream(fos, digest));
             return stagedUploadFile;
         } finally {
             Closer.closeQuietly(inputStream);
@@ -258,41 +409,6 @@ public class CloudDriveUploadService extends IntentService {
         }
     }
 
-    /**
-     * Returns the root node for the drive.
-     * @return the root node for the drive.
-     * @throws InterruptedException
-     * @throws CloudDriveException
-     */
-    private String getRootNodeId() throws InterruptedException, CloudDriveException {
-
-        if (mRootNodeId != null) {
-            return mRootNodeId;
-        }
-
-        // To list the root node, we filter to only show the nodes that
-        // have the property isRoot set to true. To learn more about
-        // filtering, see https://developer.amazon.com/public/apis/experience/cloud-drive/content/nodes#Filtering
-        ListNodesRequest listNodesRequest = new ListNodesRequest();
-        String filters = "isRoot:true";
-        listNodesRequest.setFilters(filters);
-
-        // Make a synchronous (blocking) call to Amazon Cloud Drive that lists
-        // the root node.
-        ListNodesResponse listNodesResponse = mAmazonCloudDriveClient.listNodes(listNodesRequest);
-        List<Node> nodes = listNodesResponse.getData();
-
-        if (nodes.isEmpty()) {
-            return null;
-        }
-
-        // There is only one root node, so we will just get the first item.
-        Node rootNode = nodes.get(0);
-
-        mRootNodeId = rootNode.getId();
-        return mRootNodeId;
-    }
-
     /**
      * Copies bytes from InputStream to OutputStream
      * @param in InputStream to copy from
@@ -312,4 +428,21 @@ public class CloudDriveUploadService extends IntentService {
             out.write(buf, 0, len);
         }
     }
+
+    private static MessageDigest newMd5Digest() {
+        try {
+            return MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            // Every Android device provides MD5.
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String toHex(byte[] bytes) {
+        StringBuilder hex = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            hex.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        }
+        return hex.toString();
+    }
 }
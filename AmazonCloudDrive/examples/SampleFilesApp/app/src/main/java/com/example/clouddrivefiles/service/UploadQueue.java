@@ -0,0 +1,159 @@
+/*
+ * Copyright 2015 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package com.example.clouddrivefiles.service;
+
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.net.Uri;
+import com.example.clouddrivefiles.provider.CloudDriveContract;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Adds items to the upload queue read by {@link CloudDriveUploadService}.
+ *
+ * This class is an example of:
+ * <ul>
+ *     <li>inserting many rows with one {@link ContentResolver#bulkInsert} transaction</li>
+ *     <li>skipping items that are already queued or were recently uploaded</li>
+ * </ul>
+ */
+public final class UploadQueue {
+
+    /**
+     * How long completed uploads are remembered, to recognize content that is
+     * shared again.
+     */
+    public static final long COMPLETED_RETENTION_MILLIS = 24 * 60 * 60 * 1000L;
+
+    // Stays well below SQLite's limit of 999 bound arguments
+    private static final int MAX_URIS_PER_QUERY = 500;
+
+    private UploadQueue() {
+    }
+
+    /**
+     * Queues content for upload, skipping URIs that are pending or were
+     * uploaded within {@link #COMPLETED_RETENTION_MILLIS}. The caller starts
+     * {@link CloudDriveUploadService} once for the whole batch.
+     * @param contentResolver a ContentResolver
+     * @param sourceUris the content to upload
+     * @return the number of items added to the queue
+     */
+    public static int enqueue(ContentResolver contentResolver, Collection<Uri> sourceUris) {
+        return enqueue(contentResolver, sourceUris, null);
+    }
+
+    /**
+     * Same as {@link #enqueue(ContentResolver, Collection)}, but uploads into a
+     * folder other than the root.
+     * @param contentResolver a ContentResolver
+     * @param sourceUris the content to upload
+     * @param destinationPath folder names separated by slashes, relative to
+     *                        the root. Missing folders are created.
+     * @return the number of items added to the queue
+     */
+    public static int enqueue(ContentResolver contentResolver, Collection<Uri> sourceUris, String destinationPath) {
+        Set<String> newSourceUris = new LinkedHashSet<String>();
+        for (Uri sourceUri : sourceUris) {
+            if (sourceUri != null) {
+                newSourceUris.add(sourceUri.toString());
+            }
+        }
+
+        List<String> candidates = new ArrayList<String>(newSourceUris);
+        for (int start = 0; start < candidates.size(); start += MAX_URIS_PER_QUERY) {
+            List<String> chunk = candidates.subList(start, Math.min(candidates.size(), start + MAX_URIS_PER_QUERY));
+            newSourceUris.removeAll(queryQueuedSourceUris(contentResolver, chunk));
+        }
+
+        ContentValues[] values = new ContentValues[newSourceUris.size()];
+        int i = 0;
+        for (String sourceUri : newSourceUris) {
+            values[i] = new ContentValues(3);
+            values[i].put(CloudDriveContract.UploadQueueItems.SOURCE_URI, sourceUri);
+            values[i].put(CloudDriveContract.UploadQueueItems.STATUS, CloudDriveContract.UploadQueueItems.STATUS_PENDING);
+            values[i].put(CloudDriveContract.UploadQueueItems.DESTINATION_PATH, destinationPath);
+            i++;
+        }
+        return values.length > 0
+                ? contentResolver.bulkInsert(CloudDriveContract.UploadQueueItems.CONTENT_URI, values)
+                : 0;
+    }
+
+    /**
+     * Returns the selection that matches entries waiting to be uploaded.
+     */
+    static String getPendingSelection() {
+        return "(" + CloudDriveContract.UploadQueueItems.STATUS + " IS NULL OR " +
+                CloudDriveContract.UploadQueueItems.STATUS + " = '" +
+                CloudDriveContract.UploadQueueItems.STATUS_PENDING + "')";
+    }
+
+    /**
+     * Returns the selection that matches entries uploaded recently enough to
+     * be remembered. Its single argument is from {@link #getRecentSelectionArg()}.
+     */
+    static String getRecentlyCompletedSelection() {
+        return "(" + CloudDriveContract.UploadQueueItems.STATUS + " = '" +
+                CloudDriveContract.UploadQueueItems.STATUS_COMPLETED + "' AND " +
+                CloudDriveContract.UploadQueueItems.COMPLETED_TIME + " > ?)";
+    }
+
+    static String getRecentSelectionArg() {
+        return String.valueOf(System.currentTimeMillis() - COMPLETED_RETENTION_MILLIS);
+    }
+
+    /**
+     * Returns which of the source URIs are pending or recently uploaded.
+     */
+    private static List<String> queryQueuedSourceUris(ContentResolver contentResolver, List<String> sourceUris) {
+        StringBuilder selection = new StringBuilder()
+                .append(getPendingSelection()).append(" OR ").append(getRecentlyCompletedSelection());
+        selection.insert(0, "(").append(") AND ")
+                .append(CloudDriveContract.UploadQueueItems.SOURCE_URI).append(" IN (");
+        String[] selectionArgs = new String[sourceUris.size() + 1];
+        selectionArgs[0] = getRecentSelectionArg();
+        for (int i = 0; i < sourceUris.size(); i++) {
+            selection.append(i == 0 ? "?" : ", ?");
+            selectionArgs[i + 1] = sourceUris.get(i);
+        }
+        selection.append(")");
+
+        List<String> queuedSourceUris = new ArrayList<String>();
+        Cursor cursor = contentResolver.query(
+                CloudDriveContract.UploadQueueItems.CONTENT_URI,
+                new String[] { CloudDriveContract.UploadQueueItems.SOURCE_URI },
+                selection.toString(),
+                selectionArgs,
+                null);
+        if (cursor == null) {
+            return queuedSourceUris;
+        }
+        try {
+            while (cursor.moveToNext()) {
+                queuedSourceUris.add(cursor.getString(0));
+            }
+        } finally {
+            cursor.close();
+        }
+        return queuedSourceUris;
+    }
+}
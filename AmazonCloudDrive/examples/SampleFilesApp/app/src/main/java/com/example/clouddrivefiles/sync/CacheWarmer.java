@@ -0,0 +1,309 @@
+/*
+ * Copyright 2015 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package com.example.clouddrivefiles.sync;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.content.OperationApplicationException;
+import android.os.RemoteException;
+import android.os.SystemClock;
+import android.util.Log;
+import com.amazon.clouddrive.exceptions.CloudDriveException;
+import com.amazon.clouddrive.model.NodeKind;
+import com.example.clouddrivefiles.client.SharedCloudDriveClient;
+import com.example.clouddrivefiles.provider.CloudDriveProvider;
+import com.example.clouddrivefiles.provider.NodeRecord;
+import com.example.clouddrivefiles.provider.NodeWriter;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Fills the node cache with the root and the first levels of folders, so the
+ * first screens after login do not have to wait for the network. If the cache
+ * was saved at logout, the snapshot is restored first.
+ *
+ * This class is an example of:
+ * <ul>
+ *     <li>listing a tree breadth first with a bounded number of concurrent requests</li>
+ *     <li>funnelling pages from several threads into a single writer, which
+ *     commits many folders per transaction</li>
+ *     <li>reporting progress from a long running job</li>
+ * </ul>
+ *
+ * Warming only adds and updates nodes. It does not mark or delete stale
+ * children, so it can run alongside {@link FolderSyncCoordinator} listings of
+ * the same folders. Stale nodes are removed by the regular listing when a
+ * folder is opened.
+ */
+public class CacheWarmer {
+
+    private static final String TAG = CacheWarmer.class.getSimpleName();
+
+    public static final int DEFAULT_LEVELS = 2;
+
+    private static final int MAX_CONCURRENT_FOLDERS = 3;
+
+    // Pages are committed when the writer catches up with the network, or
+    // after this many nodes, whichever comes first.
+    private static final int MAX_NODES_PER_TRANSACTION = 2000;
+
+    // Bounds the parsed pages waiting for the writer
+    private static final int MAX_QUEUED_PAGES = 16;
+
+    private static final String SNAPSHOT_FILE_NAME = "nodes.snapshot";
+
+    /**
+     * Notified on the thread that called {@link #warm(int, Listener)}.
+     */
+    public interface Listener {
+        /**
+         * @param listedFolderCount folders that have been listed, or failed to list
+         * @param foundFolderCount folders found so far that will be listed
+         */
+        void onProgress(int listedFolderCount, int foundFolderCount);
+    }
+
+    private final ContentResolver mContentResolver;
+    private final SharedCloudDriveClient mCloudDriveClient;
+    private final FolderSynchronizer mFolderSynchronizer;
+    private final File mSnapshotFile;
+
+    /**
+     * @param snapshotFile a snapshot saved by {@link #saveSnapshot(ContentResolver, File)},
+     *                     restored before anything is listed if it belongs to the same account
+     */
+    public CacheWarmer(ContentResolver contentResolver, SharedCloudDriveClient cloudDriveClient, File snapshotFile) {
+        mContentResolver = contentResolver;
+        mCloudDriveClient = cloudDriveClient;
+        mFolderSynchronizer = new FolderSynchronizer(contentResolver, cloudDriveClient);
+        mSnapshotFile = snapshotFile;
+    }
+
+    /**
+     * Returns where the node cache snapshot is kept.
+     * @param context a Context
+     * @return the snapshot file, which may not exist
+     */
+    public static File getSnapshotFile(Context context) {
+        return new File(context.getFilesDir(), SNAPSHOT_FILE_NAME);
+    }
+
+    /**
+     * Saves the node cache, so that the next login can restore it rather than
+     * list every folder again. Call it before clearing the cache.
+     * @param contentResolver a ContentResolver
+     * @param snapshotFile where to save the snapshot
+     */
+    public static void saveSnapshot(ContentResolver contentResolver, File snapshotFile) {
+        CloudDriveProvider provider = FolderSynchronizer.getLocalProvider(contentResolver);
+        if (provider == null) {
+            return;
+        }
+        try {
+            long start = SystemClock.elapsedRealtime();
+            int nodeCount = provider.saveSnapshot(snapshotFile);
+            Log.i(TAG, "Saved " + nodeCount + " nodes in " + (SystemClock.elapsedRealtime() - start) + " ms");
+        } catch (IOException e) {
+            Log.e(TAG, "Unable to save the node cache", e);
+            snapshotFile.delete();
+        }
+    }
+
+    private void restoreSnapshot(CloudDriveProvider provider, String rootNodeId) {
+        try {
+            long start = SystemClock.elapsedRealtime();
+            int nodeCount = provider.restoreSnapshot(mSnapshotFile, rootNodeId);
+            if (nodeCount >= 0) {
+                Log.i(TAG, "Restored " + nodeCount + " nodes in " + (SystemClock.elapsedRealtime() - start) + " ms");
+            }
+        } catch (IOException e) {
+            // Corrupt; the folders are listed from the network instead.
+            Log.e(TAG, "Unable to restore the node cache", e);
+            mSnapshotFile.delete();
+        }
+    }
+
+    /**
+     * Lists the root and the given number of folder levels below it, and saves
+     * them. Blocks until done; interrupt the calling thread to stop early.
+     * Nothing is done if {@link CloudDriveProvider} runs in another process.
+     * @param levels how many levels of folders to list, 1 for just the root's children
+     * @param listener notified as folders are listed
+     * @throws InterruptedException
+     * @throws CloudDriveException if the root cannot be listed
+     */
+    public void warm(int levels, Listener listener) throws InterruptedException, CloudDriveException {
+        CloudDriveProvider provider = FolderSynchronizer.getLocalProvider(mContentResolver);
+        if (provider == null) {
+            Log.w(TAG, "The provider is remote, not warming");
+            return;
+        }
+
+        // The root is looked up as folder listings do, so its persisted ID is
+        // reused and a lookup already in flight is shared. It is saved before
+        // its children, so they can be joined to it.
+        String rootNodeId;
+        try {
+            rootNodeId = mFolderSynchronizer.syncRootNode();
+        } catch (RemoteException e) {
+            Log.e(TAG, "Unable to save the root", e);
+            return;
+        } catch (OperationApplicationException e) {
+            Log.e(TAG, "Unable to save the root", e);
+            return;
+        }
+        if (rootNodeId == null) {
+            return;
+        }
+        restoreSnapshot(provider, rootNodeId);
+
+        BlockingQueue<Page> pages = new ArrayBlockingQueue<Page>(MAX_QUEUED_PAGES);
+        ExecutorService executor = Executors.newFixedThreadPool(MAX_CONCURRENT_FOLDERS);
+        NodeWriter nodeWriter = provider.newNodeWriter();
+        boolean isBatching = false;
+        try {
+            executor.execute(new ListFolderRunnable(rootNodeId, 1, levels, pages));
+            int listedFolderCount = 0;
+            int foundFolderCount = 1;
+            listener.onProgress(listedFolderCount, foundFolderCount);
+
+            while (listedFolderCount < foundFolderCount) {
+                // Wait for the network with no transaction open, so that readers
+                // and folder listings are not held up by a slow request.
+                Page page = pages.take();
+
+                // Then write what has already arrived in one transaction, and
+                // commit when the writer catches up, so listed folders become visible.
+                nodeWriter.beginBatch();
+                isBatching = true;
+                int batchedNodeCount = 0;
+                do {
+                    if (page.parser != null) {
+                        nodeWriter.writeNodes(page.parser.getRecords(), page.parser.getCount());
+                        batchedNodeCount += page.parser.getCount();
+                    }
+                    if (page.childFolderIds != null) {
+                        listedFolderCount++;
+                        for (String childFolderId : page.childFolderIds) {
+                            executor.execute(new ListFolderRunnable(childFolderId, page.level + 1, levels, pages));
+                        }
+                        foundFolderCount += page.childFolderIds.size();
+                        listener.onProgress(listedFolderCount, foundFolderCount);
+                    }
+                    page = batchedNodeCount < MAX_NODES_PER_TRANSACTION ? pages.poll() : null;
+                }
+                while (page != null);
+                isBatching = false;
+                nodeWriter.endBatch(true);
+            }
+        } finally {
+            executor.shutdownNow();
+            try {
+                if (isBatching) {
+                    nodeWriter.endBatch(false);
+                }
+            } finally {
+                nodeWriter.close();
+            }
+        }
+    }
+
+    /**
+     * A parsed page of children, or the end of a folder's listing.
+     */
+    private static class Page {
+        final NodePageParser parser;
+        final int level;
+        // Set on the last message for a folder: the child folders to list next
+        final List<String> childFolderIds;
+
+        Page(NodePageParser parser, int level, List<String> childFolderIds) {
+            this.parser = parser;
+            this.level = level;
+            this.childFolderIds = childFolderIds;
+        }
+    }
+
+    /**
+     * Lists one folder page by page and hands the pages to the writer.
+     */
+    private class ListFolderRunnable implements Runnable {
+
+        private final String mFolderId;
+        private final int mLevel;
+        private final int mLevels;
+        private final BlockingQueue<Page> mPages;
+
+        ListFolderRunnable(String folderId, int level, int levels, BlockingQueue<Page> pages) {
+            mFolderId = folderId;
+            mLevel = level;
+            mLevels = levels;
+            mPages = pages;
+        }
+
+        @Override
+        public void run() {
+            List<String> childFolderIds = new ArrayList<String>();
+            boolean isInterrupted = false;
+            try {
+                String nextToken = null;
+                do {
+                    // Pages are handed to the writer, so each one gets its own parser.
+                    NodePageParser parser = new NodePageParser();
+                    nextToken = mCloudDriveClient.getMetadata(
+                            FolderSynchronizer.createListChildrenUrl(mFolderId, nextToken), parser);
+
+                    if (mLevel < mLevels) {
+                        List<NodeRecord> records = parser.getRecords();
+                        for (int i = 0, count = parser.getCount(); i < count; i++) {
+                            if (NodeKind.FOLDER.equals(records.get(i).kind)) {
+                                childFolderIds.add(records.get(i).nodeId);
+                            }
+                        }
+                    }
+                    mPages.put(new Page(parser, mLevel, null));
+                }
+                while (nextToken != null);
+            } catch (CloudDriveException e) {
+                // Folders are opened on demand anyway, so a failure only costs this subtree.
+                Log.w(TAG, "Unable to warm " + mFolderId, e);
+                childFolderIds.clear();
+            } catch (RuntimeException e) {
+                // For example a malformed response. Handled like a failed request.
+                Log.w(TAG, "Unable to warm " + mFolderId, e);
+                childFolderIds.clear();
+            } catch (InterruptedException e) {
+                isInterrupted = true;
+            } finally {
+                // The writer waits for the end of every folder it was told about,
+                // so it is always posted unless warming was stopped.
+                if (!isInterrupted) {
+                    try {
+                        mPages.put(new Page(null, mLevel, childFolderIds));
+                    } catch (InterruptedException e) {
+                        // Warming was stopped.
+                    }
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,249 @@
+/*
+ * Copyright 2015 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package com.example.clouddrivefiles.sync;
+
+import android.content.ContentResolver;
+import android.content.OperationApplicationException;
+import android.database.Cursor;
+import android.os.RemoteException;
+import android.util.Log;
+import com.amazon.clouddrive.exceptions.CloudDriveException;
+import com.amazon.clouddrive.exceptions.ConflictError;
+import com.amazon.clouddrive.model.CreateNodeRequest;
+import com.amazon.clouddrive.model.ListChildrenRequest;
+import com.amazon.clouddrive.model.Node;
+import com.amazon.clouddrive.model.NodeKind;
+import com.amazon.clouddrive.model.NodeStatus;
+import com.example.clouddrivefiles.client.SharedCloudDriveClient;
+import com.example.clouddrivefiles.provider.CloudDriveContract;
+import com.example.clouddrivefiles.utils.Closer;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Resolves folder paths such as "Uploads/2015-06" to node IDs, creating the
+ * folders that do not exist yet.
+ *
+ * This class is an example of:
+ * <ul>
+ *     <li>using the node cache in {@link com.example.clouddrivefiles.provider.CloudDriveProvider}
+ *     to skip lookups of folders that are already known</li>
+ *     <li>looking up a child by name with a filtered ListChildren request</li>
+ *     <li>creating folders, and recovering when another client creates the same one</li>
+ * </ul>
+ *
+ * Each folder is looked up in memory, then in the node cache, and only then
+ * on Cloud Drive. Folders found or created on Cloud Drive are saved to the
+ * node cache, so they stay resolved across restarts.
+ */
+public class FolderResolver {
+
+    private static final String TAG = FolderResolver.class.getSimpleName();
+
+    private static final String PATH_SEPARATOR = "/";
+
+    // Characters that must be escaped in a filter value
+    private static final String FILTER_SPECIAL_CHARACTERS = "+-&|!(){}[]^'\"~*?:\\ ";
+
+    private final ContentResolver mContentResolver;
+    private final SharedCloudDriveClient mCloudDriveClient;
+    private final FolderSynchronizer mFolderSynchronizer;
+
+    // Normalized path to node ID, for the lifetime of this instance
+    private final Map<String, String> mFolderIds = new HashMap<String, String>();
+
+    public FolderResolver(ContentResolver contentResolver, SharedCloudDriveClient cloudDriveClient) {
+        mContentResolver = contentResolver;
+        mCloudDriveClient = cloudDriveClient;
+        mFolderSynchronizer = new FolderSynchronizer(contentResolver, cloudDriveClient);
+    }
+
+    /**
+     * Returns the node ID of the folder at a path, creating any missing folders.
+     * @param path folder names separated by slashes, relative to the root. An
+     *             empty or null path is the root.
+     * @return the folder's node ID
+     * @throws InterruptedException
+     * @throws CloudDriveException
+     */
+    public String resolve(String path) throws InterruptedException, CloudDriveException {
+        String folderId = mCloudDriveClient.getRootNodeId();
+        StringBuilder resolvedPath = new StringBuilder();
+        for (String name : split(path)) {
+            if (resolvedPath.length() > 0) {
+                resolvedPath.append(PATH_SEPARATOR);
+            }
+            resolvedPath.append(name);
+
+            String key = resolvedPath.toString();
+            String childId = mFolderIds.get(key);
+            if (childId == null) {
+                childId = queryCachedFolderId(folderId, name);
+            }
+            if (childId == null) {
+                childId = findOrCreateFolder(folderId, name);
+            }
+            mFolderIds.put(key, childId);
+            folderId = childId;
+        }
+        return folderId;
+    }
+
+    /**
+     * Forgets the folders on a path, for example after an upload to it failed
+     * because a folder was deleted elsewhere. The next {@link #resolve(String)}
+     * looks them up on Cloud Drive again.
+     * @param path a path previously passed to {@link #resolve(String)}
+     */
+    public void invalidate(String path) {
+        List<String> names = split(path);
+        if (names.isEmpty()) {
+            return;
+        }
+        String normalizedPath = join(names);
+
+        List<String> folderIds = new ArrayList<String>();
+        Iterator<Map.Entry<String, String>> iterator = mFolderIds.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<String, String> entry = iterator.next();
+            if (normalizedPath.equals(entry.getKey()) || normalizedPath.startsWith(entry.getKey() + PATH_SEPARATOR)
+                    || entry.getKey().startsWith(normalizedPath + PATH_SEPARATOR)) {
+                folderIds.add(entry.getValue());
+                iterator.remove();
+            }
+        }
+
+        // Drop the cached rows too, or the next resolve would find them again.
+        for (String folderId : folderIds) {
+            mContentResolver.delete(
+                    CloudDriveContract.Nodes.CONTENT_URI,
+                    CloudDriveContract.Nodes.NODE_ID + " = ?",
+                    new String[]{folderId});
+        }
+    }
+
+    /**
+     * Looks for an available child folder in the node cache.
+     * @return the folder's node ID, or null if it is not cached
+     */
+    private String queryCachedFolderId(String parentId, String name) {
+        Cursor cursor = null;
+        try {
+            cursor = mContentResolver.query(
+                    CloudDriveContract.NodeChildren.CONTENT_URI,
+                    new String[]{CloudDriveContract.NodeChildren.NODE_ID},
+                    CloudDriveContract.NodeChildren.PARENT_NODE_ID + " = ? AND " +
+                            CloudDriveContract.NodeChildren.NAME + " = ? AND " +
+                            CloudDriveContract.NodeChildren.KIND + " = ? AND " +
+                            CloudDriveContract.NodeChildren.STATUS + " = ?",
+                    new String[]{parentId, name, NodeKind.FOLDER, NodeStatus.AVAILABLE},
+                    null);
+            return cursor != null && cursor.moveToFirst() ? cursor.getString(0) : null;
+        } finally {
+            Closer.closeQuietly(cursor);
+        }
+    }
+
+    /**
+     * Looks for a child folder on Cloud Drive and creates it if it does not
+     * exist. The folder is saved to the node cache either way.
+     * @return the folder's node ID
+     */
+    private String findOrCreateFolder(String parentId, String name) throws InterruptedException, CloudDriveException {
+        Node folder = findFolder(parentId, name);
+        if (folder == null) {
+            try {
+                folder = mCloudDriveClient.createNode(new CreateNodeRequest(name, NodeKind.FOLDER)
+                        .withParents(Collections.singletonList(parentId)));
+            } catch (ConflictError e) {
+                // Created by someone else since we looked
+                folder = findFolder(parentId, name);
+                if (folder == null) {
+                    throw e;
+                }
+            }
+        }
+
+        try {
+            mFolderSynchronizer.saveNodes(Collections.singletonList(folder));
+        } catch (RemoteException e) {
+            Log.w(TAG, "Unable to cache folder " + name, e);
+        } catch (OperationApplicationException e) {
+            Log.w(TAG, "Unable to cache folder " + name, e);
+        }
+        return folder.getId();
+    }
+
+    /**
+     * Lists the available child folders of a parent with a given name.
+     * @return the folder, or null if there is none
+     */
+    private Node findFolder(String parentId, String name) throws InterruptedException, CloudDriveException {
+        ListChildrenRequest listChildrenRequest = new ListChildrenRequest(parentId)
+                .withFilters("kind:" + NodeKind.FOLDER + " AND status:" + NodeStatus.AVAILABLE +
+                        " AND name:" + escapeFilterValue(name));
+        List<Node> nodes = mCloudDriveClient.listChildren(listChildrenRequest).getData();
+        if (nodes != null) {
+            for (Node node : nodes) {
+                // Names are matched case insensitively by Cloud Drive
+                if (name.equalsIgnoreCase(node.getName())) {
+                    return node;
+                }
+            }
+        }
+        return null;
+    }
+
+    private static String escapeFilterValue(String value) {
+        StringBuilder escaped = new StringBuilder(value.length() + 8);
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (FILTER_SPECIAL_CHARACTERS.indexOf(c) >= 0) {
+                escaped.append('\\');
+            }
+            escaped.append(c);
+        }
+        return escaped.toString();
+    }
+
+    private static List<String> split(String path) {
+        List<String> names = new ArrayList<String>();
+        if (path != null) {
+            for (String name : path.split(PATH_SEPARATOR)) {
+                String trimmed = name.trim();
+                if (trimmed.length() > 0) {
+                    names.add(trimmed);
+                }
+            }
+        }
+        return names;
+    }
+
+    private static String join(List<String> names) {
+        StringBuilder path = new StringBuilder();
+        for (String name : names) {
+            if (path.length() > 0) {
+                path.append(PATH_SEPARATOR);
+            }
+            path.append(name);
+        }
+        return path.toString();
+    }
+}
@@ -0,0 +1,368 @@
+/*
+ * Copyright 2015 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package com.example.clouddrivefiles.sync;
+
+import android.content.OperationApplicationException;
+import android.os.RemoteException;
+import android.os.SystemClock;
+import android.util.Log;
+import com.amazon.clouddrive.exceptions.CloudDriveException;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Accepts folder refresh requests and runs them on a small pool of threads
+ * with a {@link FolderSynchronizer}.
+ *
+ * This class is an example of:
+ * <ul>
+ *     <li>deduplicating requests, so a folder is only queued or listed once at a time</li>
+ *     <li>prioritizing the folder the user is looking at, then the folders
+ *     about to scroll into view, over prefetching</li>
+ *     <li>cancelling work that has been superseded by navigation</li>
+ *     <li>listing independent folders concurrently</li>
+ * </ul>
+ *
+ * When a visible folder has been listed, its child folders are queued for
+ * prefetch so they are ready when the user opens them. Prefetches do not
+ * queue further prefetches, and a new visible request drops any nearby
+ * requests and prefetches still waiting in the queue. Nearby requests and
+ * prefetches of a folder that was listed recently are dropped too, so that
+ * scrolling back and forth over its row does not list it again.
+ */
+public class FolderSyncCoordinator {
+
+    private static final String TAG = FolderSyncCoordinator.class.getSimpleName();
+
+    /**
+     * The folder is on screen.
+     */
+    public static final int PRIORITY_VISIBLE = 0;
+
+    /**
+     * The folder's row is about to scroll into view, so it is likely to be opened next.
+     */
+    public static final int PRIORITY_NEARBY = 1;
+
+    /**
+     * The folder may be opened soon.
+     */
+    public static final int PRIORITY_PREFETCH = 2;
+
+    // Listings are mostly waiting on the network, and the shared client
+    // bounds how many metadata requests actually run at once.
+    private static final int MAX_CONCURRENT_FOLDERS = 3;
+    private static final long KEEP_ALIVE_SECONDS = 30;
+
+    // Only visible requests list a folder again within this time
+    private static final long RELIST_INTERVAL_MILLIS = 2 * 60 * 1000;
+
+    // Key for the root folder, whose node ID may not be known yet
+    private static final String ROOT_FOLDER_KEY = "";
+
+    /**
+     * Notified on a worker thread when no requests are queued or running.
+     */
+    public interface Listener {
+        void onIdle();
+    }
+
+    private final FolderSynchronizer mFolderSynchronizer;
+    private final Listener mListener;
+    private final ThreadPoolExecutor mExecutor;
+
+    // Queued and running tasks, keyed by folder. Guarded by itself.
+    private final Map<String, FolderSyncTask> mTasks = new HashMap<String, FolderSyncTask>();
+    // When each folder was last listed in full. Guarded by mTasks.
+    private final Map<String, Long> mListedTimes = new HashMap<String, Long>();
+    private long mNextSequence;
+
+    public FolderSyncCoordinator(FolderSynchronizer folderSynchronizer, Listener listener) {
+        mFolderSynchronizer = folderSynchronizer;
+        mListener = listener;
+
+        // Tasks are executed directly (not submitted) so the queue can order them.
+        mExecutor = new ThreadPoolExecutor(
+                MAX_CONCURRENT_FOLDERS,
+                MAX_CONCURRENT_FOLDERS,
+                KEEP_ALIVE_SECONDS,
+                TimeUnit.SECONDS,
+                new PriorityBlockingQueue<Runnable>());
+        mExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Requests a refresh of the root folder.
+     * @param priority {@link #PRIORITY_VISIBLE}, {@link #PRIORITY_NEARBY} or {@link #PRIORITY_PREFETCH}
+     */
+    public void requestRootFolder(int priority) {
+        request(ROOT_FOLDER_KEY, priority);
+    }
+
+    /**
+     * Requests a refresh of a folder. If the folder is already queued its
+     * priority is raised when needed; if it is already being listed the
+     * request is dropped.
+     * @param nodeId the folder's node ID
+     * @param priority {@link #PRIORITY_VISIBLE}, {@link #PRIORITY_NEARBY} or {@link #PRIORITY_PREFETCH}
+     */
+    public void requestFolder(String nodeId, int priority) {
+        request(nodeId, priority);
+    }
+
+    /**
+     * Cancels a queued or running refresh of the root folder.
+     */
+    public void cancelRootFolder() {
+        cancel(ROOT_FOLDER_KEY);
+    }
+
+    /**
+     * Cancels a queued or running refresh of a folder. A running listing is
+     * interrupted, and stops once its current page has been saved.
+     * @param nodeId the folder's node ID
+     */
+    public void cancelFolder(String nodeId) {
+        cancel(nodeId);
+    }
+
+    /**
+     * Drops a nearby request for a folder whose row has scrolled away, if it
+     * is still queued. A listing that has started is left to finish, as its
+     * pages are saved as they arrive. Requests at other priorities are kept.
+     * @param nodeId the folder's node ID
+     */
+    public void cancelNearbyFolder(String nodeId) {
+        synchronized (mTasks) {
+            FolderSyncTask task = mTasks.get(nodeId);
+            if (task != null && task.mPriority == PRIORITY_NEARBY && mExecutor.remove(task)) {
+                mTasks.remove(nodeId);
+                task.cancel(false);
+            }
+        }
+    }
+
+    /**
+     * @return true if no requests are queued or running
+     */
+    public boolean isIdle() {
+        synchronized (mTasks) {
+            return mTasks.isEmpty();
+        }
+    }
+
+    /**
+     * Cancels all requests and stops the worker threads.
+     */
+    public void shutdown() {
+        synchronized (mTasks) {
+            for (FolderSyncTask task : mTasks.values()) {
+                task.cancel(true);
+            }
+            mTasks.clear();
+        }
+        mExecutor.shutdownNow();
+        mFolderSynchronizer.shutdown();
+    }
+
+    /**
+     * Waits for running requests to stop after {@link #shutdown()}.
+     * @param timeout the maximum time to wait
+     * @param unit the unit of timeout
+     * @return true if they stopped, false if the timeout elapsed first
+     * @throws InterruptedException
+     */
+    public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+        return mExecutor.awaitTermination(timeout, unit);
+    }
+
+    private void request(String key, int priority) {
+        synchronized (mTasks) {
+            if (priority == PRIORITY_VISIBLE) {
+                cancelQueuedPrefetches();
+            }
+
+            FolderSyncTask task = mTasks.get(key);
+            if (task != null) {
+                if (priority < task.mPriority) {
+                    // A queued task is moved up. A running one keeps running,
+                    // but its child folders will now be prefetched.
+                    boolean isQueued = mExecutor.remove(task);
+                    task.mPriority = priority;
+                    if (isQueued) {
+                        task.mSequence = mNextSequence++;
+                        mExecutor.execute(task);
+                    }
+                }
+                return;
+            }
+            if (priority != PRIORITY_VISIBLE && isListedRecently(key)) {
+                return;
+            }
+
+            task = new FolderSyncTask(key, priority, mNextSequence++);
+            mTasks.put(key, task);
+            mExecutor.execute(task);
+        }
+    }
+
+    private void cancel(String key) {
+        FolderSyncTask task;
+        synchronized (mTasks) {
+            task = mTasks.remove(key);
+        }
+
+        if (task != null) {
+            mExecutor.remove(task);
+            task.cancel(true);
+        }
+    }
+
+    /**
+     * Drops nearby requests and prefetches that have not started. They were
+     * queued for the previous location and are superseded by the new visible folder.
+     */
+    private void cancelQueuedPrefetches() {
+        List<FolderSyncTask> superseded = new ArrayList<FolderSyncTask>();
+        for (FolderSyncTask task : mTasks.values()) {
+            if (task.mPriority != PRIORITY_VISIBLE && mExecutor.remove(task)) {
+                superseded.add(task);
+            }
+        }
+
+        for (FolderSyncTask task : superseded) {
+            mTasks.remove(task.mKey);
+            task.cancel(false);
+        }
+    }
+
+    /**
+     * Called with mTasks held.
+     * @return true if the folder was listed in full less than RELIST_INTERVAL_MILLIS ago
+     */
+    private boolean isListedRecently(String key) {
+        Long listedTime = mListedTimes.get(key);
+        if (listedTime == null) {
+            return false;
+        }
+        if (SystemClock.elapsedRealtime() - listedTime < RELIST_INTERVAL_MILLIS) {
+            return true;
+        }
+        mListedTimes.remove(key);
+        return false;
+    }
+
+    private void onTaskDone(FolderSyncTask task) {
+        List<String> childFolderIds = Collections.emptyList();
+        boolean isListed = false;
+        try {
+            childFolderIds = task.get();
+            isListed = true;
+        } catch (CancellationException e) {
+            Log.d(TAG, "Cancelled listing " + task.mKey);
+        } catch (InterruptedException e) {
+            Log.d(TAG, "Interrupted while waiting for " + task.mKey);
+        } catch (ExecutionException e) {
+            Log.e(TAG, "Caught exception listing " + task.mKey, e.getCause());
+        }
+
+        synchronized (mTasks) {
+            if (mTasks.get(task.mKey) == task) {
+                mTasks.remove(task.mKey);
+            }
+            if (isListed) {
+                mListedTimes.put(task.mKey, SystemClock.elapsedRealtime());
+            }
+
+            if (task.mPriority == PRIORITY_VISIBLE && !task.isCancelled() && !mExecutor.isShutdown()) {
+                for (String childFolderId : childFolderIds) {
+                    if (!mTasks.containsKey(childFolderId) && !isListedRecently(childFolderId)) {
+                        FolderSyncTask prefetchTask = new FolderSyncTask(childFolderId, PRIORITY_PREFETCH, mNextSequence++);
+                        mTasks.put(childFolderId, prefetchTask);
+                        mExecutor.execute(prefetchTask);
+                    }
+                }
+            }
+        }
+
+        notifyIfIdle();
+    }
+
+    private void notifyIfIdle() {
+        if (isIdle()) {
+            mListener.onIdle();
+        }
+    }
+
+    /**
+     * Lists one folder. Ordered by priority, then most recent first for
+     * visible and nearby folders and oldest first for prefetches.
+     */
+    private class FolderSyncTask extends FutureTask<List<String>> implements Comparable<FolderSyncTask> {
+
+        private final String mKey;
+
+        // Only changed while the task is not in the queue
+        private volatile int mPriority;
+        private volatile long mSequence;
+
+        private FolderSyncTask(final String key, int priority, long sequence) {
+            super(new Callable<List<String>>() {
+                @Override
+                public List<String> call()
+                        throws InterruptedException, CloudDriveException, RemoteException, OperationApplicationException {
+                    if (ROOT_FOLDER_KEY.equals(key)) {
+                        return mFolderSynchronizer.syncRootFolder();
+                    }
+                    return mFolderSynchronizer.syncFolder(key);
+                }
+            });
+            mKey = key;
+            mPriority = priority;
+            mSequence = sequence;
+        }
+
+        @Override
+        protected void done() {
+            onTaskDone(this);
+        }
+
+        @Override
+        public int compareTo(FolderSyncTask another) {
+            if (mPriority != another.mPriority) {
+                return mPriority < another.mPriority ? -1 : 1;
+            }
+            if (mSequence == another.mSequence) {
+                return 0;
+            }
+            boolean isEarlier = mSequence < another.mSequence;
+            if (mPriority != PRIORITY_PREFETCH) {
+                return isEarlier ? 1 : -1;
+            }
+            return isEarlier ? -1 : 1;
+        }
+    }
+}
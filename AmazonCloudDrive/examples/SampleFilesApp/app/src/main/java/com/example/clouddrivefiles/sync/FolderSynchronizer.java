@@ -0,0 +1,518 @@
+/*
+ * Copyright 2015 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package com.example.clouddrivefiles.sync;
+
+import android.content.ContentProvider;
+import android.content.ContentProviderClient;
+import android.content.ContentProviderOperation;
+import android.content.ContentResolver;
+import android.content.ContentUris;
+import android.content.OperationApplicationException;
+import android.database.Cursor;
+import android.os.RemoteException;
+import android.os.SystemClock;
+import com.amazon.clouddrive.exceptions.CloudDriveException;
+import com.amazon.clouddrive.model.ListChildrenRequest;
+import com.amazon.clouddrive.model.ListChildrenResponse;
+import com.amazon.clouddrive.model.Node;
+import com.amazon.clouddrive.model.NodeKind;
+import com.example.clouddrivefiles.client.SharedCloudDriveClient;
+import com.example.clouddrivefiles.provider.CloudDriveContract;
+import com.example.clouddrivefiles.provider.CloudDriveProvider;
+import com.example.clouddrivefiles.provider.NodeChildRow;
+import com.example.clouddrivefiles.provider.NodeRecord;
+import com.example.clouddrivefiles.provider.NodeWriter;
+import com.example.clouddrivefiles.utils.Closer;
+
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Lists folders from Amazon Cloud Drive and saves the nodes in
+ * {@link com.example.clouddrivefiles.provider.CloudDriveProvider}.
+ *
+ * This class does the work for {@link com.example.clouddrivefiles.service.CloudDriveFolderListingService}.
+ * It only depends on a ContentResolver and a client, so it can also be driven
+ * by other components such as the benchmark harness.
+ *
+ * In streaming mode, children are parsed from the response with the Jackson
+ * streaming parser and written with precompiled statements, skipping the SDK
+ * Node objects and ContentProviderOperations. Streaming mode needs the
+ * provider to run in this process; otherwise the regular path is used.
+ *
+ * In both modes, the next page is requested while the current one is saved,
+ * and page sizes are tuned to the link by a {@link PageSizeController}.
+ */
+public class FolderSynchronizer {
+
+    private final ContentResolver mContentResolver;
+    private final SharedCloudDriveClient mCloudDriveClient;
+
+    private boolean mStreamingEnabled;
+
+    private final PageSizeController mPageSizeController = new PageSizeController();
+
+    // Fetches the next page of each listing. Idle threads exit on their own.
+    private final ExecutorService mPageExecutor = Executors.newCachedThreadPool();
+
+    public FolderSynchronizer(ContentResolver contentResolver, SharedCloudDriveClient cloudDriveClient) {
+        mContentResolver = contentResolver;
+        mCloudDriveClient = cloudDriveClient;
+    }
+
+    /**
+     * Stops fetching pages. Listings still running fail once they need their next page.
+     */
+    public void shutdown() {
+        mPageExecutor.shutdownNow();
+    }
+
+    /**
+     * Enables or disables streaming mode for folder listings.
+     * @param streamingEnabled true to stream children into the database
+     */
+    public void setStreamingEnabled(boolean streamingEnabled) {
+        mStreamingEnabled = streamingEnabled;
+    }
+
+    /**
+     * List the root folder and save both the root node and
+     * root's child nodes to the ContentProvider
+     * @return the IDs of the folders directly under the root
+     */
+    public List<String> syncRootFolder()
+            throws InterruptedException, CloudDriveException, RemoteException, OperationApplicationException {
+        String rootNodeId = syncRootNode();
+        if (rootNodeId == null) {
+            return new ArrayList<String>();
+        }
+
+        // List and save the children of the root.
+        return syncFolder(rootNodeId);
+    }
+
+    /**
+     * Save the root node to the ContentProvider, without its children
+     * @return the root node ID, or null if the drive has no root
+     */
+    public String syncRootNode()
+            throws InterruptedException, CloudDriveException, RemoteException, OperationApplicationException {
+
+        // If the root has been resolved before and is already saved, there
+        // is no need to look it up again.
+        String cachedRootNodeId = mCloudDriveClient.getCachedRootNodeId();
+        if (cachedRootNodeId != null && isNodeSaved(cachedRootNodeId)) {
+            return cachedRootNodeId;
+        }
+
+        // Make a synchronous (blocking) call to Amazon Cloud Drive that lists
+        // the root node. Concurrent lookups from other services share this call.
+        Node rootNode = mCloudDriveClient.getRootNode();
+        if (rootNode == null) {
+            return null;
+        }
+
+        // Save the root node information through the ContentProvider
+        ArrayList<ContentProviderOperation> contentProviderOperations = new ArrayList<ContentProviderOperation>();
+        contentProviderOperations.add(createInsertNodeContentProviderOperation(rootNode));
+        mContentResolver.applyBatch(CloudDriveContract.AUTHORITY, contentProviderOperations);
+        return rootNode.getId();
+    }
+
+    /**
+     * List a folder and save the child nodes to the ContentProvider
+     * @param id the node ID to list
+     * @return the IDs of the folders directly under the listed folder
+     */
+    public List<String> syncFolder(String id)
+            throws InterruptedException, CloudDriveException, RemoteException, OperationApplicationException {
+
+        if (mStreamingEnabled) {
+            CloudDriveProvider provider = getLocalProvider(mContentResolver);
+            if (provider != null) {
+                return streamFolder(provider, id);
+            }
+        }
+
+        List<String> childFolderIds = new ArrayList<String>();
+
+        // Mark all existing rows for this folder as 'dirty' so we will
+        // know which ones need to be deleted at the end.
+
+        ArrayList<ContentProviderOperation> updateAllChildrenToDirtyOperations =
+                createUpdateAllChildrenToDirtyOperations(id);
+        if (!updateAllChildrenToDirtyOperations.isEmpty()) {
+            mContentResolver.applyBatch(
+                    CloudDriveContract.AUTHORITY,
+                    updateAllChildrenToDirtyOperations);
+        }
+
+        // ListChildren is an example of a paged request. We may not get all
+        // of the nodes back in one request, so we will need to keep looping
+        // until we get all of the a null next token as a response. Each page
+        // is saved while the next one is being fetched.
+        ListChildrenResponse response = listChildren(id, null);
+        while (response != null) {
+            Future<ListChildrenResponse> nextPage = null;
+            if (response.getNextToken() != null) {
+                nextPage = mPageExecutor.submit(newListChildrenCallable(id, response.getNextToken()));
+            }
+
+            try {
+                // Save all of the node children through the ContentProvider
+                List<Node> nodes = response.getData();
+                ArrayList<ContentProviderOperation> contentProviderOperations = new ArrayList<ContentProviderOperation>();
+                for (Node node : nodes) {
+                    contentProviderOperations.add(createInsertNodeContentProviderOperation(node));
+                    contentProviderOperations.addAll(createReplaceNodeParentContentProviderOperations(node));
+                    if (NodeKind.FOLDER.equals(node.getKind())) {
+                        childFolderIds.add(node.getId());
+                    }
+                }
+                if (!contentProviderOperations.isEmpty()) {
+                    mContentResolver.applyBatch(
+                            CloudDriveContract.AUTHORITY,
+                            contentProviderOperations);
+                }
+
+                // Stop between pages if the listing has been cancelled
+                if (Thread.interrupted()) {
+                    throw new InterruptedException();
+                }
+                response = nextPage != null ? awaitPage(nextPage) : null;
+                nextPage = null;
+            } finally {
+                if (nextPage != null) {
+                    nextPage.cancel(true);
+                }
+            }
+        }
+
+        // Remove all rows that are still considered 'dirty' these are ones
+        // that no longer exist. Only this folder's children are removed, since
+        // other folders may be in the middle of their own listing.
+
+        mContentResolver.delete(
+                CloudDriveContract.Nodes.CONTENT_URI,
+                CloudDriveContract.Nodes.IS_DIRTY + " = ? AND " +
+                        CloudDriveContract.Nodes.NODE_ID + " IN (" +
+                        "SELECT " + CloudDriveContract.NodeParents.NODE_ID +
+                        " FROM " + CloudDriveContract.NodeParents.TABLE_NAME +
+                        " WHERE " + CloudDriveContract.NodeParents.PARENT_NODE_ID + " = ?)",
+                new String[]{Integer.toString(1), id});
+
+        return childFolderIds;
+    }
+
+    /**
+     * Same as {@link #syncFolder(String)}, but streams each page of children
+     * straight into the database.
+     * @param provider the in-process provider
+     * @param id the node ID to list
+     * @return the IDs of the folders directly under the listed folder
+     */
+    private List<String> streamFolder(CloudDriveProvider provider, String id)
+            throws InterruptedException, CloudDriveException {
+
+        List<String> childFolderIds = new ArrayList<String>();
+        // Two parsers take turns: one is written while the other receives the next page.
+        NodePageParser parser = new NodePageParser();
+        NodePageParser nextParser = new NodePageParser();
+        NodeWriter nodeWriter = provider.newNodeWriter();
+        try {
+            // Mark all existing rows for this folder as 'dirty' so we will
+            // know which ones need to be deleted at the end.
+            nodeWriter.markChildrenDirty(id);
+
+            String nextToken = fetchPage(id, null, parser);
+            while (true) {
+                Future<String> nextPage = null;
+                if (nextToken != null) {
+                    nextPage = mPageExecutor.submit(newFetchPageCallable(id, nextToken, nextParser));
+                }
+
+                try {
+                    List<NodeRecord> records = parser.getRecords();
+                    int count = parser.getCount();
+                    nodeWriter.writeNodes(records, count);
+                    for (int i = 0; i < count; i++) {
+                        NodeRecord record = records.get(i);
+                        if (NodeKind.FOLDER.equals(record.kind)) {
+                            childFolderIds.add(record.nodeId);
+                        }
+                    }
+                    if (nextPage == null) {
+                        break;
+                    }
+
+                    // Stop between pages if the listing has been cancelled
+                    if (Thread.interrupted()) {
+                        throw new InterruptedException();
+                    }
+                    nextToken = awaitPage(nextPage);
+                    nextPage = null;
+                } finally {
+                    if (nextPage != null) {
+                        nextPage.cancel(true);
+                    }
+                }
+
+                NodePageParser writtenParser = parser;
+                parser = nextParser;
+                nextParser = writtenParser;
+            }
+
+            // Remove all rows that are still considered 'dirty' these are ones
+            // that no longer exist.
+            nodeWriter.deleteDirtyChildren(id);
+        } finally {
+            nodeWriter.close();
+        }
+
+        return childFolderIds;
+    }
+
+    /**
+     * Fetches and parses one page of children with the current page size.
+     * @return the token for the next page, or null if this was the last page
+     */
+    private String fetchPage(String id, String startToken, NodePageParser parser)
+            throws InterruptedException, CloudDriveException {
+        int pageSize = mPageSizeController.getPageSize();
+        long start = SystemClock.elapsedRealtime();
+        String nextToken = mCloudDriveClient.getMetadata(createListChildrenUrl(id, startToken, pageSize), parser);
+        mPageSizeController.onPageReceived(
+                pageSize, parser.getCount(), parser.getByteCount(), SystemClock.elapsedRealtime() - start);
+        return nextToken;
+    }
+
+    private Callable<String> newFetchPageCallable(final String id, final String startToken, final NodePageParser parser) {
+        return new Callable<String>() {
+            @Override
+            public String call() throws Exception {
+                return fetchPage(id, startToken, parser);
+            }
+        };
+    }
+
+    /**
+     * Lists one page of children with the current page size.
+     */
+    private ListChildrenResponse listChildren(String id, String startToken)
+            throws InterruptedException, CloudDriveException {
+        int pageSize = mPageSizeController.getPageSize();
+        long start = SystemClock.elapsedRealtime();
+
+        // Make a synchronous (blocking) call to Amazon Cloud Drive that lists
+        // the children for the node.
+        ListChildrenRequest listChildrenRequest = new ListChildrenRequest(id)
+                .withStartToken(startToken)
+                .withLimit(pageSize);
+        ListChildrenResponse response = mCloudDriveClient.listChildren(listChildrenRequest);
+
+        // The SDK does not expose the response size.
+        int count = response.getData() != null ? response.getData().size() : 0;
+        mPageSizeController.onPageReceived(pageSize, count, -1, SystemClock.elapsedRealtime() - start);
+        return response;
+    }
+
+    private Callable<ListChildrenResponse> newListChildrenCallable(final String id, final String startToken) {
+        return new Callable<ListChildrenResponse>() {
+            @Override
+            public ListChildrenResponse call() throws Exception {
+                return listChildren(id, startToken);
+            }
+        };
+    }
+
+    /**
+     * Waits for a page fetched in the background, rethrowing its failure.
+     */
+    private static <T> T awaitPage(Future<T> page) throws InterruptedException, CloudDriveException {
+        try {
+            return page.get();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof CloudDriveException) {
+                throw (CloudDriveException) cause;
+            } else if (cause instanceof InterruptedException) {
+                throw (InterruptedException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new CloudDriveException(cause);
+        }
+    }
+
+    /**
+     * Returns the provider instance if it runs in this process.
+     * @return the provider, or null if it is remote
+     */
+    static CloudDriveProvider getLocalProvider(ContentResolver contentResolver) {
+        ContentProviderClient client = contentResolver.acquireContentProviderClient(CloudDriveContract.AUTHORITY);
+        if (client == null) {
+            return null;
+        }
+
+        try {
+            ContentProvider provider = client.getLocalContentProvider();
+            return provider instanceof CloudDriveProvider ? (CloudDriveProvider) provider : null;
+        } finally {
+            client.release();
+        }
+    }
+
+    /**
+     * Builds the relative URL for one page of a list children request.
+     */
+    static String createListChildrenUrl(String id, String startToken) throws CloudDriveException {
+        return createListChildrenUrl(id, startToken, 0);
+    }
+
+    /**
+     * Builds the relative URL for one page of a list children request.
+     * @param limit the page size, or 0 for the server's default
+     */
+    static String createListChildrenUrl(String id, String startToken, int limit) throws CloudDriveException {
+        try {
+            StringBuilder url = new StringBuilder("nodes/").append(URLEncoder.encode(id, "UTF-8")).append("/children");
+            char separator = '?';
+            if (startToken != null) {
+                url.append(separator).append("startToken=").append(URLEncoder.encode(startToken, "UTF-8"));
+                separator = '&';
+            }
+            if (limit > 0) {
+                url.append(separator).append("limit=").append(limit);
+            }
+            return url.toString();
+        } catch (UnsupportedEncodingException e) {
+            throw new CloudDriveException(e);
+        }
+    }
+
+    /**
+     * Saves nodes that were looked up or created outside of a listing, such
+     * as folders created for uploads, along with their parents.
+     * @param nodes the nodes to save
+     */
+    public void saveNodes(List<? extends Node> nodes) throws RemoteException, OperationApplicationException {
+        ArrayList<ContentProviderOperation> contentProviderOperations = new ArrayList<ContentProviderOperation>();
+        for (Node node : nodes) {
+            contentProviderOperations.add(createInsertNodeContentProviderOperation(node));
+            contentProviderOperations.addAll(createReplaceNodeParentContentProviderOperations(node));
+        }
+        if (!contentProviderOperations.isEmpty()) {
+            mContentResolver.applyBatch(CloudDriveContract.AUTHORITY, contentProviderOperations);
+        }
+    }
+
+    /**
+     * Checks whether a node has been saved to the ContentProvider
+     * @param nodeId the node ID to look for
+     * @return true if a row exists for the node
+     */
+    private boolean isNodeSaved(String nodeId) {
+        Cursor cursor = null;
+        try {
+            cursor = mContentResolver.query(
+                    CloudDriveContract.Nodes.CONTENT_URI,
+                    new String[]{CloudDriveContract.Nodes._ID},
+                    CloudDriveContract.Nodes.NODE_ID + " = ?",
+                    new String[]{nodeId},
+                    null);
+            return cursor != null && cursor.getCount() > 0;
+        } finally {
+            Closer.closeQuietly(cursor);
+        }
+    }
+
+    private ContentProviderOperation createInsertNodeContentProviderOperation(final Node node) {
+
+        // Save some of the fields on the node. The node contains many more fields that may
+        // be of use to us. For this application, we are choosing a few.
+        // The dirty flag is updated in this operation to let us know that this row has been updated.
+        ContentProviderOperation.Builder builder = ContentProviderOperation.newInsert(CloudDriveContract.Nodes.CONTENT_URI)
+                .withValue(CloudDriveContract.Nodes.NODE_ID, node.getId())
+                .withValue(CloudDriveContract.Nodes.CREATED_BY, node.getCreatedBy())
+                .withValue(CloudDriveContract.Nodes.CREATED_DATE, node.getCreatedDate())
+                .withValue(CloudDriveContract.Nodes.DESCRIPTION, node.getDescription())
+                .withValue(CloudDriveContract.Nodes.EXCLUSIVELY_TRASHED, node.isExclusivelyTrashed())
+                .withValue(CloudDriveContract.Nodes.IS_ROOT, node.isRoot())
+                .withValue(CloudDriveContract.Nodes.IS_SHARED, node.isShared())
+                .withValue(CloudDriveContract.Nodes.KIND, node.getKind())
+                .withValue(CloudDriveContract.Nodes.MODIFIED_DATE, node.getModifiedDate())
+                .withValue(CloudDriveContract.Nodes.NAME, node.getName())
+                .withValue(CloudDriveContract.Nodes.RECURSIVELY_TRASHED, node.isRecursivelyTrashed())
+                .withValue(CloudDriveContract.Nodes.STATUS, node.getStatus())
+                .withValue(CloudDriveContract.Nodes.VERSION, node.getVersion())
+                .withValue(CloudDriveContract.Nodes.CONTENT_SIZE,
+                        node.getContentProperties() != null ? node.getContentProperties().getSize() : null)
+                .withValue(CloudDriveContract.Nodes.IS_DIRTY, Integer.toString(0));
+
+        return builder.build();
+    }
+
+    private List<ContentProviderOperation> createReplaceNodeParentContentProviderOperations(final Node node) {
+
+        // Delete all existing node_parent rows for the node
+        List<ContentProviderOperation> replaceNodeParentOperations = new ArrayList<ContentProviderOperation>();
+        replaceNodeParentOperations.add(
+                ContentProviderOperation.newDelete(CloudDriveContract.NodeParents.CONTENT_URI)
+                        .withSelection(CloudDriveContract.NodeParents.NODE_ID + " = ?", new String[]{node.getId()}).build());
+
+        // Insert all parents for the node. There could be multiple parents for each node.
+        List<String> nodeParentIds = node.getParents();
+        for (String nodeParentId : nodeParentIds) {
+            replaceNodeParentOperations.add(
+                    ContentProviderOperation.newInsert(CloudDriveContract.NodeParents.CONTENT_URI)
+                            .withValue(CloudDriveContract.NodeParents.NODE_ID, node.getId())
+                            .withValue(CloudDriveContract.NodeParents.PARENT_NODE_ID, nodeParentId).build());
+        }
+
+        return replaceNodeParentOperations;
+    }
+
+    private ArrayList<ContentProviderOperation> createUpdateAllChildrenToDirtyOperations(String parentNodeId) {
+        Cursor parentCursor = null;
+        try {
+            parentCursor = mContentResolver.query(
+                    CloudDriveContract.NodeChildren.IDS_CONTENT_URI,
+                    new String[]{CloudDriveContract.NodeChildren._ID},
+                    CloudDriveContract.NodeChildren.PARENT_NODE_ID + " = ?",
+                    new String[]{parentNodeId},
+                    null);
+            NodeChildRow child = new NodeChildRow(parentCursor);
+            ArrayList<ContentProviderOperation> updateToDirtyOperations = new ArrayList<ContentProviderOperation>();
+            while (child.moveToNext()) {
+                updateToDirtyOperations.add(ContentProviderOperation.newUpdate(
+                        ContentUris.withAppendedId(CloudDriveContract.Nodes.CONTENT_URI, child.getId()))
+                        .withValue(CloudDriveContract.Nodes.IS_DIRTY, 1).build());
+
+            }
+            return updateToDirtyOperations;
+        } finally {
+            Closer.closeQuietly(parentCursor);
+        }
+    }
+}
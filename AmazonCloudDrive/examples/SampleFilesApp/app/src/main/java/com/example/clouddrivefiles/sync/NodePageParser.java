@@ -0,0 +1,186 @@
+/*
+ * Copyright 2015 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package com.example.clouddrivefiles.sync;
+
+import com.example.clouddrivefiles.client.SharedCloudDriveClient;
+import com.example.clouddrivefiles.provider.NodeRecord;
+import org.codehaus.jackson.JsonFactory;
+import org.codehaus.jackson.JsonParseException;
+import org.codehaus.jackson.JsonParser;
+import org.codehaus.jackson.JsonToken;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Parses one page of a list children response straight into reusable
+ * {@link NodeRecord}s with the Jackson streaming parser.
+ *
+ * The records are kept between pages, so once the parser has seen the largest
+ * page of a listing it stops allocating anything but the field values
+ * themselves. A parser is not thread safe; use one per listing.
+ */
+class NodePageParser implements SharedCloudDriveClient.ResponseHandler<String> {
+
+    // JsonFactory is thread safe and caches symbol tables, so share one instance.
+    private static final JsonFactory JSON_FACTORY = new JsonFactory();
+
+    private final List<NodeRecord> mRecords = new ArrayList<NodeRecord>();
+    private int mCount;
+    private long mByteCount;
+
+    /**
+     * Parses a page, replacing the records from the previous page.
+     * @param inputStream the response body
+     * @return the token for the next page, or null if this was the last page
+     * @throws IOException if the response cannot be read or is malformed
+     */
+    @Override
+    public String handleResponse(InputStream inputStream) throws IOException {
+        mCount = 0;
+        mByteCount = 0;
+        String nextToken = null;
+
+        JsonParser parser = JSON_FACTORY.createJsonParser(inputStream);
+        try {
+            if (parser.nextToken() != JsonToken.START_OBJECT) {
+                throw new JsonParseException("Expected a list response", parser.getCurrentLocation());
+            }
+
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String fieldName = parser.getCurrentName();
+                JsonToken value = parser.nextToken();
+                if ("nextToken".equals(fieldName)) {
+                    nextToken = value == JsonToken.VALUE_NULL ? null : parser.getText();
+                } else if ("data".equals(fieldName) && value == JsonToken.START_ARRAY) {
+                    while (parser.nextToken() == JsonToken.START_OBJECT) {
+                        readNode(parser, nextRecord());
+                    }
+                } else {
+                    parser.skipChildren();
+                }
+            }
+            mByteCount = parser.getCurrentLocation().getByteOffset();
+        } finally {
+            parser.close();
+        }
+
+        return nextToken;
+    }
+
+    /**
+     * @return the records parsed from the last page. Only the first
+     * {@link #getCount()} records are in use.
+     */
+    public List<NodeRecord> getRecords() {
+        return mRecords;
+    }
+
+    /**
+     * @return the number of nodes on the last page
+     */
+    public int getCount() {
+        return mCount;
+    }
+
+    /**
+     * @return the size of the last page's response body in bytes
+     */
+    public long getByteCount() {
+        return mByteCount;
+    }
+
+    private NodeRecord nextRecord() {
+        NodeRecord record;
+        if (mCount < mRecords.size()) {
+            record = mRecords.get(mCount);
+            record.clear();
+        } else {
+            record = new NodeRecord();
+            mRecords.add(record);
+        }
+        mCount++;
+        return record;
+    }
+
+    /**
+     * Reads the fields of one node object. The parser is positioned on the
+     * node's START_OBJECT and is left on its END_OBJECT. Field names are
+     * interned by Jackson, so comparing them does not allocate.
+     */
+    private static void readNode(JsonParser parser, NodeRecord record) throws IOException {
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String fieldName = parser.getCurrentName();
+            JsonToken value = parser.nextToken();
+            if (value == JsonToken.VALUE_NULL) {
+                continue;
+            }
+
+            if ("id".equals(fieldName)) {
+                record.nodeId = parser.getText();
+            } else if ("name".equals(fieldName)) {
+                record.name = parser.getText();
+            } else if ("kind".equals(fieldName)) {
+                record.kind = parser.getText();
+            } else if ("status".equals(fieldName)) {
+                record.status = parser.getText();
+            } else if ("version".equals(fieldName)) {
+                record.version = parser.getLongValue();
+            } else if ("createdBy".equals(fieldName)) {
+                record.createdBy = parser.getText();
+            } else if ("createdDate".equals(fieldName)) {
+                record.createdDate = parser.getText();
+            } else if ("modifiedDate".equals(fieldName)) {
+                record.modifiedDate = parser.getText();
+            } else if ("description".equals(fieldName)) {
+                record.description = parser.getText();
+            } else if ("isRoot".equals(fieldName)) {
+                record.isRoot = value == JsonToken.VALUE_TRUE;
+            } else if ("isShared".equals(fieldName)) {
+                record.isShared = value == JsonToken.VALUE_TRUE;
+            } else if ("exclusivelyTrashed".equals(fieldName)) {
+                record.exclusivelyTrashed = value == JsonToken.VALUE_TRUE;
+            } else if ("recursivelyTrashed".equals(fieldName)) {
+                record.recursivelyTrashed = value == JsonToken.VALUE_TRUE;
+            } else if ("contentProperties".equals(fieldName) && value == JsonToken.START_OBJECT) {
+                readContentProperties(parser, record);
+            } else if ("parents".equals(fieldName) && value == JsonToken.START_ARRAY) {
+                while (parser.nextToken() != JsonToken.END_ARRAY) {
+                    record.parentIds.add(parser.getText());
+                }
+            } else {
+                // Skip fields we do not store, including nested objects.
+                parser.skipChildren();
+            }
+        }
+    }
+
+    /**
+     * Reads the size out of a contentProperties object and skips the rest.
+     */
+    private static void readContentProperties(JsonParser parser, NodeRecord record) throws IOException {
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String fieldName = parser.getCurrentName();
+            JsonToken value = parser.nextToken();
+            if ("size".equals(fieldName) && value == JsonToken.VALUE_NUMBER_INT) {
+                record.contentSize = parser.getLongValue();
+            } else {
+                parser.skipChildren();
+            }
+        }
+    }
+}
@@ -0,0 +1,84 @@
+/*
+ * Copyright 2015 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package com.example.clouddrivefiles.sync;
+
+/**
+ * Picks the number of children to request per ListChildren page from how
+ * long previous pages took and how large their nodes were.
+ *
+ * Listings start with small pages, so the first children show up quickly
+ * on any link. Pages then grow or shrink, at most by half or double per
+ * page, so that each takes about {@link #TARGET_PAGE_MILLIS}. A fast link
+ * ends up with few large requests, and a slow one keeps getting results
+ * at a steady pace. Pages are also capped at {@link #MAX_PAGE_BYTES}.
+ *
+ * One controller is shared by concurrent listings, as they share the link.
+ */
+class PageSizeController {
+
+    static final int MIN_PAGE_SIZE = 25;
+    static final int INITIAL_PAGE_SIZE = 50;
+
+    // The largest limit accepted by Cloud Drive
+    static final int MAX_PAGE_SIZE = 200;
+
+    static final long TARGET_PAGE_MILLIS = 1000;
+    static final long MAX_PAGE_BYTES = 512 * 1024;
+
+    // Weight of the latest page in the bytes per node average
+    private static final double BYTES_PER_NODE_WEIGHT = 0.25;
+
+    private int mPageSize = INITIAL_PAGE_SIZE;
+    private double mBytesPerNode;
+
+    /**
+     * @return the limit for the next page
+     */
+    synchronized int getPageSize() {
+        return mPageSize;
+    }
+
+    /**
+     * Adjusts the page size after a page has been received.
+     * @param requestedSize the limit the page was requested with
+     * @param nodeCount the number of nodes received
+     * @param byteCount the size of the response, or a negative value if unknown
+     * @param elapsedMillis the time from request to parsed response
+     */
+    synchronized void onPageReceived(int requestedSize, int nodeCount, long byteCount, long elapsedMillis) {
+        if (nodeCount <= 0) {
+            return;
+        }
+        if (byteCount >= 0) {
+            double bytesPerNode = (double) byteCount / nodeCount;
+            mBytesPerNode = mBytesPerNode == 0
+                    ? bytesPerNode
+                    : mBytesPerNode + BYTES_PER_NODE_WEIGHT * (bytesPerNode - mBytesPerNode);
+        }
+
+        // The last page of a folder is usually short, and its time says
+        // little about how a full page would do.
+        if (nodeCount < requestedSize) {
+            return;
+        }
+
+        long scaledSize = elapsedMillis > 0 ? requestedSize * TARGET_PAGE_MILLIS / elapsedMillis : MAX_PAGE_SIZE;
+        scaledSize = Math.max(requestedSize / 2, Math.min(requestedSize * 2L, scaledSize));
+        if (mBytesPerNode > 0) {
+            scaledSize = Math.min(scaledSize, (long) (MAX_PAGE_BYTES / mBytesPerNode));
+        }
+        mPageSize = (int) Math.max(MIN_PAGE_SIZE, Math.min(MAX_PAGE_SIZE, scaledSize));
+    }
+}
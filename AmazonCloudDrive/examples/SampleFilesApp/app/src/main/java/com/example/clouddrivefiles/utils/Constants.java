@@ -27,4 +27,5 @@ public class Constants {
 
     public static final String SHARED_PREFERENCE_FILE = "shared_preferences";
     public static final String KEY_AUTHENTICATED = "authenticated";
+    public static final String KEY_ROOT_NODE_ID = "root_node_id";
 }
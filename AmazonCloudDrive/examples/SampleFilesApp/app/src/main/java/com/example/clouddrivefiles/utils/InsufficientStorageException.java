@@ -0,0 +1,41 @@
+/*
+ * Copyright 2015 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package com.example.clouddrivefiles.utils;
+
+import java.io.IOException;
+
+/**
+ * Thrown when a transfer does not start because there is not enough storage for it.
+ */
+public class InsufficientStorageException extends IOException {
+
+    private final long mRequiredBytes;
+    private final long mAvailableBytes;
+
+    public InsufficientStorageException(String description, long requiredBytes, long availableBytes) {
+        super("Not enough storage for " + description + ": " + requiredBytes + " bytes needed, " +
+                availableBytes + " available");
+        mRequiredBytes = requiredBytes;
+        mAvailableBytes = availableBytes;
+    }
+
+    public long getRequiredBytes() {
+        return mRequiredBytes;
+    }
+
+    public long getAvailableBytes() {
+        return mAvailableBytes;
+    }
+}
@@ -0,0 +1,164 @@
+/*
+ * Copyright 2015 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package com.example.clouddrivefiles.utils;
+
+import android.content.Context;
+import android.util.Log;
+
+import java.io.Closeable;
+import java.io.File;
+
+/**
+ * Keeps transfers from starting when there is no room for what they will write.
+ *
+ * Uploads are staged under the cache directory and downloads are cached under
+ * the files directory, which share the app's internal storage. Before a
+ * transfer writes anything it reserves the bytes it expects to write. A
+ * reservation only succeeds if the free space, less what other transfers have
+ * reserved and a margin left for the rest of the system, covers it. If it does
+ * not, cached content that is not in use is evicted first. Transfers that still
+ * do not fit fail straight away with {@link InsufficientStorageException},
+ * rather than after most of the data has been moved.
+ *
+ * Reservations shrink as the transfer writes, see {@link Reservation#onWritten(long)},
+ * and must be released when it is done.
+ */
+public class StorageBudget {
+
+    private static final String TAG = StorageBudget.class.getSimpleName();
+
+    // Left free for the rest of the system
+    private static final long MIN_FREE_BYTES = 64 * 1024 * 1024;
+
+    /**
+     * Frees cached data that can be fetched again.
+     */
+    public interface Evictor {
+        /**
+         * Deletes cached data that is not in use, least recently used first.
+         * Called with the budget locked, so it must not reserve space itself.
+         * @param bytes how much should be freed
+         * @return how much was freed
+         */
+        long evict(long bytes);
+    }
+
+    private static StorageBudget sInstance;
+
+    private final File mDirectory;
+
+    // Guarded by this
+    private long mReservedBytes;
+    private Evictor mEvictor;
+
+    /**
+     * @param context a Context
+     * @return the budget shared by every transfer in the process
+     */
+    public static synchronized StorageBudget getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new StorageBudget(context.getApplicationContext().getFilesDir());
+        }
+        return sInstance;
+    }
+
+    private StorageBudget(File directory) {
+        mDirectory = directory;
+    }
+
+    /**
+     * Sets what is asked to free space when a reservation does not fit.
+     */
+    public synchronized void setEvictor(Evictor evictor) {
+        mEvictor = evictor;
+    }
+
+    /**
+     * Reserves space for a transfer, evicting cached content if needed.
+     * @param bytes the bytes the transfer will write
+     * @param description what the space is for, used in the exception message
+     * @return the reservation, which must be released once the transfer is done
+     * @throws InsufficientStorageException if there is not enough space even after eviction
+     */
+    public synchronized Reservation reserve(long bytes, String description) throws InsufficientStorageException {
+        ensureAvailable(bytes, description);
+        mReservedBytes += Math.max(bytes, 0);
+        return new Reservation(Math.max(bytes, 0));
+    }
+
+    /**
+     * Checks that there is space for a transfer without reserving it, evicting
+     * cached content if needed. Use this to fail early on the caller's side of
+     * a transfer whose writer reserves the space itself.
+     * @throws InsufficientStorageException if there is not enough space even after eviction
+     */
+    public synchronized void ensureAvailable(long bytes, String description) throws InsufficientStorageException {
+        if (bytes <= 0) {
+            return;
+        }
+        long availableBytes = getAvailableBytes();
+        if (availableBytes < bytes && mEvictor != null) {
+            long evictedBytes = mEvictor.evict(bytes - availableBytes);
+            Log.i(TAG, "Evicted " + evictedBytes + " bytes of cached content for " + description);
+            availableBytes = getAvailableBytes();
+        }
+        if (availableBytes < bytes) {
+            throw new InsufficientStorageException(description, bytes, Math.max(availableBytes, 0));
+        }
+    }
+
+    // Called with this locked
+    private long getAvailableBytes() {
+        return mDirectory.getUsableSpace() - mReservedBytes - MIN_FREE_BYTES;
+    }
+
+    /**
+     * Space held for one transfer.
+     */
+    public class Reservation implements Closeable {
+
+        // Guarded by the budget
+        private long mBytes;
+
+        private Reservation(long bytes) {
+            mBytes = bytes;
+        }
+
+        /**
+         * Gives back the part of the reservation that has now been written,
+         * since the free space already accounts for it.
+         * @param bytes the bytes just written
+         */
+        public void onWritten(long bytes) {
+            synchronized (StorageBudget.this) {
+                long released = Math.min(bytes, mBytes);
+                mBytes -= released;
+                mReservedBytes -= released;
+            }
+        }
+
+        /**
+         * Gives back what is left of the reservation.
+         */
+        public void release() {
+            onWritten(Long.MAX_VALUE);
+        }
+
+        @Override
+        public void close() {
+            release();
+        }
+    }
+}
@@ -0,0 +1,260 @@
+/*
+ * Copyright 2015 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package com.example.clouddrivefiles.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.File;
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Types;
+
+/**
+ * Measures the SQL paths behind CloudDriveProvider against an on-disk SQLite
+ * database:
+ * <ul>
+ *     <li>{@link #applyBatch}: one page of listChildren results written in a
+ *     single transaction, as CloudDriveProvider.applyBatch does</li>
+ *     <li>{@link #writeNodes}: the same page saved in place with statements
+ *     that are compiled once and rebound for every node, as NodeWriter does</li>
+ *     <li>{@link #insert}: a single node written outside of a transaction, as
+ *     CloudDriveProvider.insert does</li>
+ *     <li>{@link #queryNodeChildren}: the node_children query issued by
+ *     NodeListingFragment, with every row read</li>
+ *     <li>{@link #queryNodeChildrenView}: the same query on the narrow
+ *     node_children view that was queried before node_children was
+ *     materialized. Only the benchmark schema still has it.</li>
+ * </ul>
+ * Run with the gc profiler (the default for the jmh Gradle task) to get
+ * allocation rates alongside ops/sec.
+ */
+@BenchmarkMode(Mode.Throughput)
+@State(Scope.Thread)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(1)
+public class ProviderBenchmark {
+
+    private static final String ROOT_NODE_ID = "root";
+    private static final String FOLDER_NODE_ID = "folder";
+
+    @Param({"10", "100", "1000"})
+    public int folderSize;
+
+    private File mDatabaseFile;
+    private Connection mConnection;
+    private long mInsertCounter;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException, SQLException, ClassNotFoundException {
+        Class.forName("org.sqlite.JDBC");
+        mDatabaseFile = File.createTempFile("clouddrive-benchmark", ".db");
+        mConnection = DriverManager.getConnection("jdbc:sqlite:" + mDatabaseFile.getAbsolutePath());
+        ProviderSchema.create(mConnection);
+
+        mConnection.setAutoCommit(false);
+        replaceNode(ROOT_NODE_ID, "", "FOLDER", true);
+        replaceNode(FOLDER_NODE_ID, "folder", "FOLDER", false);
+        replaceParent(FOLDER_NODE_ID, ROOT_NODE_ID);
+        writeFolderPage();
+        mConnection.commit();
+        mConnection.setAutoCommit(true);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws SQLException {
+        mConnection.close();
+        mDatabaseFile.delete();
+    }
+
+    @Benchmark
+    public void applyBatch() throws SQLException {
+        mConnection.setAutoCommit(false);
+        try {
+            writeFolderPage();
+            mConnection.commit();
+        } finally {
+            mConnection.setAutoCommit(true);
+        }
+    }
+
+    @Benchmark
+    public void writeNodes() throws SQLException {
+        mConnection.setAutoCommit(false);
+        PreparedStatement insertNode = mConnection.prepareStatement(ProviderSchema.INSERT_NODE_IF_ABSENT);
+        PreparedStatement updateNode = mConnection.prepareStatement(ProviderSchema.UPDATE_NODE);
+        PreparedStatement deleteOtherParents = mConnection.prepareStatement(ProviderSchema.DELETE_OTHER_NODE_PARENTS);
+        PreparedStatement insertParent = mConnection.prepareStatement(ProviderSchema.INSERT_NODE_PARENT_IF_ABSENT);
+        try {
+            for (int i = 0; i < folderSize; i++) {
+                String nodeId = FOLDER_NODE_ID + "-child" + i;
+                insertNode.setString(1, nodeId);
+                insertNode.setString(2, "FILE");
+                insertNode.setString(3, "AVAILABLE");
+                insertNode.setLong(4, 1024);
+                insertNode.executeUpdate();
+
+                updateNode.setString(1, "benchmark");
+                updateNode.setString(2, "2015-01-01T00:00:00.000Z");
+                updateNode.setString(3, null);
+                updateNode.setInt(4, 0);
+                updateNode.setInt(5, 0);
+                updateNode.setInt(6, 0);
+                updateNode.setString(7, "FILE");
+                updateNode.setString(8, "2015-01-01T00:00:00.000Z");
+                updateNode.setString(9, "child" + i + ".jpg");
+                updateNode.setInt(10, 0);
+                updateNode.setString(11, "AVAILABLE");
+                updateNode.setLong(12, 1);
+                updateNode.setLong(13, 1024);
+                updateNode.setString(14, nodeId);
+                updateNode.executeUpdate();
+
+                deleteOtherParents.setString(1, nodeId);
+                deleteOtherParents.setString(2, FOLDER_NODE_ID);
+                deleteOtherParents.executeUpdate();
+
+                insertParent.setString(1, nodeId);
+                insertParent.setString(2, FOLDER_NODE_ID);
+                insertParent.executeUpdate();
+            }
+            mConnection.commit();
+        } finally {
+            insertParent.close();
+            deleteOtherParents.close();
+            updateNode.close();
+            insertNode.close();
+            mConnection.setAutoCommit(true);
+        }
+    }
+
+    @Benchmark
+    public void insert() throws SQLException {
+        replaceNode("inserted" + (mInsertCounter++ % folderSize), "inserted.jpg", "FILE", false);
+    }
+
+    @Benchmark
+    public void queryNodeChildren(Blackhole blackhole) throws SQLException {
+        queryNodeChildren(ProviderSchema.QUERY_NODE_CHILDREN, blackhole);
+    }
+
+    @Benchmark
+    public void queryNodeChildrenView(Blackhole blackhole) throws SQLException {
+        queryNodeChildren(ProviderSchema.QUERY_NODE_CHILDREN_VIEW, blackhole);
+    }
+
+    private void queryNodeChildren(String sql, Blackhole blackhole) throws SQLException {
+        PreparedStatement statement = mConnection.prepareStatement(sql);
+        try {
+            statement.setString(1, "PURGED");
+            statement.setString(2, "TRASH");
+            statement.setString(3, "ASSET");
+            statement.setString(4, FOLDER_NODE_ID);
+            ResultSet resultSet = statement.executeQuery();
+            try {
+                while (resultSet.next()) {
+                    blackhole.consume(resultSet.getInt(1));
+                    blackhole.consume(resultSet.getString(2));
+                    blackhole.consume(resultSet.getString(3));
+                    blackhole.consume(resultSet.getString(4));
+                    blackhole.consume(resultSet.getString(5));
+                }
+            } finally {
+                resultSet.close();
+            }
+        } finally {
+            statement.close();
+        }
+    }
+
+    /**
+     * Writes the same operations FolderSynchronizer issues for one page of children.
+     */
+    private void writeFolderPage() throws SQLException {
+        for (int i = 0; i < folderSize; i++) {
+            String nodeId = FOLDER_NODE_ID + "-child" + i;
+            replaceNode(nodeId, "child" + i + ".jpg", "FILE", false);
+
+            PreparedStatement deleteParents = mConnection.prepareStatement(ProviderSchema.DELETE_NODE_PARENTS);
+            try {
+                deleteParents.setString(1, nodeId);
+                deleteParents.executeUpdate();
+            } finally {
+                deleteParents.close();
+            }
+            replaceParent(nodeId, FOLDER_NODE_ID);
+        }
+    }
+
+    private void replaceNode(String nodeId, String name, String kind, boolean isRoot) throws SQLException {
+        PreparedStatement statement = mConnection.prepareStatement(ProviderSchema.REPLACE_NODE);
+        try {
+            bindNode(statement, nodeId, name, kind, isRoot);
+            statement.executeUpdate();
+        } finally {
+            statement.close();
+        }
+    }
+
+    private static void bindNode(PreparedStatement statement, String nodeId, String name, String kind, boolean isRoot)
+            throws SQLException {
+        statement.setString(1, nodeId);
+        statement.setString(2, "benchmark");
+        statement.setString(3, "2015-01-01T00:00:00.000Z");
+        statement.setString(4, null);
+        statement.setInt(5, 0);
+        statement.setInt(6, isRoot ? 1 : 0);
+        statement.setInt(7, 0);
+        statement.setString(8, kind);
+        statement.setString(9, "2015-01-01T00:00:00.000Z");
+        statement.setString(10, name);
+        statement.setInt(11, 0);
+        statement.setString(12, "AVAILABLE");
+        statement.setLong(13, 1);
+        if ("FILE".equals(kind)) {
+            statement.setLong(14, 1024);
+        } else {
+            statement.setNull(14, Types.INTEGER);
+        }
+        statement.setInt(15, 0);
+    }
+
+    private void replaceParent(String nodeId, String parentNodeId) throws SQLException {
+        PreparedStatement statement = mConnection.prepareStatement(ProviderSchema.REPLACE_NODE_PARENT);
+        try {
+            statement.setString(1, nodeId);
+            statement.setString(2, parentNodeId);
+            statement.executeUpdate();
+        } finally {
+            statement.close();
+        }
+    }
+}
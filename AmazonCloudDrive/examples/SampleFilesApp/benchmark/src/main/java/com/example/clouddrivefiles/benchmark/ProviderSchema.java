@@ -0,0 +1,292 @@
+/*
+ * Copyright 2015 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may not use this file except in compliance with the License.
+ * A copy of the License is located at
+ *
+ *  http://aws.amazon.com/apache2.0
+ *
+ * or in the "license" file accompanying this file. This file is distributed
+ * on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package com.example.clouddrivefiles.benchmark;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+/**
+ * The schema and statements used by CloudDriveProvider, for desktop SQLite.
+ *
+ * CloudDriveNodesDatabaseHelper and CloudDriveContract depend on the Android
+ * framework, so they cannot be loaded here. Keep these statements in sync
+ * with them when the schema changes.
+ */
+final class ProviderSchema {
+
+    // A node_children_materialized row from the child n, node_parents row np and parent npn
+    private static final String EDGE_ROW_COLUMNS =
+            "n._id, np.parent_node_id, npn.is_root, n.node_id, n.created_by, n.created_date, n.description, " +
+                    "n.exclusively_trashed, n.is_root, n.is_shared, n.kind, n.modified_date, n.name, " +
+                    "n.recursively_trashed, n.status, n.version, n.content_size, n.total_size, n.file_count ";
+
+    static final String[] CREATE_STATEMENTS = {
+            "CREATE TABLE nodes(" +
+                    "_id INTEGER PRIMARY KEY AUTOINCREMENT, " +
+                    "node_id TEXT UNIQUE NOT NULL, " +
+                    "created_by TEXT, " +
+                    "created_date TEXT, " +
+                    "description TEXT, " +
+                    "exclusively_trashed INTEGER, " +
+                    "is_root INTEGER, " +
+                    "is_shared INTEGER, " +
+                    "kind TEXT, " +
+                    "modified_date TEXT, " +
+                    "name TEXT, " +
+                    "recursively_trashed INTEGER, " +
+                    "status TEXT, " +
+                    "version INTEGER, " +
+                    "content_size INTEGER, " +
+                    "total_size INTEGER NOT NULL DEFAULT 0, " +
+                    "file_count INTEGER NOT NULL DEFAULT 0, " +
+                    "is_dirty INTEGER" +
+                    ")",
+            "CREATE INDEX idx_nodes_nid ON nodes (node_id)",
+            "CREATE INDEX idx_nodes_md ON nodes (modified_date)",
+            "CREATE TABLE node_parents(" +
+                    "_id INTEGER PRIMARY KEY AUTOINCREMENT, " +
+                    "node_id TEXT NOT NULL, " +
+                    "parent_node_id TEXT NOT NULL " +
+                    ")",
+            "CREATE UNIQUE INDEX idx_node_parents_nid_pnid ON node_parents (node_id, parent_node_id)",
+            "CREATE INDEX idx_node_parents_pnid ON node_parents (parent_node_id)",
+            "CREATE VIEW node_children AS " +
+                    "SELECT " +
+                    "n._id AS _id, " +
+                    "np.parent_node_id AS parent_node_id, " +
+                    "npn.is_root AS parent_is_root, " +
+                    "n.node_id AS node_id, " +
+                    "n.created_by AS created_by, " +
+                    "n.created_date AS created_date, " +
+                    "n.description AS description, " +
+                    "n.exclusively_trashed AS exclusively_trashed, " +
+                    "n.is_root AS is_root, " +
+                    "n.is_shared AS is_shared, " +
+                    "n.kind AS kind, " +
+                    "n.modified_date AS modified_date, " +
+                    "n.name AS name, " +
+                    "n.recursively_trashed AS recursively_trashed, " +
+                    "n.status AS status, " +
+                    "n.version AS version, " +
+                    "n.content_size AS content_size, " +
+                    "n.total_size AS total_size, " +
+                    "n.file_count AS file_count " +
+                    "FROM node_parents np, nodes n, nodes npn " +
+                    "WHERE np.node_id = n.node_id AND np.parent_node_id = npn.node_id ",
+            "CREATE VIEW node_children_narrow AS " +
+                    "SELECT " +
+                    "n._id AS _id, " +
+                    "np.parent_node_id AS parent_node_id, " +
+                    "n.node_id AS node_id, " +
+                    "n.created_by AS created_by, " +
+                    "n.created_date AS created_date, " +
+                    "n.description AS description, " +
+                    "n.exclusively_trashed AS exclusively_trashed, " +
+                    "n.is_root AS is_root, " +
+                    "n.is_shared AS is_shared, " +
+                    "n.kind AS kind, " +
+                    "n.modified_date AS modified_date, " +
+                    "n.name AS name, " +
+                    "n.recursively_trashed AS recursively_trashed, " +
+                    "n.status AS status, " +
+                    "n.version AS version, " +
+                    "n.content_size AS content_size, " +
+                    "n.total_size AS total_size, " +
+                    "n.file_count AS file_count " +
+                    "FROM node_parents np, nodes n " +
+                    "WHERE np.node_id = n.node_id ",
+            "CREATE TABLE node_children_materialized(" +
+                    "_id INTEGER NOT NULL, " +
+                    "parent_node_id TEXT NOT NULL, " +
+                    "parent_is_root INTEGER, " +
+                    "node_id TEXT NOT NULL, " +
+                    "created_by TEXT, " +
+                    "created_date TEXT, " +
+                    "description TEXT, " +
+                    "exclusively_trashed INTEGER, " +
+                    "is_root INTEGER, " +
+                    "is_shared INTEGER, " +
+                    "kind TEXT, " +
+                    "modified_date TEXT, " +
+                    "name TEXT, " +
+                    "recursively_trashed INTEGER, " +
+                    "status TEXT, " +
+                    "version INTEGER, " +
+                    "content_size INTEGER, " +
+                    "total_size INTEGER, " +
+                    "file_count INTEGER" +
+                    ")",
+            "CREATE UNIQUE INDEX idx_node_children_nid_pnid ON node_children_materialized (node_id, parent_node_id)",
+            "CREATE INDEX idx_node_children_pnid_k_n ON node_children_materialized (parent_node_id, kind DESC, name)",
+            "CREATE TRIGGER node_children_parents_insert AFTER INSERT ON node_parents BEGIN " +
+                    insertEdgeRow("NEW") + "; END",
+            "CREATE TRIGGER node_children_parents_update AFTER UPDATE ON node_parents BEGIN " +
+                    deleteEdgeRow("OLD") + "; " + insertEdgeRow("NEW") + "; END",
+            "CREATE TRIGGER node_children_parents_delete AFTER DELETE ON node_parents BEGIN " +
+                    deleteEdgeRow("OLD") + "; END",
+            "CREATE TRIGGER node_children_nodes_insert AFTER INSERT ON nodes BEGIN " +
+                    "INSERT OR IGNORE INTO node_children_materialized SELECT " + EDGE_ROW_COLUMNS +
+                    "FROM node_parents np, nodes n, nodes npn " +
+                    "WHERE n._id = NEW._id AND np.node_id = n.node_id AND npn.node_id = np.parent_node_id; " +
+                    "INSERT OR IGNORE INTO node_children_materialized SELECT " + EDGE_ROW_COLUMNS +
+                    "FROM node_parents np, nodes n, nodes npn " +
+                    "WHERE npn._id = NEW._id AND np.parent_node_id = npn.node_id AND n.node_id = np.node_id; END",
+            "CREATE TRIGGER node_children_nodes_update AFTER UPDATE OF " +
+                    "node_id, created_by, created_date, description, exclusively_trashed, is_root, is_shared, kind, " +
+                    "modified_date, name, recursively_trashed, status, version, content_size, total_size, file_count " +
+                    "ON nodes WHEN " + isChanged(
+                            "node_id", "created_by", "created_date", "description", "exclusively_trashed", "is_root",
+                            "is_shared", "kind", "modified_date", "name", "recursively_trashed", "status", "version",
+                            "content_size", "total_size", "file_count") + " BEGIN " +
+                    "INSERT OR REPLACE INTO node_children_materialized SELECT " + EDGE_ROW_COLUMNS +
+                    "FROM node_parents np, nodes n, nodes npn " +
+                    "WHERE n._id = NEW._id AND np.node_id = n.node_id AND npn.node_id = np.parent_node_id; END",
+            "CREATE TRIGGER node_children_nodes_update_is_root AFTER UPDATE OF is_root ON nodes " +
+                    "WHEN OLD.is_root IS NOT NEW.is_root BEGIN " +
+                    "UPDATE node_children_materialized SET parent_is_root = NEW.is_root " +
+                    "WHERE parent_node_id = NEW.node_id; END",
+            "CREATE TRIGGER node_children_nodes_delete AFTER DELETE ON nodes BEGIN " +
+                    "DELETE FROM node_children_materialized WHERE node_id = OLD.node_id; " +
+                    "DELETE FROM node_children_materialized WHERE parent_node_id = OLD.node_id; END",
+            "CREATE TRIGGER nodes_stats_insert AFTER INSERT ON nodes BEGIN " +
+                    "UPDATE nodes SET " +
+                    "total_size = CASE NEW.kind " +
+                    "WHEN 'FOLDER' THEN (SELECT IFNULL(SUM(" + contribution("c", "total_size") + "), 0) " +
+                    "FROM node_parents np, nodes c WHERE np.parent_node_id = NEW.node_id AND c.node_id = np.node_id) " +
+                    "WHEN 'FILE' THEN IFNULL(NEW.content_size, 0) ELSE 0 END, " +
+                    "file_count = CASE NEW.kind " +
+                    "WHEN 'FOLDER' THEN (SELECT IFNULL(SUM(" + contribution("c", "file_count") + "), 0) " +
+                    "FROM node_parents np, nodes c WHERE np.parent_node_id = NEW.node_id AND c.node_id = np.node_id) " +
+                    "WHEN 'FILE' THEN 1 ELSE 0 END " +
+                    "WHERE _id = NEW._id; END",
+            "CREATE TRIGGER nodes_stats_content_size AFTER UPDATE OF content_size ON nodes " +
+                    "WHEN NEW.kind = 'FILE' AND IFNULL(NEW.content_size, 0) != NEW.total_size BEGIN " +
+                    "UPDATE nodes SET total_size = IFNULL(NEW.content_size, 0) WHERE _id = NEW._id; END",
+            "CREATE TRIGGER nodes_stats_update AFTER UPDATE OF total_size, file_count, status ON nodes " +
+                    "WHEN " + contribution("NEW", "total_size") + " != " + contribution("OLD", "total_size") +
+                    " OR " + contribution("NEW", "file_count") + " != " + contribution("OLD", "file_count") + " BEGIN " +
+                    "UPDATE nodes SET " +
+                    "total_size = total_size + (" + contribution("NEW", "total_size") + ") - (" + contribution("OLD", "total_size") + "), " +
+                    "file_count = file_count + (" + contribution("NEW", "file_count") + ") - (" + contribution("OLD", "file_count") + ") " +
+                    "WHERE node_id IN (SELECT parent_node_id FROM node_parents WHERE node_id = NEW.node_id); END",
+            "CREATE TRIGGER nodes_stats_delete AFTER DELETE ON nodes " +
+                    "WHEN " + contribution("OLD", "total_size") + " != 0 OR " + contribution("OLD", "file_count") + " != 0 BEGIN " +
+                    "UPDATE nodes SET " +
+                    "total_size = total_size - (" + contribution("OLD", "total_size") + "), " +
+                    "file_count = file_count - (" + contribution("OLD", "file_count") + ") " +
+                    "WHERE node_id IN (SELECT parent_node_id FROM node_parents WHERE node_id = OLD.node_id); END",
+            "CREATE TRIGGER node_parents_stats_insert AFTER INSERT ON node_parents BEGIN " +
+                    "UPDATE nodes SET " +
+                    "total_size = total_size + IFNULL((SELECT " + contribution("c", "total_size") + " FROM nodes c WHERE c.node_id = NEW.node_id), 0), " +
+                    "file_count = file_count + IFNULL((SELECT " + contribution("c", "file_count") + " FROM nodes c WHERE c.node_id = NEW.node_id), 0) " +
+                    "WHERE node_id = NEW.parent_node_id; END",
+            "CREATE TRIGGER node_parents_stats_delete AFTER DELETE ON node_parents BEGIN " +
+                    "UPDATE nodes SET " +
+                    "total_size = total_size - IFNULL((SELECT " + contribution("c", "total_size") + " FROM nodes c WHERE c.node_id = OLD.node_id), 0), " +
+                    "file_count = file_count - IFNULL((SELECT " + contribution("c", "file_count") + " FROM nodes c WHERE c.node_id = OLD.node_id), 0) " +
+                    "WHERE node_id = OLD.parent_node_id; END"
+    };
+
+    // CloudDriveNodesDatabaseHelper.onOpen turns this on for the folder statistics triggers
+    static final String ENABLE_RECURSIVE_TRIGGERS = "PRAGMA recursive_triggers = ON";
+
+    // ContentProvider.insert on nodes uses SQLiteDatabase.replace
+    static final String REPLACE_NODE =
+            "INSERT OR REPLACE INTO nodes (" +
+                    "node_id, created_by, created_date, description, exclusively_trashed, is_root, " +
+                    "is_shared, kind, modified_date, name, recursively_trashed, status, version, content_size, is_dirty" +
+                    ") VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)";
+
+    static final String DELETE_NODE_PARENTS =
+            "DELETE FROM node_parents WHERE node_id = ?";
+
+    static final String REPLACE_NODE_PARENT =
+            "INSERT OR REPLACE INTO node_parents (node_id, parent_node_id) VALUES (?, ?)";
+
+    // NodeWriter saves nodes in place rather than with INSERT OR REPLACE
+    static final String INSERT_NODE_IF_ABSENT =
+            "INSERT OR IGNORE INTO nodes (node_id, kind, status, content_size) VALUES (?, ?, ?, ?)";
+
+    static final String UPDATE_NODE =
+            "UPDATE nodes SET " +
+                    "created_by = ?, created_date = ?, description = ?, exclusively_trashed = ?, is_root = ?, " +
+                    "is_shared = ?, kind = ?, modified_date = ?, name = ?, recursively_trashed = ?, status = ?, " +
+                    "version = ?, content_size = ?, is_dirty = 0 " +
+                    "WHERE node_id = ?";
+
+    static final String DELETE_OTHER_NODE_PARENTS =
+            "DELETE FROM node_parents WHERE node_id = ? AND parent_node_id != ?";
+
+    static final String INSERT_NODE_PARENT_IF_ABSENT =
+            "INSERT INTO node_parents (node_id, parent_node_id) SELECT ?1, ?2 WHERE NOT EXISTS (" +
+                    "SELECT 1 FROM node_parents WHERE node_id = ?1 AND parent_node_id = ?2)";
+
+    // The query issued by NodeListingFragment for a folder. CloudDriveProvider
+    // runs it on the node_children table.
+    static final String QUERY_NODE_CHILDREN =
+            "SELECT _id, node_id, name, kind, modified_date FROM node_children_materialized " +
+                    "WHERE status != ? AND status != ? AND kind != ? AND parent_node_id = ? " +
+                    "ORDER BY kind DESC, name ASC ";
+
+    // The same query on the narrow view, as CloudDriveProvider ran it before
+    // node_children was materialized. The app no longer creates the view; it
+    // is only kept here as the baseline.
+    static final String QUERY_NODE_CHILDREN_VIEW =
+            "SELECT _id, node_id, name, kind, modified_date FROM node_children_narrow " +
+                    "WHERE status != ? AND status != ? AND kind != ? AND parent_node_id = ? " +
+                    "ORDER BY kind DESC, name ASC ";
+
+    private ProviderSchema() {
+    }
+
+    private static String insertEdgeRow(String row) {
+        return "INSERT OR IGNORE INTO node_children_materialized SELECT " +
+                EDGE_ROW_COLUMNS.replace("np.parent_node_id", row + ".parent_node_id") +
+                "FROM nodes n, nodes npn WHERE n.node_id = " + row + ".node_id AND npn.node_id = " + row + ".parent_node_id";
+    }
+
+    private static String deleteEdgeRow(String row) {
+        return "DELETE FROM node_children_materialized " +
+                "WHERE node_id = " + row + ".node_id AND parent_node_id = " + row + ".parent_node_id";
+    }
+
+    private static String isChanged(String... columns) {
+        StringBuilder isChanged = new StringBuilder();
+        for (String column : columns) {
+            if (isChanged.length() > 0) {
+                isChanged.append(" OR ");
+            }
+            isChanged.append("OLD.").append(column).append(" IS NOT NEW.").append(column);
+        }
+        return isChanged.toString();
+    }
+
+    private static String contribution(String row, String column) {
+        return "CASE WHEN " + row + ".status = 'AVAILABLE' THEN " + row + "." + column + " ELSE 0 END";
+    }
+
+    static void create(Connection connection) throws SQLException {
+        Statement statement = connection.createStatement();
+        try {
+            statement.execute(ENABLE_RECURSIVE_TRIGGERS);
+            for (String sql : CREATE_STATEMENTS) {
+                statement.execute(sql);
+            }
+        } finally {
+            statement.close();
+        }
+    }
+}
@@ -0,0 +1,236 @@
+package com.example.clouddrivelisting;
+
+import android.content.Context;
+import android.os.Bundle;
+import android.os.SystemClock;
+import com.amazon.identity.auth.device.AuthError;
+import com.amazon.identity.auth.device.authorization.api.AmazonAuthorizationManager;
+import com.amazon.identity.auth.device.authorization.api.AuthorizationListener;
+import com.amazon.identity.auth.device.authorization.api.AuthzConstants;
+import com.amazon.identity.auth.device.shared.APIListener;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+
+/**
+ * An {@link AmazonAuthorizationManager} that keeps the access token in memory.
+ *
+ * The SDK's connection factory asks for the token before every request. This
+ * class answers from memory while the token is fresh, fetches a new one in the
+ * background shortly before it expires, and lets concurrent callers share a
+ * single fetch rather than each making its own.
+ *
+ * LWA does not report when a token expires, so the expiry is estimated from
+ * when a token is first seen. Once the estimate runs out, LWA is asked again
+ * and decides; a token it still considers valid is kept for another short while.
+ * The first token of a process may already be old, so it is only kept for that
+ * short while until LWA hands out a new one.
+ */
+public class CachingAuthorizationManager extends AmazonAuthorizationManager {
+
+    // LWA access tokens are valid for an hour.
+    private static final long TOKEN_LIFETIME_MILLIS = 60 * 60 * 1000;
+
+    // A background fetch starts when the token is this close to expiring.
+    private static final long REFRESH_WINDOW_MILLIS = 10 * 60 * 1000;
+
+    // How long a token past its estimated expiry is kept once LWA returns it again.
+    private static final long RECHECK_MILLIS = 60 * 1000;
+
+    private final Object mLock = new Object();
+
+    // The cached token and the scopes it was fetched for. Guarded by mLock.
+    private String[] mScopes;
+    private String mToken;
+    private long mExpiryMillis;
+    private long mRefreshMillis;
+    private TokenRequest mTokenRequest;
+    // Bumped when the token is cleared, so fetches started before are ignored.
+    private int mGeneration;
+    // The last token LWA returned, kept across clears. A different token is a new one.
+    private String mLastFetchedToken;
+
+    public CachingAuthorizationManager(Context context, Bundle options) {
+        super(context, options);
+    }
+
+    @Override
+    public Future<Bundle> getToken(String[] scopes, APIListener listener) {
+        TokenRequest tokenRequest = null;
+        boolean isNewRequest = false;
+        String token = null;
+        synchronized (mLock) {
+            long now = SystemClock.elapsedRealtime();
+            boolean isCached = mToken != null && Arrays.equals(scopes, mScopes);
+            if (isCached && now < mExpiryMillis) {
+                token = mToken;
+                if (now >= mRefreshMillis && mTokenRequest == null) {
+                    // Fetch the next token in the background; nobody waits for it.
+                    mTokenRequest = new TokenRequest(scopes);
+                    tokenRequest = mTokenRequest;
+                    isNewRequest = true;
+                }
+            } else if (mTokenRequest == null || Arrays.equals(scopes, mTokenRequest.mScopes)) {
+                if (mTokenRequest == null) {
+                    mTokenRequest = new TokenRequest(scopes);
+                    isNewRequest = true;
+                }
+                tokenRequest = mTokenRequest;
+                tokenRequest.addListener(listener);
+            }
+        }
+
+        if (isNewRequest) {
+            super.getToken(tokenRequest.mScopes, tokenRequest);
+        }
+
+        if (token != null) {
+            Bundle bundle = new Bundle();
+            bundle.putString(AuthzConstants.BUNDLE_KEY.TOKEN.val, token);
+            listener.onSuccess(bundle);
+            return completedFuture(bundle);
+        }
+        if (tokenRequest != null) {
+            return tokenRequest.mResult;
+        }
+        // A fetch for other scopes is running; these are not cached.
+        return super.getToken(scopes, listener);
+    }
+
+    @Override
+    public Future<Bundle> authorize(String[] scopes, Bundle options, AuthorizationListener listener) {
+        clearToken();
+        return super.authorize(scopes, options, listener);
+    }
+
+    @Override
+    public Future<Bundle> clearAuthorizationState(APIListener listener) {
+        clearToken();
+        return super.clearAuthorizationState(listener);
+    }
+
+    private void clearToken() {
+        synchronized (mLock) {
+            mScopes = null;
+            mToken = null;
+            mExpiryMillis = 0;
+            mRefreshMillis = 0;
+            // A fetch still running may return the previous account's token.
+            mTokenRequest = null;
+            mGeneration++;
+        }
+    }
+
+    /**
+     * Stores the token returned by a fetch.
+     */
+    private void onTokenFetched(int generation, String[] scopes, String token) {
+        synchronized (mLock) {
+            if (generation != mGeneration) {
+                return;
+            }
+
+            long now = SystemClock.elapsedRealtime();
+            if (token == null) {
+                mToken = null;
+            } else if (token.equals(mToken) && Arrays.equals(scopes, mScopes)) {
+                // LWA has not replaced it yet, so the expiry stays where it was.
+                mExpiryMillis = Math.max(mExpiryMillis, now + RECHECK_MILLIS);
+                mRefreshMillis = now + RECHECK_MILLIS;
+            } else if (mLastFetchedToken != null && !token.equals(mLastFetchedToken)) {
+                // LWA has just issued it.
+                mScopes = scopes.clone();
+                mToken = token;
+                mExpiryMillis = now + TOKEN_LIFETIME_MILLIS;
+                mRefreshMillis = mExpiryMillis - REFRESH_WINDOW_MILLIS;
+            } else {
+                // Of unknown age, for example the first token since the app
+                // started, so LWA is asked again soon.
+                mScopes = scopes.clone();
+                mToken = token;
+                mExpiryMillis = now + RECHECK_MILLIS;
+                mRefreshMillis = mExpiryMillis;
+            }
+            if (token != null) {
+                mLastFetchedToken = token;
+            }
+        }
+    }
+
+    private static Future<Bundle> completedFuture(final Bundle bundle) {
+        FutureTask<Bundle> future = new FutureTask<Bundle>(new Callable<Bundle>() {
+            @Override
+            public Bundle call() {
+                return bundle;
+            }
+        });
+        future.run();
+        return future;
+    }
+
+    /**
+     * A fetch from LWA that every caller arriving while it runs waits on.
+     */
+    private class TokenRequest implements APIListener {
+
+        private final String[] mScopes;
+        private final int mGeneration;
+        private final List<APIListener> mListeners = new ArrayList<APIListener>();
+        private Bundle mBundle;
+        private AuthError mAuthError;
+
+        private final FutureTask<Bundle> mResult = new FutureTask<Bundle>(new Callable<Bundle>() {
+            @Override
+            public Bundle call() throws Exception {
+                if (mAuthError != null) {
+                    throw mAuthError;
+                }
+                return mBundle;
+            }
+        });
+
+        // Called with mLock held.
+        TokenRequest(String[] scopes) {
+            mScopes = scopes.clone();
+            mGeneration = CachingAuthorizationManager.this.mGeneration;
+        }
+
+        // Called with mLock held.
+        void addListener(APIListener listener) {
+            mListeners.add(listener);
+        }
+
+        @Override
+        public void onSuccess(Bundle bundle) {
+            onTokenFetched(mGeneration, mScopes, bundle != null ? bundle.getString(AuthzConstants.BUNDLE_KEY.TOKEN.val) : null);
+            mBundle = bundle;
+            for (APIListener listener : finish()) {
+                listener.onSuccess(bundle);
+            }
+        }
+
+        @Override
+        public void onError(AuthError authError) {
+            mAuthError = authError;
+            for (APIListener listener : finish()) {
+                listener.onError(authError);
+            }
+        }
+
+        private List<APIListener> finish() {
+            List<APIListener> listeners;
+            synchronized (mLock) {
+                if (mTokenRequest == this) {
+                    mTokenRequest = null;
+                }
+                listeners = new ArrayList<APIListener>(mListeners);
+            }
+            mResult.run();
+            return listeners;
+        }
+    }
+}
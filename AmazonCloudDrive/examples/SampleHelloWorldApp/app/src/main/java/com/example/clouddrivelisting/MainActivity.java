@@ -6,6 +6,8 @@ import android.util.Log;
 import android.view.Gravity;
 import android.view.View;
 import android.view.View.OnClickListener;
+import android.widget.AbsListView;
+import android.widget.AbsListView.OnScrollListener;
 import android.widget.ArrayAdapter;
 import android.widget.ImageButton;
 import android.widget.ListView;
@@ -21,13 +23,19 @@ import com.amazon.clouddrive.handlers.AsyncHandler;
 import com.amazon.clouddrive.model.ListNodesRequest;
 import com.amazon.clouddrive.model.ListNodesResponse;
 import com.amazon.clouddrive.model.Node;
+import com.amazon.clouddrive.model.NodeStatus;
 import com.amazon.identity.auth.device.AuthError;
 import com.amazon.identity.auth.device.authorization.api.AmazonAuthorizationManager;
 import com.amazon.identity.auth.device.authorization.api.AuthorizationListener;
 import com.amazon.identity.auth.device.authorization.api.AuthzConstants;
 
+import java.io.File;
 import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 public class MainActivity extends Activity {
 
@@ -39,6 +47,47 @@ public class MainActivity extends Activity {
     // ListView that displays Cloud Drive Node information
     private ListView mNodeList;
 
+    // Adapter that pages of nodes are appended to. It is created once, so the
+    // list keeps its scroll position as pages arrive.
+    private ArrayAdapter<NodeListingCache.Entry> mNodeAdapter;
+
+    // Ids of the nodes in mNodeAdapter, so overlapping pages are not shown twice.
+    private final Set<String> mNodeIds = new HashSet<String>();
+
+    // Number of nodes requested per page. Small pages show up quickly and
+    // never time out, even on large accounts.
+    private static final int PAGE_SIZE = 50;
+
+    // Number of nodes requested per page when fetching changes since the
+    // cached listing. There are usually few, so they are fetched all at once.
+    private static final int CHANGES_PAGE_SIZE = 200;
+
+    // The listing is newest first, so the cached listing is always a prefix of
+    // it and its first node carries the modified-date watermark.
+    private static final String NODE_SORT = "[\"modifiedDate DESC\"]";
+    private static final String AVAILABLE_FILTER = "status:" + NodeStatus.AVAILABLE;
+
+    // Characters that must be escaped in a filter value. Dates contain ':'.
+    private static final String FILTER_SPECIAL_CHARACTERS = "+-&|!(){}[]^'\"~*?:\\ ";
+
+    // The next page is requested once the user scrolls this close to the end.
+    private static final int PREFETCH_ROWS = 10;
+
+    // Paging state, only touched on the UI thread. The generation is bumped on
+    // every refresh so that pages of an older listing are dropped.
+    private String mNextToken;
+    private boolean mHasMorePages;
+    private boolean mIsLoadingPage;
+    private int mListingGeneration;
+    private String mPagingFilter = AVAILABLE_FILTER;
+
+    // The last listing, kept on disk so it can be shown before the network is
+    // reached. Reads, writes and change fetches run one at a time on the executor.
+    private NodeListingCache mListingCache;
+    private final ExecutorService mCacheExecutor = Executors.newSingleThreadExecutor();
+    private boolean mIsCacheLoaded;
+    private boolean mIsRefreshPending;
+
     // LWA authorization managger
     private AmazonAuthorizationManager mAuthManager;
 
@@ -133,9 +182,39 @@ public class MainActivity extends Activity {
         });
 
         mNodeList = (ListView) findViewById(R.id.node_list);
+        mNodeAdapter = new ArrayAdapter<NodeListingCache.Entry>(
+                this, android.R.layout.simple_list_item_1, new ArrayList<NodeListingCache.Entry>());
+        mNodeList.setAdapter(mNodeAdapter);
+        mNodeList.setOnScrollListener(new OnScrollListener() {
+            @Override
+            public void onScrollStateChanged(AbsListView view, int scrollState) {
+            }
+
+            @Override
+            public void onScroll(AbsListView view, int firstVisibleItem, int visibleItemCount, int totalItemCount) {
+                loadNextPageIfNeeded();
+            }
+        });
+
+        // Show the last listing straight away; the refresh only applies what changed since.
+        mListingCache = new NodeListingCache(new File(getFilesDir(), "node_listing.cache"));
+        mCacheExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                final List<NodeListingCache.Entry> entries = mListingCache.load();
+                runOnUiThread(new Runnable() {
+                    @Override
+                    public void run() {
+                        showCachedListing(entries);
+                    }
+                });
+            }
+        });
 
         try {
-            mAuthManager = new AmazonAuthorizationManager(this, Bundle.EMPTY);
+            // The token fetched here is cached, so the client's first requests do
+            // not wait on LWA again.
+            mAuthManager = new CachingAuthorizationManager(this, Bundle.EMPTY);
             mAuthManager.getToken(APP_AUTHORIZATION_SCOPES, new GetTokenListener());
         } catch (IllegalArgumentException e) {
             //
@@ -147,6 +226,13 @@ public class MainActivity extends Activity {
         }
     }
 
+    @Override
+    protected void onDestroy() {
+        // Let a pending save finish, but do not start anything new.
+        mCacheExecutor.shutdown();
+        super.onDestroy();
+    }
+
     /**
      * Moves to the Ready state. Hides the login button, creates AmazonCloudDrive client, starts fetch.
      */
@@ -190,39 +276,228 @@ public class MainActivity extends Activity {
     }
 
     /**
-     * Updates the mNodeList to show node kind and name.
-     * @param nodes The nodes to show
+     * Shows the cached listing, unless a listing is already shown, then starts
+     * the refresh if one was requested in the meantime. Must be called on the UI thread.
+     * @param entries The cached nodes, newest first
      */
-    private void updateNodeListView(List<Node> nodes) {
-        final List<String> nodeStrings = new ArrayList<String>();
-        for (Node node : nodes) {
-            nodeStrings.add(node.getKind() + ":" + node.getName());
+    private void showCachedListing(List<NodeListingCache.Entry> entries) {
+        if (mNodeAdapter.isEmpty()) {
+            appendNodeListView(entries);
         }
-        runOnUiThread(new Runnable() {
+        mIsCacheLoaded = true;
+        if (mIsRefreshPending) {
+            mIsRefreshPending = false;
+            startRefresh();
+        }
+    }
+
+    /**
+     * Appends a page of nodes to mNodeList, showing node kind and name.
+     * Nodes that are already shown are skipped. Must be called on the UI thread.
+     * @param entries The nodes to show
+     */
+    private void appendNodeListView(List<NodeListingCache.Entry> entries) {
+        // Notify once for the whole page rather than once per node.
+        mNodeAdapter.setNotifyOnChange(false);
+        for (NodeListingCache.Entry entry : entries) {
+            if (mNodeIds.add(entry.id)) {
+                mNodeAdapter.add(entry);
+            }
+        }
+        mNodeAdapter.notifyDataSetChanged();
+    }
 
+    /**
+     * Writes the first nodes of the listing to the cache in the background.
+     * Must be called on the UI thread.
+     */
+    private void saveListingCache() {
+        if (mCacheExecutor.isShutdown()) {
+            return;
+        }
+        int count = Math.min(mNodeAdapter.getCount(), NodeListingCache.MAX_ENTRIES);
+        final List<NodeListingCache.Entry> entries = new ArrayList<NodeListingCache.Entry>(count);
+        for (int i = 0; i < count; i++) {
+            entries.add(mNodeAdapter.getItem(i));
+        }
+        mCacheExecutor.execute(new Runnable() {
             @Override
             public void run() {
-
-                ArrayAdapter<String> arrayAdapter = new ArrayAdapter<String>(
-                        MainActivity.this,
-                        android.R.layout.simple_list_item_1,
-                        nodeStrings);
-                mNodeList.setAdapter(arrayAdapter);
+                mListingCache.save(entries);
             }
         });
     }
 
     /**
-     * Fetches the a node listing from Cloud Drive, updates ListView with results.
+     * Refreshes the node listing from Cloud Drive once the cached listing has
+     * been read.
      */
     private void refreshNodeListingFromCloudDrive() {
+        runOnUiThread(new Runnable() {
+            @Override
+            public void run() {
+                if (mIsCacheLoaded) {
+                    startRefresh();
+                } else {
+                    mIsRefreshPending = true;
+                }
+            }
+        });
+    }
+
+    /**
+     * Starts a new node listing. With nothing shown, pages are appended to
+     * the ListView as they arrive, until the visible window is filled.
+     * Otherwise only the nodes modified since the newest one shown are fetched.
+     * Must be called on the UI thread.
+     */
+    private void startRefresh() {
+        mListingGeneration++;
+        mNextToken = null;
+        mIsLoadingPage = false;
+
+        String watermark = mNodeAdapter.isEmpty() ? null : mNodeAdapter.getItem(0).modifiedDate;
+        if (watermark == null) {
+            mNodeAdapter.clear();
+            mNodeIds.clear();
+            mPagingFilter = AVAILABLE_FILTER;
+            mHasMorePages = true;
+            loadNextPageIfNeeded();
+        } else {
+            // Hold off paging until the changes are in, so the ends of the list line up.
+            mHasMorePages = false;
+            mIsLoadingPage = true;
+            fetchChangesSince(watermark);
+        }
+    }
+
+    /**
+     * Fetches every node modified since the watermark, including those that
+     * were trashed, and applies them to the listing. Must be called on the UI thread.
+     * @param watermark The modified date of the newest node shown
+     */
+    private void fetchChangesSince(final String watermark) {
+        if (mCacheExecutor.isShutdown()) {
+            return;
+        }
+        final int listingGeneration = mListingGeneration;
+        final AmazonCloudDrive amazonCloudDriveClient = mAmazonCloudDriveClient;
+        mCacheExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                final List<Node> changedNodes = new ArrayList<Node>();
+                try {
+                    String nextToken = null;
+                    do {
+                        ListNodesRequest listNodesRequest = new ListNodesRequest()
+                                .withFilters("modifiedDate:[" + escapeFilterValue(watermark) + " TO *]")
+                                .withSort(NODE_SORT)
+                                .withLimit(CHANGES_PAGE_SIZE)
+                                .withStartToken(nextToken);
+                        ListNodesResponse listNodesResponse = amazonCloudDriveClient.listNodes(listNodesRequest);
+                        if (listNodesResponse.getData() != null) {
+                            changedNodes.addAll(listNodesResponse.getData());
+                        }
+                        nextToken = listNodesResponse.getNextToken();
+                    } while (nextToken != null);
+                } catch (InterruptedException e) {
+                    return;
+                } catch (Exception e) {
+                    // Keep showing the cached listing; the next refresh tries again.
+                    showToast("There was an error calling Amazon Cloud Drive " + e.getMessage());
+                    changedNodes.clear();
+                }
+
+                final List<NodeListingCache.Entry> changedEntries = new ArrayList<NodeListingCache.Entry>();
+                final Set<String> changedIds = new HashSet<String>();
+                for (Node node : changedNodes) {
+                    if (changedIds.add(node.getId()) && NodeStatus.AVAILABLE.equals(node.getStatus())) {
+                        changedEntries.add(new NodeListingCache.Entry(node));
+                    }
+                }
+
+                runOnUiThread(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (listingGeneration == mListingGeneration) {
+                            applyChanges(changedEntries, changedIds);
+                        }
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Puts changed nodes at the top of the listing, drops their old rows and
+     * those of nodes that are no longer available, then resumes paging after
+     * the last node shown. Must be called on the UI thread.
+     * @param changedEntries The available changed nodes, newest first
+     * @param changedIds The ids of all changed nodes
+     */
+    private void applyChanges(List<NodeListingCache.Entry> changedEntries, Set<String> changedIds) {
+        if (!changedIds.isEmpty()) {
+            List<NodeListingCache.Entry> entries = new ArrayList<NodeListingCache.Entry>(changedEntries);
+            for (int i = 0; i < mNodeAdapter.getCount(); i++) {
+                NodeListingCache.Entry entry = mNodeAdapter.getItem(i);
+                if (!changedIds.contains(entry.id)) {
+                    entries.add(entry);
+                }
+            }
+            mNodeAdapter.setNotifyOnChange(false);
+            mNodeAdapter.clear();
+            mNodeIds.clear();
+            appendNodeListView(entries);
+            saveListingCache();
+        }
+
+        // The page tokens of the earlier listing are gone, so page on from the
+        // oldest node shown. Nodes with that same date are skipped as duplicates.
+        String oldestModifiedDate = mNodeAdapter.isEmpty()
+                ? null : mNodeAdapter.getItem(mNodeAdapter.getCount() - 1).modifiedDate;
+        mPagingFilter = oldestModifiedDate == null
+                ? AVAILABLE_FILTER : AVAILABLE_FILTER + " AND modifiedDate:[* TO " + escapeFilterValue(oldestModifiedDate) + "]";
+        mNextToken = null;
+        mHasMorePages = true;
+        mIsLoadingPage = false;
+        loadNextPageIfNeeded();
+    }
 
-        ListNodesRequest listNodesRequest = new ListNodesRequest();
+    /**
+     * Fetches the next page of the node listing if the user is close to the
+     * end of what is shown. Must be called on the UI thread.
+     */
+    private void loadNextPageIfNeeded() {
+        if (mAmazonCloudDriveClient == null || mIsLoadingPage || !mHasMorePages) {
+            return;
+        }
+        if (mNodeList.getLastVisiblePosition() < mNodeAdapter.getCount() - 1 - PREFETCH_ROWS) {
+            // The visible window is filled; wait for the user to scroll.
+            return;
+        }
+
+        mIsLoadingPage = true;
+        final int listingGeneration = mListingGeneration;
+        ListNodesRequest listNodesRequest = new ListNodesRequest()
+                .withFilters(mPagingFilter)
+                .withSort(NODE_SORT)
+                .withLimit(PAGE_SIZE)
+                .withStartToken(mNextToken);
         mAmazonCloudDriveClient.listNodesAsync(listNodesRequest, new AsyncHandler<ListNodesRequest, ListNodesResponse>() {
 
             @Override
             public void onError(ListNodesRequest listNodesRequest, final Exception e) {
                 showToast("There was an error calling Amazon Cloud Drive " + e.getMessage());
+                runOnUiThread(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (listingGeneration == mListingGeneration) {
+                            // Stop paging; a new refresh starts over.
+                            mIsLoadingPage = false;
+                            mHasMorePages = false;
+                        }
+                    }
+                });
             }
 
             @Override
@@ -232,12 +507,57 @@ public class MainActivity extends Activity {
 
             @Override
             public void onSuccess(ListNodesRequest listNodesRequest, ListNodesResponse listNodesResponse) {
+                // Build the entries here, off the UI thread.
+                final List<NodeListingCache.Entry> entries = new ArrayList<NodeListingCache.Entry>();
                 List<Node> nodes = listNodesResponse.getData();
-                updateNodeListView(nodes);
+                if (nodes != null) {
+                    for (Node node : nodes) {
+                        entries.add(new NodeListingCache.Entry(node));
+                    }
+                }
+                final String nextToken = listNodesResponse.getNextToken();
+
+                runOnUiThread(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (listingGeneration != mListingGeneration) {
+                            return;
+                        }
+                        boolean isCachedPart = mNodeAdapter.getCount() < NodeListingCache.MAX_ENTRIES;
+                        appendNodeListView(entries);
+                        if (isCachedPart) {
+                            saveListingCache();
+                        }
+                        mNextToken = nextToken;
+                        mHasMorePages = nextToken != null;
+                        mIsLoadingPage = false;
+
+                        // Check again once the new rows are laid out, in case
+                        // they do not fill the screen yet.
+                        mNodeList.post(new Runnable() {
+                            @Override
+                            public void run() {
+                                loadNextPageIfNeeded();
+                            }
+                        });
+                    }
+                });
             }
         });
     }
 
+    private static String escapeFilterValue(String value) {
+        StringBuilder escaped = new StringBuilder(value.length() + 8);
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (FILTER_SPECIAL_CHARACTERS.indexOf(c) >= 0) {
+                escaped.append('\\');
+            }
+            escaped.append(c);
+        }
+        return escaped.toString();
+    }
+
     /**
      * Shows a toast
      * @param toastMessage The message to show to the user
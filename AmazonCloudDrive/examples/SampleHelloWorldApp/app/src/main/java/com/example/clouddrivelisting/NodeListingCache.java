@@ -0,0 +1,147 @@
+package com.example.clouddrivelisting;
+
+import android.util.Log;
+
+import com.amazon.clouddrive.model.Node;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Keeps the last node listing in a small file, so it can be shown at startup
+ * before anything has been fetched.
+ *
+ * Entries are kept in listing order, newest modified date first, so the first
+ * entry's modified date is the watermark: on the next start only nodes
+ * modified since then need to be fetched.
+ */
+public class NodeListingCache {
+
+    private static final String TAG = NodeListingCache.class.getName();
+
+    private static final int MAGIC = 0x4E4C4331; // "NLC1"
+
+    // Only the newest entries are kept, to keep the file small and quick to read.
+    public static final int MAX_ENTRIES = 1000;
+
+    /**
+     * The fields of a node that the listing shows.
+     */
+    public static class Entry {
+        public final String id;
+        public final String kind;
+        public final String name;
+        public final String modifiedDate;
+
+        public Entry(String id, String kind, String name, String modifiedDate) {
+            this.id = id;
+            this.kind = kind;
+            this.name = name;
+            this.modifiedDate = modifiedDate;
+        }
+
+        public Entry(Node node) {
+            this(node.getId(), node.getKind(), node.getName(), node.getModifiedDate());
+        }
+
+        @Override
+        public String toString() {
+            return kind + ":" + name;
+        }
+    }
+
+    private final File mFile;
+
+    public NodeListingCache(File file) {
+        mFile = file;
+    }
+
+    /**
+     * Reads the cached listing. Call it off the UI thread.
+     * @return the entries, empty if there is no usable cache
+     */
+    public List<Entry> load() {
+        List<Entry> entries = new ArrayList<Entry>();
+        if (!mFile.isFile()) {
+            return entries;
+        }
+
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(mFile)));
+            if (in.readInt() != MAGIC) {
+                return entries;
+            }
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                entries.add(new Entry(readString(in), readString(in), readString(in), readString(in)));
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Ignoring unreadable listing cache", e);
+            entries.clear();
+        } finally {
+            closeQuietly(in);
+        }
+        return entries;
+    }
+
+    /**
+     * Replaces the cached listing. Call it off the UI thread.
+     * @param entries the entries, newest modified date first
+     */
+    public void save(List<Entry> entries) {
+        File partialFile = new File(mFile.getPath() + ".partial");
+        DataOutputStream out = null;
+        try {
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(partialFile)));
+            int count = Math.min(entries.size(), MAX_ENTRIES);
+            out.writeInt(MAGIC);
+            out.writeInt(count);
+            for (int i = 0; i < count; i++) {
+                Entry entry = entries.get(i);
+                writeString(out, entry.id);
+                writeString(out, entry.kind);
+                writeString(out, entry.name);
+                writeString(out, entry.modifiedDate);
+            }
+            out.close();
+            out = null;
+            if (!partialFile.renameTo(mFile)) {
+                Log.w(TAG, "Unable to replace the listing cache");
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Unable to save the listing cache", e);
+        } finally {
+            closeQuietly(out);
+            partialFile.delete();
+        }
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        out.writeBoolean(value != null);
+        if (value != null) {
+            out.writeUTF(value);
+        }
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+
+    private static void closeQuietly(java.io.Closeable closeable) {
+        try {
+            if (closeable != null) {
+                closeable.close();
+            }
+        } catch (IOException ignored) {
+        }
+    }
+}
@@ -206,4 +206,14 @@ public class MainActivity extends Activity {
     public void showMessage(final String message) {
         Toast.makeText(MainActivity.this, message, Toast.LENGTH_LONG).show();
     }
+
+    /**
+     * Run on the GUI thread, after anything already posted to it. Used to
+     * deliver results computed off the GUI thread.
+     * 
+     * @param runnable
+     */
+    public void postToGuiThread(final Runnable runnable) {
+        guiThreadHandler.post(runnable);
+    }
 }
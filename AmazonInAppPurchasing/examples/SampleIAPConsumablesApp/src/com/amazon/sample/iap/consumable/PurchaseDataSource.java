@@ -1,10 +1,15 @@
 package com.amazon.sample.iap.consumable;
 
+import java.util.ArrayList;
+import java.util.List;
+
 import android.content.ContentValues;
 import android.content.Context;
 import android.database.Cursor;
 import android.database.SQLException;
 import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteDoneException;
+import android.database.sqlite.SQLiteStatement;
 import android.util.Log;
 
 import com.amazon.sample.iap.consumable.SampleIapManager.PurchaseRecord;
@@ -20,6 +25,28 @@ public class PurchaseDataSource {
         PAID, FULFILLED, UNAVAILABLE, UNKNOWN
     }
 
+    /**
+     * The outcome of {@link PurchaseDataSource#completePurchases}
+     */
+    public static class PurchaseChanges {
+        private final List<PurchaseRecord> changedRecords = new ArrayList<PurchaseRecord>();
+        private final List<PurchaseRecord> unchangedRecords = new ArrayList<PurchaseRecord>();
+
+        /**
+         * @return purchases moved from PAID to their final status
+         */
+        public List<PurchaseRecord> getChangedRecords() {
+            return changedRecords;
+        }
+
+        /**
+         * @return purchases that already had a final status, with that status
+         */
+        public List<PurchaseRecord> getUnchangedRecords() {
+            return unchangedRecords;
+        }
+    }
+
     private static final String TAG = "SampleIAPManager";
 
     private SQLiteDatabase database;
@@ -64,6 +91,100 @@ public class PurchaseDataSource {
         }
     }
 
+    /**
+     * Complete a page of purchases, such as the receipts of one purchase
+     * updates response, in a single transaction. Each purchase is created as
+     * PAID if it is new, as by {@link #createPurchase}, then moved from PAID
+     * to the status of the given record. Purchases already FULFILLED or
+     * UNAVAILABLE are left as they are, as are purchases recorded for another
+     * user.
+     * 
+     * @param purchases
+     *            the purchases with their final status
+     * @return the purchases that were completed, and those that had been
+     *         before
+     */
+    public PurchaseChanges completePurchases(final List<PurchaseRecord> purchases) {
+        Log.d(TAG, "completePurchases: " + purchases.size() + " purchases");
+        final PurchaseChanges changes = new PurchaseChanges();
+        if (purchases.isEmpty()) {
+            return changes;
+        }
+
+        final SQLiteStatement queryStatus = database.compileStatement("select "
+                                                                      + SampleSQLiteHelper.COLUMN_STATUS
+                                                                      + " from "
+                                                                      + SampleSQLiteHelper.TABLE_PURCHASES
+                                                                      + " where "
+                                                                      + SampleSQLiteHelper.COLUMN_RECEIPT_ID
+                                                                      + " = ? and "
+                                                                      + SampleSQLiteHelper.COLUMN_USER_ID
+                                                                      + " = ? collate nocase");
+        final SQLiteStatement insert = database.compileStatement("insert or ignore into "
+                                                                 + SampleSQLiteHelper.TABLE_PURCHASES
+                                                                 + " ("
+                                                                 + SampleSQLiteHelper.COLUMN_RECEIPT_ID
+                                                                 + ", "
+                                                                 + SampleSQLiteHelper.COLUMN_USER_ID
+                                                                 + ", "
+                                                                 + SampleSQLiteHelper.COLUMN_STATUS
+                                                                 + ") values (?, ?, ?)");
+        final SQLiteStatement updateStatus = database.compileStatement("update "
+                                                                       + SampleSQLiteHelper.TABLE_PURCHASES
+                                                                       + " set "
+                                                                       + SampleSQLiteHelper.COLUMN_STATUS
+                                                                       + " = ? where "
+                                                                       + SampleSQLiteHelper.COLUMN_RECEIPT_ID
+                                                                       + " = ?");
+        database.beginTransaction();
+        try {
+            for (final PurchaseRecord purchase : purchases) {
+                final String receiptId = purchase.getReceiptId();
+                queryStatus.bindString(1, receiptId);
+                queryStatus.bindString(2, purchase.getUserId());
+                String status;
+                try {
+                    status = queryStatus.simpleQueryForString();
+                } catch (final SQLiteDoneException e) {
+                    insert.bindString(1, receiptId);
+                    insert.bindString(2, purchase.getUserId());
+                    insert.bindString(3, PurchaseStatus.PAID.toString());
+                    if (insert.executeInsert() == -1) {
+                        Log.w(TAG, "A purchase with given receipt id already exists for another user, discard it");
+                        continue;
+                    }
+                    status = PurchaseStatus.PAID.toString();
+                }
+
+                if (PurchaseStatus.PAID.toString().equals(status)) {
+                    updateStatus.bindString(1, purchase.getStatus().toString());
+                    updateStatus.bindString(2, receiptId);
+                    updateStatus.execute();
+                    changes.changedRecords.add(purchase);
+                } else if (PurchaseStatus.FULFILLED.toString().equals(status)
+                           || PurchaseStatus.UNAVAILABLE.toString().equals(status)) {
+                    final PurchaseRecord unchanged = new PurchaseRecord();
+                    unchanged.setReceiptId(receiptId);
+                    unchanged.setUserId(purchase.getUserId());
+                    unchanged.setStatus(PurchaseStatus.valueOf(status));
+                    changes.unchangedRecords.add(unchanged);
+                } else {
+                    Log.w(TAG, "Unknown status " + status + " for receipt id " + receiptId);
+                }
+            }
+            database.setTransactionSuccessful();
+        } finally {
+            database.endTransaction();
+            queryStatus.close();
+            insert.close();
+            updateStatus.close();
+        }
+        Log.d(TAG, "completePurchases: completed " + changes.changedRecords.size()
+                   + ", already completed "
+                   + changes.unchangedRecords.size());
+        return changes;
+    }
+
     private PurchaseRecord cursorToPurchaseRecord(final Cursor cursor) {
         final PurchaseRecord purchaseRecord = new PurchaseRecord();
         purchaseRecord.setReceiptId(cursor.getString(cursor.getColumnIndex(SampleSQLiteHelper.COLUMN_RECEIPT_ID)));
@@ -1,7 +1,13 @@
 package com.amazon.sample.iap.consumable;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 import android.content.Context;
 import android.content.SharedPreferences;
@@ -14,6 +20,7 @@ import com.amazon.device.iap.model.FulfillmentResult;
 import com.amazon.device.iap.model.Product;
 import com.amazon.device.iap.model.Receipt;
 import com.amazon.device.iap.model.UserData;
+import com.amazon.sample.iap.consumable.PurchaseDataSource.PurchaseChanges;
 import com.amazon.sample.iap.consumable.PurchaseDataSource.PurchaseStatus;
 
 /**
@@ -71,15 +78,27 @@ public class SampleIapManager {
 
     private static final String TAG = "SampleIAPManager";
 
+    private static final long LEDGER_KEEP_ALIVE_SECONDS = 30;
+
     final private Context context;
     final private MainActivity mainActivity;
     private UserIapData userIapData;
     final private PurchaseDataSource dataSource;
 
+    // Runs all reads and writes of the purchase records and the oranges, one
+    // at a time in the order they were submitted, so the GUI thread never
+    // waits on the disk. Results are posted back to the GUI thread.
+    final private ThreadPoolExecutor ledgerExecutor = new ThreadPoolExecutor(1,
+                                                                             1,
+                                                                             LEDGER_KEEP_ALIVE_SECONDS,
+                                                                             TimeUnit.SECONDS,
+                                                                             new LinkedBlockingQueue<Runnable>());
+
     public SampleIapManager(final MainActivity mainActivity) {
         this.mainActivity = mainActivity;
         this.context = mainActivity.getApplicationContext();
         this.dataSource = new PurchaseDataSource(context);
+        ledgerExecutor.allowCoreThreadTimeOut(true);
     }
 
     /**
@@ -104,8 +123,9 @@ public class SampleIapManager {
 
             // If the user id does not match then another Amazon user has
             // registered.
-            userIapData = reloadUserData(newAmazonUserId, newAmazonMarketplace);
-            mainActivity.updateOrangesInView(userIapData.getRemainingOranges(), userIapData.getConsumedOranges());
+            userIapData = new UserIapData(newAmazonUserId, newAmazonMarketplace);
+            mainActivity.updateOrangesInView(0, 0);
+            reloadUserData(userIapData);
         }
     }
 
@@ -133,41 +153,124 @@ public class SampleIapManager {
 
     /**
      * This method contains the business logic to fulfill the customer's
-     * purchase based on the receipt received from InAppPurchase SDK's
+     * purchases based on the receipts received from InAppPurchase SDK's
      * {@link PurchasingListener#onPurchaseResponse} or
      * {@link PurchasingListener#onPurchaseUpdates} method.
      * 
+     * All of the receipts are recorded in one transaction on the ledger
+     * thread, and the oranges granted for them are saved once. Purchases are
+     * only reported to Amazon Appstore once they are recorded. Receipts are
+     * recorded in the order they are handled.
      * 
-     * @param receipt
+     * @param receipts
      * @param userData
      */
-    public void handleConsumablePurchase(final Receipt receipt, final UserData userData) {
-        try {
-            if (receipt.isCanceled()) {
-                revokeConsumablePurchase(receipt, userData);
-            } else {
-                // We strongly recommend that you verify the receipt server-side
-                if (!verifyReceiptFromYourService(receipt.getReceiptId(), userData)) {
-                    // if the purchase cannot be verified,
-                    // show relevant error message to the customer.
+    public void handleReceipts(final List<Receipt> receipts, final UserData userData) {
+        final List<PurchaseRecord> purchases = new ArrayList<PurchaseRecord>();
+        for (final Receipt receipt : receipts) {
+            switch (receipt.getProductType()) {
+            case CONSUMABLE:
+                // try to do your application logic to fulfill the customer
+                // purchase
+                if (receipt.isCanceled()) {
+                    revokeConsumablePurchase(receipt, userData);
+                } else if (!verifyReceiptFromYourService(receipt.getReceiptId(), userData)) {
+                    // We strongly recommend that you verify the receipt
+                    // server-side. If the purchase cannot be verified, show
+                    // relevant error message to the customer.
                     mainActivity.showMessage("Purchase cannot be verified, please retry later.");
-                    return;
+                } else {
+                    final PurchaseRecord purchase = new PurchaseRecord();
+                    purchase.setReceiptId(receipt.getReceiptId());
+                    purchase.setUserId(userData.getUserId());
+                    // Verify that the SKU is still applicable.
+                    if (MySku.fromSku(receipt.getSku(), userIapData.getAmazonMarketplace()) == null) {
+                        Log.w(TAG, "The SKU [" + receipt.getSku() + "] in the receipt is not valid anymore ");
+                        purchase.setStatus(PurchaseStatus.UNAVAILABLE);
+                    } else {
+                        purchase.setStatus(PurchaseStatus.FULFILLED);
+                    }
+                    purchases.add(purchase);
                 }
-                if (receiptAlreadyFulfilled(receipt.getReceiptId(), userData)) {
-                    // if the receipt was fulfilled before, just notify Amazon
-                    // Appstore it's Fulfilled again.
-                    PurchasingService.notifyFulfillment(receipt.getReceiptId(), FulfillmentResult.FULFILLED);
+                break;
+            case ENTITLED:
+                // check entitled sample app to know how to handle entitled
+                // purchases
+                break;
+            case SUBSCRIPTION:
+                // check subscription sample app to know how to handle
+                // subscription purchases
+                break;
+            }
+        }
+
+        final UserIapData currentUserIapData = userIapData;
+        ledgerExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                final PurchaseChanges changes;
+                try {
+                    changes = completePurchases(purchases);
+                } catch (final Throwable e) {
+                    // If for any reason the app is not able to fulfill the
+                    // purchases, add your own error handling code here.
+                    // Amazon will try to send the consumable purchase
+                    // receipts again next time you call
+                    // PurchasingService.getPurchaseUpdates api
+                    Log.e(TAG, "Failed to grant consumable purchases, with error " + e.getMessage());
+                    mainActivity.postToGuiThread(new Runnable() {
+                        @Override
+                        public void run() {
+                            mainActivity.showMessage("Purchase cannot be completed, please retry");
+                        }
+                    });
                     return;
                 }
 
-                grantConsumablePurchase(receipt, userData);
+                mainActivity.postToGuiThread(new Runnable() {
+                    @Override
+                    public void run() {
+                        grantOranges(currentUserIapData, changes);
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Grant the oranges for a page of completed purchases, and report them to
+     * Amazon Appstore. Called on the GUI thread.
+     * 
+     * @param purchaseUserIapData
+     *            the user the purchases were made by
+     * @param changes
+     *            the completed purchases
+     */
+    private void grantOranges(final UserIapData purchaseUserIapData, final PurchaseChanges changes) {
+        // Grant the newly fulfilled purchases to customer - give one orange
+        // to customer for each in this case
+        int granted = 0;
+        for (final PurchaseRecord purchase : changes.getChangedRecords()) {
+            if (purchase.getStatus() == PurchaseStatus.FULFILLED) {
+                granted++;
+            }
+        }
+        if (granted > 0) {
+            purchaseUserIapData.setRemainingOranges(purchaseUserIapData.getRemainingOranges() + granted);
+            saveUserIapData(purchaseUserIapData);
+            Log.i(TAG, "Successfuly fulfilled " + granted + " purchases");
+            if (purchaseUserIapData == userIapData) {
+                refreshOranges();
             }
-            return;
-        } catch (final Throwable e) {
-            mainActivity.showMessage("Purchase cannot be completed, please retry");
         }
 
-        //
+        // Update the status to Amazon Appstore. Once receive Fulfilled status
+        // for the purchase, Amazon will not try to send the purchase receipt
+        // to application any more. A receipt fulfilled before, for example
+        // when the connection dropped while calling notifyFulfillment, is
+        // simply reported again.
+        notifyFulfillment(changes.getChangedRecords());
+        notifyFulfillment(changes.getUnchangedRecords());
     }
 
     /**
@@ -177,21 +280,7 @@ public class SampleIapManager {
      * @param userData
      */
     public void handleReceipt(final Receipt receipt, final UserData userData) {
-        switch (receipt.getProductType()) {
-        case CONSUMABLE:
-            // try to do your application logic to fulfill the customer purchase
-            handleConsumablePurchase(receipt, userData);
-            break;
-        case ENTITLED:
-            // check entitled sample app to know how to handle entitled
-            // purchases
-            break;
-        case SUBSCRIPTION:
-            // check subscription sample app to know how to handle subscription
-            // purchases
-            break;
-        }
-
+        handleReceipts(Collections.singletonList(receipt), userData);
     }
 
     /**
@@ -221,7 +310,7 @@ public class SampleIapManager {
         // robust
         userIapData.setConsumedOranges(userIapData.getConsumedOranges() + 1);
         userIapData.setRemainingOranges(userIapData.getRemainingOranges() - 1);
-        saveUserIapData();
+        saveUserIapData(userIapData);
         return true;
     }
 
@@ -248,7 +337,12 @@ public class SampleIapManager {
      * 
      */
     public void deactivate() {
-        dataSource.close();
+        ledgerExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                dataSource.close();
+            }
+        });
 
     }
 
@@ -256,7 +350,12 @@ public class SampleIapManager {
      * Connect to the database when main activity's onStart and onResume
      */
     public void activate() {
-        dataSource.open();
+        ledgerExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                dataSource.open();
+            }
+        });
 
     }
 
@@ -295,101 +394,80 @@ public class SampleIapManager {
     }
 
     /**
-     * Load the user data from SharedPreference.
+     * Load the user data from SharedPreference on the ledger thread, and show
+     * it once loaded.
      * 
-     * @param amazonUserId
-     * @param amazonMarketplace
-     * @return
+     * @param loadingUserIapData
+     *            the user data to fill in
      */
-    private UserIapData reloadUserData(final String amazonUserId, final String amazonMarketplace) {
-        final UserIapData userIapData = new UserIapData(amazonUserId, amazonMarketplace);
-        final SharedPreferences orangesSharedPreference = context.getSharedPreferences("ORANGES_" + amazonUserId,
-                                                                                       Context.MODE_PRIVATE);
-        userIapData.setRemainingOranges(orangesSharedPreference.getInt(REMAINING, 0));
-        userIapData.setConsumedOranges(orangesSharedPreference.getInt(CONSUMED, 0));
-        return userIapData;
+    private void reloadUserData(final UserIapData loadingUserIapData) {
+        ledgerExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                final SharedPreferences orangesSharedPreference = context.getSharedPreferences("ORANGES_" + loadingUserIapData.getAmazonUserId(),
+                                                                                               Context.MODE_PRIVATE);
+                final int remaining = orangesSharedPreference.getInt(REMAINING, 0);
+                final int consumed = orangesSharedPreference.getInt(CONSUMED, 0);
+                mainActivity.postToGuiThread(new Runnable() {
+                    @Override
+                    public void run() {
+                        loadingUserIapData.setRemainingOranges(remaining);
+                        loadingUserIapData.setConsumedOranges(consumed);
+                        if (loadingUserIapData == userIapData) {
+                            refreshOranges();
+                        }
+                    }
+                });
+            }
+        });
 
     }
 
     /**
-     * Save the user data to SharedPreferecnce.
+     * Save the user data to SharedPreferecnce on the ledger thread, as it is
+     * now.
+     * 
+     * @param savingUserIapData
+     *            the user data to save
      */
-    private void saveUserIapData() {
-        if (userIapData == null || userIapData.getAmazonUserId() == null) {
+    private void saveUserIapData(final UserIapData savingUserIapData) {
+        if (savingUserIapData == null || savingUserIapData.getAmazonUserId() == null) {
             // no user iap data available;
             return;
         }
-        try {
-            final SharedPreferences orangesSharedPreference = context.getSharedPreferences("ORANGES_" + userIapData.getAmazonUserId(),
-                                                                                           Context.MODE_PRIVATE);
-            final Editor editor = orangesSharedPreference.edit();
-            editor.putInt(REMAINING, userIapData.getRemainingOranges());
-            editor.putInt(CONSUMED, userIapData.getConsumedOranges());
-            editor.commit();
-        } catch (final Throwable e) {
-            Log.e(TAG, "failed to save user iap data:");
-        }
+        final String amazonUserId = savingUserIapData.getAmazonUserId();
+        final int remaining = savingUserIapData.getRemainingOranges();
+        final int consumed = savingUserIapData.getConsumedOranges();
+        ledgerExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    final SharedPreferences orangesSharedPreference = context.getSharedPreferences("ORANGES_" + amazonUserId,
+                                                                                                   Context.MODE_PRIVATE);
+                    final Editor editor = orangesSharedPreference.edit();
+                    editor.putInt(REMAINING, remaining);
+                    editor.putInt(CONSUMED, consumed);
+                    editor.commit();
+                } catch (final Throwable e) {
+                    Log.e(TAG, "failed to save user iap data:");
+                }
+            }
+        });
 
     }
 
     /**
-     * This method contains the business logic to fulfill the customer's
-     * purchase, based on the receipt received from InAppPurchase SDK's
-     * {@link PurchasingListener#onPurchaseResponse} or
-     * {@link PurchasingListener#onPurchaseUpdates} method.
+     * Report the final status of each purchase to Amazon Appstore
      * 
-     * 
-     * @param receiptId
-     * @param userData
+     * @param purchases
      */
-    private void grantConsumablePurchase(final Receipt receipt, final UserData userData) {
-        try {
-            // following sample code is a simple implementation, please
-            // implement your own granting logic thread-safe, transactional and
-            // robust
-
-            // create the purchase information in your app/your server,
-            // And grant the purchase to customer - give one orange to customer
-            // in this case
-            createPurchase(receipt.getReceiptId(), userData.getUserId());
-            final MySku mySku = MySku.fromSku(receipt.getSku(), userIapData.getAmazonMarketplace());
-            // Verify that the SKU is still applicable.
-            if (mySku == null) {
-                Log.w(TAG, "The SKU [" + receipt.getSku() + "] in the receipt is not valid anymore ");
-                // if the sku is not applicable anymore, call
-                // PurchasingService.notifyFulfillment with status "UNAVAILABLE"
-                updatePurchaseStatus(receipt.getReceiptId(), null, PurchaseStatus.UNAVAILABLE);
-                PurchasingService.notifyFulfillment(receipt.getReceiptId(), FulfillmentResult.UNAVAILABLE);
-                return;
-            }
-
-            if (updatePurchaseStatus(receipt.getReceiptId(), PurchaseStatus.PAID, PurchaseStatus.FULFILLED)) {
-                // Update purchase status in SQLite database success
-                userIapData.setRemainingOranges(userIapData.getRemainingOranges() + 1);
-                saveUserIapData();
-                Log.i(TAG, "Successfuly update purchase from PAID->FULFILLED for receipt id " + receipt.getReceiptId());
-                // update the status to Amazon Appstore. Once receive Fulfilled
-                // status for the purchase, Amazon will not try to send the
-                // purchase receipt to application any more
-                PurchasingService.notifyFulfillment(receipt.getReceiptId(), FulfillmentResult.FULFILLED);
-            } else {
-                // Update purchase status in SQLite database failed - Status
-                // already changed.
-                // Usually means the same receipt was updated by another
-                // onPurchaseResponse or onPurchaseUpdatesResponse callback.
-                // simply swallow the error and log it in this sample code
-                Log.w(TAG, "Failed to update purchase from PAID->FULFILLED for receipt id " + receipt.getReceiptId()
-                           + ", Status already changed.");
-            }
-
-        } catch (final Throwable e) {
-            // If for any reason the app is not able to fulfill the purchase,
-            // add your own error handling code here.
-            // Amazon will try to send the consumable purchase receipt again
-            // next time you call PurchasingService.getPurchaseUpdates api
-            Log.e(TAG, "Failed to grant consumable purchase, with error " + e.getMessage());
+    private void notifyFulfillment(final List<PurchaseRecord> purchases) {
+        for (final PurchaseRecord purchase : purchases) {
+            PurchasingService.notifyFulfillment(purchase.getReceiptId(),
+                                                purchase.getStatus() == PurchaseStatus.FULFILLED
+                                                        ? FulfillmentResult.FULFILLED
+                                                        : FulfillmentResult.UNAVAILABLE);
         }
-
     }
 
     /**
@@ -418,62 +496,20 @@ public class SampleIapManager {
      * the app before, you should not grant the purchase content to the customer
      * again, otherwise you are giving the item for free.
      * 
-     * 
-     * @param receiptId
-     * @param userData
-     * @return
-     */
-    private boolean receiptAlreadyFulfilled(final String receiptId, final UserData userData) {
-        // TODO Following is a simple de-duplication logic implementation using
-        // local SQLite database. We strongly recommend that you save purchase
-        // information and implement the de-duplication logic on your server
-        // side.
-
-        final PurchaseRecord receiptRecord = dataSource.getPurchaseRecord(receiptId, userData.getUserId());
-
-        // Return true only if there is no local record for the receipt id/user
-        // id or the receipt id is not marked as FULFILLED/UNAVAILABLE.
-        if (receiptRecord == null) {
-            return false;
-        }
-        return !(PurchaseStatus.FULFILLED == receiptRecord.getStatus() || PurchaseStatus.UNAVAILABLE == receiptRecord.getStatus());
-
-    }
-
-    /**
      * This sample app includes a simple SQLite implementation for save purchase
-     * detail locally.
+     * detail locally, which only moves a purchase to its final status once.
      * 
-     * We strongly recommend that you save purchase information on a server.
+     * We strongly recommend that you save purchase information and implement
+     * the de-duplication logic on a server.
      * 
-     * @param receiptId
-     *            receipt to update
-     * @param fromStatus
-     *            the current purchase status
-     * @param toStatus
-     *            the new purchase status
+     * @param purchases
+     *            the purchases with their final status
+     * @return the purchases that were completed, and those that had been
+     *         before
      */
-    private boolean updatePurchaseStatus(final String receiptId,
-            final PurchaseStatus fromStatus,
-            final PurchaseStatus toStatus) {
+    private PurchaseChanges completePurchases(final List<PurchaseRecord> purchases) {
         // TODO replace with your own implementation
-        return dataSource.updatePurchaseStatus(receiptId, fromStatus, toStatus);
-    }
-
-    /**
-     * Sample logic to create the purchase record.
-     * 
-     * Create and save the purchase information from app's local SQLite database
-     * 
-     * @param receiptId
-     *            the purchase's receipt id
-     * @param userId
-     *            the user id for the purchase
-     */
-    private void createPurchase(final String receiptId, final String userId) {
-        // TODO Add your own logic to save those purchase information either in
-        // your own server side or in app's local data
-        dataSource.createPurchase(receiptId, userId, PurchaseStatus.PAID);
+        return dataSource.completePurchases(purchases);
     }
 
 }
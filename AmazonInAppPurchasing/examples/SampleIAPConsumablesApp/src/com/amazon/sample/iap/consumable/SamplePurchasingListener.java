@@ -111,9 +111,8 @@ public class SamplePurchasingListener implements PurchasingListener {
         switch (status) {
         case SUCCESSFUL:
             iapManager.setAmazonUserId(response.getUserData().getUserId(), response.getUserData().getMarketplace());
-            for (final Receipt receipt : response.getReceipts()) {
-                iapManager.handleReceipt(receipt, response.getUserData());
-            }
+            // Grant the whole page of receipts at once
+            iapManager.handleReceipts(response.getReceipts(), response.getUserData());
             if (response.hasMore()) {
                 PurchasingService.getPurchaseUpdates(false);
             }
@@ -1,10 +1,15 @@
 package com.amazon.sample.iap.entitlement;
 
+import java.util.ArrayList;
+import java.util.List;
+
 import android.content.ContentValues;
 import android.content.Context;
 import android.database.Cursor;
 import android.database.SQLException;
 import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteDoneException;
+import android.database.sqlite.SQLiteStatement;
 import android.util.Log;
 
 import com.amazon.sample.iap.entitlement.SampleIapManager.EntitlementRecord;
@@ -16,6 +21,33 @@ import com.amazon.sample.iap.entitlement.SampleIapManager.EntitlementRecord;
  */
 public class EntitlementsDataSource {
 
+    /**
+     * The records changed by {@link EntitlementsDataSource#saveEntitlementRecords}
+     */
+    public static class EntitlementChanges {
+        private final List<EntitlementRecord> savedRecords = new ArrayList<EntitlementRecord>();
+        private final List<EntitlementRecord> canceledRecords = new ArrayList<EntitlementRecord>();
+
+        /**
+         * @return records inserted or updated, as saved
+         */
+        public List<EntitlementRecord> getSavedRecords() {
+            return savedRecords;
+        }
+
+        /**
+         * @return records whose cancel date was set, with the receipt id of
+         *         the canceled record filled in
+         */
+        public List<EntitlementRecord> getCanceledRecords() {
+            return canceledRecords;
+        }
+
+        public boolean isEmpty() {
+            return savedRecords.isEmpty() && canceledRecords.isEmpty();
+        }
+    }
+
     private static final String TAG = "SampleIAPManager";
 
     private SQLiteDatabase database;
@@ -123,6 +155,128 @@ public class EntitlementsDataSource {
         }
     }
 
+    /**
+     * Save a page of entitlement records, such as the receipts of one purchase
+     * updates response, in a single transaction. Records are applied in order:
+     * a record without a cancel date is inserted or updated as by
+     * {@link #insertOrUpdateEntitlementRecord}, and a record with one cancels
+     * the saved record with its receipt id, or if it has none the latest
+     * record for its user and sku, unless that is already canceled.
+     * 
+     * @param records
+     * @return the records that changed
+     */
+    public EntitlementChanges saveEntitlementRecords(final List<EntitlementRecord> records) {
+        Log.d(TAG, "saveEntitlementRecords: " + records.size() + " records");
+        final EntitlementChanges changes = new EntitlementChanges();
+        if (records.isEmpty()) {
+            return changes;
+        }
+
+        final SQLiteStatement queryCancelDate = database.compileStatement("select "
+                                                                          + SampleSQLiteHelper.COLUMN_CANCEL_DATE
+                                                                          + " from "
+                                                                          + SampleSQLiteHelper.TABLE_ENTITLEMENTS
+                                                                          + " where "
+                                                                          + SampleSQLiteHelper.COLUMN_RECEIPT_ID
+                                                                          + " = ?");
+        final SQLiteStatement replace = database.compileStatement("insert or replace into "
+                                                                  + SampleSQLiteHelper.TABLE_ENTITLEMENTS
+                                                                  + " ("
+                                                                  + SampleSQLiteHelper.COLUMN_RECEIPT_ID
+                                                                  + ", "
+                                                                  + SampleSQLiteHelper.COLUMN_USER_ID
+                                                                  + ", "
+                                                                  + SampleSQLiteHelper.COLUMN_SKU
+                                                                  + ", "
+                                                                  + SampleSQLiteHelper.COLUMN_PURCHASE_DATE
+                                                                  + ", "
+                                                                  + SampleSQLiteHelper.COLUMN_CANCEL_DATE
+                                                                  + ") values (?, ?, ?, ?, ?)");
+        final SQLiteStatement cancel = database.compileStatement("update "
+                                                                 + SampleSQLiteHelper.TABLE_ENTITLEMENTS
+                                                                 + " set "
+                                                                 + SampleSQLiteHelper.COLUMN_CANCEL_DATE
+                                                                 + " = ? where "
+                                                                 + SampleSQLiteHelper.COLUMN_RECEIPT_ID
+                                                                 + " = ?");
+        database.beginTransaction();
+        try {
+            for (final EntitlementRecord record : records) {
+                if (record.getCancelDate() == EntitlementRecord.DATE_NOT_SET) {
+                    final Long savedCancelDate = queryLong(queryCancelDate, record.getReceiptId());
+                    if (savedCancelDate != null && savedCancelDate > 0) {
+                        // This record should be final and cannot be
+                        // overwritten anymore.
+                        Log.w(TAG, "Record already in final state");
+                        continue;
+                    }
+                    replace.bindString(1, record.getReceiptId());
+                    replace.bindString(2, record.getUserId());
+                    replace.bindString(3, record.getSku());
+                    replace.bindLong(4, record.getPurchaseDate());
+                    replace.bindLong(5, record.getCancelDate());
+                    replace.executeInsert();
+                    changes.savedRecords.add(record);
+                } else {
+                    String receiptId = record.getReceiptId();
+                    final Long savedCancelDate;
+                    if (receiptId == null) {
+                        // The revoked receipt's receipt id may be null on
+                        // older devices.
+                        final EntitlementRecord latest = getLatestEntitlementRecordBySku(record.getUserId(),
+                                                                                         record.getSku());
+                        receiptId = latest != null ? latest.getReceiptId() : null;
+                        savedCancelDate = latest != null ? latest.getCancelDate() : null;
+                    } else {
+                        savedCancelDate = queryLong(queryCancelDate, receiptId);
+                    }
+                    if (savedCancelDate == null) {
+                        // No purchase record for the entitlement before, do
+                        // nothing.
+                        continue;
+                    }
+                    if (savedCancelDate != EntitlementRecord.DATE_NOT_SET && savedCancelDate <= System
+                            .currentTimeMillis()) {
+                        // Already canceled, do nothing
+                        continue;
+                    }
+                    cancel.bindLong(1, record.getCancelDate());
+                    cancel.bindString(2, receiptId);
+                    cancel.execute();
+                    record.setReceiptId(receiptId);
+                    changes.canceledRecords.add(record);
+                }
+            }
+            database.setTransactionSuccessful();
+        } finally {
+            database.endTransaction();
+            queryCancelDate.close();
+            replace.close();
+            cancel.close();
+        }
+        Log.d(TAG, "saveEntitlementRecords: saved " + changes.savedRecords.size()
+                   + ", canceled "
+                   + changes.canceledRecords.size());
+        return changes;
+    }
+
+    /**
+     * Run a single value query with one argument
+     * 
+     * @param statement
+     * @param arg
+     * @return the value, or null if no row matched
+     */
+    private static Long queryLong(final SQLiteStatement statement, final String arg) {
+        statement.bindString(1, arg);
+        try {
+            return statement.simpleQueryForLong();
+        } catch (final SQLiteDoneException e) {
+            return null;
+        }
+    }
+
     /**
      * Find entitlement record by specified receipt ID
      * @param userId
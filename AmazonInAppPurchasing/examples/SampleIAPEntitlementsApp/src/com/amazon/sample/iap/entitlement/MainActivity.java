@@ -185,6 +185,16 @@ public class MainActivity extends Activity {
         Toast.makeText(MainActivity.this, message, Toast.LENGTH_LONG).show();
     }
 
+    /**
+     * Run on the GUI thread, after anything already posted to it. Used to
+     * deliver results computed off the GUI thread.
+     * 
+     * @param runnable
+     */
+    public void postToGuiThread(final Runnable runnable) {
+        guiThreadHandler.post(runnable);
+    }
+
     /**
      * Set the status for buy Level2 button 
      * @param productAvailable
@@ -1,7 +1,13 @@
 package com.amazon.sample.iap.entitlement;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 import android.util.Log;
 
@@ -11,6 +17,7 @@ import com.amazon.device.iap.model.FulfillmentResult;
 import com.amazon.device.iap.model.Product;
 import com.amazon.device.iap.model.Receipt;
 import com.amazon.device.iap.model.UserData;
+import com.amazon.sample.iap.entitlement.EntitlementsDataSource.EntitlementChanges;
 
 /**
  * This is a sample of how an application may handle InAppPurchasing. The major
@@ -81,15 +88,26 @@ public class SampleIapManager {
     }
 
     private static final String TAG = "SampleIAPManager";
+    private static final long LEDGER_KEEP_ALIVE_SECONDS = 30;
 
     final private MainActivity mainActivity;
     private boolean level2ProductAvailable;
     private UserIapData userIapData;
     final private EntitlementsDataSource dataSource;
 
+    // Runs all reads and writes of the entitlement records, one at a time in
+    // the order they were submitted, so the GUI thread never waits on the
+    // database. Results are posted back to the GUI thread.
+    final private ThreadPoolExecutor ledgerExecutor = new ThreadPoolExecutor(1,
+                                                                             1,
+                                                                             LEDGER_KEEP_ALIVE_SECONDS,
+                                                                             TimeUnit.SECONDS,
+                                                                             new LinkedBlockingQueue<Runnable>());
+
     public SampleIapManager(final MainActivity mainActivity) {
         this.mainActivity = mainActivity;
         dataSource = new EntitlementsDataSource(mainActivity.getApplicationContext());
+        ledgerExecutor.allowCoreThreadTimeOut(true);
     }
 
     /**
@@ -147,6 +165,96 @@ public class SampleIapManager {
         }
     }
 
+    /**
+     * This method contains the business logic to fulfill the customer's
+     * purchases based on the receipts received from InAppPurchase SDK's
+     * {@link PurchasingListener#onPurchaseResponse} or
+     * {@link PurchasingListener#onPurchaseUpdates} method.
+     * 
+     * All of the receipts are saved in one transaction on the ledger thread,
+     * and the Level2 product's availability is only reloaded if something
+     * changed. Purchases are only reported fulfilled once they are saved.
+     * Receipts are saved in the order they are handled.
+     * 
+     * @param requestId
+     * @param receipts
+     * @param userData
+     */
+    public void handleReceipts(final String requestId, final List<Receipt> receipts, final UserData userData) {
+        final List<EntitlementRecord> records = new ArrayList<EntitlementRecord>();
+        final List<String> grantedReceiptIds = new ArrayList<String>();
+        for (final Receipt receipt : receipts) {
+            switch (receipt.getProductType()) {
+            case CONSUMABLE:
+                // check consumable sample for how to handle consumable purchases
+                break;
+            case ENTITLED:
+                if (receipt.isCanceled()) {
+                    // Check whether this receipt is to revoke a entitlement
+                    // purchase
+                    records.add(toEntitlementRecord(receipt, userData.getUserId()));
+                } else if (!verifyReceiptFromYourService(receipt.getReceiptId(), userData)) {
+                    // We strongly recommend that you verify the receipt
+                    // server-side. If the purchase cannot be verified, show
+                    // relevant error message to the customer.
+                    mainActivity.showMessage("Purchase cannot be verified, please retry later.");
+                } else if (MySku.fromSku(receipt.getSku(), userIapData.getAmazonMarketplace()) != MySku.LEVEL2) {
+                    Log.w(TAG, "The SKU [" + receipt.getSku() + "] in the receipt is not valid anymore ");
+                    // if the sku is not applicable anymore, call
+                    // PurchasingService.notifyFulfillment with status
+                    // "UNAVAILABLE"
+                    PurchasingService.notifyFulfillment(receipt.getReceiptId(), FulfillmentResult.UNAVAILABLE);
+                } else {
+                    records.add(toEntitlementRecord(receipt, userData.getUserId()));
+                    grantedReceiptIds.add(receipt.getReceiptId());
+                }
+                break;
+            case SUBSCRIPTION:
+                // check subscription sample for how to handle consumable purchases
+                break;
+            }
+        }
+
+        ledgerExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                final EntitlementChanges changes;
+                try {
+                    // Actual entitlement granting logic: Save the entitlement
+                    // purchase records to database so they can be loaded by
+                    // refreshLevel2Availability() method later,
+                    // then notify Amazon Appstore.
+                    changes = saveEntitlementRecords(records);
+                } catch (final Throwable e) {
+                    // If for any reason the app is not able to fulfill the
+                    // purchases, add your own error handling code here. None
+                    // of them were saved, so they will all be received again.
+                    Log.e(TAG, "Failed to save entitlement purchases, with error " + e.getMessage());
+                    mainActivity.postToGuiThread(new Runnable() {
+                        @Override
+                        public void run() {
+                            mainActivity.showMessage("Purchase cannot be completed, please retry");
+                        }
+                    });
+                    return;
+                }
+
+                mainActivity.postToGuiThread(new Runnable() {
+                    @Override
+                    public void run() {
+                        for (final String receiptId : grantedReceiptIds) {
+                            PurchasingService.notifyFulfillment(receiptId, FulfillmentResult.FULFILLED);
+                        }
+
+                        if (!changes.isEmpty()) {
+                            refreshLevel2Availability();
+                        }
+                    }
+                });
+            }
+        });
+    }
+
     /**
      * Method to handle receipts
      * 
@@ -155,18 +263,7 @@ public class SampleIapManager {
      * @param userData
      */
     public void handleReceipt(final String requestId, final Receipt receipt, final UserData userData) {
-        switch (receipt.getProductType()) {
-        case CONSUMABLE:
-            // check consumable sample for how to handle consumable purchases
-            break;
-        case ENTITLED:
-            handleEntitlementPurchase(receipt, userData);
-            break;
-        case SUBSCRIPTION:
-            // check subscription sample for how to handle consumable purchases
-            break;
-        }
-
+        handleReceipts(requestId, Collections.singletonList(receipt), userData);
     }
 
     /**
@@ -199,19 +296,38 @@ public class SampleIapManager {
 
     /**
      * Reload the customer's purchase record from database, and check the Level2
-     * product's availability based on the customer's purchase records.
+     * product's availability based on the customer's purchase records. The
+     * record is read on the ledger thread, after any changes already
+     * submitted to it, and the view is updated once it has been read.
      */
     public void refreshLevel2Availability() {
-        boolean level2Purchased = false;
-        if (userIapData != null) {
-            final EntitlementRecord entitlementRecord = dataSource.getLatestEntitlementRecordBySku(userIapData
-                .getAmazonUserId(), MySku.LEVEL2.getSku());
-            // Make sure the entitlement purchase record is not expired or
-            // canceled
-            level2Purchased = (EntitlementRecord.DATE_NOT_SET == entitlementRecord.cancelDate);
+        if (userIapData == null) {
+            mainActivity.setLevel2Availbility(level2ProductAvailable, false);
+            return;
         }
 
-        mainActivity.setLevel2Availbility(level2ProductAvailable, level2Purchased);
+        final UserIapData currentUserIapData = userIapData;
+        ledgerExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                final EntitlementRecord entitlementRecord = dataSource
+                    .getLatestEntitlementRecordBySku(currentUserIapData.getAmazonUserId(), MySku.LEVEL2.getSku());
+                // Make sure the entitlement purchase record exists and is not
+                // expired or canceled
+                final boolean level2Purchased = entitlementRecord != null
+                                                && EntitlementRecord.DATE_NOT_SET == entitlementRecord.cancelDate;
+                mainActivity.postToGuiThread(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (userIapData != currentUserIapData) {
+                            // The user has changed since
+                            return;
+                        }
+                        mainActivity.setLevel2Availbility(level2ProductAvailable, level2Purchased);
+                    }
+                });
+            }
+        });
     }
 
     /**
@@ -220,7 +336,12 @@ public class SampleIapManager {
      * 
      */
     public void deactivate() {
-        dataSource.close();
+        ledgerExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                dataSource.close();
+            }
+        });
 
     }
 
@@ -228,42 +349,13 @@ public class SampleIapManager {
      * Connect to the database when main activity's onStart and onResume
      */
     public void activate() {
-        dataSource.open();
-
-    }
+        ledgerExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                dataSource.open();
+            }
+        });
 
-    /**
-     * This method contains the business logic to fulfill the customer's
-     * purchase based on the receipt received from InAppPurchase SDK's
-     * {@link PurchasingListener#onPurchaseResponse} or
-     * {@link PurchasingListener#onPurchaseUpdates} method.
-     * 
-     * 
-     * @param receiptId
-     * @param userData
-     */
-    private void grantEntitlementPurchase(final Receipt receipt, final UserData userData) {
-        final MySku mySku = MySku.fromSku(receipt.getSku(), userIapData.getAmazonMarketplace());
-        // Verify that the SKU is still applicable.
-        if (mySku != MySku.LEVEL2) {
-            Log.w(TAG, "The SKU [" + receipt.getSku() + "] in the receipt is not valid anymore ");
-            // if the sku is not applicable anymore, call
-            // PurchasingService.notifyFulfillment with status "UNAVAILABLE"
-            PurchasingService.notifyFulfillment(receipt.getReceiptId(), FulfillmentResult.UNAVAILABLE);
-            return;
-        }
-        try {
-            // Actual entitlement granting logic: Save the entitlement purchase
-            // record to database so it can be loaded by
-            // refreshLevel2Availability() method later,
-            // then notify Amazon Appstore.
-            saveEntitlementPurchase(receipt, userData.getUserId());
-            PurchasingService.notifyFulfillment(receipt.getReceiptId(), FulfillmentResult.FULFILLED);
-        } catch (final Throwable e) {
-            // If for any reason the app is not able to fulfill the purchase,
-            // add your own error handling code here.
-            Log.e(TAG, "Failed to grant entitlement purchase, with error " + e.getMessage());
-        }
     }
 
     /**
@@ -289,91 +381,41 @@ public class SampleIapManager {
      * 
      * We strongly recommend that you save purchase information on a server.
      * 
-     * Use Receipt.isCanceled() to determine whether the receipt is in a
-     * "CANCELED" state
-     * 
-     * @param receipt
-     * @param userId
+     * @param records
+     * @return the records that changed
      */
-    private void saveEntitlementPurchase(final Receipt receipt, final String userId) {
+    private EntitlementChanges saveEntitlementRecords(final List<EntitlementRecord> records) {
         // TODO replace with your own implementation
-        final long purchaseDate = receipt.getPurchaseDate() != null ? receipt.getPurchaseDate().getTime()
-                : EntitlementRecord.DATE_NOT_SET;
-
-        final long cancelDate = receipt.isCanceled() ? receipt.getCancelDate().getTime()
-                : EntitlementRecord.DATE_NOT_SET;
-        dataSource.insertOrUpdateEntitlementRecord(receipt.getReceiptId(),
-                                                   userId,
-                                                   receipt.getSku(),
-                                                   purchaseDate,
-                                                   cancelDate);
-
-    }
-
-    /**
-     * Method to handle Entitlement Purchase
-     * 
-     * @param receipt
-     * @param userData
-     */
-    private void handleEntitlementPurchase(final Receipt receipt, final UserData userData) {
-        try {
-            if (receipt.isCanceled()) {
-                // Check whether this receipt is to revoke a entitlement
-                // purchase
-                revokeEntitlement(receipt, userData.getUserId());
-            } else {
-                // We strongly recommend that you verify the receipt
-                // server-side.
-                if (!verifyReceiptFromYourService(receipt.getReceiptId(), userData)) {
-                    // if the purchase cannot be verified,
-                    // show relevant error message to the customer.
-                    mainActivity.showMessage("Purchase cannot be verified, please retry later.");
-                    return;
-                }
-                grantEntitlementPurchase(receipt, userData);
-            }
-            return;
-        } catch (final Throwable e) {
-            mainActivity.showMessage("Purchase cannot be completed, please retry");
-        }
-
+        return dataSource.saveEntitlementRecords(records);
     }
 
     /**
-     * Private method to revoke an entitlement purchase from the customer
+     * Convert a receipt to the record saved for it. Use Receipt.isCanceled()
+     * to determine whether the receipt is in a "CANCELED" state; a canceled
+     * receipt's record carries the cancel date, and revokes the entitlement
+     * purchase when saved.
      * 
      * Please implement your application-specific logic to handle the revocation
      * of an entitlement purchase.
      * 
-     * 
      * @param receipt
      * @param userId
+     * @return
      */
-    private void revokeEntitlement(final Receipt receipt, final String userId) {
-        String receiptId = receipt.getReceiptId();
-        final EntitlementRecord record;
-        if (receiptId == null) {
-            // The revoked receipt's receipt id may be null on older devices.
-            record = dataSource.getLatestEntitlementRecordBySku(userId, receipt.getSku());
-            receiptId = record.getReceiptId();
-        } else {
-            record = dataSource.getEntitlementRecordByReceiptId(receiptId);
-        }
-        if (record == null) {
-            // No purchase record for the entitlement before, do nothing.
-            return;
-        }
-        if (record.getCancelDate() == EntitlementRecord.DATE_NOT_SET || record.getCancelDate() > System
-                .currentTimeMillis()) {
-            final long cancelDate = receipt.getCancelDate() != null ? receipt.getCancelDate().getTime() : System
-                .currentTimeMillis();
-            dataSource.cancelEntitlement(receiptId, cancelDate);
+    private EntitlementRecord toEntitlementRecord(final Receipt receipt, final String userId) {
+        final EntitlementRecord record = new EntitlementRecord();
+        record.setReceiptId(receipt.getReceiptId());
+        record.setUserId(userId);
+        record.setSku(receipt.getSku());
+        record.setPurchaseDate(receipt.getPurchaseDate() != null ? receipt.getPurchaseDate().getTime()
+                : EntitlementRecord.DATE_NOT_SET);
+        if (receipt.isCanceled()) {
+            record.setCancelDate(receipt.getCancelDate() != null ? receipt.getCancelDate().getTime() : System
+                .currentTimeMillis());
         } else {
-            // Already canceled, do nothing
-            return;
+            record.setCancelDate(EntitlementRecord.DATE_NOT_SET);
         }
-
+        return record;
     }
 
 }
@@ -111,13 +111,13 @@ public class SamplePurchasingListener implements PurchasingListener {
         case SUCCESSFUL:
 
             iapManager.setAmazonUserId(response.getUserData().getUserId(), response.getUserData().getMarketplace());
-            for (final Receipt receipt : response.getReceipts()) {
-                iapManager.handleReceipt(response.getRequestId().toString(), receipt, response.getUserData());
-            }
+            // Save the whole page of receipts at once
+            iapManager.handleReceipts(response.getRequestId().toString(),
+                                      response.getReceipts(),
+                                      response.getUserData());
             if (response.hasMore()) {
                 PurchasingService.getPurchaseUpdates(false);
             }
-            iapManager.refreshLevel2Availability();
 
             break;
         case FAILED:
@@ -157,7 +157,6 @@ public class SamplePurchasingListener implements PurchasingListener {
             iapManager.setAmazonUserId(response.getUserData().getUserId(), response.getUserData().getMarketplace());
             Log.d(TAG, "onPurchaseResponse: receipt json:" + receipt.toJSON());
             iapManager.handleReceipt(response.getRequestId().toString(), receipt, response.getUserData());
-            iapManager.refreshLevel2Availability();
             break;
         case ALREADY_PURCHASED:
             Log.i(TAG,
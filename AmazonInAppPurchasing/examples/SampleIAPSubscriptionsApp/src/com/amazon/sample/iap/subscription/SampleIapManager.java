@@ -1,8 +1,13 @@
 package com.amazon.sample.iap.subscription;
 
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 import android.util.Log;
 
@@ -12,6 +17,7 @@ import com.amazon.device.iap.model.FulfillmentResult;
 import com.amazon.device.iap.model.Product;
 import com.amazon.device.iap.model.Receipt;
 import com.amazon.device.iap.model.UserData;
+import com.amazon.sample.iap.subscription.SubscriptionDataSource.SubscriptionChanges;
 
 /**
  * This is a sample of how an application may handle InAppPurchasing. The major
@@ -27,15 +33,26 @@ import com.amazon.device.iap.model.UserData;
  */
 public class SampleIapManager {
     private static final String TAG = "SampleIAPManager";
+    private static final long LEDGER_KEEP_ALIVE_SECONDS = 30;
     private final MainActivity mainActivity;
     private final SubscriptionDataSource dataSource;
 
+    // Runs all reads and writes of the subscription records, one at a time
+    // in the order they were submitted, so the GUI thread never waits on the
+    // database. Results are posted back to the GUI thread.
+    private final ThreadPoolExecutor ledgerExecutor = new ThreadPoolExecutor(1,
+                                                                             1,
+                                                                             LEDGER_KEEP_ALIVE_SECONDS,
+                                                                             TimeUnit.SECONDS,
+                                                                             new LinkedBlockingQueue<Runnable>());
+
     private boolean magazineSubsAvailable;
     private UserIapData userIapData;
 
     public SampleIapManager(final MainActivity mainActivity) {
         this.mainActivity = mainActivity;
         this.dataSource = new SubscriptionDataSource(mainActivity.getApplicationContext());
+        ledgerExecutor.allowCoreThreadTimeOut(true);
     }
 
     /**
@@ -94,60 +111,101 @@ public class SampleIapManager {
 
     /**
      * This method contains the business logic to fulfill the customer's
-     * purchase based on the receipt received from InAppPurchase SDK's
+     * purchases based on the receipts received from InAppPurchase SDK's
      * {@link PurchasingListener#onPurchaseResponse} or
      * {@link PurchasingListener#onPurchaseUpdates} method.
      * 
+     * All of the receipts are saved in one transaction on the ledger thread,
+     * and the saved changes are applied to the subscription status without
+     * reloading it from the database. Purchases are only reported fulfilled
+     * once they are saved. Receipts are saved in the order they are handled.
      * 
      * @param requestId
-     * @param receiptId
+     * @param receipts
+     * @param userData
      */
-    public void handleSubscriptionPurchase(final Receipt receipt, final UserData userData) {
-        try {
-            if (receipt.isCanceled()) {
-                // Check whether this receipt is for an expired or canceled
-                // subscription
-                revokeSubscription(receipt, userData.getUserId());
-            } else {
-                // We strongly recommend that you verify the receipt on
-                // server-side.
-                if (!verifyReceiptFromYourService(receipt.getReceiptId(), userData)) {
-                    // if the purchase cannot be verified,
-                    // show relevant error message to the customer.
+    public void handleReceipts(final String requestId, final List<Receipt> receipts, final UserData userData) {
+        final List<SubscriptionRecord> records = new ArrayList<SubscriptionRecord>();
+        final List<String> grantedReceiptIds = new ArrayList<String>();
+        for (final Receipt receipt : receipts) {
+            switch (receipt.getProductType()) {
+            case CONSUMABLE:
+                // check consumable sample for how to handle consumable purchases
+                break;
+            case ENTITLED:
+                // check entitlement sample for how to handle consumable purchases
+                break;
+            case SUBSCRIPTION:
+                if (receipt.isCanceled()) {
+                    // Check whether this receipt is for an expired or canceled
+                    // subscription
+                    records.add(toSubscriptionRecord(receipt, userData.getUserId()));
+                } else if (!verifyReceiptFromYourService(receipt.getReceiptId(), userData)) {
+                    // We strongly recommend that you verify the receipt on
+                    // server-side. If the purchase cannot be verified, show
+                    // relevant error message to the customer.
                     mainActivity.showMessage("Purchase cannot be verified, please retry later.");
-                    return;
+                } else if (MySku.fromSku(receipt.getSku(), userIapData.getAmazonMarketplace()) != MySku.MY_MAGAZINE_SUBS) {
+                    Log.w(TAG, "The SKU [" + receipt.getSku() + "] in the receipt is not valid anymore ");
+                    // if the sku is not applicable anymore, call
+                    // PurchasingService.notifyFulfillment with status
+                    // "UNAVAILABLE"
+                    PurchasingService.notifyFulfillment(receipt.getReceiptId(), FulfillmentResult.UNAVAILABLE);
+                } else {
+                    records.add(toSubscriptionRecord(receipt, userData.getUserId()));
+                    grantedReceiptIds.add(receipt.getReceiptId());
                 }
-                grantSubscriptionPurchase(receipt, userData);
+                break;
             }
-            return;
-        } catch (final Throwable e) {
-            mainActivity.showMessage("Purchase cannot be completed, please retry");
         }
 
-    }
-
-    private void grantSubscriptionPurchase(final Receipt receipt, final UserData userData) {
+        final UserIapData currentUserIapData = userIapData;
+        ledgerExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                final SubscriptionChanges changes;
+                try {
+                    changes = saveSubscriptionRecords(records);
+                } catch (final Throwable e) {
+                    // If for any reason the app is not able to fulfill the
+                    // purchases, add your own error handling code here. None
+                    // of them were saved, so they will all be received again.
+                    Log.e(TAG, "Failed to save subscription purchases, with error " + e.getMessage());
+                    mainActivity.postToGuiThread(new Runnable() {
+                        @Override
+                        public void run() {
+                            mainActivity.showMessage("Purchase cannot be completed, please retry");
+                        }
+                    });
+                    return;
+                }
 
-        final MySku mySku = MySku.fromSku(receipt.getSku(), userIapData.getAmazonMarketplace());
-        // Verify that the SKU is still applicable.
-        if (mySku != MySku.MY_MAGAZINE_SUBS) {
-            Log.w(TAG, "The SKU [" + receipt.getSku() + "] in the receipt is not valid anymore ");
-            // if the sku is not applicable anymore, call
-            // PurchasingService.notifyFulfillment with status "UNAVAILABLE"
-            PurchasingService.notifyFulfillment(receipt.getReceiptId(), FulfillmentResult.UNAVAILABLE);
-            return;
-        }
-        try {
-            // Set the purchase status to fulfilled for your application
-            saveSubscriptionRecord(receipt, userData.getUserId());
-            PurchasingService.notifyFulfillment(receipt.getReceiptId(), FulfillmentResult.FULFILLED);
+                mainActivity.postToGuiThread(new Runnable() {
+                    @Override
+                    public void run() {
+                        // Set the purchase status to fulfilled for your
+                        // application
+                        for (final String receiptId : grantedReceiptIds) {
+                            PurchasingService.notifyFulfillment(receiptId, FulfillmentResult.FULFILLED);
+                        }
+
+                        // Skip the changes if the user has changed, or if the
+                        // records have not been loaded yet; loading them will
+                        // include the changes.
+                        if (userIapData == currentUserIapData && userIapData.getSubscriptionRecords() != null
+                            && !changes.isEmpty()) {
+                            userIapData.applySubscriptionChanges(changes);
+                            refreshMagazineSubsAvailability();
+                        }
+                    }
+                });
+            }
+        });
 
-        } catch (final Throwable e) {
-            // If for any reason the app is not able to fulfill the purchase,
-            // add your own error handling code here.
-            Log.e(TAG, "Failed to grant entitlement purchase, with error " + e.getMessage());
+        if (userIapData.getSubscriptionRecords() == null) {
+            // Nothing loaded yet to apply the changes to
+            reloadSubscriptionStatus();
         }
-
     }
 
     /**
@@ -158,17 +216,7 @@ public class SampleIapManager {
      * @param userData
      */
     public void handleReceipt(final String requestId, final Receipt receipt, final UserData userData) {
-        switch (receipt.getProductType()) {
-        case CONSUMABLE:
-            // check consumable sample for how to handle consumable purchases
-            break;
-        case ENTITLED:
-            // check entitlement sample for how to handle consumable purchases
-            break;
-        case SUBSCRIPTION:
-            handleSubscriptionPurchase(receipt, userData);
-            break;
-        }
+        handleReceipts(requestId, Collections.singletonList(receipt), userData);
     }
 
     /**
@@ -214,7 +262,12 @@ public class SampleIapManager {
      * 
      */
     public void deactivate() {
-        dataSource.close();
+        ledgerExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                dataSource.close();
+            }
+        });
 
     }
 
@@ -222,18 +275,40 @@ public class SampleIapManager {
      * Connect to the database when main activity's onStart and onResume
      */
     public void activate() {
-        dataSource.open();
+        ledgerExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                dataSource.open();
+            }
+        });
 
     }
 
     /**
-     * Reload the subscription history from database
+     * Reload the subscription history from database, after any changes
+     * already submitted to it
      */
     public void reloadSubscriptionStatus() {
-        final List<SubscriptionRecord> subsRecords = dataSource.getSubscriptionRecords(userIapData.getAmazonUserId());
-        userIapData.setSubscriptionRecords(subsRecords);
-        userIapData.reloadSubscriptionStatus();
-        refreshMagazineSubsAvailability();
+        final UserIapData currentUserIapData = userIapData;
+        ledgerExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                final List<SubscriptionRecord> subsRecords = dataSource.getSubscriptionRecords(currentUserIapData
+                    .getAmazonUserId());
+                mainActivity.postToGuiThread(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (userIapData != currentUserIapData) {
+                            // The user has changed since
+                            return;
+                        }
+                        userIapData.setSubscriptionRecords(subsRecords);
+                        userIapData.reloadSubscriptionStatus();
+                        refreshMagazineSubsAvailability();
+                    }
+                });
+            }
+        });
     }
 
     /**
@@ -245,20 +320,36 @@ public class SampleIapManager {
      * 
      * 
      * 
-     * @param receipt
-     * @param userId
+     * @param records
+     * @return the records that changed
      */
-    private void saveSubscriptionRecord(final Receipt receipt, final String userId) {
+    private SubscriptionChanges saveSubscriptionRecords(final List<SubscriptionRecord> records) {
         // TODO replace with your own implementation
+        return dataSource.saveSubscriptionRecords(records);
+    }
 
-        dataSource
-            .insertOrUpdateSubscriptionRecord(receipt.getReceiptId(),
-                                              userId,
-                                              receipt.getPurchaseDate().getTime(),
-                                              receipt.getCancelDate() == null ? SubscriptionRecord.TO_DATE_NOT_SET
-                                                      : receipt.getCancelDate().getTime(),
-                                              receipt.getSku());
-
+    /**
+     * Convert a receipt to the record saved for it. A canceled receipt's
+     * record carries the cancel date, and revokes the subscription when saved.
+     * 
+     * Please implement your application-specific logic to handle the revocation
+     * of a subscription purchase.
+     * 
+     * @param receipt
+     * @param userId
+     * @return
+     */
+    private SubscriptionRecord toSubscriptionRecord(final Receipt receipt, final String userId) {
+        final SubscriptionRecord record = new SubscriptionRecord();
+        record.setAmazonReceiptId(receipt.getReceiptId());
+        record.setAmazonUserId(userId);
+        record.setFrom(receipt.getPurchaseDate() != null ? receipt.getPurchaseDate().getTime() : 0);
+        if (receipt.isCanceled()) {
+            record.setTo(receipt.getCancelDate() != null ? receipt.getCancelDate().getTime() : System
+                .currentTimeMillis());
+        }
+        record.setSku(receipt.getSku());
+        return record;
     }
 
     /**
@@ -278,20 +369,4 @@ public class SampleIapManager {
         return true;
     }
 
-    /**
-     * Private method to revoke a subscription purchase from the customer
-     * 
-     * Please implement your application-specific logic to handle the revocation
-     * of a subscription purchase.
-     * 
-     * 
-     * @param receipt
-     * @param userId
-     */
-    private void revokeSubscription(final Receipt receipt, final String userId) {
-        final String receiptId = receipt.getReceiptId();
-        dataSource.cancelSubscription(receiptId, receipt.getCancelDate().getTime());
-
-    }
-
 }
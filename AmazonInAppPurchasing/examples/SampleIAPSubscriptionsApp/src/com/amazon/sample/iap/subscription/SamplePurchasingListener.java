@@ -111,13 +111,13 @@ public class SamplePurchasingListener implements PurchasingListener {
         switch (status) {
         case SUCCESSFUL:
             iapManager.setAmazonUserId(response.getUserData().getUserId(), response.getUserData().getMarketplace());
-            for (final Receipt receipt : response.getReceipts()) {
-                iapManager.handleReceipt(response.getRequestId().toString(), receipt, response.getUserData());
-            }
+            // Save the whole page of receipts at once
+            iapManager.handleReceipts(response.getRequestId().toString(),
+                                      response.getReceipts(),
+                                      response.getUserData());
             if (response.hasMore()) {
                 PurchasingService.getPurchaseUpdates(false);
             }
-            iapManager.reloadSubscriptionStatus();
             break;
         case FAILED:
         case NOT_SUPPORTED:
@@ -155,7 +155,6 @@ public class SamplePurchasingListener implements PurchasingListener {
             final Receipt receipt = response.getReceipt();
             Log.d(TAG, "onPurchaseResponse: receipt json:" + receipt.toJSON());
             iapManager.handleReceipt(response.getRequestId().toString(), receipt, response.getUserData());
-            iapManager.reloadSubscriptionStatus();
             break;
         case ALREADY_PURCHASED:
             Log.i(TAG,
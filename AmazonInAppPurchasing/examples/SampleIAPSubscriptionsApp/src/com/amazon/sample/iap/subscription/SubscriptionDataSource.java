@@ -8,6 +8,7 @@ import android.content.Context;
 import android.database.Cursor;
 import android.database.SQLException;
 import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
 import android.util.Log;
 
 /**
@@ -17,6 +18,33 @@ import android.util.Log;
  */
 public class SubscriptionDataSource {
 
+    /**
+     * The records changed by {@link SubscriptionDataSource#saveSubscriptionRecords}
+     */
+    public static class SubscriptionChanges {
+        private final List<SubscriptionRecord> savedRecords = new ArrayList<SubscriptionRecord>();
+        private final List<SubscriptionRecord> canceledRecords = new ArrayList<SubscriptionRecord>();
+
+        /**
+         * @return records inserted or updated, as saved
+         */
+        public List<SubscriptionRecord> getSavedRecords() {
+            return savedRecords;
+        }
+
+        /**
+         * @return records whose to date was set, with only the receipt id and
+         *         the to date filled in
+         */
+        public List<SubscriptionRecord> getCanceledRecords() {
+            return canceledRecords;
+        }
+
+        public boolean isEmpty() {
+            return savedRecords.isEmpty() && canceledRecords.isEmpty();
+        }
+    }
+
     private static final String TAG = "SampleIAPManager";
 
     private SQLiteDatabase database;
@@ -132,6 +160,100 @@ public class SubscriptionDataSource {
         }
     }
 
+    /**
+     * Save a page of subscription records, such as the receipts of one
+     * purchase updates response, in a single transaction. Records are applied
+     * in order: a record that is active now is inserted or updated as by
+     * {@link #insertOrUpdateSubscriptionRecord}, and any other record cancels
+     * the subscription as by {@link #cancelSubscription}.
+     * 
+     * @param records
+     *            the records to save
+     * @return the records that changed
+     */
+    public SubscriptionChanges saveSubscriptionRecords(final List<SubscriptionRecord> records) {
+        Log.d(TAG, "saveSubscriptionRecords: " + records.size() + " records");
+        final SubscriptionChanges changes = new SubscriptionChanges();
+        if (records.isEmpty()) {
+            return changes;
+        }
+
+        final SQLiteStatement countFinal = database.compileStatement("select count(*) from "
+                                                                     + SampleSQLiteHelper.TABLE_SUBSCRIPTIONS
+                                                                     + " where "
+                                                                     + SampleSQLiteHelper.COLUMN_RECEIPT_ID
+                                                                     + " = ? and "
+                                                                     + SampleSQLiteHelper.COLUMN_DATE_TO
+                                                                     + " > 0");
+        final SQLiteStatement countExisting = database.compileStatement("select count(*) from "
+                                                                        + SampleSQLiteHelper.TABLE_SUBSCRIPTIONS
+                                                                        + " where "
+                                                                        + SampleSQLiteHelper.COLUMN_RECEIPT_ID
+                                                                        + " = ?");
+        final SQLiteStatement replace = database.compileStatement("insert or replace into "
+                                                                  + SampleSQLiteHelper.TABLE_SUBSCRIPTIONS
+                                                                  + " ("
+                                                                  + SampleSQLiteHelper.COLUMN_RECEIPT_ID
+                                                                  + ", "
+                                                                  + SampleSQLiteHelper.COLUMN_USER_ID
+                                                                  + ", "
+                                                                  + SampleSQLiteHelper.COLUMN_DATE_FROM
+                                                                  + ", "
+                                                                  + SampleSQLiteHelper.COLUMN_DATE_TO
+                                                                  + ", "
+                                                                  + SampleSQLiteHelper.COLUMN_SKU
+                                                                  + ") values (?, ?, ?, ?, ?)");
+        final SQLiteStatement cancel = database.compileStatement("update "
+                                                                 + SampleSQLiteHelper.TABLE_SUBSCRIPTIONS
+                                                                 + " set "
+                                                                 + SampleSQLiteHelper.COLUMN_DATE_TO
+                                                                 + " = ? where "
+                                                                 + SampleSQLiteHelper.COLUMN_RECEIPT_ID
+                                                                 + " = ?");
+        database.beginTransaction();
+        try {
+            for (final SubscriptionRecord record : records) {
+                final String receiptId = record.getAmazonReceiptId();
+                if (record.isActiveNow()) {
+                    countFinal.bindString(1, receiptId);
+                    if (countFinal.simpleQueryForLong() > 0) {
+                        // This record should be final and cannot be
+                        // overwritten anymore.
+                        Log.w(TAG, "Record already in final state");
+                        continue;
+                    }
+                    replace.bindString(1, receiptId);
+                    replace.bindString(2, record.getAmazonUserId());
+                    replace.bindLong(3, record.getFrom());
+                    replace.bindLong(4, record.getTo());
+                    replace.bindString(5, record.getSku());
+                    replace.executeInsert();
+                    changes.savedRecords.add(record);
+                } else {
+                    countExisting.bindString(1, receiptId);
+                    if (countExisting.simpleQueryForLong() == 0) {
+                        continue;
+                    }
+                    cancel.bindLong(1, record.getTo());
+                    cancel.bindString(2, receiptId);
+                    cancel.execute();
+                    changes.canceledRecords.add(record);
+                }
+            }
+            database.setTransactionSuccessful();
+        } finally {
+            database.endTransaction();
+            countFinal.close();
+            countExisting.close();
+            replace.close();
+            cancel.close();
+        }
+        Log.d(TAG, "saveSubscriptionRecords: saved " + changes.savedRecords.size()
+                   + ", canceled "
+                   + changes.canceledRecords.size());
+        return changes;
+    }
+
     /**
      * Cancel a subscription by set the cancel date for the subscription record
      * 
@@ -45,6 +45,39 @@ public class UserIapData {
         this.amazonMarketplace = amazonMarketplace;
     }
 
+    /**
+     * Apply records changed since the SubscriptionRecords were loaded, then
+     * reload the current subscription status from them.
+     * 
+     * @param changes
+     *            the changed records
+     */
+    public void applySubscriptionChanges(final SubscriptionDataSource.SubscriptionChanges changes) {
+        for (final SubscriptionRecord saved : changes.getSavedRecords()) {
+            final SubscriptionRecord record = findSubscriptionRecord(saved.getAmazonReceiptId());
+            if (record != null) {
+                subscriptionRecords.remove(record);
+            }
+            subscriptionRecords.add(saved);
+        }
+        for (final SubscriptionRecord canceled : changes.getCanceledRecords()) {
+            final SubscriptionRecord record = findSubscriptionRecord(canceled.getAmazonReceiptId());
+            if (record != null) {
+                record.setTo(canceled.getTo());
+            }
+        }
+        reloadSubscriptionStatus();
+    }
+
+    private SubscriptionRecord findSubscriptionRecord(final String receiptId) {
+        for (final SubscriptionRecord record : subscriptionRecords) {
+            if (record.getAmazonReceiptId().equals(receiptId)) {
+                return record;
+            }
+        }
+        return null;
+    }
+
     /**
      * Reload current subscription status from SubscriptionRecords
      */